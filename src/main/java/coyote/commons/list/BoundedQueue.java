@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.list;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * A fixed size queue any number of threads may add to and remove from
+ * without locking.
+ *
+ * <p>The queue is an array allocated once, so adding an element allocates
+ * nothing. Each slot carries a sequence number telling producers and
+ * consumers whether it is free for the next lap of the array; a thread claims
+ * a slot with a single compare-and-set on the head or tail counter (Dmitry
+ * Vyukov's bounded queue). Elements come out in the order their slots were
+ * claimed.</p>
+ *
+ * <p>When the queue is full, the {@link Overflow} policy decides whether the
+ * new element or the oldest element is discarded. Either way the queue never
+ * grows, and the number of discarded elements is counted.</p>
+ *
+ * @param <E> the type of element held
+ */
+public final class BoundedQueue<E> {
+
+  /**
+   * What to do with an element added to a full queue.
+   */
+  public enum Overflow {
+    /** Discard the element being added */
+    DROP_NEWEST,
+    /** Discard the oldest element to make room */
+    DROP_OLDEST
+  }
+
+  private final int mask;
+
+  private final AtomicReferenceArray<E> elements;
+
+  /** The lap on which each slot may next be written (or read, if one more) */
+  private final AtomicLongArray sequences;
+
+  /** The position of the next element to be added */
+  private final AtomicLong tail = new AtomicLong();
+
+  /** The position of the next element to be removed */
+  private final AtomicLong head = new AtomicLong();
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private volatile Overflow overflow;
+
+
+
+
+  /**
+   * Create a queue which discards the oldest element when full.
+   *
+   * @param capacity the number of elements the queue holds, rounded up to a
+   *        power of two
+   */
+  public BoundedQueue( int capacity ) {
+    this( capacity, Overflow.DROP_OLDEST );
+  }
+
+
+
+
+  /**
+   * @param capacity the number of elements the queue holds, rounded up to a
+   *        power of two
+   * @param overflow what to do when an element is added to a full queue
+   */
+  public BoundedQueue( int capacity, Overflow overflow ) {
+    int size = 2;
+    while ( size < capacity && size < ( 1 << 30 ) ) {
+      size <<= 1;
+    }
+    mask = size - 1;
+    elements = new AtomicReferenceArray<E>( size );
+    sequences = new AtomicLongArray( size );
+    for ( int x = 0; x < size; x++ ) {
+      sequences.set( x, x );
+    }
+    this.overflow = ( overflow != null ) ? overflow : Overflow.DROP_OLDEST;
+  }
+
+
+
+
+  /**
+   * Add an element to the tail of the queue.
+   *
+   * @param element the element to add
+   *
+   * @return false if the queue was full and the element was discarded
+   */
+  public boolean offer( E element ) {
+    return offer( element, null );
+  }
+
+
+
+
+  /**
+   * Add an element to the tail of the queue, handing back any older element
+   * discarded to make room for it.
+   *
+   * <p>Usually at most one element is discarded, but when other threads
+   * fill the freed slot first, more are.</p>
+   *
+   * @param element the element to add
+   * @param evicted where the discarded elements are placed, may be null
+   *
+   * @return false if the queue was full and the element was discarded
+   */
+  public boolean offer( E element, Collection<? super E> evicted ) {
+    if ( element == null ) {
+      throw new NullPointerException();
+    }
+
+    while ( !tryOffer( element ) ) {
+      if ( overflow == Overflow.DROP_NEWEST ) {
+        dropped.incrementAndGet();
+        return false;
+      }
+      E oldest = poll();
+      if ( oldest != null ) {
+        dropped.incrementAndGet();
+        if ( evicted != null ) {
+          evicted.add( oldest );
+        }
+      }
+    }
+    return true;
+  }
+
+
+
+
+  private boolean tryOffer( E element ) {
+    long position = tail.get();
+    while ( true ) {
+      int index = (int)( position & mask );
+      long difference = sequences.get( index ) - position;
+
+      if ( difference == 0 ) {
+        if ( tail.compareAndSet( position, position + 1 ) ) {
+          elements.set( index, element );
+          sequences.lazySet( index, position + 1 );
+          return true;
+        }
+        position = tail.get();
+      } else if ( difference < 0 ) {
+        // the slot still holds the element from the last lap
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Remove the element at the head of the queue.
+   *
+   * @return the oldest element, or null if the queue is empty
+   */
+  public E poll() {
+    long position = head.get();
+    while ( true ) {
+      int index = (int)( position & mask );
+      long difference = sequences.get( index ) - ( position + 1 );
+
+      if ( difference == 0 ) {
+        if ( head.compareAndSet( position, position + 1 ) ) {
+          E retval = elements.get( index );
+          elements.set( index, null );
+          sequences.lazySet( index, position + mask + 1 );
+          return retval;
+        }
+        position = head.get();
+      } else if ( difference < 0 ) {
+        return null;
+      } else {
+        position = head.get();
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Move up to the given number of elements, oldest first, into the
+   * collection.
+   *
+   * @param collection where the elements are placed
+   * @param max the most elements to move
+   *
+   * @return the number of elements moved
+   */
+  public int drainTo( Collection<? super E> collection, int max ) {
+    int retval = 0;
+    E element;
+    while ( ( retval < max ) && ( ( element = poll() ) != null ) ) {
+      collection.add( element );
+      retval++;
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * @return the number of elements in the queue, which may already have
+   *         changed if other threads are using it
+   */
+  public int size() {
+    long retval = tail.get() - head.get();
+    return (int)Math.max( 0, Math.min( retval, mask + 1 ) );
+  }
+
+
+
+
+  /**
+   * @return true if the queue held no elements when checked
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+
+
+
+  /**
+   * Remove all the elements in the queue.
+   */
+  public void clear() {
+    while ( poll() != null ) {
+      // discard
+    }
+  }
+
+
+
+
+  /**
+   * @return the number of elements the queue holds
+   */
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+
+
+
+  /**
+   * @return the number of elements discarded because the queue was full
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+
+
+
+  /**
+   * @return what is done when an element is added to a full queue
+   */
+  public Overflow getOverflow() {
+    return overflow;
+  }
+
+
+
+
+  /**
+   * @param policy what to do when an element is added to a full queue
+   */
+  public void setOverflow( Overflow policy ) {
+    if ( policy != null ) {
+      overflow = policy;
+    }
+  }
+
+}
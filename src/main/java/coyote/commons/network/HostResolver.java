@@ -0,0 +1,620 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import coyote.loader.log.Log;
+import coyote.loader.thread.ThreadPool;
+
+
+/**
+ * A cache of host name lookups shared by everything in the VM which makes
+ * connections.
+ *
+ * <p>Every host is looked up at most once at a time no matter how many
+ * threads ask for it; later callers wait for (or are called back with) the
+ * result of the lookup already in progress. Answers are cached for the
+ * positive time-to-live and failures for the negative time-to-live. An entry
+ * which is used in the last part of its life is refreshed by a resolver thread
+ * so busy hosts are never looked up on a caller's thread once they are
+ * cached. Entries are only refreshed when they are used, and the cache holds
+ * at most {@link #getMaxSize()} hosts; when it grows past that, expired
+ * entries and then the least recently used ones are dropped.</p>
+ *
+ * <p>{@code InetAddress} does not reveal the TTL of the records it returns,
+ * so the lifetimes are the same {@code networkaddress.cache.ttl} and
+ * {@code networkaddress.cache.negative.ttl} security properties the VM uses,
+ * or 30 and 10 seconds when they are not set, and can be changed with
+ * {@link #setTimeToLive(long)} and {@link #setNegativeTimeToLive(long)}.</p>
+ *
+ * <p>The time each lookup actually took is kept with its entry so probes can
+ * report how long the name service takes separately from how long they spent
+ * waiting on the cache.</p>
+ */
+public final class HostResolver {
+
+  /** Default milliseconds (30000) a successful lookup is cached */
+  public static final long DEFAULT_TTL = 30000;
+
+  /** Default milliseconds (10000) a failed lookup is cached */
+  public static final long DEFAULT_NEGATIVE_TTL = 10000;
+
+  /** Default number of hosts (4096) the cache holds */
+  public static final int DEFAULT_MAX_SIZE = 4096;
+
+  /** Percentage of its life after which a used entry is refreshed */
+  private static final int REFRESH_PERCENT = 80;
+
+  private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+  private static volatile long ttl = getSecurityTtl( "networkaddress.cache.ttl", DEFAULT_TTL );
+
+  private static volatile long negativeTtl = getSecurityTtl( "networkaddress.cache.negative.ttl", DEFAULT_NEGATIVE_TTL );
+
+  private static volatile int maxSize = DEFAULT_MAX_SIZE;
+
+  private static final AtomicLong hits = new AtomicLong();
+
+  private static final AtomicLong lookups = new AtomicLong();
+
+  private static final AtomicLong refreshes = new AtomicLong();
+
+  /** Orders the uses of entries for least recently used eviction */
+  private static final AtomicLong uses = new AtomicLong();
+
+  /** Threads performing asynchronous lookups and refreshes */
+  private static ThreadPool pool = null;
+
+
+
+
+  private HostResolver() {}
+
+
+
+
+  /**
+   * Read a cache lifetime in seconds from the security properties.
+   */
+  private static long getSecurityTtl( String name, long defaultMillis ) {
+    try {
+      String value = Security.getProperty( name );
+      if ( value != null ) {
+        long seconds = Long.parseLong( value.trim() );
+        return ( seconds < 0 ) ? Long.MAX_VALUE : seconds * 1000;
+      }
+    } catch ( Exception ignore ) {
+      // use the default
+    }
+    return defaultMillis;
+  }
+
+
+
+
+  /**
+   * Resolve the host, looking it up in the calling thread only if it is not
+   * cached and no other thread is already looking it up.
+   *
+   * @param host the name (or literal address) to resolve
+   *
+   * @return all the addresses of the host, never empty
+   *
+   * @throws UnknownHostException if the host could not be resolved, now or
+   *         within the negative time-to-live
+   */
+  public static InetAddress[] resolve( String host ) throws UnknownHostException {
+    Entry entry = getEntry( host );
+
+    if ( entry.isFresh( System.currentTimeMillis() ) ) {
+      hits.incrementAndGet();
+      refreshIfAging( entry );
+      return entry.get();
+    }
+
+    if ( entry.claim() ) {
+      entry.lookup();
+    } else {
+      entry.await();
+    }
+
+    return entry.get();
+  }
+
+
+
+
+  /**
+   * Resolve the host to its first address.
+   *
+   * @param host the name (or literal address) to resolve
+   *
+   * @return the first address of the host
+   *
+   * @throws UnknownHostException if the host could not be resolved
+   */
+  public static InetAddress getAddress( String host ) throws UnknownHostException {
+    return resolve( host )[0];
+  }
+
+
+
+
+  /**
+   * Resolve the host without blocking the caller.
+   *
+   * <p>If the host is cached the listener is called before this method
+   * returns, otherwise it is called from a resolver thread when the lookup
+   * completes.</p>
+   *
+   * @param host the name (or literal address) to resolve
+   * @param listener the listener to receive the result
+   */
+  public static void resolve( String host, IResolverListener listener ) {
+    Entry entry = getEntry( host );
+
+    if ( entry.isFresh( System.currentTimeMillis() ) ) {
+      hits.incrementAndGet();
+      refreshIfAging( entry );
+      entry.deliver( listener );
+      return;
+    }
+
+    if ( entry.addListener( listener ) && entry.claim() ) {
+      execute( entry );
+    }
+  }
+
+
+
+
+  /**
+   * @return the cache entry of the host, created if necessary
+   */
+  private static Entry getEntry( String host ) {
+    String key = ( host == null ) ? "" : host.toLowerCase();
+    Entry retval = cache.get( key );
+    if ( retval != null ) {
+      retval.used = uses.incrementAndGet();
+    } else {
+      Entry entry = new Entry( key, host );
+      retval = cache.putIfAbsent( key, entry );
+      if ( retval == null ) {
+        retval = entry;
+        if ( cache.size() > maxSize ) {
+          trim();
+        }
+      }
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Drop expired entries and, if that is not enough, the least recently used
+   * ones until the cache is a quarter below its limit so trimming is rare.
+   *
+   * <p>Entries being looked up are kept so no caller waits on a lookup which
+   * another caller then repeats.</p>
+   */
+  private static synchronized void trim() {
+    int target = maxSize - ( maxSize / 4 );
+    if ( cache.size() <= target ) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    for ( Iterator<Entry> it = cache.values().iterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if ( !entry.isFresh( now ) && !entry.isBusy() ) {
+        it.remove();
+      }
+    }
+
+    if ( cache.size() > target ) {
+      Entry[] entries = cache.values().toArray( new Entry[0] );
+      Arrays.sort( entries, new Comparator<Entry>() {
+        public int compare( Entry a, Entry b ) {
+          return ( a.used < b.used ) ? -1 : ( ( a.used == b.used ) ? 0 : 1 );
+        }
+      } );
+      for ( int x = 0; ( x < entries.length ) && ( cache.size() > target ); x++ ) {
+        if ( !entries[x].isBusy() ) {
+          cache.remove( entries[x].key, entries[x] );
+        }
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Look the entry up again in the background if it is near its expiry.
+   */
+  private static void refreshIfAging( Entry entry ) {
+    if ( ( System.currentTimeMillis() >= entry.refreshAt ) && entry.claim() ) {
+      refreshes.incrementAndGet();
+      execute( entry );
+    }
+  }
+
+
+
+
+  private static void execute( final Entry entry ) {
+    ThreadPool threads;
+    synchronized( HostResolver.class ) {
+      if ( pool == null ) {
+        pool = new ThreadPool( "HostResolver" );
+        pool.setMinThreadCount( 0 );
+        pool.setMaxThreadCount( 8 );
+        pool.start();
+      }
+      threads = pool;
+    }
+
+    threads.run( new Runnable() {
+      public void run() {
+        entry.lookup();
+      }
+    } );
+  }
+
+
+
+
+  /**
+   * Return how long the last lookup of the host actually took, as opposed to
+   * how long a caller spent getting the answer from the cache.
+   *
+   * @param host the name of the host
+   *
+   * @return nanoseconds taken by the last lookup, -1 if it was never looked up
+   */
+  public static long getLookupNanos( String host ) {
+    Entry entry = cache.get( ( host == null ) ? "" : host.toLowerCase() );
+    return ( entry == null ) ? -1 : entry.lookupNanos;
+  }
+
+
+
+
+  /**
+   * @param millis how long a successful lookup is cached
+   */
+  public static void setTimeToLive( long millis ) {
+    ttl = millis;
+  }
+
+
+
+
+  /**
+   * @return how long a successful lookup is cached in milliseconds
+   */
+  public static long getTimeToLive() {
+    return ttl;
+  }
+
+
+
+
+  /**
+   * @param millis how long a failed lookup is cached, 0 disables negative
+   *        caching
+   */
+  public static void setNegativeTimeToLive( long millis ) {
+    negativeTtl = millis;
+  }
+
+
+
+
+  /**
+   * @return how long a failed lookup is cached in milliseconds
+   */
+  public static long getNegativeTimeToLive() {
+    return negativeTtl;
+  }
+
+
+
+
+  /**
+   * Set how many hosts the cache holds before it drops the least recently
+   * used.
+   *
+   * @param size the most hosts to cache, at least 1
+   */
+  public static void setMaxSize( int size ) {
+    maxSize = ( size < 1 ) ? 1 : size;
+    if ( cache.size() > maxSize ) {
+      trim();
+    }
+  }
+
+
+
+
+  /**
+   * @return the most hosts the cache holds
+   */
+  public static int getMaxSize() {
+    return maxSize;
+  }
+
+
+
+
+  /**
+   * @return the number of hosts currently cached
+   */
+  public static int size() {
+    return cache.size();
+  }
+
+
+
+
+  /**
+   * Forget the cached answer for one host.
+   *
+   * @param host the name of the host
+   */
+  public static void remove( String host ) {
+    cache.remove( ( host == null ) ? "" : host.toLowerCase() );
+  }
+
+
+
+
+  /**
+   * Forget all the cached answers.
+   */
+  public static void clear() {
+    cache.clear();
+  }
+
+
+
+
+  /**
+   * @return the number of requests answered from the cache
+   */
+  public static long getHitCount() {
+    return hits.get();
+  }
+
+
+
+
+  /**
+   * @return the number of lookups made of the name service
+   */
+  public static long getLookupCount() {
+    return lookups.get();
+  }
+
+
+
+
+  /**
+   * @return the number of lookups made in the background to refresh an entry
+   *         before it expired
+   */
+  public static long getRefreshCount() {
+    return refreshes.get();
+  }
+
+  /**
+   * The cached answer for one host and the lookup which produces it.
+   */
+  private static final class Entry {
+    final String key;
+
+    final String host;
+
+    volatile InetAddress[] addresses = null;
+    volatile UnknownHostException error = null;
+
+    /** Epoch time in milliseconds the answer expires, 0 when there is none */
+    volatile long expires = 0;
+
+    /** Epoch time in milliseconds after which use triggers a refresh */
+    volatile long refreshAt = Long.MAX_VALUE;
+
+    volatile long lookupNanos = -1;
+
+    /** When the entry was last asked for, relative to the other entries */
+    volatile long used = uses.incrementAndGet();
+
+    /** Set while a thread is looking the host up */
+    private boolean busy = false;
+
+    /** Listeners waiting for the lookup in progress */
+    private List<IResolverListener> waiting = new ArrayList<IResolverListener>();
+
+
+
+
+    Entry( String key, String host ) {
+      this.key = key;
+      this.host = host;
+    }
+
+
+
+
+    boolean isFresh( long now ) {
+      return now < expires;
+    }
+
+
+
+
+    synchronized boolean isBusy() {
+      return busy;
+    }
+
+
+
+
+    /**
+     * @return true if the caller is now responsible for the lookup
+     */
+    synchronized boolean claim() {
+      if ( busy ) {
+        return false;
+      }
+      busy = true;
+      return true;
+    }
+
+
+
+
+    /**
+     * Queue the listener for the lookup in progress or about to start.
+     *
+     * @return false if the answer became fresh and the listener was called
+     */
+    boolean addListener( IResolverListener listener ) {
+      synchronized( this ) {
+        if ( !isFresh( System.currentTimeMillis() ) ) {
+          waiting.add( listener );
+          return true;
+        }
+      }
+      deliver( listener );
+      return false;
+    }
+
+
+
+
+    /**
+     * Query the name service and publish the answer.
+     */
+    void lookup() {
+      lookups.incrementAndGet();
+      InetAddress[] found = null;
+      UnknownHostException failure = null;
+
+      long mark = System.nanoTime();
+      try {
+        found = InetAddress.getAllByName( host );
+        if ( found.length == 0 ) {
+          throw new UnknownHostException( host );
+        }
+      } catch ( UnknownHostException e ) {
+        failure = e;
+      } catch ( RuntimeException e ) {
+        failure = new UnknownHostException( host + ": " + e.getMessage() );
+      }
+      long elapsed = System.nanoTime() - mark;
+      long now = System.currentTimeMillis();
+
+      List<IResolverListener> listeners;
+      synchronized( this ) {
+        lookupNanos = elapsed;
+        if ( failure == null ) {
+          addresses = found;
+          error = null;
+          expires = ( ttl == Long.MAX_VALUE ) ? Long.MAX_VALUE : now + ttl;
+          refreshAt = ( ttl == Long.MAX_VALUE ) ? Long.MAX_VALUE : now + ( ttl * REFRESH_PERCENT / 100 );
+        } else if ( isFresh( now ) && ( addresses != null ) ) {
+          // a failed refresh keeps serving the last good answer until it expires
+          Log.debug( "Could not refresh '" + host + "': " + failure.getMessage() );
+          refreshAt = expires;
+        } else {
+          addresses = null;
+          error = failure;
+          expires = now + negativeTtl;
+          refreshAt = Long.MAX_VALUE;
+        }
+
+        busy = false;
+        listeners = waiting;
+        waiting = new ArrayList<IResolverListener>();
+        notifyAll();
+      }
+
+      for ( int x = 0; x < listeners.size(); x++ ) {
+        deliver( listeners.get( x ) );
+      }
+    }
+
+
+
+
+    /**
+     * Wait for the lookup in progress to complete.
+     */
+    synchronized void await() throws UnknownHostException {
+      try {
+        while ( busy ) {
+          wait();
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new UnknownHostException( "Interrupted resolving '" + host + "'" );
+      }
+    }
+
+
+
+
+    /**
+     * @return the addresses of the last lookup
+     *
+     * @throws UnknownHostException if the last lookup failed
+     */
+    synchronized InetAddress[] get() throws UnknownHostException {
+      if ( addresses == null ) {
+        throw ( error != null ) ? error : new UnknownHostException( host );
+      }
+      return addresses.clone();
+    }
+
+
+
+
+    void deliver( IResolverListener listener ) {
+      try {
+        InetAddress[] found;
+        try {
+          found = get();
+        } catch ( UnknownHostException e ) {
+          listener.onFailure( host, e );
+          return;
+        }
+        listener.onResolved( host, found );
+      } catch ( RuntimeException e ) {
+        Log.error( "Resolver listener threw " + e.getClass().getName() + ": " + e.getMessage() );
+      }
+    }
+  }
+
+}
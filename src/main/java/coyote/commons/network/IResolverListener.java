@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+
+/**
+ * IResolverListener receives the outcome of an asynchronous lookup made
+ * through the {@link HostResolver}.
+ *
+ * <p>The methods are called either on the thread requesting the lookup, when
+ * the answer is already cached, or on a resolver thread and should return
+ * quickly.</p>
+ */
+public interface IResolverListener {
+
+  /**
+   * Called when the host has been resolved.
+   *
+   * @param host the name which was resolved
+   * @param addresses all the addresses of the host, never empty
+   */
+  public abstract void onResolved( String host, InetAddress[] addresses );
+
+
+
+
+  /**
+   * Called when the host could not be resolved.
+   *
+   * @param host the name which was to be resolved
+   * @param error the reason the host could not be resolved
+   */
+  public abstract void onFailure( String host, UnknownHostException error );
+
+}
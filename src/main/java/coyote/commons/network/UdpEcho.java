@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Measures round trip time, jitter and loss to UDP echo services.
+ *
+ * <p>Java cannot send ICMP echo requests without native help, so this does
+ * the same job with UDP datagrams sent to a service which returns them
+ * unchanged (such as the echo service on port 7). All the targets are pinged
+ * from one non-blocking {@code DatagramChannel} in the calling thread: each
+ * round sends one packet to every target, the rounds are spaced by the
+ * interval, and replies are read as they arrive between rounds.</p>
+ *
+ * <p>Each packet carries a marker, an identifier unique to the run, a
+ * sequence number and the time it was sent. Replies are matched to the packet
+ * they echo by the sequence number alone, so it does not matter which address
+ * the reply comes from or the order in which replies arrive. Replies to other
+ * runs, duplicates and replies arriving after the time-out are not
+ * counted.</p>
+ */
+public class UdpEcho {
+
+  /** The default number of packets (10) sent to each target */
+  public static final int DEFAULT_COUNT = 10;
+
+  /** The default number of milliseconds (100) between rounds */
+  public static final long DEFAULT_INTERVAL = 100;
+
+  /** The default size in bytes (64) of each packet */
+  public static final int DEFAULT_PACKET_SIZE = 64;
+
+  /** The default number of milliseconds (1000) to wait for the last replies */
+  public static final long DEFAULT_TIMEOUT = 1000;
+
+  /** The size of the header at the start of every packet */
+  public static final int HEADER_SIZE = 20;
+
+  /** Marks our packets, "CYTE" */
+  private static final int MAGIC = 0x43595445;
+
+  private static final Random random = new Random();
+
+  private int count = DEFAULT_COUNT;
+
+  private long interval = DEFAULT_INTERVAL;
+
+  private int packetSize = DEFAULT_PACKET_SIZE;
+
+  private long timeout = DEFAULT_TIMEOUT;
+
+
+
+
+  /**
+   * @param count the number of packets sent to each target
+   */
+  public void setCount( int count ) {
+    this.count = Math.max( 1, count );
+  }
+
+
+
+
+  /**
+   * @return the number of packets sent to each target
+   */
+  public int getCount() {
+    return count;
+  }
+
+
+
+
+  /**
+   * @param millis milliseconds between sending one round of packets and the
+   *        next
+   */
+  public void setInterval( long millis ) {
+    interval = Math.max( 0, millis );
+  }
+
+
+
+
+  /**
+   * @return milliseconds between rounds
+   */
+  public long getInterval() {
+    return interval;
+  }
+
+
+
+
+  /**
+   * @param size the size of each packet in bytes, at least
+   *        {@value #HEADER_SIZE}
+   */
+  public void setPacketSize( int size ) {
+    packetSize = Math.min( 65507, Math.max( HEADER_SIZE, size ) );
+  }
+
+
+
+
+  /**
+   * @return the size of each packet in bytes
+   */
+  public int getPacketSize() {
+    return packetSize;
+  }
+
+
+
+
+  /**
+   * @param millis milliseconds to wait for replies after the last round is
+   *        sent
+   */
+  public void setTimeout( long millis ) {
+    timeout = Math.max( 0, millis );
+  }
+
+
+
+
+  /**
+   * @return milliseconds to wait for replies after the last round is sent
+   */
+  public long getTimeout() {
+    return timeout;
+  }
+
+
+
+
+  /**
+   * Ping all the targets, returning when every packet has been answered or
+   * the time-out has passed since the last round was sent.
+   *
+   * @param targets the addresses of the echo services
+   *
+   * @return the result for each target, in the same order
+   *
+   * @throws IOException if the datagram channel could not be used
+   */
+  public Result[] ping( InetSocketAddress[] targets ) throws IOException {
+    Result[] results = new Result[targets.length];
+    for ( int x = 0; x < targets.length; x++ ) {
+      results[x] = new Result( targets[x], count );
+    }
+    if ( targets.length == 0 ) {
+      return results;
+    }
+
+    // sequence numbers run round by round: seq = round * targets + target
+    int total = count * targets.length;
+    long[] sentAt = new long[total];
+    int runId = random.nextInt();
+    int expected = 0;
+    int answered = 0;
+
+    ByteBuffer output = ByteBuffer.allocate( packetSize );
+    ByteBuffer input = ByteBuffer.allocate( Math.max( packetSize, 1500 ) );
+
+    DatagramChannel channel = DatagramChannel.open();
+    Selector selector = Selector.open();
+    try {
+      channel.configureBlocking( false );
+      channel.socket().bind( null );
+      SelectionKey key = channel.register( selector, SelectionKey.OP_READ );
+
+      int seq = 0;
+      long nextRound = System.nanoTime();
+      long deadline = Long.MAX_VALUE;
+
+      while ( true ) {
+        long now = System.nanoTime();
+
+        // send what is due, stopping if the socket buffer fills up
+        boolean blocked = false;
+        while ( ( seq < total ) && ( now >= nextRound ) && !blocked ) {
+          int target = seq % targets.length;
+          output.clear();
+          output.putInt( MAGIC ).putInt( runId ).putInt( seq );
+          long mark = System.nanoTime();
+          output.putLong( mark );
+          output.position( packetSize );
+          output.flip();
+
+          // targets which cannot be sent to keep their sequence numbers
+          if ( !results[target].unreachable ) {
+            try {
+              if ( channel.send( output, targets[target] ) == 0 ) {
+                blocked = true;
+                break;
+              }
+              sentAt[seq] = mark;
+              results[target].sent++;
+              expected++;
+            } catch ( IOException e ) {
+              results[target].unreachable = true;
+              results[target].error = ( e.getMessage() != null ) ? e.getMessage() : e.getClass().getName();
+            }
+          }
+
+          seq++;
+          if ( ( seq % targets.length ) == 0 ) {
+            nextRound += interval * 1000000L;
+          }
+          now = System.nanoTime();
+        }
+
+        if ( ( seq == total ) && ( deadline == Long.MAX_VALUE ) ) {
+          deadline = System.nanoTime() + ( timeout * 1000000L );
+        }
+
+        if ( ( seq == total ) && ( ( answered >= expected ) || ( System.nanoTime() >= deadline ) ) ) {
+          break;
+        }
+
+        key.interestOps( blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ );
+        long until = ( seq < total ) ? nextRound : deadline;
+        long wait = blocked ? 0 : until - System.nanoTime();
+        if ( blocked ) {
+          selector.select();
+        } else if ( wait > 0 ) {
+          selector.select( Math.max( 1, wait / 1000000L ) );
+        } else {
+          selector.selectNow();
+        }
+        selector.selectedKeys().clear();
+
+        // read every reply which has arrived
+        input.clear();
+        while ( channel.receive( input ) != null ) {
+          long arrived = System.nanoTime();
+          input.flip();
+          if ( ( input.remaining() >= HEADER_SIZE ) && ( input.getInt() == MAGIC ) && ( input.getInt() == runId ) ) {
+            int number = input.getInt();
+            if ( ( number >= 0 ) && ( number < seq ) && ( sentAt[number] != 0 ) ) {
+              if ( results[number % targets.length].reply( number / targets.length, arrived - sentAt[number] ) ) {
+                answered++;
+              }
+            }
+          }
+          input.clear();
+        }
+      }
+    }
+    finally {
+      selector.close();
+      channel.close();
+    }
+
+    return results;
+  }
+
+  /**
+   * The replies received from one target.
+   */
+  public static final class Result {
+    private final InetSocketAddress target;
+
+    /** Round trip time in nanoseconds of each packet, -1 if not answered */
+    private final long[] rtt;
+
+    private int sent = 0;
+    private int received = 0;
+    private int duplicates = 0;
+
+    boolean unreachable = false;
+    String error = null;
+
+    /** Received round trip times in ascending order, built on first use */
+    private long[] sorted = null;
+
+
+
+
+    Result( InetSocketAddress target, int count ) {
+      this.target = target;
+      rtt = new long[count];
+      Arrays.fill( rtt, -1 );
+      if ( target.isUnresolved() ) {
+        unreachable = true;
+        error = "Unresolved address " + target;
+      }
+    }
+
+
+
+
+    /**
+     * Record the reply to a packet.
+     *
+     * @return true if this was the first reply to the packet
+     */
+    boolean reply( int index, long nanos ) {
+      if ( rtt[index] >= 0 ) {
+        duplicates++;
+        return false;
+      }
+      rtt[index] = nanos;
+      received++;
+      return true;
+    }
+
+
+
+
+    /**
+     * @return the address of the echo service
+     */
+    public InetSocketAddress getTarget() {
+      return target;
+    }
+
+
+
+
+    /**
+     * @return the number of packets sent to the target
+     */
+    public int getSent() {
+      return sent;
+    }
+
+
+
+
+    /**
+     * @return the number of packets answered
+     */
+    public int getReceived() {
+      return received;
+    }
+
+
+
+
+    /**
+     * @return the number of replies received for packets already answered
+     */
+    public int getDuplicates() {
+      return duplicates;
+    }
+
+
+
+
+    /**
+     * @return the percentage of sent packets not answered, 100 if none were
+     *         sent
+     */
+    public float getLoss() {
+      return ( sent == 0 ) ? 100F : ( ( sent - received ) * 100F ) / sent;
+    }
+
+
+
+
+    /**
+     * @return the reason packets could not be sent, null if they all were
+     */
+    public String getError() {
+      return error;
+    }
+
+
+
+
+    /**
+     * @return the round trip time of each packet in the order sent, -1 for
+     *         packets not answered
+     */
+    public long[] getRoundTripTimes() {
+      return rtt.clone();
+    }
+
+
+
+
+    /**
+     * @return the shortest round trip time in nanoseconds, -1 if no replies
+     */
+    public long getMinimum() {
+      return ( received == 0 ) ? -1 : sorted()[0];
+    }
+
+
+
+
+    /**
+     * @return the longest round trip time in nanoseconds, -1 if no replies
+     */
+    public long getMaximum() {
+      return ( received == 0 ) ? -1 : sorted()[received - 1];
+    }
+
+
+
+
+    /**
+     * @return the mean round trip time in nanoseconds, -1 if no replies
+     */
+    public long getAverage() {
+      if ( received == 0 ) {
+        return -1;
+      }
+      long sum = 0;
+      long[] values = sorted();
+      for ( int x = 0; x < values.length; x++ ) {
+        sum += values[x];
+      }
+      return sum / values.length;
+    }
+
+
+
+
+    /**
+     * Return the round trip time below which the given percentage of the
+     * replies arrived, using the nearest rank.
+     *
+     * @param percent the percentile, between 0 and 100
+     *
+     * @return the percentile in nanoseconds, -1 if no replies
+     */
+    public long getPercentile( double percent ) {
+      if ( received == 0 ) {
+        return -1;
+      }
+      int rank = (int)Math.ceil( ( percent / 100D ) * received );
+      return sorted()[Math.min( received, Math.max( 1, rank ) ) - 1];
+    }
+
+
+
+
+    /**
+     * Return the jitter, the mean of the absolute differences between the
+     * round trip times of successive answered packets.
+     *
+     * @return the jitter in nanoseconds, -1 if fewer than two replies
+     */
+    public long getJitter() {
+      if ( received < 2 ) {
+        return -1;
+      }
+      long sum = 0;
+      int pairs = 0;
+      long last = -1;
+      for ( int x = 0; x < rtt.length; x++ ) {
+        if ( rtt[x] >= 0 ) {
+          if ( last >= 0 ) {
+            sum += Math.abs( rtt[x] - last );
+            pairs++;
+          }
+          last = rtt[x];
+        }
+      }
+      return sum / pairs;
+    }
+
+
+
+
+    private long[] sorted() {
+      if ( ( sorted == null ) || ( sorted.length != received ) ) {
+        long[] values = new long[received];
+        int index = 0;
+        for ( int x = 0; x < rtt.length; x++ ) {
+          if ( rtt[x] >= 0 ) {
+            values[index++] = rtt[x];
+          }
+        }
+        Arrays.sort( values );
+        sorted = values;
+      }
+      return sorted;
+    }
+  }
+
+}
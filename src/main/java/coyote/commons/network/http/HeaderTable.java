@@ -0,0 +1,629 @@
+/*
+ * Copyright (c) 2003 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * A compact table of HTTP headers stored as offsets into a single byte buffer.
+ *
+ * <p>Header lines are read off the wire directly into the buffer and each
+ * header is recorded as four offsets (name start/end, value start/end) into
+ * that buffer. No strings are created while parsing; names are resolved to
+ * the interned constants in {@link HttpMessage} where possible and values are
+ * only decoded (and then cached) when they are actually asked for. Lookups
+ * compare the raw bytes without regard to case so nothing needs to be
+ * lowercased.</p>
+ *
+ * <p>The buffers are kept between uses; clearing the table only resets the
+ * counters so a message which is parsed over and over again does not allocate
+ * new storage once the buffers have grown to fit.</p>
+ *
+ * <p>Bytes are treated as ISO-8859-1 as required by RFC 2616 section 2.2.</p>
+ *
+ * <p>This class is not thread-safe; it is owned by a single HttpMessage.</p>
+ */
+public final class HeaderTable {
+
+  /** Header names we see all the time, resolved without allocating a string */
+  private static final String[] KNOWN_NAMES = { HttpMessage.CONTENT_LENGTH, HttpMessage.CONTENT_ENCODING, HttpMessage.CONTENT_TYPE, HttpMessage.CONTENT_LOCATION, HttpMessage.CONTENT_ID, HttpMessage.EXPECT_HEADER, HttpMessage.ACCEPT_LANGUAGE, HttpMessage.ACCEPT, HttpMessage.ACCEPT_ENCODING, HttpMessage.HOST, HttpMessage.RANGE, HttpMessage.CONNECTION, HttpMessage.KEEP_ALIVE, HttpMessage.SERVER, HttpMessage.SET_COOKIE_0, HttpMessage.SET_COOKIE_1, HttpMessage.COOKIE, HttpMessage.USER_AGENT, HttpMessage.DATE, HttpMessage.AUTHORIZATION, HttpMessage.PROXY_AUTHORIZATION, HttpMessage.PROXY_CONNECTION, HttpMessage.WWW_AUTHENTICATE, HttpMessage.LAST_MODIFIED, HttpMessage.ACCEPT_RANGES, HttpMessage.IF_MODIFIED_SINCE, HttpMessage.IF_NONE_MATCH, HttpMessage.TRANSFER_ENCODING, "Cache-Control", HttpMessage.ETAG, "Expires", "Location", "Pragma", "Vary", "Age", "Via" };
+
+  /** Case-insensitive hashes of the known names, parallel to KNOWN_NAMES */
+  private static final int[] KNOWN_HASHES = new int[KNOWN_NAMES.length];
+
+  private static final byte[] SEPARATOR = { ':', ' ' };
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private static final int CR = '\r';
+  private static final int LF = '\n';
+
+  /** Number of ints used per header in the offset table */
+  private static final int SLOTS = 4;
+  private static final int NAME_START = 0;
+  private static final int NAME_END = 1;
+  private static final int VALUE_START = 2;
+  private static final int VALUE_END = 3;
+
+  private static final int INITIAL_BYTES = 512;
+  private static final int INITIAL_HEADERS = 16;
+
+  /** Offset marking a header whose value was set to null */
+  private static final int NO_VALUE = -1;
+
+  /** The raw bytes of all the header names and values */
+  private byte[] data = new byte[INITIAL_BYTES];
+
+  /** Number of bytes used in the data buffer */
+  private int length = 0;
+
+  /** Number of bytes in the data buffer no longer referenced by any header */
+  private int garbage = 0;
+
+  /** Offsets into the data buffer, SLOTS entries per header */
+  private int[] offsets = new int[INITIAL_HEADERS * SLOTS];
+
+  /** Interned or decoded names, null until resolved */
+  private String[] names = new String[INITIAL_HEADERS];
+
+  /** Decoded values, null until someone asks for them */
+  private String[] values = new String[INITIAL_HEADERS];
+
+  /** The number of headers in the table */
+  private int count = 0;
+
+  static {
+    for ( int i = 0; i < KNOWN_NAMES.length; i++ ) {
+      KNOWN_HASHES[i] = hash( KNOWN_NAMES[i] );
+    }
+  }
+
+
+
+
+  /**
+   * @return the number of headers in the table
+   */
+  public int size() {
+    return count;
+  }
+
+
+
+
+  /**
+   * Remove all the headers from the table, retaining the buffers for reuse.
+   */
+  public void clear() {
+    for ( int i = 0; i < count; i++ ) {
+      names[i] = null;
+      values[i] = null;
+    }
+    count = 0;
+    length = 0;
+    garbage = 0;
+  }
+
+
+
+
+  /**
+   * Read a single header line from the given stream into the table.
+   *
+   * <p>The line is read up to and including its LF terminator. Leading and
+   * trailing whitespace around the name and the value are excluded from the
+   * recorded offsets rather than being trimmed into new strings.</p>
+   *
+   * @param in the stream from which the line is to be read
+   *
+   * @return the number of bytes consumed from the stream including the line
+   *         terminator, 0 if the end of the stream was reached before any
+   *         data, or a negative number (the bytes consumed) if the line was
+   *         empty, signaling the end of the headers.
+   *
+   * @throws IOException if the stream could not be read or the line was not a
+   *         valid header
+   */
+  int readLine( InputStream in ) throws IOException {
+    int start = length;
+    int consumed = 0;
+    int colon = -1;
+    int ch;
+
+    while ( ( ch = in.read() ) != -1 ) {
+      consumed++;
+
+      if ( ch == LF ) {
+        break;
+      }
+
+      if ( ch != CR ) {
+        if ( ( ch == ':' ) && ( colon < 0 ) ) {
+          colon = length;
+        }
+        ensureData( 1 );
+        data[length++] = (byte)ch;
+      }
+    }
+
+    if ( consumed == 0 ) {
+      return 0;
+    }
+
+    if ( length == start ) {
+      // empty line marks the end of the headers
+      return -consumed;
+    }
+
+    if ( colon < 0 ) {
+      String line = decode( start, length );
+      length = start;
+      throw new IOException( "illegal HTTP header: '" + line + "'" );
+    }
+
+    int nameStart = skipForward( start, colon );
+    int nameEnd = skipBackward( nameStart, colon );
+    int valueStart = skipForward( colon + 1, length );
+    int valueEnd = skipBackward( valueStart, length );
+
+    int index = append( nameStart, nameEnd, valueStart, valueEnd );
+    names[index] = lookupName( nameStart, nameEnd );
+
+    // the colon and any surrounding whitespace can never be referenced
+    garbage += ( length - start ) - ( nameEnd - nameStart ) - ( valueEnd - valueStart );
+
+    return consumed;
+  }
+
+
+
+
+  /**
+   * Decode the entire line (as received) of the given header.
+   *
+   * @param index the position of the header in the table
+   *
+   * @return the header as a "name: value" string
+   */
+  String getLine( int index ) {
+    return getName( index ) + ": " + getValue( index );
+  }
+
+
+
+
+  /**
+   * Add a header to the end of the table.
+   *
+   * <p>A header with a null value is retained for lookups but will return a
+   * null value and will not be written.</p>
+   *
+   * @param name the name of the header
+   * @param value the value of the header
+   */
+  public void add( String name, String value ) {
+    int nameStart = length;
+    encode( name );
+    int nameEnd = length;
+    int valueStart = ( value != null ) ? length : NO_VALUE;
+    encode( value );
+    int index = append( nameStart, nameEnd, valueStart, ( value != null ) ? length : NO_VALUE );
+    names[index] = name;
+    values[index] = value;
+  }
+
+
+
+
+  /**
+   * Replace the value of the first header with the given name, adding the
+   * header to the end of the table if it does not exist.
+   *
+   * @param name the name of the header to set
+   * @param value the value to set
+   */
+  public void set( String name, String value ) {
+    int index = indexOf( name, 0 );
+
+    if ( index < 0 ) {
+      add( name, value );
+      return;
+    }
+
+    int base = index * SLOTS;
+    int oldLength = offsets[base + VALUE_END] - offsets[base + VALUE_START];
+    int newLength = ( value != null ) ? value.length() : 0;
+
+    if ( value == null ) {
+      garbage += oldLength;
+      offsets[base + VALUE_START] = NO_VALUE;
+      offsets[base + VALUE_END] = NO_VALUE;
+    } else if ( ( newLength <= oldLength ) && ( offsets[base + VALUE_START] != NO_VALUE ) ) {
+      // overwrite in place
+      int mark = length;
+      length = offsets[base + VALUE_START];
+      encode( value );
+      offsets[base + VALUE_END] = length;
+      garbage += oldLength - newLength;
+      length = mark;
+    } else {
+      // the old value becomes garbage and the new one is appended
+      garbage += oldLength;
+      offsets[base + VALUE_START] = length;
+      encode( value );
+      offsets[base + VALUE_END] = length;
+    }
+
+    // names match without regard to case, so take on the case of the caller
+    int mark = length;
+    length = offsets[base + NAME_START];
+    encode( name );
+    length = mark;
+
+    names[index] = name;
+    values[index] = value;
+    compactIfNeeded();
+  }
+
+
+
+
+  /**
+   * Find the first header with the given name at or after the given index.
+   *
+   * @param name the case-insensitive name of the header
+   * @param from where to start looking
+   *
+   * @return the index of the header or -1 if not found
+   */
+  public int indexOf( String name, int from ) {
+    if ( name == null ) {
+      return -1;
+    }
+
+    int len = name.length();
+
+    for ( int i = from; i < count; i++ ) {
+      int base = i * SLOTS;
+      int start = offsets[base + NAME_START];
+
+      if ( ( offsets[base + NAME_END] - start ) == len ) {
+        if ( ( names[i] == name ) || regionMatches( start, name ) ) {
+          return i;
+        }
+      }
+    }
+
+    return -1;
+  }
+
+
+
+
+  /**
+   * @param index the position of the header in the table
+   *
+   * @return the name of the header at the given position
+   */
+  public String getName( int index ) {
+    String retval = names[index];
+
+    if ( retval == null ) {
+      int base = index * SLOTS;
+      retval = decode( offsets[base + NAME_START], offsets[base + NAME_END] );
+      names[index] = retval;
+    }
+
+    return retval;
+  }
+
+
+
+
+  /**
+   * @param index the position of the header in the table
+   *
+   * @return the (decoded and cached) value of the header at the given position
+   */
+  public String getValue( int index ) {
+    String retval = values[index];
+
+    if ( retval == null ) {
+      int base = index * SLOTS;
+      if ( offsets[base + VALUE_START] == NO_VALUE ) {
+        return null;
+      }
+      retval = decode( offsets[base + VALUE_START], offsets[base + VALUE_END] );
+      values[index] = retval;
+    }
+
+    return retval;
+  }
+
+
+
+
+  /**
+   * Return the value of the first header with the given name.
+   *
+   * @param name the case-insensitive name of the header
+   *
+   * @return the value or null if there is no header with that name
+   */
+  public String get( String name ) {
+    int index = indexOf( name, 0 );
+    return ( index < 0 ) ? null : getValue( index );
+  }
+
+
+
+
+  /**
+   * Parse the value of the first header with the given name as an integer
+   * directly from the bytes without creating a string.
+   *
+   * @param name the case-insensitive name of the header
+   *
+   * @return the value of the header or -1 if it is not present
+   *
+   * @throws NumberFormatException if the value is not a valid integer
+   */
+  public int getInt( String name ) {
+    int index = indexOf( name, 0 );
+
+    if ( index < 0 ) {
+      return -1;
+    }
+
+    int base = index * SLOTS;
+    int start = offsets[base + VALUE_START];
+    int end = offsets[base + VALUE_END];
+
+    if ( start == NO_VALUE ) {
+      return -1;
+    }
+
+    boolean negative = ( start < end ) && ( data[start] == '-' );
+    long retval = 0;
+
+    for ( int i = negative ? start + 1 : start; i < end; i++ ) {
+      int digit = data[i] - '0';
+      if ( ( digit < 0 ) || ( digit > 9 ) || ( retval > Integer.MAX_VALUE ) ) {
+        // let the platform generate the appropriate exception
+        return Integer.parseInt( getValue( index ) );
+      }
+      retval = ( retval * 10 ) + digit;
+    }
+
+    if ( ( end - start ) == ( negative ? 1 : 0 ) || ( retval > Integer.MAX_VALUE ) ) {
+      return Integer.parseInt( getValue( index ) );
+    }
+
+    return negative ? -(int)retval : (int)retval;
+  }
+
+
+
+
+  /**
+   * Write all the headers to the given stream as "name: value" lines.
+   *
+   * <p>The bytes are written directly from the table buffer.</p>
+   *
+   * @param out the stream to which the headers are written
+   *
+   * @throws IOException if the stream could not be written
+   */
+  public void writeTo( OutputStream out ) throws IOException {
+    for ( int i = 0; i < count; i++ ) {
+      int base = i * SLOTS;
+      if ( ( offsets[base + VALUE_START] == NO_VALUE ) || ( offsets[base + NAME_START] == offsets[base + NAME_END] ) ) {
+        continue;
+      }
+      out.write( data, offsets[base + NAME_START], offsets[base + NAME_END] - offsets[base + NAME_START] );
+      out.write( SEPARATOR );
+      out.write( data, offsets[base + VALUE_START], offsets[base + VALUE_END] - offsets[base + VALUE_START] );
+      out.write( CRLF );
+    }
+  }
+
+
+
+
+  private int append( int nameStart, int nameEnd, int valueStart, int valueEnd ) {
+    if ( count == names.length ) {
+      int capacity = count * 2;
+      int[] newOffsets = new int[capacity * SLOTS];
+      System.arraycopy( offsets, 0, newOffsets, 0, count * SLOTS );
+      offsets = newOffsets;
+      String[] newNames = new String[capacity];
+      System.arraycopy( names, 0, newNames, 0, count );
+      names = newNames;
+      String[] newValues = new String[capacity];
+      System.arraycopy( values, 0, newValues, 0, count );
+      values = newValues;
+    }
+
+    int base = count * SLOTS;
+    offsets[base + NAME_START] = nameStart;
+    offsets[base + NAME_END] = nameEnd;
+    offsets[base + VALUE_START] = valueStart;
+    offsets[base + VALUE_END] = valueEnd;
+
+    return count++;
+  }
+
+
+
+
+  /**
+   * Copy the live bytes to the front of the buffer once more than half of it
+   * is garbage left over from replaced values.
+   */
+  private void compactIfNeeded() {
+    if ( ( garbage < INITIAL_BYTES ) || ( garbage < ( length / 2 ) ) ) {
+      return;
+    }
+
+    byte[] compacted = new byte[data.length];
+    int pos = 0;
+    for ( int i = 0; i < count; i++ ) {
+      int base = i * SLOTS;
+      for ( int slot = 0; slot < SLOTS; slot += 2 ) {
+        int start = offsets[base + slot];
+        if ( start == NO_VALUE ) {
+          continue;
+        }
+        int len = offsets[base + slot + 1] - start;
+        System.arraycopy( data, start, compacted, pos, len );
+        offsets[base + slot] = pos;
+        offsets[base + slot + 1] = pos + len;
+        pos += len;
+      }
+    }
+    data = compacted;
+    length = pos;
+    garbage = 0;
+  }
+
+
+
+
+  private void ensureData( int needed ) {
+    if ( ( length + needed ) > data.length ) {
+      byte[] newData = new byte[Math.max( data.length * 2, length + needed )];
+      System.arraycopy( data, 0, newData, 0, length );
+      data = newData;
+    }
+  }
+
+
+
+
+  private void encode( String text ) {
+    if ( text == null ) {
+      return;
+    }
+
+    int len = text.length();
+    ensureData( len );
+    for ( int i = 0; i < len; i++ ) {
+      char c = text.charAt( i );
+      data[length++] = ( c > 0xFF ) ? (byte)'?' : (byte)c;
+    }
+  }
+
+
+
+
+  private String decode( int start, int end ) {
+    char[] chars = new char[end - start];
+    for ( int i = start; i < end; i++ ) {
+      chars[i - start] = (char)( data[i] & 0xFF );
+    }
+    return new String( chars );
+  }
+
+
+
+
+  private boolean regionMatches( int start, String name ) {
+    for ( int i = 0; i < name.length(); i++ ) {
+      if ( lower( data[start + i] & 0xFF ) != lower( name.charAt( i ) ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+
+
+  private String lookupName( int start, int end ) {
+    int h = 0;
+    for ( int i = start; i < end; i++ ) {
+      h = ( 31 * h ) + lower( data[i] & 0xFF );
+    }
+
+    for ( int i = 0; i < KNOWN_NAMES.length; i++ ) {
+      if ( ( KNOWN_HASHES[i] == h ) && ( KNOWN_NAMES[i].length() == ( end - start ) ) && regionMatches( start, KNOWN_NAMES[i] ) ) {
+        // only use the constant if the case matches what was sent
+        if ( matchesExactly( start, KNOWN_NAMES[i] ) ) {
+          return KNOWN_NAMES[i];
+        }
+        return null;
+      }
+    }
+
+    return null;
+  }
+
+
+
+
+  private boolean matchesExactly( int start, String name ) {
+    for ( int i = 0; i < name.length(); i++ ) {
+      if ( ( data[start + i] & 0xFF ) != name.charAt( i ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+
+
+  private int skipForward( int from, int to ) {
+    while ( ( from < to ) && isWhitespace( data[from] ) ) {
+      from++;
+    }
+    return from;
+  }
+
+
+
+
+  private int skipBackward( int from, int to ) {
+    while ( ( to > from ) && isWhitespace( data[to - 1] ) ) {
+      to--;
+    }
+    return to;
+  }
+
+
+
+
+  private static boolean isWhitespace( byte b ) {
+    return ( b == ' ' ) || ( b == '\t' );
+  }
+
+
+
+
+  private static int lower( int c ) {
+    return ( ( c >= 'A' ) && ( c <= 'Z' ) ) ? c + 32 : c;
+  }
+
+
+
+
+  private static int hash( String name ) {
+    int h = 0;
+    for ( int i = 0; i < name.length(); i++ ) {
+      h = ( 31 * h ) + lower( name.charAt( i ) );
+    }
+    return h;
+  }
+
+}
@@ -0,0 +1,752 @@
+/*
+ * Copyright (c) 2003 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import coyote.commons.network.HostResolver;
+import coyote.commons.network.IResolverListener;
+import coyote.loader.log.Log;
+
+
+/**
+ * A non-blocking HTTP client which services any number of requests from a
+ * small number of event loop threads.
+ *
+ * <p>{@link HttpRequest#send(URI)} holds the calling thread for the entire
+ * life of the exchange. This engine instead multiplexes all its connections
+ * over a {@code Selector} per event loop (one loop per processor by default)
+ * so tens of thousands of requests may be in flight at once. Each request
+ * returns an {@link HttpFuture} and may optionally call back an
+ * {@link IResponseListener} when complete.</p>
+ *
+ * <p>Responses carry the same timing fields as those obtained through the
+ * blocking client: connection time, server latency and bytes per second. The
+ * timestamps are taken on the event loop as the events occur.</p>
+ *
+ * <p>Only clear-text HTTP is supported; requests to any other scheme fail
+ * immediately so callers can fall back to the blocking client. Identity,
+ * {@code Content-Length} and chunked bodies are handled. Each request uses
+ * its own connection which is closed when the response is complete.</p>
+ */
+public class HttpClientEngine {
+
+  /** The scheme this engine is able to service */
+  public static final String SCHEME = "http";
+
+  /** Size of the buffer each event loop uses to read from its sockets */
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /** The longest we wait in a select before checking for expired requests */
+  private static final long MAX_SELECT_WAIT = 1000;
+
+  private static final byte[] HEAD_TERMINATOR = { '\r', '\n', '\r', '\n' };
+
+  private static volatile HttpClientEngine defaultEngine = null;
+
+  private final EventLoop[] loops;
+
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  private volatile boolean shutdown = false;
+
+
+
+
+  /**
+   * Create an engine with one event loop per available processor.
+   *
+   * @throws IOException if the selectors could not be opened
+   */
+  public HttpClientEngine() throws IOException {
+    this( Runtime.getRuntime().availableProcessors() );
+  }
+
+
+
+
+  /**
+   * Create an engine with the given number of event loops.
+   *
+   * @param count the number of event loop threads to run
+   *
+   * @throws IOException if the selectors could not be opened
+   */
+  public HttpClientEngine( int count ) throws IOException {
+    if ( count < 1 ) {
+      count = 1;
+    }
+
+    loops = new EventLoop[count];
+    for ( int x = 0; x < count; x++ ) {
+      loops[x] = new EventLoop( Selector.open() );
+      Thread thread = new Thread( loops[x], "HttpClientEngine-" + x );
+      thread.setDaemon( true );
+      thread.start();
+    }
+  }
+
+
+
+
+  /**
+   * @return the engine shared by all callers in this runtime, created on
+   *         first use
+   *
+   * @throws IOException if the engine could not be created
+   */
+  public static HttpClientEngine getDefault() throws IOException {
+    HttpClientEngine retval = defaultEngine;
+    if ( ( retval == null ) || retval.shutdown ) {
+      synchronized( HttpClientEngine.class ) {
+        retval = defaultEngine;
+        if ( ( retval == null ) || retval.shutdown ) {
+          retval = new HttpClientEngine();
+          defaultEngine = retval;
+        }
+      }
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Send the given request to the given URI.
+   *
+   * @param request the request to send
+   * @param uri the resource being requested
+   * @param timeout the number of milliseconds allowed for the entire
+   *        exchange; 0 or less uses the timeout of the request
+   * @param listener optional listener to call when the request completes
+   *
+   * @return the future result of the request
+   */
+  public HttpFuture send( HttpRequest request, URI uri, long timeout, IResponseListener listener ) {
+    HttpFuture retval = new HttpFuture( request, listener );
+
+    if ( shutdown ) {
+      retval.fail( new HttpMessageException( "Engine has been shut down" ) );
+      return retval;
+    }
+
+    try {
+      URI target = request.setTarget( uri );
+
+      if ( !SCHEME.equalsIgnoreCase( target.getScheme() ) ) {
+        throw new HttpMessageException( "Scheme '" + target.getScheme() + "' is not supported by the non-blocking client" );
+      }
+
+      if ( timeout < 1 ) {
+        timeout = request.getTimeout();
+      }
+
+      final HttpRequest req = request;
+      final HttpFuture future = retval;
+      final int port = target.getPort();
+      final byte[] bytes = request.toBytes();
+      final long deadline = System.currentTimeMillis() + timeout;
+      final long resolving = System.nanoTime();
+
+      // cached hosts are submitted right away, others when their lookup ends
+      HostResolver.resolve( target.getHost(), new IResolverListener() {
+        public void onResolved( String host, InetAddress[] addresses ) {
+          if ( shutdown ) {
+            future.fail( new HttpMessageException( "Engine has been shut down" ) );
+            return;
+          }
+
+          Exchange exchange = new Exchange( req, new InetSocketAddress( addresses[0], port ), bytes, future, deadline );
+          exchange.dnsNanos = System.nanoTime() - resolving;
+
+          EventLoop loop = loops[( nextLoop.getAndIncrement() & Integer.MAX_VALUE ) % loops.length];
+          loop.submit( exchange );
+        }
+
+
+
+
+        public void onFailure( String host, UnknownHostException error ) {
+          future.fail( new HttpMessageException( "Could not resolve host address '" + host + "'" ) );
+        }
+      } );
+    } catch ( Exception e ) {
+      retval.fail( e );
+    }
+
+    return retval;
+  }
+
+
+
+
+  /**
+   * @return the number of requests currently being serviced by this engine
+   */
+  public int getInFlightCount() {
+    int retval = 0;
+    for ( int x = 0; x < loops.length; x++ ) {
+      retval += loops[x].inFlight.get();
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Stop all the event loops, failing any requests still in flight.
+   */
+  public void shutdown() {
+    shutdown = true;
+    for ( int x = 0; x < loops.length; x++ ) {
+      loops[x].selector.wakeup();
+    }
+  }
+
+
+
+
+  /**
+   * Remove the chunked transfer coding from the given data.
+   *
+   * @param data the buffer holding the chunked body
+   * @param from where the body starts in the buffer
+   * @param to where the received data ends in the buffer
+   * @param body where the decoded data is placed
+   *
+   * @return the position in the buffer of the next chunk to decode, or -1 if
+   *         the last chunk has been decoded
+   */
+  static int dechunk( byte[] data, int from, int to, ByteArrayOutputStream body ) {
+    int pos = from;
+
+    while ( pos < to ) {
+      int eol = indexOf( data, pos, to, HEAD_TERMINATOR, 2 );
+      if ( eol < 0 ) {
+        return pos;
+      }
+
+      int size = 0;
+      for ( int i = pos; i < eol; i++ ) {
+        int digit = Character.digit( (char)data[i], 16 );
+        if ( digit < 0 ) {
+          // chunk extensions and whitespace follow the size
+          break;
+        }
+        size = ( size * 16 ) + digit;
+      }
+
+      if ( size == 0 ) {
+        // last chunk, any optional trailers end with an empty line
+        return ( indexOf( data, eol, to, HEAD_TERMINATOR, 4 ) >= 0 ) ? -1 : pos;
+      }
+
+      int start = eol + 2;
+      if ( ( start + size + 2 ) > to ) {
+        return pos;
+      }
+
+      body.write( data, start, size );
+      pos = start + size + 2;
+    }
+
+    return pos;
+  }
+
+
+
+
+  /**
+   * Find the given pattern in a region of the given buffer.
+   *
+   * @return the index of the start of the pattern or -1 if not found
+   */
+  private static int indexOf( byte[] data, int from, int to, byte[] pattern, int length ) {
+    for ( int i = from; i <= ( to - length ); i++ ) {
+      int j = 0;
+      while ( ( j < length ) && ( data[i + j] == pattern[j] ) ) {
+        j++;
+      }
+      if ( j == length ) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+
+
+
+  /**
+   * The state of one request/response exchange.
+   */
+  private static final class Exchange implements Comparable<Exchange> {
+    final HttpRequest request;
+    final InetSocketAddress address;
+    ByteBuffer output;
+    final HttpFuture future;
+    final long deadline;
+
+    java.nio.channels.SocketChannel channel = null;
+
+    /** The raw bytes received so far */
+    byte[] input = new byte[4096];
+    int received = 0;
+
+    HttpResponse response = null;
+    int headEnd = -1;
+    int contentLength = -1;
+    boolean chunked = false;
+    int chunkPos = 0;
+    ByteArrayOutputStream body = null;
+
+    long connectStarted = 0;
+    long connected = 0;
+    long requestSent = 0;
+    long firstByte = 0;
+    long lastByte = 0;
+
+    /** System.nanoTime() marks of each phase */
+    long dnsNanos = -1;
+    long connectMark = 0;
+    long connectedMark = 0;
+    long sentMark = 0;
+    long firstByteMark = 0;
+    long lastByteMark = 0;
+
+    boolean finished = false;
+
+
+
+
+    Exchange( HttpRequest request, InetSocketAddress address, byte[] bytes, HttpFuture future, long deadline ) {
+      this.request = request;
+      this.address = address;
+      this.output = ByteBuffer.wrap( bytes );
+      this.future = future;
+      this.deadline = deadline;
+    }
+
+
+
+
+    void append( ByteBuffer buffer ) {
+      int len = buffer.remaining();
+      if ( ( received + len ) > input.length ) {
+        byte[] newInput = new byte[Math.max( input.length * 2, received + len )];
+        System.arraycopy( input, 0, newInput, 0, received );
+        input = newInput;
+      }
+      buffer.get( input, received, len );
+      received += len;
+    }
+
+
+
+
+    @Override
+    public int compareTo( Exchange other ) {
+      return ( deadline < other.deadline ) ? -1 : ( ( deadline == other.deadline ) ? 0 : 1 );
+    }
+  }
+
+
+
+
+  /**
+   * A single selector and the thread which services it.
+   */
+  private final class EventLoop implements Runnable {
+    final Selector selector;
+    final Queue<Exchange> pending = new ConcurrentLinkedQueue<Exchange>();
+    final PriorityQueue<Exchange> deadlines = new PriorityQueue<Exchange>();
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect( READ_BUFFER_SIZE );
+    final AtomicInteger inFlight = new AtomicInteger();
+
+
+
+
+    EventLoop( Selector selector ) {
+      this.selector = selector;
+    }
+
+
+
+
+    void submit( Exchange exchange ) {
+      inFlight.incrementAndGet();
+      pending.add( exchange );
+      selector.wakeup();
+    }
+
+
+
+
+    @Override
+    public void run() {
+      try {
+        while ( !shutdown ) {
+          register();
+
+          long wait = MAX_SELECT_WAIT;
+          Exchange next = deadlines.peek();
+          if ( next != null ) {
+            wait = Math.max( 1, Math.min( wait, next.deadline - System.currentTimeMillis() ) );
+          }
+
+          selector.select( wait );
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while ( keys.hasNext() ) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            service( key );
+          }
+
+          expire();
+        }
+      } catch ( ClosedSelectorException e ) {
+        // shutting down
+      } catch ( IOException e ) {
+        Log.error( "HttpClientEngine event loop failed: " + e.getMessage() );
+      }
+      finally {
+        close();
+      }
+    }
+
+
+
+
+    /**
+     * Open connections for all the newly submitted exchanges.
+     */
+    private void register() {
+      Exchange exchange;
+      while ( ( exchange = pending.poll() ) != null ) {
+        deadlines.add( exchange );
+        try {
+          exchange.channel = java.nio.channels.SocketChannel.open();
+          exchange.channel.configureBlocking( false );
+          exchange.connectStarted = System.currentTimeMillis();
+          exchange.connectMark = System.nanoTime();
+
+          if ( exchange.channel.connect( exchange.address ) ) {
+            connected( exchange, exchange.channel.register( selector, SelectionKey.OP_WRITE, exchange ) );
+          } else {
+            exchange.channel.register( selector, SelectionKey.OP_CONNECT, exchange );
+          }
+        } catch ( IOException e ) {
+          finish( exchange, null, new HttpMessageException( "Could not open connection to '" + exchange.address + "'", e ) );
+        }
+      }
+    }
+
+
+
+
+    private void connected( Exchange exchange, SelectionKey key ) {
+      exchange.connected = System.currentTimeMillis();
+      exchange.connectedMark = System.nanoTime();
+      key.interestOps( SelectionKey.OP_WRITE );
+    }
+
+
+
+
+    private void service( SelectionKey key ) {
+      Exchange exchange = (Exchange)key.attachment();
+
+      if ( exchange.finished ) {
+        return;
+      } else if ( exchange.future.isCancelled() ) {
+        finish( exchange, null, null );
+        return;
+      }
+
+      try {
+        if ( key.isConnectable() ) {
+          if ( exchange.channel.finishConnect() ) {
+            connected( exchange, key );
+          }
+        } else if ( key.isWritable() ) {
+          exchange.channel.write( exchange.output );
+          if ( !exchange.output.hasRemaining() ) {
+            exchange.requestSent = System.currentTimeMillis();
+            exchange.sentMark = System.nanoTime();
+            key.interestOps( SelectionKey.OP_READ );
+          }
+        } else if ( key.isReadable() ) {
+          read( exchange );
+        }
+      } catch ( HttpMessageException e ) {
+        finish( exchange, null, e );
+      } catch ( IOException e ) {
+        if ( exchange.connected == 0 ) {
+          finish( exchange, null, new HttpMessageException( "Could not open connection to '" + exchange.address + "'", e ) );
+        } else {
+          finish( exchange, null, new HttpMessageException( e ) );
+        }
+      }
+    }
+
+
+
+
+    private void read( Exchange exchange ) throws IOException, HttpMessageException {
+      int count;
+
+      do {
+        readBuffer.clear();
+        count = exchange.channel.read( readBuffer );
+        if ( count > 0 ) {
+          long now = System.currentTimeMillis();
+          long mark = System.nanoTime();
+          if ( exchange.firstByte == 0 ) {
+            exchange.firstByte = now;
+            exchange.firstByteMark = mark;
+          }
+          exchange.lastByte = now;
+          exchange.lastByteMark = mark;
+          readBuffer.flip();
+          exchange.append( readBuffer );
+        }
+      }
+      while ( count > 0 );
+
+      if ( isComplete( exchange ) ) {
+        complete( exchange );
+      } else if ( count < 0 ) {
+        // peer closed the connection
+        if ( exchange.response != null ) {
+          complete( exchange );
+        } else {
+          finish( exchange, null, new HttpMessageException( "Connection closed before a response was received" ) );
+        }
+      }
+    }
+
+
+
+
+    /**
+     * Determine if the entire response has been received, parsing the head of
+     * the response as soon as it is available.
+     */
+    private boolean isComplete( Exchange exchange ) throws HttpMessageException {
+      if ( exchange.headEnd < 0 ) {
+        int end = indexOf( exchange.input, 0, exchange.received, HEAD_TERMINATOR, 4 );
+        if ( end < 0 ) {
+          return false;
+        }
+
+        exchange.headEnd = end + 4;
+        HttpResponse response = new HttpResponse();
+        response.setRequestSent( exchange.requestSent );
+        response.setResponseReceived( exchange.firstByte );
+        response.parseHead( new ByteArrayInputStream( exchange.input, 0, exchange.headEnd ) );
+
+        int status = response.getStatusCode();
+        if ( ( status >= 100 ) && ( status < 200 ) ) {
+          // discard interim responses and look for the next head
+          System.arraycopy( exchange.input, exchange.headEnd, exchange.input, 0, exchange.received - exchange.headEnd );
+          exchange.received -= exchange.headEnd;
+          exchange.headEnd = -1;
+          return isComplete( exchange );
+        }
+
+        exchange.response = response;
+        exchange.chunked = HttpMessage.CHUNKED.equalsIgnoreCase( response.getHeader( HttpMessage.TRANSFER_ENCODING ) );
+        exchange.contentLength = response.getContentLength();
+        exchange.chunkPos = exchange.headEnd;
+
+        if ( HttpMessage.HEAD.equalsIgnoreCase( exchange.request.getRequestMethod() ) || ( status == 204 ) || ( status == 304 ) ) {
+          exchange.contentLength = 0;
+          exchange.chunked = false;
+        }
+
+        if ( exchange.chunked ) {
+          exchange.body = new ByteArrayOutputStream();
+        }
+      }
+
+      if ( exchange.chunked ) {
+        exchange.chunkPos = dechunk( exchange.input, exchange.chunkPos, exchange.received, exchange.body );
+        return exchange.chunkPos < 0;
+      }
+
+      if ( exchange.contentLength >= 0 ) {
+        return ( exchange.received - exchange.headEnd ) >= exchange.contentLength;
+      }
+
+      // body is delimited by the connection closing
+      return false;
+    }
+
+
+
+
+    private void complete( Exchange exchange ) {
+      HttpResponse response = exchange.response;
+
+      try {
+        if ( exchange.chunked ) {
+          response.setBody( exchange.body.toByteArray() );
+        } else {
+          int length = exchange.received - exchange.headEnd;
+          if ( ( exchange.contentLength >= 0 ) && ( length > exchange.contentLength ) ) {
+            length = exchange.contentLength;
+          }
+          byte[] data = new byte[length];
+          System.arraycopy( exchange.input, exchange.headEnd, data, 0, length );
+          response.setBody( data );
+        }
+      } catch ( HttpMessageException e ) {
+        finish( exchange, null, e );
+        return;
+      }
+
+      populate( exchange, response );
+      finish( exchange, response, null );
+    }
+
+
+
+
+    private void populate( Exchange exchange, HttpResponse response ) {
+      response.setConnectionTime( exchange.connected - exchange.connectStarted );
+      response.setRequestSent( exchange.requestSent );
+      response.setResponseReceived( exchange.firstByte );
+      response.setTransfer( exchange.firstByte, exchange.lastByte, exchange.received );
+      response.setPhases( exchange.dnsNanos, between( exchange.connectMark, exchange.connectedMark ), -1, between( exchange.connectedMark, exchange.sentMark ), between( exchange.sentMark, exchange.firstByteMark ), between( exchange.firstByteMark, exchange.lastByteMark ) );
+      response.setTimeout( exchange.request.getTimeout() );
+      response.remoteAddress = exchange.address.getAddress();
+      response.remotePort = exchange.address.getPort();
+    }
+
+
+
+
+    /**
+     * @return the nanoseconds between two marks or -1 if either phase was not
+     *         reached
+     */
+    private long between( long start, long end ) {
+      return ( ( start != 0 ) && ( end != 0 ) ) ? end - start : -1;
+    }
+
+
+
+
+    /**
+     * Handle requests whose deadline has passed.
+     *
+     * <p>Requests which never connected fail; requests which connected
+     * complete with a 408 status just as the blocking client does when it
+     * times-out reading a response.</p>
+     */
+    private void expire() {
+      long now = System.currentTimeMillis();
+      Exchange exchange;
+
+      while ( ( ( exchange = deadlines.peek() ) != null ) && ( exchange.finished || ( exchange.deadline <= now ) || exchange.future.isCancelled() ) ) {
+        deadlines.poll();
+
+        if ( exchange.finished ) {
+          continue;
+        }
+
+        if ( exchange.future.isCancelled() ) {
+          finish( exchange, null, null );
+        } else if ( exchange.connected == 0 ) {
+          finish( exchange, null, new HttpMessageException( "Could not establish connection to '" + exchange.address + "' in time" ) );
+        } else {
+          HttpResponse response = ( exchange.response != null ) ? exchange.response : new HttpResponse();
+          response.setStatusCode( 408 );
+          response.setReasonPhrase( "Client timed-out reading response from server" );
+          populate( exchange, response );
+          finish( exchange, response, null );
+        }
+      }
+    }
+
+
+
+
+    /**
+     * Close the connection of the exchange and complete its future.
+     */
+    private void finish( Exchange exchange, HttpResponse response, Exception error ) {
+      if ( exchange.finished ) {
+        return;
+      }
+      exchange.finished = true;
+      inFlight.decrementAndGet();
+
+      // the exchange stays in the deadline heap until its time comes, so let
+      // go of its buffers now
+      exchange.input = null;
+      exchange.body = null;
+      exchange.response = null;
+      exchange.output = null;
+
+      if ( exchange.channel != null ) {
+        try {
+          exchange.channel.close();
+        } catch ( IOException ignore ) {}
+      }
+
+      if ( response != null ) {
+        if ( Log.isLogging( HttpMessage.HTTP ) ) {
+          Log.append( HttpMessage.HTTP, "HttpClientEngine received " + response.getStatusCode() + " from " + exchange.address );
+        }
+        exchange.future.complete( response );
+      } else if ( error != null ) {
+        exchange.future.fail( error );
+      }
+    }
+
+
+
+
+    private void close() {
+      Exchange exchange;
+      while ( ( exchange = pending.poll() ) != null ) {
+        finish( exchange, null, new HttpMessageException( "Engine has been shut down" ) );
+      }
+      while ( ( exchange = deadlines.poll() ) != null ) {
+        finish( exchange, null, new HttpMessageException( "Engine has been shut down" ) );
+      }
+      try {
+        selector.close();
+      } catch ( IOException ignore ) {}
+    }
+  }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2003 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.http;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import coyote.loader.log.Log;
+
+
+/**
+ * The pending result of a request sent through the {@link HttpClientEngine}.
+ *
+ * <p>The future is completed exactly once by the engine, either with a
+ * response or with the exception which prevented one. Any listener given to
+ * the engine is called when the future completes.</p>
+ */
+public class HttpFuture implements Future<HttpResponse> {
+
+  private final HttpRequest request;
+  private final IResponseListener listener;
+  private final CountDownLatch latch = new CountDownLatch( 1 );
+
+  private volatile HttpResponse response = null;
+  private volatile Exception error = null;
+  private volatile boolean cancelled = false;
+
+
+
+
+  HttpFuture( HttpRequest request, IResponseListener listener ) {
+    this.request = request;
+    this.listener = listener;
+  }
+
+
+
+
+  /**
+   * @return the request this future represents
+   */
+  public HttpRequest getRequest() {
+    return request;
+  }
+
+
+
+
+  /**
+   * Complete this future with the given response.
+   *
+   * @param rspns the response received
+   *
+   * @return true if this call completed the future, false if it was already
+   *         complete
+   */
+  boolean complete( HttpResponse rspns ) {
+    synchronized( latch ) {
+      if ( isDone() ) {
+        return false;
+      }
+      response = rspns;
+      latch.countDown();
+    }
+
+    if ( listener != null ) {
+      try {
+        listener.onResponse( request, rspns );
+      } catch ( Throwable t ) {
+        Log.warn( "Response listener threw " + t.getClass().getName() + ": " + t.getMessage() );
+      }
+    }
+    return true;
+  }
+
+
+
+
+  /**
+   * Complete this future with the given error.
+   *
+   * @param xcptn the reason the request failed
+   *
+   * @return true if this call completed the future, false if it was already
+   *         complete
+   */
+  boolean fail( Exception xcptn ) {
+    synchronized( latch ) {
+      if ( isDone() ) {
+        return false;
+      }
+      error = xcptn;
+      latch.countDown();
+    }
+
+    if ( listener != null ) {
+      try {
+        listener.onFailure( request, xcptn );
+      } catch ( Throwable t ) {
+        Log.warn( "Response listener threw " + t.getClass().getName() + ": " + t.getMessage() );
+      }
+    }
+    return true;
+  }
+
+
+
+
+  /**
+   * Cancelling a request closes its connection the next time the engine
+   * services it.
+   *
+   * @see java.util.concurrent.Future#cancel(boolean)
+   */
+  @Override
+  public boolean cancel( boolean mayInterruptIfRunning ) {
+    synchronized( latch ) {
+      if ( isDone() ) {
+        return false;
+      }
+      cancelled = true;
+      latch.countDown();
+    }
+    return true;
+  }
+
+
+
+
+  /**
+   * @see java.util.concurrent.Future#isCancelled()
+   */
+  @Override
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+
+
+
+  /**
+   * @see java.util.concurrent.Future#isDone()
+   */
+  @Override
+  public boolean isDone() {
+    return latch.getCount() == 0;
+  }
+
+
+
+
+  /**
+   * @see java.util.concurrent.Future#get()
+   */
+  @Override
+  public HttpResponse get() throws InterruptedException, ExecutionException {
+    latch.await();
+    return result();
+  }
+
+
+
+
+  /**
+   * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+   */
+  @Override
+  public HttpResponse get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException {
+    if ( !latch.await( timeout, unit ) ) {
+      throw new TimeoutException( "No response within " + timeout + " " + unit );
+    }
+    return result();
+  }
+
+
+
+
+  private HttpResponse result() throws ExecutionException {
+    if ( cancelled ) {
+      throw new CancellationException();
+    }
+    if ( error != null ) {
+      throw new ExecutionException( error );
+    }
+    return response;
+  }
+
+}
@@ -27,7 +27,6 @@ import java.util.Vector;
 
 import coyote.commons.ByteUtil;
 import coyote.commons.StreamUtil;
-import coyote.commons.StringUtil;
 import coyote.commons.UriUtil;
 import coyote.commons.security.Credentials;
 import coyote.loader.log.Log;
@@ -139,6 +138,8 @@ public class HttpMessage {
 
   public static final String IF_NONE_MATCH = "If-None-Match";
 
+  public static final String ETAG = "ETag";
+
   public static final String DEFAULT_MIME_TYPE = "text/plain";
 
   public static final String TRANSFER_ENCODING = "Transfer-Encoding";
@@ -165,8 +166,6 @@ public class HttpMessage {
   protected static final String PROXY_PASSWORD_PROPERTY = "http.proxyPassword";
   protected static final String HTTP_REQUEST = "httpRequest";
   protected static final String HTTP_RESPONSE = "httpResponse";
-  private static final byte SEPARATOR[] = ": ".getBytes();
-  private static final String NO_HEADERS[][] = new String[0][0];
   private static TimeZone gmt = TimeZone.getTimeZone( "GMT" );
   private static SimpleDateFormat dateFormatter1;
   private static final Hashtable<Integer, String> statusTable = new Hashtable<Integer, String>();
@@ -174,7 +173,7 @@ public class HttpMessage {
   private String HttpVersion = null;
   protected static SimpleDateFormat dateFormatter2;
   protected static SimpleDateFormat dateFormatter3;
-  protected String headers[][];
+  protected final HeaderTable headers = new HeaderTable();
   protected CookieJar cookieJar = new CookieJar();
   protected int timeout = 60000;
   protected long abortTime = 0;
@@ -406,7 +405,6 @@ public class HttpMessage {
    */
   public HttpMessage() {
     HttpVersion = HTTP_1_1;
-    headers = NO_HEADERS;
   }
 
 
@@ -527,40 +525,31 @@ public class HttpMessage {
 
     if ( in.available() > 0 ) {
       do {
-        String line = StreamUtil.readLine( in );
+        // read the line straight into the header table
+        int consumed = headers.readLine( in );
 
-        if ( ( line != null ) && ( line.length() > 0 ) ) {
-          // Increment the bytes received + CRLF sequence that ended the line
-          byteCount += line.length() + 2;
+        if ( consumed > 0 ) {
+          // Increment the bytes received including the line terminator
+          byteCount += consumed;
 
-          int i = line.indexOf( ':' );
+          int index = headers.size() - 1;
 
-          if ( i == -1 ) {
-            throw new IOException( "illegal HTTP header: '" + line + "'" );
+          if ( Log.isLogging( HTTP ) ) {
+            Log.append( HTTP, getClass().getName() + "readHeaders Name=" + headers.getName( index ) + " Value=" + headers.getValue( index ) );
           }
 
-          String name = line.substring( 0, i ).trim();
-          String data = line.substring( i + 1, line.length() ).trim();
-          String as[][] = new String[headers.length + 1][];
-          System.arraycopy( headers, 0, as, 0, headers.length );
-
-          as[headers.length] = ( new String[] { name, data } );
-          headers = as;
-
-          Log.append( HTTP, getClass().getName() + "readHeaders Name=" + name + " Value=" + data );
-
           // If the header is a cookie...
-          if ( name.equals( COOKIE ) ) {
+          if ( headers.indexOf( COOKIE, index ) == index ) {
             // ...parse it into an array of cookie objects and place them in
             // the cookie jar
-            cookieJar.addCookies( Cookie.parse( line ) );
+            cookieJar.addCookies( Cookie.parse( headers.getLine( index ) ) );
           }
 
         } else {
-          // count the CRLF terminater that represents the empty line
-          byteCount += 2;
+          // count the terminator that represents the empty line
+          byteCount -= consumed;
 
-          // Empty line means the headers are complete
+          // Empty line (or end of stream) means the headers are complete
           return byteCount;
         }
       }
@@ -598,7 +587,9 @@ public class HttpMessage {
 
     // Get the length from the headers if it exists
     int expectedLength = getContentLength();
-    Log.append( HTTP, getClass().getName() + ".readBody Expecting " + expectedLength + " bytes based on ContentLength header" );
+    if ( Log.isLogging( HTTP ) ) {
+      Log.append( HTTP, getClass().getName() + ".readBody Expecting " + expectedLength + " bytes based on ContentLength header" );
+    }
 
     // Create a new output array representing our body
     output = new ByteArrayOutputStream();
@@ -672,15 +663,7 @@ public class HttpMessage {
    * @throws IOException
    */
   public void writeHeaders( OutputStream outputstream ) throws IOException {
-    for ( int i = 0; i < headers.length; i++ ) {
-      if ( ( headers[i][0] != null ) && ( headers[i][1] != null ) ) {
-        outputstream.write( headers[i][0].getBytes() );
-        outputstream.write( SEPARATOR );
-        outputstream.write( headers[i][1].getBytes() );
-        outputstream.write( StringUtil.CRLF.getBytes() );
-      }
-    }
-
+    headers.writeTo( outputstream );
   }
 
 
@@ -707,7 +690,7 @@ public class HttpMessage {
    * Method clearHeaders
    */
   public void clearHeaders() {
-    headers = NO_HEADERS;
+    headers.clear();
   }
 
 
@@ -721,13 +704,7 @@ public class HttpMessage {
    * @return The value of the named MIME header or null if it does not exist.
    */
   public String getHeader( String data ) {
-    for ( int i = 0; i < headers.length; i++ ) {
-      if ( data.equalsIgnoreCase( headers[i][0] ) ) {
-        return headers[i][1];
-      }
-    }
-
-    return null;
+    return headers.get( data );
   }
 
 
@@ -743,10 +720,8 @@ public class HttpMessage {
   public Enumeration getHeaders( String data ) {
     Vector vector = new Vector();
 
-    for ( int i = 0; i < headers.length; i++ ) {
-      if ( data.equalsIgnoreCase( headers[i][0] ) ) {
-        vector.addElement( headers[i][1] );
-      }
+    for ( int i = headers.indexOf( data, 0 ); i > -1; i = headers.indexOf( data, i + 1 ) ) {
+      vector.addElement( headers.getValue( i ) );
     }
 
     return vector.elements();
@@ -777,9 +752,10 @@ public class HttpMessage {
   public Enumeration getHeaderNames() {
     Vector vector = new Vector();
 
-    for ( int i = 0; i < headers.length; i++ ) {
-      if ( !vector.contains( headers[i][0] ) ) {
-        vector.addElement( headers[i][0] );
+    for ( int i = 0; i < headers.size(); i++ ) {
+      String name = headers.getName( i );
+      if ( !vector.contains( name ) ) {
+        vector.addElement( name );
       }
     }
 
@@ -799,16 +775,7 @@ public class HttpMessage {
    * @param value the value to add to the named header
    */
   public void setHeader( String name, String value ) {
-    for ( int i = 0; i < headers.length; i++ ) {
-      if ( name.equalsIgnoreCase( headers[i][0] ) ) {
-        headers[i][0] = name;
-        headers[i][1] = value;
-
-        return;
-      }
-    }
-
-    addHeader( name, value );
+    headers.set( name, value );
   }
 
 
@@ -826,11 +793,7 @@ public class HttpMessage {
    * @param value the value to add to the named header
    */
   public void addHeader( String name, String value ) {
-    String as[][] = new String[headers.length + 1][];
-    System.arraycopy( headers, 0, as, 0, headers.length );
-
-    as[headers.length] = ( new String[] { name, value } );
-    headers = as;
+    headers.add( name, value );
   }
 
 
@@ -844,8 +807,7 @@ public class HttpMessage {
    * @return the integer value of the given named header or -1 if not defined.
    */
   public int getIntHeader( String name ) {
-    String value = getHeader( name );
-    return ( value != null ) ? Integer.parseInt( value ) : -1;
+    return headers.getInt( name );
   }
 
 
@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2003 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import coyote.commons.network.socket.SocketChannel;
+import coyote.loader.log.Log;
+
+
+/**
+ * Sends a batch of requests to the same host over as few connections as
+ * possible.
+ *
+ * <p>When pipelining is enabled all the requests are written to a single
+ * persistent connection before any response is read, as permitted by RFC2616
+ * section 8.1.2.2, and the responses are read back in order. If the server
+ * closes the connection (or indicates it will) before all the responses have
+ * been received, the remaining requests are sent one at a time over a new
+ * keep-alive connection. With pipelining disabled the requests are always
+ * sent one after the other over the same keep-alive connection.</p>
+ *
+ * <p>Each response is framed by its {@code Content-Length}, the chunked
+ * transfer coding, or the connection closing so the responses can be
+ * separated on a shared stream. When pipelining, the time to first byte of a
+ * response is measured from when the previous response was completely
+ * read.</p>
+ */
+public class HttpPipeline {
+
+  private static final int CR = '\r';
+  private static final int LF = '\n';
+
+  /** The scheme, host and port of the server */
+  private final URI target;
+
+  /** The requests to send, in order */
+  private final List<HttpRequest> requests = new ArrayList<HttpRequest>();
+
+  /** The requests' resource URIs */
+  private final List<URI> uris = new ArrayList<URI>();
+
+  private boolean pipelining = true;
+
+  private int timeout = 30000;
+
+  /** The number of connections opened by the last call to send() */
+  private int connectionCount = 0;
+
+  /** The errors for each request encountered by the last call to send() */
+  private Exception[] errors = new Exception[0];
+
+
+
+
+  /**
+   * Create a pipeline to the server identified by the scheme, host and port
+   * of the given URI.
+   *
+   * @param target the server to which all the requests are sent
+   */
+  public HttpPipeline( URI target ) {
+    if ( target == null ) {
+      throw new IllegalArgumentException( "Target URI cannot be null" );
+    }
+    this.target = target;
+  }
+
+
+
+
+  /**
+   * Add a request for the given path on the target server.
+   *
+   * @param request the request to send
+   * @param path the path (and optional query) of the resource
+   *
+   * @throws HttpMessageException if the path does not form a valid URI
+   */
+  public void add( HttpRequest request, String path ) throws HttpMessageException {
+    try {
+      URI uri = target.resolve( path );
+      uris.add( request.setTarget( uri ) );
+      request.setHeader( HttpMessage.CONNECTION, HttpMessage.KEEP_ALIVE );
+      requests.add( request );
+    } catch ( IllegalArgumentException e ) {
+      throw new HttpMessageException( "Invalid path '" + path + "'", e );
+    }
+  }
+
+
+
+
+  /**
+   * @return the number of requests in the batch
+   */
+  public int size() {
+    return requests.size();
+  }
+
+
+
+
+  /**
+   * Send all the requests, returning their responses in the same order.
+   *
+   * <p>A null element in the result indicates no response was received for
+   * the corresponding request; the exception for it is available from
+   * {@link #getErrors()}.</p>
+   *
+   * @return the responses to each of the requests
+   */
+  public HttpResponse[] send() {
+    HttpResponse[] retval = new HttpResponse[requests.size()];
+    errors = new Exception[requests.size()];
+    connectionCount = 0;
+
+    int next = 0;
+    boolean pipeline = pipelining;
+
+    while ( next < requests.size() ) {
+      // the first request written on this connection
+      int first = next;
+      SocketChannel channel = null;
+
+      try {
+        channel = SocketChannel.createSocketChannel( uris.get( next ), timeout );
+        channel.setTimeout( timeout );
+        connectionCount++;
+
+        InputStream in = channel.getInputStream();
+        OutputStream out = channel.getOutputStream();
+
+        if ( pipeline ) {
+          long writing = System.nanoTime();
+          for ( int x = next; x < requests.size(); x++ ) {
+            out.write( requests.get( x ).toBytes() );
+          }
+          out.flush();
+          long written = System.currentTimeMillis();
+          long writeNanos = System.nanoTime() - writing;
+
+          while ( next < requests.size() ) {
+            HttpResponse response = readResponse( in, requests.get( next ), channel, written, writeNanos );
+            errors[next] = null;
+            retval[next++] = response;
+            if ( !isReusable( response ) ) {
+              break;
+            }
+          }
+        } else {
+          while ( next < requests.size() ) {
+            long writing = System.nanoTime();
+            out.write( requests.get( next ).toBytes() );
+            out.flush();
+            long writeNanos = System.nanoTime() - writing;
+            HttpResponse response = readResponse( in, requests.get( next ), channel, System.currentTimeMillis(), writeNanos );
+            errors[next] = null;
+            retval[next++] = response;
+            if ( !isReusable( response ) ) {
+              break;
+            }
+          }
+        }
+      } catch ( Exception e ) {
+        if ( next < requests.size() ) {
+          errors[next] = e;
+        }
+        if ( Log.isLogging( HttpMessage.HTTP ) ) {
+          Log.append( HttpMessage.HTTP, "HttpPipeline to " + target + " failed at request " + next + ": " + e.getMessage() );
+        }
+
+        // a request failing behind others on a reused connection is usually
+        // the server closing it, so it is retried on a fresh connection; the
+        // first request on a fresh connection is not retried
+        if ( next == first ) {
+          next++;
+        }
+      }
+      finally {
+        if ( channel != null ) {
+          try {
+            channel.close();
+          } catch ( IOException ignore ) {}
+        }
+      }
+
+      // anything left over is sent one at a time on the next connection
+      pipeline = false;
+    }
+
+    return retval;
+  }
+
+
+
+
+  /**
+   * @return the errors encountered for each of the requests in the last call
+   *         to {@link #send()}; elements are null for requests which were
+   *         answered
+   */
+  public Exception[] getErrors() {
+    return errors;
+  }
+
+
+
+
+  /**
+   * @return the number of connections the last call to {@link #send()} opened
+   */
+  public int getConnectionCount() {
+    return connectionCount;
+  }
+
+
+
+
+  /**
+   * @return true if all requests are written before any response is read
+   */
+  public boolean isPipelining() {
+    return pipelining;
+  }
+
+
+
+
+  /**
+   * @param flag true to write all the requests before reading any responses,
+   *        false to send them one at a time over a keep-alive connection
+   */
+  public void setPipelining( boolean flag ) {
+    pipelining = flag;
+  }
+
+
+
+
+  /**
+   * @return the connect and socket read timeout in milliseconds
+   */
+  public int getTimeout() {
+    return timeout;
+  }
+
+
+
+
+  /**
+   * @param millis the connect and socket read timeout in milliseconds
+   */
+  public void setTimeout( int millis ) {
+    timeout = millis;
+  }
+
+
+
+
+  /**
+   * @return true if the connection can be used for another response
+   */
+  private static boolean isReusable( HttpResponse response ) {
+    String connection = response.getHeader( HttpMessage.CONNECTION );
+    if ( connection != null ) {
+      return !connection.equalsIgnoreCase( HttpMessage.CLOSE );
+    }
+    // persistent by default in 1.1, not in 1.0
+    return !HttpMessage.HTTP_1_0.equals( response.getHttpVersion() ) && ( response.getContentLength() >= 0 || HttpMessage.CHUNKED.equalsIgnoreCase( response.getHeader( HttpMessage.TRANSFER_ENCODING ) ) );
+  }
+
+
+
+
+  /**
+   * Read exactly one response from the stream.
+   *
+   * @param in the stream shared by all the responses on the connection
+   * @param request the request to which this is the response
+   * @param channel the connection over which the response is received
+   * @param sent when the request was written
+   * @param writeNanos nanoseconds spent writing the request
+   *
+   * @return the response
+   *
+   * @throws IOException if the connection closed or failed before a response
+   *         was received
+   * @throws HttpMessageException if the response was malformed
+   */
+  static HttpResponse readResponse( InputStream in, HttpRequest request, SocketChannel channel, long sent, long writeNanos ) throws IOException, HttpMessageException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream( 512 );
+    long waiting = System.nanoTime();
+    long firstMark = 0;
+    long firstByte = 0;
+    long received = 0;
+    HttpResponse response = null;
+
+    // skip over any interim (1xx) responses
+    do {
+      head.reset();
+      int matched = 0;
+      while ( matched < 4 ) {
+        int ch = in.read();
+        if ( ch < 0 ) {
+          throw new IOException( "Connection closed before a response was received" );
+        }
+        if ( firstByte == 0 ) {
+          firstByte = System.currentTimeMillis();
+          firstMark = System.nanoTime();
+        }
+        head.write( ch );
+        if ( ( ( ch == CR ) && ( ( matched == 0 ) || ( matched == 2 ) ) ) || ( ( ch == LF ) && ( ( matched == 1 ) || ( matched == 3 ) ) ) ) {
+          matched++;
+        } else {
+          matched = ( ch == CR ) ? 1 : 0;
+        }
+      }
+      received += head.size();
+
+      response = new HttpResponse();
+      response.setRequestSent( sent );
+      response.setResponseReceived( firstByte );
+      response.parseHead( new ByteArrayInputStream( head.toByteArray() ) );
+    }
+    while ( ( response.getStatusCode() >= 100 ) && ( response.getStatusCode() < 200 ) );
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int status = response.getStatusCode();
+
+    if ( !HttpMessage.HEAD.equalsIgnoreCase( request.getRequestMethod() ) && ( status != 204 ) && ( status != 304 ) ) {
+      if ( HttpMessage.CHUNKED.equalsIgnoreCase( response.getHeader( HttpMessage.TRANSFER_ENCODING ) ) ) {
+        received += readChunked( in, body );
+      } else if ( response.getContentLength() >= 0 ) {
+        received += copy( in, body, response.getContentLength() );
+      } else {
+        received += copy( in, body, -1 );
+      }
+    }
+
+    response.setBody( body.toByteArray() );
+    response.setConnectionTime( channel.getConnectionTime() );
+    response.setTransfer( firstByte, System.currentTimeMillis(), received );
+    response.setPhases( channel.getDnsNanos(), channel.getConnectNanos(), channel.getHandshakeNanos(), writeNanos, firstMark - waiting, System.nanoTime() - firstMark );
+    response.setResumed( channel.isResumed() );
+    response.setTimeout( request.getTimeout() );
+    response.remoteAddress = channel.getSocket().getInetAddress();
+    response.remotePort = channel.getSocket().getPort();
+
+    return response;
+  }
+
+
+
+
+  private static long readChunked( InputStream in, ByteArrayOutputStream body ) throws IOException {
+    long retval = 0;
+
+    while ( true ) {
+      String line = readLine( in );
+      retval += line.length() + 2;
+
+      int end = 0;
+      while ( ( end < line.length() ) && ( Character.digit( line.charAt( end ), 16 ) >= 0 ) ) {
+        end++;
+      }
+      if ( end == 0 ) {
+        throw new IOException( "Invalid chunk size '" + line + "'" );
+      }
+
+      int size = Integer.parseInt( line.substring( 0, end ), 16 );
+      if ( size == 0 ) {
+        // discard any trailers up to the empty line
+        do {
+          line = readLine( in );
+          retval += line.length() + 2;
+        }
+        while ( line.length() > 0 );
+        return retval;
+      }
+
+      retval += copy( in, body, size );
+      retval += readLine( in ).length() + 2;
+    }
+  }
+
+
+
+
+  private static String readLine( InputStream in ) throws IOException {
+    StringBuffer retval = new StringBuffer();
+    int ch;
+    while ( ( ch = in.read() ) != LF ) {
+      if ( ch < 0 ) {
+        throw new IOException( "Connection closed in the middle of a chunked body" );
+      }
+      if ( ch != CR ) {
+        retval.append( (char)ch );
+      }
+    }
+    return retval.toString();
+  }
+
+
+
+
+  /**
+   * Copy the given number of bytes (or everything to the end of the stream if
+   * the length is negative) from the stream to the body.
+   */
+  private static long copy( InputStream in, ByteArrayOutputStream body, long length ) throws IOException {
+    byte[] buffer = new byte[8192];
+    long retval = 0;
+
+    while ( ( length < 0 ) || ( retval < length ) ) {
+      int want = ( length < 0 ) ? buffer.length : (int)Math.min( buffer.length, length - retval );
+      int count = in.read( buffer, 0, want );
+      if ( count < 0 ) {
+        break;
+      }
+      body.write( buffer, 0, count );
+      retval += count;
+    }
+
+    return retval;
+  }
+
+}
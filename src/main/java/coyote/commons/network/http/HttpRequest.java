@@ -66,6 +66,9 @@ public class HttpRequest extends HttpMessage {
   /** Empty Hashtable representing no parameters in the request */
   private static final Hashtable NO_PARAMETERS = new Hashtable();
 
+  /** Milliseconds to wait for the connection to be made, 0 for no limit */
+  private int connectTimeout = 0;
+
 
 
 
@@ -320,6 +323,22 @@ public class HttpRequest extends HttpMessage {
    * @return A String representing the entire request.
    */
   public String toString() {
+    StringBuffer retval = new StringBuffer( getHead() );
+
+    if ( getBody().length > 0 ) {
+      retval.append( new String( getBody() ) );
+    }
+
+    return retval.toString();
+  }
+
+
+
+
+  /**
+   * @return the request line, the headers and the blank line which ends them
+   */
+  private String getHead() {
     StringBuffer retval = new StringBuffer();
 
     retval.append( requestMethod );
@@ -346,10 +365,6 @@ public class HttpRequest extends HttpMessage {
 
     retval.append( StringUtil.CRLF );
 
-    if ( getBody().length > 0 ) {
-      retval.append( new String( getBody() ) );
-    }
-
     return retval.toString();
   }
 
@@ -386,6 +401,27 @@ public class HttpRequest extends HttpMessage {
    * @throws HttpMessageException
    */
   public HttpResponse send( URI uri ) throws HttpMessageException {
+    setTarget( uri );
+    return send();
+  }
+
+
+
+
+  /**
+   * Set the scheme, path, query and host of this request from the given URI.
+   *
+   * <p>This is everything {@link #send(URI)} does before opening a
+   * connection and allows other transports to prepare the request the same
+   * way.</p>
+   *
+   * @param uri the resource being requested
+   *
+   * @return the URI of the connection to be made (scheme, host, port and path)
+   *
+   * @throws HttpMessageException if the URI is null or malformed
+   */
+  URI setTarget( URI uri ) throws HttpMessageException {
     if ( uri != null ) {
 
       // Set our scheme
@@ -438,7 +474,11 @@ public class HttpRequest extends HttpMessage {
 
       this.setRequestHost( requestHost + ":" + requestPort );
 
-      return send();
+      try {
+        return new URI( requestScheme + "://" + getRequestHost() + getRequestPath() );
+      } catch ( URISyntaxException e ) {
+        throw new HttpMessageException( e );
+      }
     } else {
       throw new HttpMessageException( "URI to remote host was null" );
     }
@@ -450,8 +490,6 @@ public class HttpRequest extends HttpMessage {
   /**
    * Send the request, returning any response.
    *
-   * TODO Change the channel.getOutputStream().write( toString().getBytes( HTTP_ENCODING ) ); to something that will allow binary posts (toString won't cut it)
-   *
    * @return The response to the request
    *
    * @throws HttpMessageException
@@ -476,12 +514,12 @@ public class HttpRequest extends HttpMessage {
         channel = createProxyChannel();
       } else {
         // Create a socket channel to the specified host
-        channel = SocketChannel.createSocketChannel( uri );
+        channel = SocketChannel.createSocketChannel( uri, connectTimeout );
       }
       if ( ( channel != null ) && channel.isOpen() ) {
-        // Set our connection information
-        remoteAddress = UriUtil.getHostAddress( channel.getRemoteURI() );
-        remotePort = channel.getRemoteURI().getPort();
+        // Set our connection information from the address which answered
+        remoteAddress = channel.getSocket().getInetAddress();
+        remotePort = channel.getSocket().getPort();
 
         HttpResponse response = new HttpResponse();
         response.setConnectionTime( channel.getConnectionTime() );
@@ -493,14 +531,22 @@ public class HttpRequest extends HttpMessage {
         response.setTimeout( this.getTimeout() );
 
         // Send the request over the socket we just opened
-        channel.getOutputStream().write( toString().getBytes( HTTP_ENCODING ) );
+        long writing = System.nanoTime();
+        channel.getOutputStream().write( toBytes() );
         channel.getOutputStream().flush();
-        Log.append( HTTP, getClass().getSimpleName() + " Sent:\n" + toString() );
+        long written = System.nanoTime();
+        if ( Log.isLogging( HTTP ) ) {
+          Log.append( HTTP, getClass().getSimpleName() + " Sent:\n" + getHead() );
+        }
 
         response.setRequestSent( System.currentTimeMillis() );
 
         response.parse( channel.getInputStream() );
 
+        long first = response.getFirstByteMark();
+        response.setPhases( channel.getDnsNanos(), channel.getConnectNanos(), channel.getHandshakeNanos(), written - writing, ( first != 0 ) ? first - written : -1, ( first != 0 ) ? response.getLastByteMark() - first : -1 );
+        response.setResumed( channel.isResumed() );
+
         return response;
       } else {
         throw new HttpMessageException( "Could not open connection to '" + uri + "'" );
@@ -523,6 +569,24 @@ public class HttpRequest extends HttpMessage {
 
 
 
+  /**
+   * @return the bytes of the request as they are sent over the wire, the body
+   *         exactly as it was set so binary bodies may be posted
+   *
+   * @throws UnsupportedEncodingException if the JVM does not support ASCII
+   */
+  byte[] toBytes() throws UnsupportedEncodingException {
+    byte[] head = getHead().getBytes( HTTP_ENCODING );
+    byte[] body = getBody();
+    byte[] retval = new byte[head.length + body.length];
+    System.arraycopy( head, 0, retval, 0, head.length );
+    System.arraycopy( body, 0, retval, head.length, body.length );
+    return retval;
+  }
+
+
+
+
   private boolean isUsingProxy() {
     // if there is a proxy specified  
     // http.proxyHost=http-proxy.nwie.net
@@ -551,7 +615,7 @@ public class HttpRequest extends HttpMessage {
       // TODO: Make this work
       uri = new URI( requestScheme + "://" + getRequestHost() + getRequestPath() );
 
-      retval = SocketChannel.createSocketChannel( uri );
+      retval = SocketChannel.createSocketChannel( uri, connectTimeout );
       
       
       // TODO: handle any authentication
@@ -566,6 +630,30 @@ public class HttpRequest extends HttpMessage {
 
 
 
+  /**
+   * @return the number of milliseconds to wait for the connection to the
+   *         server to be made, 0 for no limit
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+
+
+
+  /**
+   * Set how long to wait for the connection to the server to be made across
+   * all its addresses before giving up.
+   *
+   * @param timeout the number of milliseconds to wait, 0 for no limit
+   */
+  public void setConnectTimeout( int timeout ) {
+    connectTimeout = timeout;
+  }
+
+
+
+
   /**
    * Method getRequestMethod
    *
@@ -41,6 +41,15 @@ public class HttpResponse extends HttpMessage {
   private volatile long started = 0;
   private volatile long ended = 0;
   private volatile long byteCount = 0;
+  private volatile long dnsNanos = -1;
+  private volatile long connectNanos = -1;
+  private volatile long handshakeNanos = -1;
+  private volatile long writeNanos = -1;
+  private volatile long firstByteNanos = -1;
+  private volatile long transferNanos = -1;
+  private volatile boolean resumed = false;
+  private volatile long firstByteMark = 0;
+  private volatile long lastByteMark = 0;
   private PrintWriter writer = null;
   private ByteArrayOutputStream baos = null;
   private volatile boolean outputUserControlled = false;
@@ -134,22 +143,15 @@ public class HttpResponse extends HttpMessage {
       // Keep looping
       while ( true ) {
         try {
-          // Make sure we have data in the stream 
-          // WONT WORK WITH SSL!!! Our streams cannot tell the length of the 
-          // data without first decrypting it. {@code available()} will always 
-          // return 0 for SSLSocket.
-
-          // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
-          // A possible solution is to abstract everything behind the 
-          // SocketChannel and let it handle the differences between TCP and 
-          // SSL...Maybe a SSL channel has a separate thread which reads data 
-          // from the socket and places it in a FIFO structure for the client 
-          // to read...
-          // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+          // Make sure we have data in the stream. The raw stream of an 
+          // SSLSocket cannot tell the length of the data without first 
+          // decrypting it, so SocketChannel gives SSL sockets a stream which 
+          // decrypts arriving data in order to answer {@code available()}
 
           if ( in.available() > 0 ) {
             if ( responseReceived == 0 ) {
               responseReceived = System.currentTimeMillis();
+              firstByteMark = System.nanoTime();
             }
 
             try {
@@ -162,53 +164,18 @@ public class HttpResponse extends HttpMessage {
               Log.append( HTTP, getClass().getName() + "parse() StatusLine=" + status + "'" );
 
               if ( ( status != null ) && ( status.length() > 0 ) ) {
-                // RFC2616 section 6.1
-                int mark = 0;
-                int state = 0;
-
-                for ( int i = 0; i < status.length(); i++ ) {
-                  char c = status.charAt( i );
-
-                  if ( ( c == ' ' ) ) {
-                    switch ( state ) {
-
-                      case 0: // Looking for HTTP-Version (6.1)
-                        setHttpVersion( status.substring( mark, i ) );
-
-                        mark = i + 1;
-                        state = 1;
-                        break;
-
-                      case 1: // Looking for Status-Code (6.1.1)
-                        setStatusCode( Integer.parseInt( status.substring( mark, i ) ) );
-
-                        mark = i + 1;
-                        state = 2;
-                        break;
-                    }
-                  }
-
-                  // Check to see if we are at the end of the Status-Line
-                  if ( ( i + 1 ) >= status.length() ) {
-                    // Finish up the parsing of the last character
-                    if ( state == 0 ) {
-                      throw new HttpMessageException( "No Status-Code found" );
-                    } else if ( state == 1 ) {
-                      setStatusCode( Integer.parseInt( status.substring( mark ) ) );
-                    } else {
-                      // Do we really care about this if we have the Status-Code?
-                      setReasonPhrase( status.substring( mark ) );
-                    }
-
-                  }
-
-                }
+                parseStatusLine( status );
 
                 // Now we parse through the headers. Since this is common to
                 // both requests and responses, we use HttpMessage.readHeaders
                 // which also reports / returns the number of bytes received
                 this.byteCount += readHeaders( in );
 
+                // These responses never contain a message body (RFC2616 4.4)
+                if ( ( statusCode == 204 ) || ( statusCode == 304 ) ) {
+                  break;
+                }
+
                 // If there is more data on the line...
                 if ( in.available() > 0 ) {
                   // read in the data, assigning it to the body of the message,
@@ -265,6 +232,7 @@ public class HttpResponse extends HttpMessage {
 
       // record when response parsing ended
       ended = System.currentTimeMillis();
+      lastByteMark = System.nanoTime();
     } else {
       throw new HttpMessageException( "Inputstream was null" );
     }
@@ -273,6 +241,117 @@ public class HttpResponse extends HttpMessage {
 
 
 
+  /**
+   * Parse the Status-Line of a response as defined in RFC2616 section 6.1.
+   *
+   * @param status the first line of the response without its terminator
+   *
+   * @throws HttpMessageException if the line does not contain a status code
+   */
+  private void parseStatusLine( String status ) throws HttpMessageException {
+    int mark = 0;
+    int state = 0;
+
+    for ( int i = 0; i < status.length(); i++ ) {
+      char c = status.charAt( i );
+
+      if ( ( c == ' ' ) ) {
+        switch ( state ) {
+
+          case 0: // Looking for HTTP-Version (6.1)
+            setHttpVersion( status.substring( mark, i ) );
+
+            mark = i + 1;
+            state = 1;
+            break;
+
+          case 1: // Looking for Status-Code (6.1.1)
+            setStatusCode( Integer.parseInt( status.substring( mark, i ) ) );
+
+            mark = i + 1;
+            state = 2;
+            break;
+        }
+      }
+
+      // Check to see if we are at the end of the Status-Line
+      if ( ( i + 1 ) >= status.length() ) {
+        // Finish up the parsing of the last character
+        if ( state == 0 ) {
+          throw new HttpMessageException( "No Status-Code found" );
+        } else if ( state == 1 ) {
+          setStatusCode( Integer.parseInt( status.substring( mark ) ) );
+        } else {
+          // Do we really care about this if we have the Status-Code?
+          setReasonPhrase( status.substring( mark ) );
+        }
+
+      }
+
+    }
+  }
+
+
+
+
+  /**
+   * Parse only the Status-Line and headers of a response which has already
+   * been completely received.
+   *
+   * <p>This is used by the non-blocking client which reads the response off
+   * the wire itself and only needs the message to be populated. None of the
+   * timing fields are touched.</p>
+   *
+   * @param in stream containing the Status-Line and the headers
+   *
+   * @return the number of bytes parsed
+   *
+   * @throws HttpMessageException if the response head is malformed
+   */
+  int parseHead( InputStream in ) throws HttpMessageException {
+    long received = responseReceived;
+    long sent = requestSent;
+    reset();
+    responseReceived = received;
+    requestSent = sent;
+
+    try {
+      String status = StreamUtil.readLine( in );
+
+      if ( ( status == null ) || ( status.length() == 0 ) ) {
+        throw new HttpMessageException( "No status line" );
+      }
+
+      parseStatusLine( status );
+
+      return status.length() + 2 + readHeaders( in );
+    } catch ( IOException ioe ) {
+      throw new HttpMessageException( ioe );
+    } catch ( NumberFormatException nfe ) {
+      throw new HttpMessageException( nfe );
+    }
+  }
+
+
+
+
+  /**
+   * Record the transfer statistics of a response received by some other means
+   * than {@link #parse(InputStream)}.
+   *
+   * @param started epoch time in milliseconds the first byte was received
+   * @param ended epoch time in milliseconds the last byte was received
+   * @param bytes the total number of bytes received
+   */
+  void setTransfer( long started, long ended, long bytes ) {
+    this.started = started;
+    this.ended = ended;
+    this.byteCount = bytes;
+  }
+
+
+
+
   /**
    * Method getHttpHeader
    *
@@ -517,6 +596,141 @@ public class HttpResponse extends HttpMessage {
 
 
 
+  /**
+   * Record the high-resolution duration of each phase of the exchange.
+   *
+   * <p>All values are in nanoseconds as measured by {@code System.nanoTime()};
+   * a negative value indicates the phase was not measured, such as the TLS
+   * handshake of a clear-text connection.</p>
+   *
+   * @param dns time spent resolving the host address
+   * @param connect time spent establishing the TCP connection
+   * @param handshake time spent in the TLS handshake
+   * @param write time spent writing the request
+   * @param firstByte time from the request being written to the first byte of
+   *        the response
+   * @param transfer time from the first to the last byte of the response
+   */
+  void setPhases( long dns, long connect, long handshake, long write, long firstByte, long transfer ) {
+    dnsNanos = dns;
+    connectNanos = connect;
+    handshakeNanos = handshake;
+    writeNanos = write;
+    firstByteNanos = firstByte;
+    transferNanos = transfer;
+  }
+
+
+
+
+  /**
+   * @param flag true if the TLS handshake resumed a cached session
+   */
+  void setResumed( boolean flag ) {
+    resumed = flag;
+  }
+
+
+
+
+  /**
+   * @return the {@code System.nanoTime()} the first byte of the response was
+   *         read by {@link #parse(InputStream)}, or 0 if nothing was read
+   */
+  long getFirstByteMark() {
+    return firstByteMark;
+  }
+
+
+
+
+  /**
+   * @return the {@code System.nanoTime()} {@link #parse(InputStream)} finished
+   *         reading the response
+   */
+  long getLastByteMark() {
+    return lastByteMark;
+  }
+
+
+
+
+  /**
+   * @return nanoseconds spent resolving the host address, or -1 if not
+   *         measured
+   */
+  public long getDnsNanos() {
+    return dnsNanos;
+  }
+
+
+
+
+  /**
+   * @return nanoseconds spent establishing the TCP connection, or -1 if not
+   *         measured
+   */
+  public long getConnectNanos() {
+    return connectNanos;
+  }
+
+
+
+
+  /**
+   * @return nanoseconds spent in the TLS handshake, or -1 if not measured or
+   *         the connection was not encrypted
+   */
+  public long getHandshakeNanos() {
+    return handshakeNanos;
+  }
+
+
+
+
+  /**
+   * @return true if the TLS handshake resumed a cached session rather than
+   *         negotiating a new one
+   */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+
+
+
+  /**
+   * @return nanoseconds spent writing the request, or -1 if not measured
+   */
+  public long getWriteNanos() {
+    return writeNanos;
+  }
+
+
+
+
+  /**
+   * @return nanoseconds from the request being written to the first byte of
+   *         the response (time-to-first-byte), or -1 if not measured
+   */
+  public long getFirstByteNanos() {
+    return firstByteNanos;
+  }
+
+
+
+
+  /**
+   * @return nanoseconds from the first to the last byte of the response, or
+   *         -1 if not measured
+   */
+  public long getTransferNanos() {
+    return transferNanos;
+  }
+
+
+
+
   /**
    * Method getRequestSent
    *
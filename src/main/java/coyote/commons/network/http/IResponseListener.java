@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2003 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.http;
+
+/**
+ * IResponseListener receives the outcome of a request sent through the
+ * {@link HttpClientEngine}.
+ *
+ * <p>The methods are called on an event loop thread of the engine and should
+ * return quickly; anything which can block should be handed off to another
+ * thread.</p>
+ */
+public interface IResponseListener {
+
+  /**
+   * Called when a complete response has been received.
+   *
+   * @param request the request which was sent
+   * @param response the response, with all its timing fields populated
+   */
+  public abstract void onResponse( HttpRequest request, HttpResponse response );
+
+
+
+
+  /**
+   * Called when no response could be obtained.
+   *
+   * @param request the request which was to be sent
+   * @param error the reason the request failed
+   */
+  public abstract void onFailure( HttpRequest request, Exception error );
+
+}
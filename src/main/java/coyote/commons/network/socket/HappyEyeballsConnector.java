@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.socket;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import coyote.loader.log.Log;
+
+
+/**
+ * Connects to a host with several addresses by racing staggered connection
+ * attempts across them (the &quot;happy eyeballs&quot; strategy of RFC 8305).
+ *
+ * <p>The addresses are ordered alternating between IPv6 and IPv4, starting
+ * with the family of the first address the resolver returned. The first
+ * attempt is started immediately and each following attempt is started when
+ * the stagger delay passes without a connection, or as soon as an earlier
+ * attempt fails. The first attempt to connect wins and all the others are
+ * closed, so a blackholed address costs the stagger delay rather than the
+ * whole connection timeout.</p>
+ *
+ * <p>All the attempts are tended by a selector in the calling thread; no
+ * other threads are used. The returned socket is in blocking mode, always
+ * has a {@code java.nio} channel, and {@code getInetAddress()} on it reports
+ * which address answered.</p>
+ */
+public final class HappyEyeballsConnector {
+
+  /** The default number of milliseconds (250) between starting attempts */
+  public static final long DEFAULT_STAGGER = 250;
+
+  /** Milliseconds to wait for an attempt before starting the next */
+  private final long stagger;
+
+  /** Milliseconds the whole connection may take, 0 for no limit */
+  private final long timeout;
+
+
+
+
+  /**
+   * Create a connector using the default stagger delay and no overall time
+   * limit beyond that of the operating system.
+   */
+  public HappyEyeballsConnector() {
+    this( DEFAULT_STAGGER, 0 );
+  }
+
+
+
+
+  /**
+   * @param stagger milliseconds to wait for an attempt before starting the
+   *        next
+   * @param timeout milliseconds the whole connection may take, 0 for no limit
+   */
+  public HappyEyeballsConnector( long stagger, long timeout ) {
+    this.stagger = ( stagger < 0 ) ? 0 : stagger;
+    this.timeout = ( timeout < 0 ) ? 0 : timeout;
+  }
+
+
+
+
+  /**
+   * Connect to the first of the addresses which answers.
+   *
+   * @param addresses all the addresses of the host
+   * @param port the port to which we connect
+   *
+   * @return a connected socket in blocking mode
+   *
+   * @throws SocketTimeoutException if no address answered within the time-out
+   * @throws IOException the failure of the last attempt if none succeeded
+   */
+  public Socket connect( InetAddress[] addresses, int port ) throws IOException {
+    if ( ( addresses == null ) || ( addresses.length == 0 ) ) {
+      throw new ConnectException( "No addresses to which to connect" );
+    }
+
+    if ( addresses.length == 1 ) {
+      // a channel socket lets SocketChannel check liveness without blocking
+      java.nio.channels.SocketChannel channel = java.nio.channels.SocketChannel.open();
+      try {
+        channel.socket().connect( new InetSocketAddress( addresses[0], port ), (int)Math.min( timeout, Integer.MAX_VALUE ) );
+      } catch ( IOException e ) {
+        channel.close();
+        throw e;
+      }
+      return channel.socket();
+    }
+
+    InetAddress[] order = interleave( addresses );
+    List<java.nio.channels.SocketChannel> attempts = new ArrayList<java.nio.channels.SocketChannel>();
+    java.nio.channels.SocketChannel winner = null;
+    IOException failure = null;
+    int next = 0;
+    int active = 0;
+    long started = System.currentTimeMillis();
+    long deadline = ( timeout > 0 ) ? started + timeout : Long.MAX_VALUE;
+    long nextStart = started;
+
+    Selector selector = Selector.open();
+    try {
+      while ( winner == null ) {
+        long now = System.currentTimeMillis();
+
+        // start the next attempt when it is due or nothing else is in flight
+        if ( ( next < order.length ) && ( ( now >= nextStart ) || ( active == 0 ) ) ) {
+          java.nio.channels.SocketChannel channel = java.nio.channels.SocketChannel.open();
+          attempts.add( channel );
+          InetAddress address = order[next++];
+          try {
+            channel.configureBlocking( false );
+            if ( channel.connect( new InetSocketAddress( address, port ) ) ) {
+              winner = channel;
+              break;
+            }
+            channel.register( selector, SelectionKey.OP_CONNECT );
+            active++;
+            nextStart = now + stagger;
+          } catch ( IOException e ) {
+            Log.debug( "Connection to " + address + ":" + port + " failed: " + e.getMessage() );
+            failure = e;
+            channel.close();
+            nextStart = now;
+          }
+          continue;
+        }
+
+        if ( active == 0 ) {
+          throw ( failure != null ) ? failure : new ConnectException( "Could not connect to any address" );
+        }
+
+        if ( now >= deadline ) {
+          throw new SocketTimeoutException( "No address answered on port " + port + " within " + timeout + "ms" );
+        }
+
+        long until = ( next < order.length ) ? Math.min( deadline, nextStart ) : deadline;
+        selector.select( Math.max( 1, Math.min( until - now, Integer.MAX_VALUE ) ) );
+
+        for ( Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+          SelectionKey key = it.next();
+          it.remove();
+          java.nio.channels.SocketChannel channel = (java.nio.channels.SocketChannel)key.channel();
+          try {
+            if ( channel.finishConnect() ) {
+              winner = channel;
+              break;
+            }
+          } catch ( IOException e ) {
+            Log.debug( "Connection attempt on port " + port + " failed: " + e.getMessage() );
+            failure = e;
+            key.cancel();
+            channel.close();
+            active--;
+            nextStart = 0; // start the next address right away
+          }
+        }
+      }
+    }
+    finally {
+      // closing the selector deregisters the winner so it can block again
+      selector.close();
+      for ( int x = 0; x < attempts.size(); x++ ) {
+        java.nio.channels.SocketChannel channel = attempts.get( x );
+        if ( channel != winner ) {
+          try {
+            channel.close();
+          } catch ( IOException ignore ) {}
+        }
+      }
+    }
+
+    winner.configureBlocking( true );
+    return winner.socket();
+  }
+
+
+
+
+  /**
+   * Order the addresses alternating between address families, starting with
+   * the family of the first address, keeping the resolver's order within
+   * each family.
+   *
+   * @param addresses the addresses as returned by the resolver
+   *
+   * @return a new array of the same addresses in connection order
+   */
+  public static InetAddress[] interleave( InetAddress[] addresses ) {
+    List<InetAddress> first = new ArrayList<InetAddress>();
+    List<InetAddress> second = new ArrayList<InetAddress>();
+    boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+
+    for ( int x = 0; x < addresses.length; x++ ) {
+      if ( ( addresses[x] instanceof Inet6Address ) == firstIsV6 ) {
+        first.add( addresses[x] );
+      } else {
+        second.add( addresses[x] );
+      }
+    }
+
+    InetAddress[] retval = new InetAddress[addresses.length];
+    int index = 0;
+    for ( int x = 0; index < retval.length; x++ ) {
+      if ( x < first.size() ) {
+        retval[index++] = first.get( x );
+      }
+      if ( x < second.size() ) {
+        retval[index++] = second.get( x );
+      }
+    }
+    return retval;
+  }
+
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.socket;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+
+import coyote.commons.ExceptionUtil;
+import coyote.commons.network.IChannel;
+import coyote.commons.network.IChannelHandler;
+import coyote.loader.log.Log;
+
+
+/**
+ * NioChannel is an IChannel over a non-blocking socket owned by one of the
+ * reactors of a {@link NioSocketServer}.
+ *
+ * <p>The reactor reads arriving data directly into the channel's buffer and
+ * the input stream given to handlers reads out of that same buffer, blocking
+ * only the handler's thread when no data is buffered. Data written to the
+ * output stream is written straight to the socket from the caller's array,
+ * waiting for the reactor to report the socket writable only when the socket
+ * buffer is full.</p>
+ *
+ * <p>A channel without data costs no thread, and no buffer when its input has
+ * been drained. If the handler marks the channel as keep-alive, the channel is
+ * returned to its reactor when the handler completes and is serviced again
+ * when more data arrives; otherwise it is closed.</p>
+ */
+public final class NioChannel implements IChannel, Runnable {
+
+  /** The size of the buffer allocated when data arrives */
+  static final int BUFFER_SIZE = 8192;
+
+  final java.nio.channels.SocketChannel channel;
+
+  final NioSocketServer server;
+
+  /** The reactor which selects on our socket */
+  final NioSocketServer.Reactor reactor;
+
+  SelectionKey key = null;
+
+  /** Data read by the reactor; bytes between readIndex and position are unread */
+  private ByteBuffer input = null;
+  private int readIndex = 0;
+
+  private volatile boolean eof = false;
+  private volatile boolean closed = false;
+
+  /** Set while a pool thread is servicing this channel */
+  volatile boolean dispatched = false;
+
+  /** Set while a writer is waiting for the socket to become writable */
+  volatile boolean writeWaiting = false;
+
+  private volatile boolean keepAlive = false;
+
+  private volatile int timeout = 0;
+
+  private final InputStream inputStream = new ChannelInputStream();
+
+  private final OutputStream outputStream;
+
+  private final URI localURI;
+  private final URI remoteURI;
+
+  /** The Date in Brady Bunch format when the channel was connected */
+  final long connectedTime = System.currentTimeMillis();
+
+  private IChannelHandler channelHandler = null;
+
+
+
+
+  NioChannel( java.nio.channels.SocketChannel channel, String protocol, NioSocketServer server, NioSocketServer.Reactor reactor ) {
+    this.channel = channel;
+    this.server = server;
+    this.reactor = reactor;
+    Socket socket = channel.socket();
+    localURI = SocketChannel.asURI( protocol, socket.getLocalAddress(), socket.getLocalPort() );
+    remoteURI = SocketChannel.asURI( protocol, socket.getInetAddress(), socket.getPort() );
+    outputStream = new BufferedOutputStream( new ChannelOutputStream(), BUFFER_SIZE );
+  }
+
+
+
+
+  /**
+   * Called by the reactor when the socket is readable.
+   *
+   * @return true if there is data (or the end of stream) for a handler
+   */
+  synchronized boolean fill() throws IOException {
+    if ( input == null ) {
+      input = ByteBuffer.allocate( BUFFER_SIZE );
+    } else if ( !input.hasRemaining() && ( readIndex > 0 ) ) {
+      compact();
+    }
+
+    if ( input.hasRemaining() ) {
+      if ( channel.read( input ) < 0 ) {
+        eof = true;
+      }
+    }
+
+    notifyAll();
+    return eof || ( input.position() > readIndex );
+  }
+
+
+
+
+  private void compact() {
+    int count = input.position() - readIndex;
+    if ( count > 0 ) {
+      byte[] data = input.array();
+      System.arraycopy( data, readIndex, data, 0, count );
+    }
+    input.position( count );
+    readIndex = 0;
+  }
+
+
+
+
+  /**
+   * @return the interest set the reactor should select on for this channel
+   */
+  synchronized int getInterest() {
+    int retval = 0;
+    if ( !eof && ( ( input == null ) || input.hasRemaining() || ( readIndex > 0 ) ) ) {
+      // Only select for reading while idle, or while a handler wants data
+      if ( !dispatched || ( available() == 0 ) ) {
+        retval |= SelectionKey.OP_READ;
+      }
+    }
+    if ( writeWaiting ) {
+      retval |= SelectionKey.OP_WRITE;
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Called by the reactor when the socket is writable.
+   */
+  synchronized void writable() {
+    writeWaiting = false;
+    notifyAll();
+  }
+
+
+
+
+  /**
+   * @return the number of unread bytes buffered
+   */
+  synchronized int available() {
+    return ( input == null ) ? 0 : input.position() - readIndex;
+  }
+
+
+
+
+  /**
+   * @return true if the peer has closed its side of the connection
+   */
+  boolean isEndOfStream() {
+    return eof;
+  }
+
+
+
+
+  /**
+   * Service this channel in a thread from the server's pool.
+   *
+   * <p>The server's sink is asked to assign a handler and that handler is run,
+   * after which the channel is either returned to its reactor (keep-alive) or
+   * closed.</p>
+   */
+  public void run() {
+    try {
+      server.assignHandler( this );
+
+      if ( channelHandler != null ) {
+        channelHandler.setChannel( this );
+        channelHandler.run();
+      }
+    } catch ( Throwable t ) {
+      Log.error( "NioChannel threw: " + t.getClass().getName() + " while running handler message: " + t.getMessage() );
+      Log.debug( ExceptionUtil.stackTrace( t ) );
+      keepAlive = false;
+    }
+
+    try {
+      outputStream.flush();
+    } catch ( IOException e ) {
+      keepAlive = false;
+    }
+
+    if ( keepAlive && !eof && !closed ) {
+      server.release( this );
+    } else {
+      try {
+        close();
+      } catch ( IOException ignore ) {}
+    }
+  }
+
+
+
+
+  /**
+   * Release the buffer of an idle channel which has been completely read.
+   */
+  synchronized void trim() {
+    if ( ( input != null ) && ( input.position() == readIndex ) ) {
+      input = null;
+      readIndex = 0;
+    }
+  }
+
+
+
+
+  /**
+   * @param flag true to have the channel returned to the server after the
+   *        handler completes, false to close it
+   */
+  public void setKeepAlive( boolean flag ) {
+    keepAlive = flag;
+  }
+
+
+
+
+  /**
+   * @return true if the channel is returned to the server after the handler
+   *         completes
+   */
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+
+
+
+  /**
+   * @param millis how long a read may block, 0 waits forever
+   */
+  public void setTimeout( int millis ) {
+    timeout = millis;
+  }
+
+
+
+
+  /**
+   * @return true if the channel has not been closed and the peer has not
+   *         closed its side of the connection
+   */
+  public boolean isOpen() {
+    return !closed && !eof;
+  }
+
+
+
+
+  /**
+   * @return the epoch time in milliseconds the connection was accepted
+   */
+  public long getConnectedTime() {
+    return connectedTime;
+  }
+
+
+
+
+  /**
+   * @see coyote.commons.network.IChannel#getInputStream()
+   */
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return inputStream;
+  }
+
+
+
+
+  /**
+   * @see coyote.commons.network.IChannel#getOutputStream()
+   */
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return outputStream;
+  }
+
+
+
+
+  /**
+   * Return the next bytes which will be read without consuming them, waiting
+   * for them to arrive if necessary. Bytes past the end of the stream are
+   * zero.
+   *
+   * @see coyote.commons.network.IChannel#peek(int)
+   */
+  @Override
+  public synchronized byte[] peek( int size ) throws IOException {
+    if ( size > BUFFER_SIZE ) {
+      throw new IOException( "Cannot peek more than " + BUFFER_SIZE + " bytes" );
+    }
+
+    long deadline = ( timeout > 0 ) ? System.currentTimeMillis() + timeout : 0;
+    while ( ( available() < size ) && !eof && !closed ) {
+      if ( ( input != null ) && ( readIndex > 0 ) && ( input.remaining() < size ) ) {
+        compact();
+      }
+      waitForData( deadline );
+    }
+
+    byte[] retval = new byte[size];
+    int count = Math.min( size, available() );
+    if ( count > 0 ) {
+      System.arraycopy( input.array(), readIndex, retval, 0, count );
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Wait for the reactor to read more data into our buffer.
+   */
+  private void waitForData( long deadline ) throws IOException {
+    reactor.update( this );
+    try {
+      if ( deadline > 0 ) {
+        long wait = deadline - System.currentTimeMillis();
+        if ( wait <= 0 ) {
+          throw new SocketTimeoutException( "Read timed out" );
+        }
+        wait( wait );
+      } else {
+        wait();
+      }
+    } catch ( InterruptedException e ) {
+      throw new InterruptedIOException( "Interrupted waiting for data" );
+    }
+  }
+
+
+
+
+  /**
+   * @see coyote.commons.network.IChannel#close()
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized( this ) {
+      if ( closed ) {
+        return;
+      }
+      closed = true;
+      input = null;
+      notifyAll();
+    }
+
+    if ( key != null ) {
+      key.cancel();
+    }
+    try {
+      channel.close();
+    }
+    finally {
+      server.closed( this );
+    }
+  }
+
+
+
+
+  /**
+   * @see coyote.commons.network.IChannel#getLocalURI()
+   */
+  @Override
+  public URI getLocalURI() {
+    return localURI;
+  }
+
+
+
+
+  /**
+   * @see coyote.commons.network.IChannel#getRemoteURI()
+   */
+  @Override
+  public URI getRemoteURI() {
+    return remoteURI;
+  }
+
+
+
+
+  /**
+   * @see coyote.commons.network.IChannel#setHandler(coyote.commons.network.IChannelHandler)
+   */
+  @Override
+  public void setHandler( IChannelHandler handler ) {
+    channelHandler = handler;
+  }
+
+
+
+
+  /**
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "NioChannel( " + localURI + "->" + remoteURI + " )";
+  }
+
+  /**
+   * Reads out of the buffer the reactor fills.
+   */
+  private final class ChannelInputStream extends InputStream {
+
+    @Override
+    public int read() throws IOException {
+      synchronized( NioChannel.this ) {
+        if ( !await() ) {
+          return -1;
+        }
+        return input.array()[readIndex++] & 0xFF;
+      }
+    }
+
+
+
+
+    @Override
+    public int read( byte[] data, int offset, int length ) throws IOException {
+      if ( length == 0 ) {
+        return 0;
+      }
+      synchronized( NioChannel.this ) {
+        if ( !await() ) {
+          return -1;
+        }
+        int retval = Math.min( length, input.position() - readIndex );
+        System.arraycopy( input.array(), readIndex, data, offset, retval );
+        readIndex += retval;
+        if ( readIndex == input.position() ) {
+          // drained, start again at the front of the buffer
+          input.clear();
+          readIndex = 0;
+        }
+        return retval;
+      }
+    }
+
+
+
+
+    @Override
+    public int available() throws IOException {
+      return NioChannel.this.available();
+    }
+
+
+
+
+    /**
+     * Wait until data is buffered or the stream has ended.
+     *
+     * @return true if there is data to read
+     */
+    private boolean await() throws IOException {
+      long deadline = ( timeout > 0 ) ? System.currentTimeMillis() + timeout : 0;
+      while ( NioChannel.this.available() == 0 ) {
+        if ( eof || closed ) {
+          return false;
+        }
+        waitForData( deadline );
+      }
+      return true;
+    }
+
+
+
+
+    @Override
+    public void close() throws IOException {
+      NioChannel.this.close();
+    }
+  }
+
+  /**
+   * Writes directly to the socket, waiting on the reactor only when the socket
+   * cannot accept any more data.
+   */
+  private final class ChannelOutputStream extends OutputStream {
+
+    @Override
+    public void write( int b ) throws IOException {
+      write( new byte[] { (byte)b }, 0, 1 );
+    }
+
+
+
+
+    @Override
+    public void write( byte[] data, int offset, int length ) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap( data, offset, length );
+      while ( buffer.hasRemaining() ) {
+        if ( closed ) {
+          throw new IOException( "Channel closed" );
+        }
+        if ( channel.write( buffer ) == 0 ) {
+          synchronized( NioChannel.this ) {
+            writeWaiting = true;
+            reactor.update( NioChannel.this );
+            try {
+              while ( writeWaiting && !closed ) {
+                NioChannel.this.wait();
+              }
+            } catch ( InterruptedException e ) {
+              throw new InterruptedIOException( "Interrupted waiting to write" );
+            }
+          }
+        }
+      }
+    }
+
+
+
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+}
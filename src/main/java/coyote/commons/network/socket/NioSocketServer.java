@@ -0,0 +1,548 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import coyote.commons.ExceptionUtil;
+import coyote.commons.UriUtil;
+import coyote.commons.network.IChannelSink;
+import coyote.commons.network.IpAcl;
+import coyote.commons.network.socket.ssl.SSLSocketFactory;
+import coyote.loader.log.Log;
+import coyote.loader.thread.ThreadPool;
+
+
+/**
+ * NioSocketServer accepts socket connections with non-blocking IO so a very
+ * large number of connections can be held open by a few threads.
+ *
+ * <p>An acceptor thread accepts connections, filters them through the
+ * {@link #ACL} and hands each to one of several reactor threads, each of which
+ * selects on its share of the connections. When data arrives on a connection
+ * it is passed, as a {@link NioChannel}, to a thread from the thread pool
+ * which asks the IChannelSink to assign a handler just as
+ * {@link SocketServer} does. Connections only occupy a pool thread while they
+ * are being serviced.</p>
+ *
+ * <p>If the handler flags the channel as keep-alive the connection is
+ * returned to its reactor when the handler completes and the process repeats
+ * when more data arrives, otherwise the connection is closed. This allows
+ * clients such as agents sending periodic heartbeats to hold connections open
+ * without each one tying up a thread.</p>
+ *
+ * <p>Only clear-text sockets are supported.</p>
+ */
+public final class NioSocketServer implements Runnable {
+
+  public static final int DEFAULT_BACKLOG = 1024;
+
+  int backlog;
+
+  IChannelSink sink;
+
+  volatile boolean stop = true;
+
+  volatile boolean offline = false;
+
+  URI uri;
+
+  ServerSocketChannel serverChannel;
+
+  ThreadPool threadPool;
+
+  final Reactor[] reactors;
+
+  private final AtomicInteger nextReactor = new AtomicInteger();
+
+  private final AtomicInteger connections = new AtomicInteger();
+
+  final Object padlock = new Object();
+
+  /** Our Access Control List of IpAddresses */
+  public final IpAcl ACL = new IpAcl();
+
+
+
+
+  /**
+   * Construct a server with one reactor for each available processor.
+   *
+   * @param uri the URI describing the address and port on which to listen
+   * @param backlog the number of connections to queue when we are busy
+   * @param threadpool the ThreadPool used to service channels with data
+   * @param channelsink the sink which assigns handlers to channels
+   */
+  public NioSocketServer( URI uri, int backlog, ThreadPool threadpool, IChannelSink channelsink ) {
+    this( uri, backlog, threadpool, channelsink, Runtime.getRuntime().availableProcessors() );
+  }
+
+
+
+
+  /**
+   * Construct a server with the given number of reactors.
+   *
+   * <p>The given channel sink better be thread-safe as all the threads in the
+   * threadpool will be accessing that object to service requests.</p>
+   *
+   * @param uri the URI describing the address and port on which to listen
+   * @param backlog the number of connections to queue when we are busy
+   * @param threadpool the ThreadPool used to service channels with data
+   * @param channelsink the sink which assigns handlers to channels
+   * @param reactorCount the number of selector threads servicing connections
+   */
+  public NioSocketServer( URI uri, int backlog, ThreadPool threadpool, IChannelSink channelsink, int reactorCount ) {
+    this.uri = uri;
+    this.backlog = backlog;
+    this.threadPool = threadpool;
+    this.sink = channelsink;
+    reactors = new Reactor[Math.max( 1, reactorCount )];
+  }
+
+
+
+
+  /**
+   * Open the server socket and start the acceptor and reactor threads.
+   *
+   * @throws IOException if the server socket could not be opened
+   */
+  public synchronized void startup() throws IOException {
+    if ( SocketChannel.getFactory( uri.getScheme() ) instanceof SSLSocketFactory ) {
+      throw new IOException( "Scheme '" + uri.getScheme() + "' is not supported by the non-blocking server" );
+    }
+
+    if ( threadPool == null ) {
+      threadPool = new ThreadPool( uri.toString() );
+      threadPool.setMinThreadCount( 2 );
+      threadPool.setMaxThreadCount( 128 );
+      threadPool.start();
+    }
+
+    if ( stop ) {
+      stop = false;
+      offline = false;
+      serverChannel = createServerChannel();
+
+      for ( int x = 0; x < reactors.length; x++ ) {
+        reactors[x] = new Reactor( Selector.open() );
+        Thread thread = new Thread( reactors[x] );
+        thread.setName( "Rctr" + x + ":" + uri.getHost() + ":" + uri.getPort() );
+        thread.setDaemon( true );
+        thread.start();
+      }
+
+      Thread thred = new Thread( this );
+      thred.setName( "Srvr:" + uri.getHost() + ":" + uri.getPort() );
+      thred.start();
+    } else {
+      Log.debug( "Server '" + uri.toString() + "' is running and offline=" + offline );
+    }
+  }
+
+
+
+
+  /**
+   * Shut down the server, closing all its connections.
+   */
+  public void shutdown() {
+    stop = true;
+
+    try {
+      serverChannel.close();
+    } catch ( Exception exception ) {}
+
+    for ( int x = 0; x < reactors.length; x++ ) {
+      if ( reactors[x] != null ) {
+        reactors[x].selector.wakeup();
+      }
+    }
+
+    synchronized( padlock ) {
+      padlock.notifyAll();
+    }
+  }
+
+
+
+
+  /**
+   * Go offline for a while; no new connections are accepted but existing
+   * connections continue to be serviced.
+   */
+  public void offline() {
+    synchronized( padlock ) {
+      if ( !offline ) {
+        offline = true;
+
+        try {
+          serverChannel.close();
+          Log.info( "Server '" + uri.toString() + "' is offline" );
+        } catch ( Exception exception ) {}
+      } else {
+        Log.info( "Server '" + uri.toString() + "' is already offline" );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Go online, accepting connections again.
+   */
+  public void online() {
+    synchronized( padlock ) {
+      if ( offline ) {
+        try {
+          serverChannel = createServerChannel();
+          offline = false;
+          padlock.notifyAll();
+        } catch ( IOException ioe ) {
+          Log.error( "Server '" + uri.toString() + "' could not go online: " + ioe.getMessage() );
+        }
+      } else {
+        Log.info( "Server '" + uri.toString() + "' is already online" );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * The acceptor loop.
+   *
+   * <p>Each accepted connection allowed by the ACL is made non-blocking and
+   * registered with the next reactor in turn.</p>
+   */
+  public void run() {
+    Log.debug( "listening on '" + uri.getHost() + ":" + getBindPort() + "'" );
+
+    while ( !stop ) {
+      try {
+        java.nio.channels.SocketChannel channel = serverChannel.accept();
+        InetAddress address = channel.socket().getInetAddress();
+
+        if ( ACL.allows( address ) ) {
+          channel.configureBlocking( false );
+          channel.socket().setTcpNoDelay( true );
+          Reactor reactor = reactors[( nextReactor.getAndIncrement() & Integer.MAX_VALUE ) % reactors.length];
+          NioChannel nioChannel = new NioChannel( channel, uri.getScheme(), this, reactor );
+          connections.incrementAndGet();
+          reactor.register( nioChannel );
+        } else {
+          Log.info( "ACL rejected connection from '" + address.getHostAddress() + ":" + channel.socket().getPort() + "'" );
+          try {
+            channel.close();
+          } catch ( Exception e ) {
+            // who cares?
+          }
+        }
+      } catch ( IOException ioexception ) {
+        if ( !stop ) {
+          synchronized( padlock ) {
+            if ( offline ) {
+              try {
+                while ( offline && !stop ) {
+                  padlock.wait();
+                }
+              } catch ( InterruptedException e ) {
+                Log.debug( "Server '" + uri.toString() + "' interrupted while offline" );
+              }
+            } else if ( !serverChannel.isOpen() ) {
+              Log.error( "Server '" + uri.toString() + "' socket closed unexpectedly: " + ioexception.getMessage() );
+              stop = true;
+            } else {
+              Log.warn( "Server '" + uri.toString() + "' accept failed: " + ioexception.getMessage() );
+            }
+          }
+        }
+      }
+    }
+
+    shutdown();
+  }
+
+
+
+
+  /**
+   * Have the sink assign a handler to, or otherwise service, the channel.
+   *
+   * @param channel the channel being serviced in a pool thread
+   */
+  void assignHandler( NioChannel channel ) {
+    try {
+      sink.assignHandler( channel );
+    } catch ( Exception ex ) {
+      Log.warn( sink.getClass().getName() + " could not assign a handler or otherwise process the channel: " + ex.getMessage() );
+    }
+  }
+
+
+
+
+  /**
+   * Pass a channel with data to the thread pool for servicing.
+   */
+  void dispatch( NioChannel channel ) {
+    channel.dispatched = true;
+    try {
+      threadPool.run( channel );
+    } catch ( Exception e ) {
+      Log.warn( "Could not service " + channel + ": " + e.getMessage() );
+      try {
+        channel.close();
+      } catch ( IOException ignore ) {}
+    }
+  }
+
+
+
+
+  /**
+   * Return a keep-alive channel to its reactor after its handler completes.
+   */
+  void release( NioChannel channel ) {
+    channel.dispatched = false;
+    if ( channel.available() > 0 ) {
+      // more data arrived while the handler was finishing
+      dispatch( channel );
+    } else {
+      channel.trim();
+      channel.reactor.update( channel );
+    }
+  }
+
+
+
+
+  /**
+   * Called when a channel closes.
+   */
+  void closed( NioChannel channel ) {
+    connections.decrementAndGet();
+  }
+
+
+
+
+  /**
+   * @return the number of connections currently open
+   */
+  public int getConnectionCount() {
+    return connections.get();
+  }
+
+
+
+
+  /**
+   * @return the URI on which the server listens
+   */
+  public URI getServiceUri() {
+    return uri;
+  }
+
+
+
+
+  /**
+   * Return the InetAddres to which the server is bound
+   *
+   * @return
+   */
+  public InetAddress getBindAddress() {
+    return UriUtil.getHostAddress( uri );
+  }
+
+
+
+
+  /**
+   * Return the port on which the server is bound
+   *
+   * @return
+   */
+  public int getBindPort() {
+    if ( ( serverChannel != null ) && serverChannel.socket().isBound() ) {
+      return serverChannel.socket().getLocalPort();
+    } else {
+      return uri.getPort();
+    }
+  }
+
+
+
+
+  private ServerSocketChannel createServerChannel() throws IOException {
+    ServerSocketChannel retval = ServerSocketChannel.open();
+    retval.socket().setReuseAddress( true );
+    retval.socket().bind( new InetSocketAddress( UriUtil.getHostAddress( uri ), uri.getPort() ), backlog );
+    return retval;
+  }
+
+  /**
+   * A thread selecting on a share of the server's connections.
+   *
+   * <p>Other threads never touch the selector directly; they queue the channel
+   * whose interest has changed and wake the reactor, which then asks the
+   * channel what it now wants to select.</p>
+   */
+  final class Reactor implements Runnable {
+    final Selector selector;
+
+    private final ConcurrentLinkedQueue<NioChannel> registrations = new ConcurrentLinkedQueue<NioChannel>();
+
+    private final ConcurrentLinkedQueue<NioChannel> updates = new ConcurrentLinkedQueue<NioChannel>();
+
+
+
+
+    Reactor( Selector selector ) {
+      this.selector = selector;
+    }
+
+
+
+
+    void register( NioChannel channel ) {
+      registrations.add( channel );
+      selector.wakeup();
+    }
+
+
+
+
+    void update( NioChannel channel ) {
+      updates.add( channel );
+      selector.wakeup();
+    }
+
+
+
+
+    public void run() {
+      while ( !stop ) {
+        try {
+          selector.select();
+
+          NioChannel channel;
+          while ( ( channel = registrations.poll() ) != null ) {
+            try {
+              channel.key = channel.channel.register( selector, SelectionKey.OP_READ, channel );
+            } catch ( ClosedChannelException e ) {
+              channel.close();
+            } catch ( RuntimeException e ) {
+              Log.error( "Could not register connection on '" + uri + "': " + e.getMessage() );
+              channel.close();
+            }
+          }
+
+          while ( ( channel = updates.poll() ) != null ) {
+            // the key may be cancelled by a handler closing the channel at any
+            // time, so a failure here only concerns that one connection
+            try {
+              if ( ( channel.key != null ) && channel.key.isValid() ) {
+                channel.key.interestOps( channel.getInterest() );
+              }
+            } catch ( CancelledKeyException e ) {
+              // channel closed by its handler
+            } catch ( RuntimeException e ) {
+              Log.error( "Could not update connection on '" + uri + "': " + e.getMessage() );
+              channel.close();
+            }
+          }
+
+          for ( Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+            SelectionKey key = it.next();
+            it.remove();
+            service( key );
+          }
+        } catch ( ClosedSelectorException e ) {
+          break;
+        } catch ( IOException e ) {
+          Log.error( "Reactor failure on '" + uri + "': " + e.getMessage() );
+        } catch ( RuntimeException e ) {
+          Log.error( "Reactor failure on '" + uri + "': " + ExceptionUtil.toString( e ) );
+        }
+      }
+
+      // close any connections still open
+      for ( Iterator<SelectionKey> it = selector.keys().iterator(); it.hasNext(); ) {
+        try {
+          ( (NioChannel)it.next().attachment() ).close();
+        } catch ( Exception ignore ) {}
+      }
+      try {
+        selector.close();
+      } catch ( IOException ignore ) {}
+    }
+
+
+
+
+    private void service( SelectionKey key ) {
+      NioChannel channel = (NioChannel)key.attachment();
+
+      try {
+        if ( key.isWritable() ) {
+          channel.writable();
+        }
+
+        if ( key.isReadable() ) {
+          boolean ready = channel.fill();
+          if ( !channel.dispatched ) {
+            if ( ready && ( channel.available() > 0 ) ) {
+              dispatch( channel );
+            } else if ( channel.isEndOfStream() ) {
+              // peer closed an idle connection
+              channel.close();
+              return;
+            }
+          }
+        }
+
+        if ( key.isValid() ) {
+          key.interestOps( channel.getInterest() );
+        }
+      } catch ( CancelledKeyException e ) {
+        // channel closed by its handler
+      } catch ( IOException e ) {
+        try {
+          channel.close();
+        } catch ( IOException ignore ) {}
+      } catch ( RuntimeException e ) {
+        Log.error( "Connection failure on '" + uri + "': " + ExceptionUtil.toString( e ) );
+        try {
+          channel.close();
+        } catch ( IOException ignore ) {}
+      }
+    }
+  }
+
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.IllegalBlockingModeException;
+
+
+/**
+ * The buffered input of a {@link SocketChannel}.
+ *
+ * <p>The buffer is owned by the channel so the same bytes serve reads,
+ * {@code peek(int)} and the liveness check of {@code isOpen()}. When the
+ * socket was created from a {@code java.nio} channel, liveness is checked with
+ * a single non-blocking read into the buffer; any data it finds is kept for
+ * the next read. Other sockets are open until a read reaches the end of the
+ * stream.</p>
+ */
+final class PeekInputStream extends InputStream {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final InputStream input;
+
+  /** The channel of the socket, null if the socket has none */
+  private final java.nio.channels.SocketChannel channel;
+
+  private byte[] buffer = new byte[BUFFER_SIZE];
+  private int position = 0;
+  private int count = 0;
+
+  private volatile boolean eof = false;
+
+
+
+
+  /**
+   * @param input the stream from which data is read
+   * @param channel the channel of the socket, may be null
+   */
+  PeekInputStream( InputStream input, java.nio.channels.SocketChannel channel ) {
+    this.input = input;
+    this.channel = channel;
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#read()
+   */
+  @Override
+  public synchronized int read() throws IOException {
+    if ( ( position >= count ) && ( fill() < 0 ) ) {
+      return -1;
+    }
+    return buffer[position++] & 0xFF;
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#read(byte[], int, int)
+   */
+  @Override
+  public synchronized int read( byte[] data, int offset, int length ) throws IOException {
+    if ( length == 0 ) {
+      return 0;
+    }
+
+    int buffered = count - position;
+    if ( buffered > 0 ) {
+      int retval = Math.min( buffered, length );
+      System.arraycopy( buffer, position, data, offset, retval );
+      position += retval;
+      return retval;
+    }
+
+    if ( eof ) {
+      return -1;
+    }
+
+    // large reads go straight into the caller's array
+    if ( length >= buffer.length ) {
+      int retval = input.read( data, offset, length );
+      if ( retval < 0 ) {
+        eof = true;
+      }
+      return retval;
+    }
+
+    if ( fill() < 0 ) {
+      return -1;
+    }
+    return read( data, offset, length );
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#available()
+   */
+  @Override
+  public synchronized int available() throws IOException {
+    int buffered = count - position;
+    if ( ( buffered > 0 ) || eof ) {
+      return buffered;
+    }
+    return input.available();
+  }
+
+
+
+
+  /**
+   * Return the next bytes which will be read without consuming them, blocking
+   * until they arrive. Bytes past the end of the stream are zero.
+   *
+   * @param size the number of bytes to return
+   *
+   * @return the next bytes of the stream
+   */
+  synchronized byte[] peek( int size ) throws IOException {
+    if ( buffer.length < size ) {
+      byte[] larger = new byte[size];
+      System.arraycopy( buffer, position, larger, 0, count - position );
+      count -= position;
+      position = 0;
+      buffer = larger;
+    } else if ( buffer.length - position < size ) {
+      compact();
+    }
+
+    while ( ( count - position < size ) && !eof ) {
+      int read = input.read( buffer, count, buffer.length - count );
+      if ( read < 0 ) {
+        eof = true;
+      } else {
+        count += read;
+      }
+    }
+
+    byte[] retval = new byte[size];
+    System.arraycopy( buffer, position, retval, 0, Math.min( size, count - position ) );
+    return retval;
+  }
+
+
+
+
+  /**
+   * @return true if there is data in the buffer waiting to be read
+   */
+  synchronized boolean isBuffered() {
+    return count > position;
+  }
+
+
+
+
+  /**
+   * Check if the stream can still be read without blocking for long.
+   *
+   * <p>This is meant for an idle connection, such as one about to be taken
+   * from a pool, and must not be called while another thread reads or writes
+   * the socket. Switching the channel to non-blocking mode takes the
+   * channel's read and write locks, so a probe made during a write stalls
+   * until that write completes.</p>
+   *
+   * @return false if the end of the stream has been reached
+   */
+  synchronized boolean isOpen() {
+    if ( count > position ) {
+      return true;
+    }
+    if ( eof ) {
+      return false;
+    }
+
+    if ( channel != null ) {
+      try {
+        probe();
+      } catch ( IllegalBlockingModeException e ) {
+        // the channel is registered with a selector, trust the flag
+      } catch ( IOException e ) {
+        eof = true;
+      }
+    }
+
+    return !eof;
+  }
+
+
+
+
+  /**
+   * Read whatever has already arrived on the channel without blocking.
+   *
+   * <p>Callers hold the lock of this stream, which keeps out concurrent
+   * reads through it, but not writes to the socket; see {@link #isOpen()}.</p>
+   */
+  private void probe() throws IOException {
+    if ( !channel.isOpen() ) {
+      eof = true;
+      return;
+    }
+
+    position = 0;
+    count = 0;
+
+    channel.configureBlocking( false );
+    try {
+      int read = channel.read( ByteBuffer.wrap( buffer ) );
+      if ( read < 0 ) {
+        eof = true;
+      } else {
+        count = read;
+      }
+    }
+    finally {
+      channel.configureBlocking( true );
+    }
+  }
+
+
+
+
+  /**
+   * Read the next block of data into the empty buffer.
+   *
+   * @return the number of bytes read, -1 at the end of the stream
+   */
+  private int fill() throws IOException {
+    if ( eof ) {
+      return -1;
+    }
+
+    position = 0;
+    count = 0;
+
+    int retval = input.read( buffer, 0, buffer.length );
+    if ( retval < 0 ) {
+      eof = true;
+    } else {
+      count = retval;
+    }
+    return retval;
+  }
+
+
+
+
+  private void compact() {
+    int remaining = count - position;
+    System.arraycopy( buffer, position, buffer, 0, remaining );
+    position = 0;
+    count = remaining;
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#close()
+   */
+  @Override
+  public void close() throws IOException {
+    eof = true;
+    input.close();
+  }
+
+}
@@ -11,27 +11,29 @@
  */
 package coyote.commons.network.socket;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Hashtable;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLSocket;
 
 import coyote.commons.ClassLoaderUtil;
 import coyote.commons.ExceptionUtil;
-import coyote.commons.StreamUtil;
-import coyote.commons.UriUtil;
+import coyote.commons.network.HostResolver;
 import coyote.commons.network.IChannel;
 import coyote.commons.network.IChannelHandler;
-import coyote.commons.network.socket.ssl.SSLWorker;
+import coyote.commons.network.socket.ssl.RecordSocket;
+import coyote.commons.network.socket.ssl.SSLContextCache;
+import coyote.commons.network.socket.ssl.SSLInputStream;
+import coyote.commons.network.socket.tcp.TCPSocketFactory;
 import coyote.loader.log.Log;
 
 
@@ -44,9 +46,8 @@ public final class SocketChannel implements Runnable, IChannel {
 
   public static final int DEFAULT_BACKLOG = 50;
 
-  static final Hashtable<String, String> protocolToFactoryClass = new Hashtable<String, String>();
-
-  static final Hashtable<String, ISocketFactory> protocolToFactory = new Hashtable<String, ISocketFactory>();
+  /** Initialized socket factories by protocol, read without locking */
+  static final ConcurrentHashMap<String, ISocketFactory> protocolToFactory = new ConcurrentHashMap<String, ISocketFactory>();
 
   /**
    * The SocketServer that created us and probably has a reference to a
@@ -58,7 +59,7 @@ public final class SocketChannel implements Runnable, IChannel {
   Socket socket;
 
   /** The input stream we use to read from the socket */
-  BufferedInputStream input;
+  PeekInputStream input;
 
   /** The output stream we use to write to the socket */
   BufferedOutputStream output;
@@ -75,11 +76,23 @@ public final class SocketChannel implements Runnable, IChannel {
   /** The Date in Brady Bunch format when the channel was connected */
   public long connectedTime;
 
+  /** Nanoseconds spent resolving the address of the peer, -1 if not measured */
+  public long dnsNanos = -1;
+
+  /** Nanoseconds spent establishing the TCP connection, -1 if not measured */
+  public long connectNanos = -1;
+
+  /** Nanoseconds spent in the TLS handshake, -1 if not encrypted */
+  public long handshakeNanos = -1;
+
+  /** True if the TLS handshake resumed a cached session */
+  public boolean resumed = false;
+
   /** The optional IChannelHandler that we are to run to service this instance */
   IChannelHandler channelHandler = null;
 
-  /** A small worker blocking on the SSL socket creating data for the input stream */
-  SSLWorker worker = null;
+  /** The stream of decrypted data if this is an SSL socket */
+  SSLInputStream sslInput = null;
 
   static {
     addFactory( "tcp", "coyote.commons.network.socket.tcp.TCPSocketFactory" );
@@ -99,13 +112,30 @@ public final class SocketChannel implements Runnable, IChannel {
    * @throws IOException
    */
   public SocketChannel( Socket socket, String protocol ) throws IOException {
+    this( socket, null, protocol );
+  }
+
+
+
+
+  /**
+   * Create a channel for a socket which may be layered over another.
+   *
+   * @param socket the socket over which we communicate
+   * @param transport the plain socket an SSL socket is layered over, may be
+   *        null
+   * @param protocol
+   *
+   * @throws IOException
+   */
+  SocketChannel( Socket socket, Socket transport, String protocol ) throws IOException {
     this.socket = socket;
 
     if ( socket instanceof SSLSocket ) {
-      worker = new SSLWorker( (SSLSocket)socket );
-      input = new BufferedInputStream( worker.getInputStream() );
+      sslInput = new SSLInputStream( (SSLSocket)socket, transport );
+      input = new PeekInputStream( sslInput, null );
     } else {
-      input = new BufferedInputStream( socket.getInputStream() );
+      input = new PeekInputStream( socket.getInputStream(), socket.getChannel() );
     }
 
     output = new BufferedOutputStream( socket.getOutputStream() );
@@ -139,59 +169,32 @@ public final class SocketChannel implements Runnable, IChannel {
   /**
    * Tests to see of the socket is open, or has been closed by the remote peer.
    *
-   * <p>This is to be used in Java 1.3 VMs as there are no reliable ways to
-   * test for a closed connection in a single-threaded manner. In Java 1.4,
-   * there are several new methods to answer this problem.</p>
+   * <p>This check is cheap enough to validate a connection every time it is
+   * used. Buffered data means the channel is open. Otherwise SSL sockets know
+   * if they have reached the end of their stream, and sockets created from a
+   * {@code java.nio} channel (as all our client connections are) are checked
+   * with a single non-blocking read whose data is kept for the next read.
+   * Other sockets are considered open until a read reaches the end of the
+   * stream.</p>
    *
-   * <p>This does not work with all IP stacks as some sockets will stay open
-   * locally, even though the remote end has closed the connection.</p>
+   * <p>The check is for a connection which is not in use. It must not be
+   * made while another thread is reading or writing the socket, as the
+   * non-blocking read waits for any write in progress to complete.</p>
    *
    * @return True if the socket is open, False if the socket was closed by the
    *         peer (or us).
    */
   public boolean isOpen() {
-    int available;
-    
-    // check to see if this is a SSL socket by the existance of a worker
-    if(worker!= null){
-      return worker.isOpen();
-    }else {
-
-    try {
-      available = input.available();
-
-      // workaround since available() does not throw IOException if socket has
-      // been closed by peer
-      if ( available == 0 ) {
-        // save the socket timeout
-        int oldTimeOut = socket.getSoTimeout();
-
-        // Set IO timeout to 1 millisecond
-        socket.setSoTimeout( 1 );
-
-        // set our read limit to 2 octets
-        input.mark( 2 );
-
-        try {
-          // Try a read to see if -1 (meaning a closed stream) is returned
-          available = input.read();
-
-          // Reset the stream
-          input.reset();
-        } catch ( InterruptedIOException ex ) {
-          // Timeout is OK, nothing in stream
-        }
-
-        // reset the socket timeout
-        socket.setSoTimeout( oldTimeOut );
-      }
-    } catch ( Exception e ) {
+    if ( ( socket == null ) || socket.isClosed() || socket.isInputShutdown() || ( input == null ) ) {
       return false;
     }
 
-    // as long as we are not -1 we are open for business
-    return ( available >= 0 );
+    // SSL sockets know if they have reached the end of their stream
+    if ( sslInput != null ) {
+      return input.isBuffered() || sslInput.isOpen();
     }
+
+    return input.isOpen();
   }
 
 
@@ -218,24 +221,37 @@ public final class SocketChannel implements Runnable, IChannel {
    * and any calls to create a &quot;tcp&quot; socket will use that factory to
    * generate the socket</p>
    *
+   * <p>The factory is created and initialized here, once, so looking it up
+   * later costs no more than a map read. If the factory cannot be created or
+   * initialized, the error is logged and any factory already registered for
+   * the protocol is left in place.</p>
+   *
    * @param protocol
    *
    * @param classname
    */
   public static void addFactory( String protocol, String classname ) {
-    protocolToFactoryClass.put( protocol, classname );
+    try {
+      Class<?> clazz = ClassLoaderUtil.loadClass( classname );
+      ISocketFactory factory = (ISocketFactory)clazz.newInstance();
+      factory.initialize();
+      addFactory( protocol, factory );
+    } catch ( Exception ex ) {
+      Log.error( "Could not register socket factory " + classname + " for '" + protocol + "': " + ex.getClass().getName() + " - " + ex.getMessage() );
+    }
   }
 
 
 
 
   /**
-   * Method addFactory
+   * Register an initialized factory for a protocol, replacing any factory
+   * already registered for it.
    *
    * @param protocol
    * @param factory
    */
-  public static synchronized void addFactory( String protocol, ISocketFactory factory ) {
+  public static void addFactory( String protocol, ISocketFactory factory ) {
     protocolToFactory.put( protocol, factory );
   }
 
@@ -255,49 +271,20 @@ public final class SocketChannel implements Runnable, IChannel {
 
 
   /**
-   * Method getFactory
+   * Return the factory registered for the protocol, or the &quot;tcp&quot;
+   * factory if there is none.
    *
    * @param protocol
    *
-   * @return
+   * @return the factory, null if neither the protocol nor &quot;tcp&quot; has
+   *         one
    */
-  public static synchronized ISocketFactory getFactory( String protocol ) {
-    ISocketFactory isocketfactory = (ISocketFactory)protocolToFactory.get( protocol );
-
-    if ( isocketfactory != null ) {
-      return isocketfactory;
+  public static ISocketFactory getFactory( String protocol ) {
+    ISocketFactory retval = ( protocol != null ) ? protocolToFactory.get( protocol ) : null;
+    if ( retval == null ) {
+      retval = protocolToFactory.get( "tcp" );
     }
-
-    // Could not find a factory in the cache, get the class name based on the
-    // protocol so we can create a new factory.
-    String classname = protocolToFactoryClass.get( protocol );
-
-    // If we could not find the proper factory class name
-    if ( classname == null ) {
-      // get the TCP socket factory as a default
-      classname = protocolToFactoryClass.get( "tcp" );
-    }
-
-    // Make sure we have at least a TCP socket factory
-    if ( classname == null ) {
-      // Jeese! we're worthless!
-      return null;
-    }
-
-    // Create an instance of the socket factory
-    try {
-      Class<?> clazz = ClassLoaderUtil.loadClass( classname );
-      ISocketFactory factory = (ISocketFactory)clazz.newInstance();
-      addFactory( protocol, factory );
-      factory.initialize();
-
-      // return it to the requester
-      return factory;
-    } catch ( Exception ex ) {
-      ex.printStackTrace();
-    }
-
-    return null;
+    return retval;
   }
 
 
@@ -314,7 +301,13 @@ public final class SocketChannel implements Runnable, IChannel {
    */
   public static URI asURI( String scheme, InetAddress inetaddress, int port ) {
     try {
-      return new URI( scheme + "://" + inetaddress.getHostAddress() + ":" + port );
+      String host = inetaddress.getHostAddress();
+      if ( inetaddress instanceof Inet6Address ) {
+        // IPv6 literals must be bracketed in URIs; drop any scope
+        int scope = host.indexOf( '%' );
+        host = "[" + ( ( scope < 0 ) ? host : host.substring( 0, scope ) ) + "]";
+      }
+      return new URI( scheme + "://" + host + ":" + port );
     } catch ( URISyntaxException ignore ) {}
 
     return null;
@@ -375,12 +368,7 @@ public final class SocketChannel implements Runnable, IChannel {
    * @throws IOException if there is a problem with reading the channel
    */
   public byte[] peek( int i ) throws IOException {
-    input.mark( i );
-
-    byte abyte0[] = StreamUtil.readFully( input, i );
-    input.reset();
-
-    return abyte0;
+    return input.peek( i );
   }
 
 
@@ -393,14 +381,6 @@ public final class SocketChannel implements Runnable, IChannel {
    */
   public void close() throws IOException {
 
-    if ( worker != null ) {
-      try {
-        worker.close();
-      } catch ( Exception exception ) {}
-      finally {}
-
-    }
-
     // Close the input
     try {
       input.close();
@@ -450,7 +430,9 @@ public final class SocketChannel implements Runnable, IChannel {
   /**
    * Create a socket connected to the given URI.
    *
-   * <p>This is the main way we create sockets.</p>
+   * <p>This is the main way we create sockets. If the host has several
+   * addresses, they are raced with a {@link HappyEyeballsConnector} and the
+   * first to answer is used.</p>
    *
    * @param uri
    *
@@ -459,6 +441,52 @@ public final class SocketChannel implements Runnable, IChannel {
    * @throws IOException
    */
   public static Socket createSocket( URI uri ) throws IOException {
+    ISocketFactory isocketfactory = getFactory( uri );
+    InetAddress[] addresses = resolve( uri );
+
+    if ( isocketfactory instanceof coyote.commons.network.socket.ssl.SSLSocketFactory ) {
+      Socket plain = connect( isocketfactory, addresses, uri.getPort(), 0 );
+      try {
+        return isocketfactory.createSocket( plain, uri.getHost(), uri.getPort(), true );
+      } catch ( IOException e ) {
+        plain.close();
+        throw e;
+      }
+    }
+
+    // generate the socket and return it
+    return connect( isocketfactory, addresses, uri.getPort(), 0 );
+  }
+
+
+
+
+  /**
+   * Connect a plain socket to one of the addresses.
+   *
+   * <p>Plain sockets for our own factories are made by a
+   * {@link HappyEyeballsConnector}, which races the addresses when there is
+   * more than one and gives up when the time-out passes; other factories
+   * connect to the first address.</p>
+   *
+   * @param timeout milliseconds the connection may take, 0 for no limit
+   */
+  private static Socket connect( ISocketFactory isocketfactory, InetAddress[] addresses, int port, int timeout ) throws IOException {
+    if ( ( isocketfactory instanceof TCPSocketFactory ) || ( isocketfactory instanceof coyote.commons.network.socket.ssl.SSLSocketFactory ) ) {
+      return new HappyEyeballsConnector( HappyEyeballsConnector.DEFAULT_STAGGER, timeout ).connect( addresses, port );
+    }
+
+    return isocketfactory.createSocket( addresses[0], port );
+  }
+
+
+
+
+  /**
+   * Get the factory for the scheme of the given URI after checking the URI
+   * can be used to create a remote socket.
+   */
+  private static ISocketFactory getFactory( URI uri ) throws IOException {
     // First some sanity checks
     if ( uri == null ) {
       throw new IOException( "Can not create a socket from a null URI" );
@@ -469,19 +497,28 @@ public final class SocketChannel implements Runnable, IChannel {
     }
 
     // Get a factory to create our sockets
-    ISocketFactory isocketfactory = getFactory( uri.getScheme() );
+    ISocketFactory retval = getFactory( uri.getScheme() );
 
-    if ( isocketfactory == null ) {
+    if ( retval == null ) {
       throw new IOException( "No socket factory defined for '" + uri.getScheme() + "'" );
     }
 
-    // sanity check on the address
-    if ( UriUtil.getHostAddress( uri ) == null ) {
+    return retval;
+  }
+
+
+
+
+  /**
+   * Resolve all the addresses of the host of the URI exactly once, through
+   * the shared cache.
+   */
+  private static InetAddress[] resolve( URI uri ) throws IOException {
+    try {
+      return HostResolver.resolve( uri.getHost() );
+    } catch ( UnknownHostException e ) {
       throw new IOException( "Could not resolve host address '" + uri.getHost() + "'" );
     }
-
-    // generate the socket and return it
-    return isocketfactory.createSocket( UriUtil.getHostAddress( uri ), uri.getPort() );
   }
 
 
@@ -490,6 +527,12 @@ public final class SocketChannel implements Runnable, IChannel {
   /**
    * Create a SocketChannel connected to the given URI.
    *
+   * <p>The resolution of the host address, the TCP connect and any TLS
+   * handshake are each timed with {@code System.nanoTime()} and recorded in
+   * the returned channel. Secure sockets are created by connecting a plain
+   * socket first and then layering the secure socket over it so the two
+   * phases can be measured separately.</p>
+   *
    * @param uri
    *
    * @return
@@ -497,17 +540,62 @@ public final class SocketChannel implements Runnable, IChannel {
    * @throws IOException
    */
   public static SocketChannel createSocketChannel( URI uri ) throws IOException {
+    return createSocketChannel( uri, 0 );
+  }
+
+
+
+
+  /**
+   * Create a SocketChannel connected to the given URI, giving up if the TCP
+   * connection is not made within the given time.
+   *
+   * @param uri
+   * @param timeout milliseconds the TCP connect may take across all the
+   *        addresses of the host, 0 for no limit
+   *
+   * @return
+   *
+   * @throws IOException if the connection failed or no address answered in
+   *         time
+   */
+  public static SocketChannel createSocketChannel( URI uri, int timeout ) throws IOException {
+    ISocketFactory isocketfactory = getFactory( uri );
+
     // Mark the time we started opening the socket
     long started = System.currentTimeMillis();
+    long mark = System.nanoTime();
+
+    InetAddress[] addresses = resolve( uri );
+    long resolved = System.nanoTime();
 
     // Open a socket
-    Socket socket = createSocket( uri );
+    Socket socket;
+    Socket plain = null;
+    long connected;
+    long handshake = -1;
+
+    if ( isocketfactory instanceof coyote.commons.network.socket.ssl.SSLSocketFactory ) {
+      // lets the SSL input tell when a whole record has arrived
+      plain = new RecordSocket( connect( isocketfactory, addresses, uri.getPort(), timeout ) );
+      connected = System.nanoTime();
+      try {
+        socket = isocketfactory.createSocket( plain, uri.getHost(), uri.getPort(), true );
+      } catch ( IOException e ) {
+        plain.close();
+        throw e;
+      }
+      handshake = System.nanoTime() - connected;
+    } else {
+      socket = connect( isocketfactory, addresses, uri.getPort(), timeout );
+      connected = System.nanoTime();
+    }
 
     // Mark the time we ended opening the socket;
     long ended = System.currentTimeMillis();
 
     // Create the SocketChannel with the given socket
-    SocketChannel retval = new SocketChannel( socket, uri.getScheme() );
+    SocketChannel retval = new SocketChannel( socket, plain, uri.getScheme() );
 
     // Set the time the connection was established in the return value
     retval.connectedTime = ended;
@@ -515,6 +603,11 @@ public final class SocketChannel implements Runnable, IChannel {
     // Set how long it took to make the connection
     retval.connectionTime = ended - started;
 
+    retval.dnsNanos = resolved - mark;
+    retval.connectNanos = connected - resolved;
+    retval.handshakeNanos = handshake;
+    retval.resumed = ( socket instanceof SSLSocket ) && SSLContextCache.isResumed( (SSLSocket)socket );
+
     // Return the new SocketChannel
     return retval;
   }
@@ -600,6 +693,49 @@ public final class SocketChannel implements Runnable, IChannel {
 
 
 
+  /**
+   * @return nanoseconds spent resolving the peer address, -1 if not measured
+   */
+  public long getDnsNanos() {
+    return dnsNanos;
+  }
+
+
+
+
+  /**
+   * @return nanoseconds spent establishing the TCP connection, -1 if not
+   *         measured
+   */
+  public long getConnectNanos() {
+    return connectNanos;
+  }
+
+
+
+
+  /**
+   * @return nanoseconds spent in the TLS handshake, -1 if the connection is
+   *         not encrypted
+   */
+  public long getHandshakeNanos() {
+    return handshakeNanos;
+  }
+
+
+
+
+  /**
+   * @return true if the TLS handshake resumed a cached session, false if it
+   *         negotiated a new one or the connection is not encrypted
+   */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+
+
+
   /**
    * Handle the socket by asking the server that created us to pass us to it's
    * IChannelSink.
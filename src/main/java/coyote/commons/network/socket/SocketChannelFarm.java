@@ -1,19 +1,33 @@
 /*
  * Copyright (c) 2003 Stephan D. Cote' - All rights reserved.
- * 
- * This program and the accompanying materials are made available under the 
- * terms of the MIT License which accompanies this distribution, and is 
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
  * available at http://creativecommons.org/licenses/MIT/
  *
  * Contributors:
- *   Stephan D. Cote 
+ *   Stephan D. Cote
  *      - Initial concept and initial implementation
  */
 package coyote.commons.network.socket;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import coyote.loader.thread.ThreadPool;
+import coyote.commons.network.HostResolver;
+import coyote.commons.network.IResolverListener;
+import coyote.loader.log.Log;
 
 
 /**
@@ -28,40 +42,50 @@ import coyote.loader.thread.ThreadPool;
  * the sub thread to finish blocking on the Socket connection until it exists
  * and that in itself is anoying.<p>
  *
- * <p>That is why this class was created. It creates a threadpool of socket
- * &quot;farmers&quot; that grow sockets. If the caller decides that the
- * connection process is taking too long, it can bail-out, and let the farmer
- * complete it's connection cycle and exit without causing the caller to wait.
- * This allows for really snappy response times when all a caller needs to do
- * is check to see if a connection is available within a short time out. If
- * not, then the caller can try another address:port or URI combination.<p>
+ * <p>That is why this class was created. It hands out socket
+ * &quot;farmers&quot; which are the pending results of connections. All the
+ * connections are started without blocking and tended by a single selector
+ * thread, so any number of connections can be in progress without a thread for
+ * each. Every connection has a deadline; the field is worked in deadline order
+ * and a connection which is not established by its deadline has its socket
+ * closed and its farmer failed. If the caller decides that the connection
+ * process is taking too long, it can bail-out and the socket is closed right
+ * away. This allows for really snappy response times when all a caller needs
+ * to do is check to see if a connection is available within a short time out.
+ * If not, then the caller can try another address:port or URI
+ * combination.<p>
  *
  * <p>Why SocketChannelFarm and not SocketChannelFactory? Well, I got tired of
  * all the factories being built and thought the world would be better for
  * having a few more farms and a few less factories.</p>
  */
-public class SocketChannelFarm {
+public class SocketChannelFarm implements Runnable {
 
-  /** The field where we grow our SocketChannels */
-  private ThreadPool field = null;
+  /** Farmers waiting to have their connections started */
+  private final ConcurrentLinkedQueue<SocketChannelFarmer> planted = new ConcurrentLinkedQueue<SocketChannelFarmer>();
 
-  /** The default maximum number (64) of farm workers to have in our field */
-  private static final int DEFAULT_MAX_WORKERS = 64;
+  /**
+   * Connections in progress, the one with the nearest deadline first; those
+   * which finish early are left in place and skipped when they reach the head
+   */
+  private final PriorityQueue<SocketChannelFarmer> deadlines = new PriorityQueue<SocketChannelFarmer>( 16, new Comparator<SocketChannelFarmer>() {
+    public int compare( SocketChannelFarmer a, SocketChannelFarmer b ) {
+      return ( a.deadline < b.deadline ) ? -1 : ( ( a.deadline == b.deadline ) ? 0 : 1 );
+    }
+  } );
 
-  /** The default minimum number (2) of farm workers to have in our field */
-  private static final int DEFAULT_MIN_WORKERS = 2;
+  /** Connections established but still waiting to leave the selector */
+  private final List<SocketChannelFarmer> harvest = new ArrayList<SocketChannelFarmer>();
 
-  /** The maximum number of workers to have running at one time */
-  private int max = DEFAULT_MAX_WORKERS;
+  /** The field where we grow our SocketChannels */
+  private volatile Selector field = null;
 
-  /** The minimum number of workers to have running at one time */
-  private int min = DEFAULT_MIN_WORKERS;
+  private Thread thread = null;
 
-  /**
-   * The number of milliseconds the threadworkers will block waiting for a job
-   * before exiting
-   */
-  private int DEFAULT_SHRINK_TIME = 60000;
+  private volatile boolean shutdown = false;
+
+  /** Milliseconds a connection may take when the caller does not say */
+  private volatile long timeout = SocketChannelFarmer.DEFAULT_TIMEOUT;
 
 
 
@@ -69,9 +93,7 @@ public class SocketChannelFarm {
   /**
    * Constructor SocketChannelFarm
    */
-  public SocketChannelFarm() {
-    this( DEFAULT_MAX_WORKERS, DEFAULT_MIN_WORKERS );
-  }
+  public SocketChannelFarm() {}
 
 
 
@@ -81,27 +103,36 @@ public class SocketChannelFarm {
    *
    * @param max
    * @param min
+   *
+   * @deprecated the farm no longer uses worker threads, all connections are
+   *             made by a single selector thread
    */
+  @Deprecated
   public SocketChannelFarm( int max, int min ) {
-    this.max = max;
-    this.min = min;
-
-    initThreadPool();
+    this();
   }
 
 
 
 
   /**
-   * Setup the field, or threadpool, in which the farmers will work.
+   * @param millis the number of milliseconds a connection may take when no
+   *        time-out is given to {@link #getFarmer(URI, long)}, 0 waits for the
+   *        OS to give up
    */
-  private void initThreadPool() {
-    // Setup our thread pool
-    field = new ThreadPool( "SocketChannelFarm" );
+  public void setTimeout( long millis ) {
+    timeout = millis;
+  }
+
+
 
-    field.setMaxThreadCount( max );
-    field.setMinThreadCount( min );
-    field.setJobWaitTime( DEFAULT_SHRINK_TIME );
+
+  /**
+   * @return the number of milliseconds a connection may take when no
+   *         time-out is given
+   */
+  public long getTimeout() {
+    return timeout;
   }
 
 
@@ -120,9 +151,54 @@ public class SocketChannelFarm {
    * @return A SocketChannelFarmer that is already hard at work growing a
    *         SocketChannel to the given URI.
    */
-  public synchronized SocketChannelFarmer getFarmer( URI uri ) {
-    SocketChannelFarmer farmer = new SocketChannelFarmer( uri );
-    field.run( (Runnable)farmer );
+  public SocketChannelFarmer getFarmer( URI uri ) {
+    return getFarmer( uri, timeout );
+  }
+
+
+
+
+  /**
+   * Create a new SocketChannelFarmer that will start "growing" a SocketChannel
+   * to the given URI in the field, abandoning it if it is not connected within
+   * the given time.
+   *
+   * <p>The host is resolved through the shared {@link HostResolver}; the
+   * connection is started as soon as the address is known without the caller
+   * or the selector thread waiting on the name service.</p>
+   *
+   * @param uri The URI representing the service to which the farmer is to
+   *          connect.
+   * @param millis the number of milliseconds the connection may take, 0 waits
+   *          for the OS to give up
+   *
+   * @return A SocketChannelFarmer that is already hard at work growing a
+   *         SocketChannel to the given URI.
+   */
+  public SocketChannelFarmer getFarmer( URI uri, long millis ) {
+    final SocketChannelFarmer farmer = new SocketChannelFarmer( uri, millis );
+
+    try {
+      start();
+    } catch ( IOException e ) {
+      farmer.fail( e );
+      return farmer;
+    }
+
+    HostResolver.resolve( farmer.getHost(), new IResolverListener() {
+      public void onResolved( String host, InetAddress[] addresses ) {
+        farmer.address = new InetSocketAddress( addresses[0], farmer.getPort() );
+        planted.add( farmer );
+        field.wakeup();
+      }
+
+
+
+
+      public void onFailure( String host, UnknownHostException error ) {
+        farmer.fail( error );
+      }
+    } );
 
     return farmer;
   }
@@ -130,10 +206,207 @@ public class SocketChannelFarm {
 
 
 
+  /**
+   * Open the selector and start the thread which tends the field.
+   */
+  private synchronized void start() throws IOException {
+    if ( shutdown ) {
+      throw new IOException( "SocketChannelFarm has been shut down" );
+    }
+
+    if ( thread == null ) {
+      field = Selector.open();
+      thread = new Thread( this, "SocketChannelFarm" );
+      thread.setDaemon( true );
+      thread.start();
+    }
+  }
+
+
+
+
+  /**
+   * Tend the field; start planted connections, finish those which are ready
+   * and close those past their deadline.
+   */
+  public void run() {
+    while ( !shutdown ) {
+      try {
+        plant();
+
+        long wait = reap();
+
+        // sockets leave the selector only on the next select, do not block
+        if ( harvest.size() > 0 ) {
+          field.selectNow();
+        } else {
+          field.select( wait );
+        }
+
+        gather();
+
+        for ( Iterator<SelectionKey> it = field.selectedKeys().iterator(); it.hasNext(); ) {
+          SelectionKey key = it.next();
+          it.remove();
+          finish( key );
+        }
+      } catch ( IOException e ) {
+        Log.error( "SocketChannelFarm failure: " + e.getMessage() );
+      }
+    }
+
+    // abandon any connections still growing
+    IOException xcptn = new IOException( "SocketChannelFarm has been shut down" );
+    SocketChannelFarmer farmer;
+    while ( ( farmer = planted.poll() ) != null ) {
+      farmer.fail( xcptn );
+    }
+    harvest.clear();
+    while ( ( farmer = deadlines.poll() ) != null ) {
+      abandon( farmer, xcptn );
+    }
+    try {
+      field.close();
+    } catch ( IOException ignore ) {}
+  }
+
+
+
+
+  /**
+   * Start the non-blocking connections of all the planted farmers.
+   */
+  private void plant() {
+    SocketChannelFarmer farmer;
+    while ( ( farmer = planted.poll() ) != null ) {
+      if ( farmer.isDone() ) {
+        continue; // caller already gave up
+      }
+
+      java.nio.channels.SocketChannel nio = null;
+      try {
+        nio = java.nio.channels.SocketChannel.open();
+        nio.configureBlocking( false );
+        farmer.pending = nio;
+        farmer.started = System.currentTimeMillis();
+        if ( farmer.timeout > 0 ) {
+          farmer.deadline = farmer.started + farmer.timeout;
+        }
+
+        if ( nio.connect( farmer.address ) ) {
+          // local connections may complete immediately
+          farmer.pending = null;
+          nio.configureBlocking( true );
+          farmer.complete( nio.socket() );
+        } else {
+          deadlines.add( farmer );
+          nio.register( field, SelectionKey.OP_CONNECT, farmer );
+        }
+      } catch ( IOException e ) {
+        abandon( farmer, e );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Close the sockets of all the connections past their deadlines.
+   *
+   * @return milliseconds until the next deadline, 0 if there is none
+   */
+  private long reap() {
+    long now = System.currentTimeMillis();
+    SocketChannelFarmer farmer;
+    while ( ( farmer = deadlines.peek() ) != null ) {
+      if ( ( farmer.pending == null ) || farmer.connected ) {
+        // finished before its deadline
+        deadlines.poll();
+      } else if ( farmer.deadline <= now ) {
+        deadlines.poll();
+        abandon( farmer, farmer.timedOut() );
+      } else {
+        long wait = farmer.deadline - now;
+        return ( wait > Integer.MAX_VALUE ) ? 0 : wait;
+      }
+    }
+    return 0;
+  }
+
+
+
+
+  /**
+   * Complete the connections which have left the selector, handing their
+   * sockets to their farmers in blocking mode.
+   */
+  private void gather() {
+    for ( int x = 0; x < harvest.size(); x++ ) {
+      SocketChannelFarmer farmer = harvest.get( x );
+      java.nio.channels.SocketChannel nio = farmer.pending;
+      if ( nio == null ) {
+        continue;
+      }
+      try {
+        nio.configureBlocking( true );
+        farmer.pending = null;
+        farmer.complete( nio.socket() );
+      } catch ( IOException e ) {
+        abandon( farmer, e );
+      }
+    }
+    harvest.clear();
+  }
+
+
+
+
+  /**
+   * Finish the connection of a socket the selector reports as connectable.
+   */
+  private void finish( SelectionKey key ) {
+    SocketChannelFarmer farmer = (SocketChannelFarmer)key.attachment();
+    java.nio.channels.SocketChannel nio = (java.nio.channels.SocketChannel)key.channel();
+    try {
+      if ( key.isValid() && nio.finishConnect() ) {
+        key.cancel();
+        farmer.connected = true;
+        harvest.add( farmer );
+      }
+    } catch ( IOException e ) {
+      key.cancel();
+      abandon( farmer, e );
+    }
+  }
+
+
+
+
+  /**
+   * Close the socket of the farmer and fail it with the given reason.
+   */
+  private void abandon( SocketChannelFarmer farmer, IOException reason ) {
+    java.nio.channels.SocketChannel nio = farmer.pending;
+    farmer.pending = null;
+    if ( nio != null ) {
+      try {
+        nio.close();
+      } catch ( IOException ignore ) {}
+    }
+    farmer.fail( reason );
+  }
+
+
+
+
   /**
    * Method shutdown
    */
   public void shutdown() {
-    field.stop();
+    shutdown = true;
+    if ( field != null ) {
+      field.wakeup();
+    }
   }
-}
\ No newline at end of file
+}
@@ -1,31 +1,51 @@
 /*
  * Copyright (c) 2003 Stephan D. Cote' - All rights reserved.
- * 
- * This program and the accompanying materials are made available under the 
- * terms of the MIT License which accompanies this distribution, and is 
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
  * available at http://creativecommons.org/licenses/MIT/
  *
  * Contributors:
- *   Stephan D. Cote 
+ *   Stephan D. Cote
  *      - Initial concept and initial implementation
  */
 package coyote.commons.network.socket;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import coyote.commons.UriUtil;
+import coyote.commons.network.HostResolver;
 import coyote.loader.log.Log;
 
 
 /**
  * Represents an entity that does all the work of creating SocketChannels in a
  * way that allows the caller to time-out if a connection can not be made.
+ *
+ * <p>A farmer is the pending result of a connection. Farmers obtained from a
+ * {@link SocketChannelFarm} are connected without blocking by the farm's
+ * selector thread; a farmer can also be run in a thread of its own, in which
+ * case it connects with a blocking connect bounded by its timeout. Either
+ * way, a connection which does not complete by the deadline is closed and the
+ * farmer fails with a {@code SocketTimeoutException}.</p>
  */
-public class SocketChannelFarmer implements Runnable {
+public class SocketChannelFarmer implements Runnable, Future<SocketChannel> {
+
+  /** The default number of milliseconds (30000) a connection may take */
+  public static final long DEFAULT_TIMEOUT = 30000;
 
   /** Socket connection to remote host */
   private volatile SocketChannel channel = null;
@@ -45,8 +65,27 @@ public class SocketChannelFarmer implements Runnable {
   /** IOException in the event a connection error occurs */
   private volatile IOException xcptn = null;
 
-  /** Polling delay for socket checks (in milliseconds) */
-  private static final int POLL_DELAY = 250;
+  private volatile boolean cancelled = false;
+
+  private final CountDownLatch latch = new CountDownLatch( 1 );
+
+  /** Milliseconds the connection may take, 0 waits for the OS to give up */
+  final long timeout;
+
+  /** Epoch time in milliseconds after which the connection is abandoned */
+  long deadline = Long.MAX_VALUE;
+
+  /** Epoch time in milliseconds the connection was started */
+  long started = 0;
+
+  /** The resolved address to which we connect */
+  InetSocketAddress address = null;
+
+  /** The non-blocking channel being connected by a farm */
+  volatile java.nio.channels.SocketChannel pending = null;
+
+  /** Set by the farm once the pending channel has connected */
+  boolean connected = false;
 
 
 
@@ -57,9 +96,24 @@ public class SocketChannelFarmer implements Runnable {
    * @param uri
    */
   public SocketChannelFarmer( URI uri ) {
+    this( uri, DEFAULT_TIMEOUT );
+  }
+
+
+
+
+  /**
+   * Create a farmer which abandons the connection after the given time.
+   *
+   * @param uri the service to which we connect
+   * @param timeout milliseconds the connection may take, 0 waits for the OS
+   *        to give up
+   */
+  public SocketChannelFarmer( URI uri, long timeout ) {
     protocol = uri.getScheme();
     host = uri.getHost();
     port = uri.getPort();
+    this.timeout = ( timeout < 0 ) ? 0 : timeout;
 
     if ( ( host == null ) || ( host.length() == 0 ) ) {
       throw new IllegalArgumentException( "No host defined in URI" );
@@ -85,6 +139,7 @@ public class SocketChannelFarmer implements Runnable {
 
 
   /**
+   * Resolve the given name through the shared {@link HostResolver} cache.
    *
    * @param address
    *
@@ -92,7 +147,7 @@ public class SocketChannelFarmer implements Runnable {
    */
   public static InetAddress resolveAddress( String address ) {
     try {
-      return InetAddress.getByName( address );
+      return HostResolver.getAddress( address );
     } catch ( UnknownHostException e ) {
       // System.err.println( "NetUtil.resolveAddress(String) Could not resolve \"" + address + "\":\n" );
     }
@@ -103,33 +158,65 @@ public class SocketChannelFarmer implements Runnable {
 
 
   /**
-   * Method run
+   * @return the address and port to which we connect
+   *
+   * @throws UnknownHostException if the host could not be resolved
+   */
+  InetSocketAddress getAddress() throws UnknownHostException {
+    InetAddress addr = resolveAddress( host );
+
+    // make sure we have an address
+    if ( addr == null ) {
+      throw new UnknownHostException( "Could not resolve host '" + host + "'" );
+    }
+
+    return new InetSocketAddress( addr, port );
+  }
+
+
+
+
+  /**
+   * Connect in the current thread, blocking no longer than our timeout.
    */
   public void run() {
-    SocketChannel conn = null;
+    Socket socket = new Socket();
 
     try {
-      // We do this ourselves so the connection time reflects only the actual
-      // socket connection time and not all the URI parsing, factory lookup and
-      // DNS activities which usually takes 20ms by themselves.
-      InetAddress addr = resolveAddress( host );
+      // We resolve first so the connection time reflects only the actual
+      // socket connection time and not the DNS activities which usually takes
+      // 20ms by themselves.
+      if ( address == null ) {
+        address = getAddress();
+      }
 
       // Mark the time we started opening the socket
-      long started = System.currentTimeMillis();
+      started = System.currentTimeMillis();
+
+      socket.connect( address, (int)Math.min( timeout, Integer.MAX_VALUE ) );
+
+      complete( socket );
+    } catch ( IOException ioe ) {
+      try {
+        socket.close();
+      } catch ( IOException ignore ) {}
+      fail( ioe );
+    }
+  }
+
 
-      // make sure we have an address
-      if ( addr == null ) {
-        Log.error( "IP address for '" + host + "' was NULL: could not resolve host" );
-      }
 
-      // Open a socket - Here is where we block for whatever length of time!
-      Socket socket = new Socket( addr, port );
 
-      // Mark the time we ended opening the socket;
-      long ended = System.currentTimeMillis();
+  /**
+   * Wrap the newly connected socket in a channel and release any waiters.
+   */
+  void complete( Socket socket ) {
+    // Mark the time we ended opening the socket;
+    long ended = System.currentTimeMillis();
 
+    try {
       // Create the SocketChannel with the given socket and protocol scheme
-      conn = new SocketChannel( socket, protocol );
+      SocketChannel conn = new SocketChannel( socket, protocol );
 
       // Set the time the connection was established in the return value
       conn.connectedTime = ended;
@@ -137,14 +224,119 @@ public class SocketChannelFarmer implements Runnable {
       // Set how long it took to make the connection
       conn.connectionTime = ended - started;
 
-      // Assign the fruits of our labor to the object attribute
-      channel = conn;
+      synchronized( latch ) {
+        if ( isDone() ) {
+          // the caller gave up on us
+          conn.close();
+          return;
+        }
+
+        // Assign the fruits of our labor to the object attribute
+        channel = conn;
+        latch.countDown();
+      }
     } catch ( IOException ioe ) {
-      // Assign to our exception object attribute
-      xcptn = ioe;
+      fail( ioe );
+    }
+  }
+
+
+
+
+  /**
+   * Record the reason no connection could be made and release any waiters.
+   */
+  void fail( IOException ioe ) {
+    synchronized( latch ) {
+      if ( !isDone() ) {
+        xcptn = ioe;
+        latch.countDown();
+      }
     }
+  }
+
+
+
 
-    // Whew! We are done
+  /**
+   * Abandon the connection, closing the socket if it is still connecting.
+   *
+   * @see java.util.concurrent.Future#cancel(boolean)
+   */
+  public boolean cancel( boolean mayInterruptIfRunning ) {
+    synchronized( latch ) {
+      if ( isDone() ) {
+        return false;
+      }
+      cancelled = true;
+      latch.countDown();
+    }
+
+    java.nio.channels.SocketChannel nio = pending;
+    pending = null;
+    if ( nio != null ) {
+      try {
+        nio.close();
+      } catch ( IOException ignore ) {}
+    }
+    return true;
+  }
+
+
+
+
+  /**
+   * @see java.util.concurrent.Future#isCancelled()
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+
+
+
+  /**
+   * @see java.util.concurrent.Future#isDone()
+   */
+  public boolean isDone() {
+    return latch.getCount() == 0;
+  }
+
+
+
+
+  /**
+   * @see java.util.concurrent.Future#get()
+   */
+  public SocketChannel get() throws InterruptedException, ExecutionException {
+    latch.await();
+    return result();
+  }
+
+
+
+
+  /**
+   * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+   */
+  public SocketChannel get( long wait, TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException {
+    if ( !latch.await( wait, unit ) ) {
+      throw new TimeoutException( "No connection to " + host + ":" + port + " within " + wait + " " + unit );
+    }
+    return result();
+  }
+
+
+
+
+  private SocketChannel result() throws ExecutionException {
+    if ( cancelled ) {
+      throw new CancellationException();
+    }
+    if ( xcptn != null ) {
+      throw new ExecutionException( xcptn );
+    }
+    return channel;
   }
 
 
@@ -156,11 +348,7 @@ public class SocketChannelFarmer implements Runnable {
    * @return
    */
   public boolean isConnected() {
-    if ( channel == null ) {
-      return false;
-    } else {
-      return true;
-    }
+    return channel != null;
   }
 
 
@@ -172,11 +360,7 @@ public class SocketChannelFarmer implements Runnable {
    * @return
    */
   public boolean isError() {
-    if ( xcptn == null ) {
-      return false;
-    } else {
-      return true;
-    }
+    return xcptn != null;
   }
 
 
@@ -185,75 +369,78 @@ public class SocketChannelFarmer implements Runnable {
   /**
    * Get a SocketChannel
    *
-   * @param timeout
+   * <p>If no connection is made within the time-out period the connection
+   * attempt is abandoned and its socket closed.</p>
+   *
+   * @param timeout milliseconds to wait, less than 1 waits until the
+   *        connection completes or fails
    *
    * @return the SocketChannel if a connection could be made within the time-out
    *         period, null if there is no connection in that time
    *
-   * @throws IOException
+   * @throws IOException if the connection failed
    */
   public SocketChannel getSocketChannel( long timeout ) throws IOException {
-    // Allows the option to wait practically forever!
-    if ( timeout < 1 ) {
-      timeout = Long.MAX_VALUE;
+    try {
+      if ( timeout < 1 ) {
+        latch.await();
+      } else if ( !latch.await( timeout, TimeUnit.MILLISECONDS ) ) {
+        Log.debug( "Abandoning connection to " + host + ":" + port + " after " + timeout + "ms" );
+        cancel( true );
+      }
+    } catch ( InterruptedException ie ) {
+      cancel( true );
+      throw new InterruptedIOException( "Interrupted waiting for connection to " + host + ":" + port );
     }
 
-    long timer = 0;
-
-    // continually check until we time-out
-    for ( ;; ) {
-      // Check to see if a connection is established
-      if ( isConnected() ) {
-        return getSocketChannel();
-      } else {
-        // Check to see if an error occurred
-        if ( isError() ) {
-          // No connection could be established
-          throw ( getException() );
-        }
-
-        try {
-          // Sleep for a short period of time
-          Thread.sleep( POLL_DELAY );
-        } catch ( InterruptedException ie ) {
-          // ignore normal interrutption
-        }
-
-        // Increment timer
-        timer += POLL_DELAY;
-
-        // Check to see if time limit exceeded
-        if ( timer > timeout ) {
-          return null;
-        }
-      }
+    if ( isError() ) {
+      // No connection could be established
+      throw ( getException() );
     }
 
+    return channel;
   }
 
 
 
 
   /**
-   * Method getSocketChannel
+   * Get exception
    *
    * @return
    */
-  private SocketChannel getSocketChannel() {
-    synchronized( channel ) {
-      return channel;
-    }
+  public IOException getException() {
+    return xcptn;
   }
 
 
 
 
   /**
-   * Get exception
-   *
-   * @return
+   * @return the name of the host to which we connect
    */
-  public IOException getException() {
-    return xcptn;
+  String getHost() {
+    return host;
+  }
+
+
+
+
+  /**
+   * @return the port to which we connect
+   */
+  int getPort() {
+    return port;
   }
-}
\ No newline at end of file
+
+
+
+
+  /**
+   * @return an exception describing a connection which took too long
+   */
+  SocketTimeoutException timedOut() {
+    return new SocketTimeoutException( "Connection to " + host + ":" + port + " timed out after " + timeout + "ms" );
+  }
+
+}
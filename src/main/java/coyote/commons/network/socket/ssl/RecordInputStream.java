@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.socket.ssl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+
+/**
+ * The encrypted input of an SSL socket, as read by the SSL socket from the
+ * transport socket beneath it.
+ *
+ * <p>Encrypted data which has arrived is buffered here so the TLS record
+ * headers can be examined without taking anything from the SSL socket.
+ * {@link #hasRecord()} tells if a whole record is waiting, which is the only
+ * time it is safe to let the SSL socket decrypt without waiting on the
+ * network. While polling, a read which would block fails with a
+ * {@code SocketTimeoutException} instead, which the SSL socket treats as a
+ * time-out and leaves the connection usable.</p>
+ */
+final class RecordInputStream extends InputStream {
+
+  /** The bytes in a TLS record header: type, version and length */
+  private static final int HEADER_SIZE = 5;
+
+  /** The largest TLS record: the header and 2^14 bytes plus expansion */
+  private static final int MAX_RECORD = HEADER_SIZE + 16 * 1024 + 2048;
+
+  private final InputStream input;
+
+  private final byte[] buffer = new byte[MAX_RECORD];
+  private int position = 0;
+  private int count = 0;
+
+  private volatile boolean eof = false;
+
+  /** True while reads must not block */
+  private boolean polling = false;
+
+
+
+
+  /**
+   * @param input the input of the transport socket
+   */
+  RecordInputStream( InputStream input ) {
+    this.input = input;
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#read()
+   */
+  @Override
+  public int read() throws IOException {
+    byte[] data = new byte[1];
+    int retval = read( data, 0, 1 );
+    return ( retval < 0 ) ? -1 : data[0] & 0xFF;
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#read(byte[], int, int)
+   */
+  @Override
+  public synchronized int read( byte[] data, int offset, int length ) throws IOException {
+    if ( length == 0 ) {
+      return 0;
+    }
+
+    int buffered = count - position;
+    if ( buffered > 0 ) {
+      int retval = Math.min( buffered, length );
+      System.arraycopy( buffer, position, data, offset, retval );
+      position += retval;
+      return retval;
+    }
+
+    if ( eof ) {
+      return -1;
+    }
+
+    if ( polling ) {
+      int waiting = input.available();
+      if ( waiting < 1 ) {
+        throw new SocketTimeoutException( "No more encrypted data has arrived" );
+      }
+      length = Math.min( length, waiting );
+    }
+
+    int retval = input.read( data, offset, length );
+    if ( retval < 0 ) {
+      eof = true;
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#available()
+   */
+  @Override
+  public synchronized int available() throws IOException {
+    return ( count - position ) + ( eof ? 0 : input.available() );
+  }
+
+
+
+
+  /**
+   * Buffer whatever encrypted data has arrived, without blocking, and check
+   * if it holds a whole TLS record.
+   *
+   * @return true if the next record can be read without blocking
+   */
+  synchronized boolean hasRecord() throws IOException {
+    if ( position > 0 ) {
+      System.arraycopy( buffer, position, buffer, 0, count - position );
+      count -= position;
+      position = 0;
+    }
+
+    int waiting = eof ? 0 : input.available();
+    while ( ( waiting > 0 ) && ( count < buffer.length ) ) {
+      int read = input.read( buffer, count, Math.min( waiting, buffer.length - count ) );
+      if ( read < 0 ) {
+        eof = true;
+        break;
+      }
+      count += read;
+      waiting -= read;
+    }
+
+    if ( count < HEADER_SIZE ) {
+      return false;
+    }
+    int length = ( ( buffer[3] & 0xFF ) << 8 ) | ( buffer[4] & 0xFF );
+    return count >= ( HEADER_SIZE + length );
+  }
+
+
+
+
+  /**
+   * @param flag true to fail reads which would block, false to let them
+   *        block again
+   */
+  synchronized void setPolling( boolean flag ) {
+    polling = flag;
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#close()
+   */
+  @Override
+  public void close() throws IOException {
+    eof = true;
+    input.close();
+  }
+
+}
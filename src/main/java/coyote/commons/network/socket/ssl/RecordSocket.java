@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.socket.ssl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * A connected transport socket for an SSL socket to be layered over.
+ *
+ * <p>Everything is passed to the wrapped socket except its input, which is
+ * read through a {@link RecordInputStream} so an {@link SSLInputStream} can
+ * tell when a whole TLS record has arrived without blocking.</p>
+ */
+public final class RecordSocket extends Socket {
+
+  private final Socket socket;
+
+  private RecordInputStream input = null;
+
+
+
+
+  /**
+   * @param socket the connected socket to wrap
+   */
+  public RecordSocket( Socket socket ) {
+    this.socket = socket;
+  }
+
+
+
+
+  /**
+   * @return the stream of encrypted data read by the SSL socket
+   */
+  synchronized RecordInputStream getRecordStream() throws IOException {
+    if ( input == null ) {
+      input = new RecordInputStream( socket.getInputStream() );
+    }
+    return input;
+  }
+
+
+
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return getRecordStream();
+  }
+
+
+
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    return socket.getOutputStream();
+  }
+
+
+
+
+  @Override
+  public void connect( SocketAddress endpoint ) throws IOException {
+    socket.connect( endpoint );
+  }
+
+
+
+
+  @Override
+  public void connect( SocketAddress endpoint, int timeout ) throws IOException {
+    socket.connect( endpoint, timeout );
+  }
+
+
+
+
+  @Override
+  public void bind( SocketAddress bindpoint ) throws IOException {
+    socket.bind( bindpoint );
+  }
+
+
+
+
+  @Override
+  public InetAddress getInetAddress() {
+    return socket.getInetAddress();
+  }
+
+
+
+
+  @Override
+  public InetAddress getLocalAddress() {
+    return socket.getLocalAddress();
+  }
+
+
+
+
+  @Override
+  public int getPort() {
+    return socket.getPort();
+  }
+
+
+
+
+  @Override
+  public int getLocalPort() {
+    return socket.getLocalPort();
+  }
+
+
+
+
+  @Override
+  public SocketAddress getRemoteSocketAddress() {
+    return socket.getRemoteSocketAddress();
+  }
+
+
+
+
+  @Override
+  public SocketAddress getLocalSocketAddress() {
+    return socket.getLocalSocketAddress();
+  }
+
+
+
+
+  /**
+   * @return null, the input must be read through this socket's stream
+   */
+  @Override
+  public SocketChannel getChannel() {
+    return null;
+  }
+
+
+
+
+  @Override
+  public void setTcpNoDelay( boolean on ) throws SocketException {
+    socket.setTcpNoDelay( on );
+  }
+
+
+
+
+  @Override
+  public boolean getTcpNoDelay() throws SocketException {
+    return socket.getTcpNoDelay();
+  }
+
+
+
+
+  @Override
+  public void setSoLinger( boolean on, int linger ) throws SocketException {
+    socket.setSoLinger( on, linger );
+  }
+
+
+
+
+  @Override
+  public int getSoLinger() throws SocketException {
+    return socket.getSoLinger();
+  }
+
+
+
+
+  @Override
+  public void sendUrgentData( int data ) throws IOException {
+    socket.sendUrgentData( data );
+  }
+
+
+
+
+  @Override
+  public void setOOBInline( boolean on ) throws SocketException {
+    socket.setOOBInline( on );
+  }
+
+
+
+
+  @Override
+  public boolean getOOBInline() throws SocketException {
+    return socket.getOOBInline();
+  }
+
+
+
+
+  @Override
+  public synchronized void setSoTimeout( int timeout ) throws SocketException {
+    socket.setSoTimeout( timeout );
+  }
+
+
+
+
+  @Override
+  public synchronized int getSoTimeout() throws SocketException {
+    return socket.getSoTimeout();
+  }
+
+
+
+
+  @Override
+  public synchronized void setSendBufferSize( int size ) throws SocketException {
+    socket.setSendBufferSize( size );
+  }
+
+
+
+
+  @Override
+  public synchronized int getSendBufferSize() throws SocketException {
+    return socket.getSendBufferSize();
+  }
+
+
+
+
+  @Override
+  public synchronized void setReceiveBufferSize( int size ) throws SocketException {
+    socket.setReceiveBufferSize( size );
+  }
+
+
+
+
+  @Override
+  public synchronized int getReceiveBufferSize() throws SocketException {
+    return socket.getReceiveBufferSize();
+  }
+
+
+
+
+  @Override
+  public void setKeepAlive( boolean on ) throws SocketException {
+    socket.setKeepAlive( on );
+  }
+
+
+
+
+  @Override
+  public boolean getKeepAlive() throws SocketException {
+    return socket.getKeepAlive();
+  }
+
+
+
+
+  @Override
+  public void setTrafficClass( int tc ) throws SocketException {
+    socket.setTrafficClass( tc );
+  }
+
+
+
+
+  @Override
+  public int getTrafficClass() throws SocketException {
+    return socket.getTrafficClass();
+  }
+
+
+
+
+  @Override
+  public void setReuseAddress( boolean on ) throws SocketException {
+    socket.setReuseAddress( on );
+  }
+
+
+
+
+  @Override
+  public boolean getReuseAddress() throws SocketException {
+    return socket.getReuseAddress();
+  }
+
+
+
+
+  @Override
+  public synchronized void close() throws IOException {
+    socket.close();
+  }
+
+
+
+
+  @Override
+  public void shutdownInput() throws IOException {
+    socket.shutdownInput();
+  }
+
+
+
+
+  @Override
+  public void shutdownOutput() throws IOException {
+    socket.shutdownOutput();
+  }
+
+
+
+
+  @Override
+  public boolean isConnected() {
+    return socket.isConnected();
+  }
+
+
+
+
+  @Override
+  public boolean isBound() {
+    return socket.isBound();
+  }
+
+
+
+
+  @Override
+  public boolean isClosed() {
+    return socket.isClosed();
+  }
+
+
+
+
+  @Override
+  public boolean isInputShutdown() {
+    return socket.isInputShutdown();
+  }
+
+
+
+
+  @Override
+  public boolean isOutputShutdown() {
+    return socket.isOutputShutdown();
+  }
+
+
+
+
+  @Override
+  public void setPerformancePreferences( int connectionTime, int latency, int bandwidth ) {
+    socket.setPerformancePreferences( connectionTime, latency, bandwidth );
+  }
+
+
+
+
+  @Override
+  public String toString() {
+    return socket.toString();
+  }
+
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.socket.ssl;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import coyote.loader.log.Log;
+
+
+/**
+ * A cache of SSL contexts shared by all the SSL socket factories in the VM.
+ *
+ * <p>Creating an {@code SSLContext} means reading the key and trust stores
+ * from disk and, more importantly, each context has its own session cache. By
+ * sharing one context for each combination of truststore and keystore, a
+ * session negotiated with a host is available to every later connection to
+ * that host and port, allowing the abbreviated (resumed) handshake which skips
+ * most of the asymmetric cryptography.</p>
+ *
+ * <p>The number of handshakes and how many of them resumed a cached session
+ * are counted so resumption can be confirmed. A handshake resumed if its
+ * session has the identifier of the last session with the same peer, as in
+ * TLS 1.2, or a new identifier but the creation time of that session, as a
+ * TLS 1.3 session resumed from a ticket does.</p>
+ */
+public final class SSLContextCache {
+
+  static final String DEFAULT_PASSWORD = "changeit";
+
+  static final String PROTOCOL = "TLS";
+
+  static final String STORE_TYPE = "JKS";
+
+  /** Contexts keyed by truststore and keystore */
+  private static final ConcurrentHashMap<String, SSLContext> contexts = new ConcurrentHashMap<String, SSLContext>();
+
+  /** The number of client sessions each context caches, 0 means no limit */
+  private static volatile int sessionCacheSize = -1;
+
+  /** The number of seconds a cached client session may be resumed */
+  private static volatile int sessionTimeout = -1;
+
+  private static final AtomicLong handshakes = new AtomicLong();
+
+  private static final AtomicLong resumptions = new AtomicLong();
+
+  /** The most peers whose last session is remembered */
+  private static final int MAX_PEERS = 4096;
+
+  /** The last session negotiated with each peer, by host and port */
+  private static final Map<String, Session> peers = Collections.synchronizedMap( new LinkedHashMap<String, Session>( 16, 0.75F, true ) {
+    private static final long serialVersionUID = 1L;
+
+
+
+
+    @Override
+    protected boolean removeEldestEntry( Map.Entry<String, Session> eldest ) {
+      return size() > MAX_PEERS;
+    }
+  } );
+
+  /** Whether the handshake of each socket resumed a session */
+  private static final Map<SSLSocket, Boolean> resumed = Collections.synchronizedMap( new WeakHashMap<SSLSocket, Boolean>() );
+
+
+
+
+  private SSLContextCache() {}
+
+
+
+
+  /**
+   * Get the context for the truststore and keystore named in the standard
+   * {@code javax.net.ssl.trustStore} and {@code javax.net.ssl.keyStore} system
+   * properties.
+   *
+   * @return the shared context
+   *
+   * @throws GeneralSecurityException if the context could not be created
+   * @throws IOException if a store could not be read
+   */
+  public static SSLContext getDefaultContext() throws GeneralSecurityException, IOException {
+    return getContext( System.getProperty( "javax.net.ssl.trustStore" ), System.getProperty( "javax.net.ssl.trustStorePassword" ), System.getProperty( "javax.net.ssl.keyStore" ), System.getProperty( "javax.net.ssl.keyStorePassword" ) );
+  }
+
+
+
+
+  /**
+   * Get the shared context for the given stores, creating it if necessary.
+   *
+   * <p>If no truststore is given, a trust-all manager is used and any
+   * certificate sent by the peer is accepted. If no keystore is given, no
+   * certificate is presented to the peer. Passwords default to
+   * {@code changeit}.</p>
+   *
+   * @param trustStore path to the truststore, may be null
+   * @param trustStorePassword passphrase of the truststore, may be null
+   * @param keyStore path to the keystore, may be null
+   * @param keyStorePassword passphrase of the keystore, may be null
+   *
+   * @return the shared context for the given stores
+   *
+   * @throws GeneralSecurityException if the context could not be created
+   * @throws IOException if a store could not be read
+   */
+  public static SSLContext getContext( String trustStore, String trustStorePassword, String keyStore, String keyStorePassword ) throws GeneralSecurityException, IOException {
+    String key = String.valueOf( trustStore ) + "|" + String.valueOf( keyStore );
+
+    SSLContext retval = contexts.get( key );
+    if ( retval == null ) {
+      SSLContext context = create( trustStore, trustStorePassword, keyStore, keyStorePassword );
+      retval = contexts.putIfAbsent( key, context );
+      if ( retval == null ) {
+        retval = context;
+      }
+    }
+    return retval;
+  }
+
+
+
+
+  private static SSLContext create( String trustStore, String trustStorePassword, String keyStore, String keyStorePassword ) throws GeneralSecurityException, IOException {
+    KeyManager[] keyManagers = null;
+    TrustManager[] trustManagers = null;
+
+    if ( keyStore != null ) {
+      Log.trace( "Using a keystore of " + keyStore );
+      char[] password = ( ( keyStorePassword != null ) ? keyStorePassword : DEFAULT_PASSWORD ).toCharArray();
+      KeyManagerFactory keymanagerfactory = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+      keymanagerfactory.init( load( keyStore, password ), password );
+      keyManagers = keymanagerfactory.getKeyManagers();
+    }
+
+    if ( trustStore != null ) {
+      Log.trace( "Using a truststore of " + trustStore );
+      char[] password = ( ( trustStorePassword != null ) ? trustStorePassword : DEFAULT_PASSWORD ).toCharArray();
+      TrustManagerFactory trustmanagerfactory = TrustManagerFactory.getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+      trustmanagerfactory.init( load( trustStore, password ) );
+      trustManagers = trustmanagerfactory.getTrustManagers();
+    } else {
+      Log.trace( "No truststore specified, using a trust-all manager" );
+      trustManagers = new TrustManager[] { new TrustAllManager() };
+    }
+
+    SSLContext retval = SSLContext.getInstance( PROTOCOL );
+    retval.init( keyManagers, trustManagers, new SecureRandom() );
+    configure( retval );
+    return retval;
+  }
+
+
+
+
+  private static KeyStore load( String path, char[] password ) throws GeneralSecurityException, IOException {
+    KeyStore retval = KeyStore.getInstance( STORE_TYPE );
+    InputStream in = new FileInputStream( path );
+    try {
+      retval.load( in, password );
+    }
+    finally {
+      in.close();
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Apply the session cache settings to the client session cache of the
+   * context.
+   */
+  private static void configure( SSLContext context ) {
+    SSLSessionContext sessions = context.getClientSessionContext();
+    if ( sessions != null ) {
+      if ( sessionCacheSize >= 0 ) {
+        sessions.setSessionCacheSize( sessionCacheSize );
+      }
+      if ( sessionTimeout >= 0 ) {
+        sessions.setSessionTimeout( sessionTimeout );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Set the number of client sessions each context caches for resumption.
+   *
+   * @param size the maximum number of sessions, 0 means no limit
+   */
+  public static void setSessionCacheSize( int size ) {
+    sessionCacheSize = size;
+    for ( Iterator<SSLContext> it = contexts.values().iterator(); it.hasNext(); ) {
+      configure( it.next() );
+    }
+  }
+
+
+
+
+  /**
+   * Set how long a cached client session may be resumed.
+   *
+   * @param seconds the session lifetime, 0 means no limit
+   */
+  public static void setSessionTimeout( int seconds ) {
+    sessionTimeout = seconds;
+    for ( Iterator<SSLContext> it = contexts.values().iterator(); it.hasNext(); ) {
+      configure( it.next() );
+    }
+  }
+
+
+
+
+  /**
+   * Discard all the cached contexts and their sessions.
+   */
+  public static void clear() {
+    contexts.clear();
+  }
+
+
+
+
+  /**
+   * Count a completed handshake, comparing its session to the last one
+   * negotiated with the same peer.
+   *
+   * @param socket the socket which completed its handshake
+   *
+   * @return true if the handshake resumed a cached session
+   */
+  static boolean handshakeCompleted( SSLSocket socket ) {
+    handshakes.incrementAndGet();
+    SSLSession session = socket.getSession();
+    if ( ( session == null ) || ( session.getPeerHost() == null ) ) {
+      return false;
+    }
+
+    Session current = new Session( session.getId(), session.getCreationTime() );
+    Session last = peers.put( session.getPeerHost() + ":" + session.getPeerPort(), current );
+    boolean retval = ( last != null ) && ( Arrays.equals( last.id, current.id ) || ( last.created == current.created ) );
+    if ( retval ) {
+      resumptions.incrementAndGet();
+    }
+    resumed.put( socket, Boolean.valueOf( retval ) );
+    return retval;
+  }
+
+
+
+
+  /**
+   * @param socket a socket created by an {@link SSLSocketFactory}
+   *
+   * @return true if the handshake of the socket resumed a cached session
+   */
+  public static boolean isResumed( SSLSocket socket ) {
+    Boolean retval = resumed.get( socket );
+    return ( retval != null ) && retval.booleanValue();
+  }
+
+
+
+
+  /**
+   * @return the total number of client handshakes completed
+   */
+  public static long getHandshakeCount() {
+    return handshakes.get();
+  }
+
+
+
+
+  /**
+   * @return the number of client handshakes which resumed a cached session
+   */
+  public static long getResumedHandshakeCount() {
+    return resumptions.get();
+  }
+
+
+
+
+  /**
+   * @return the number of client handshakes which negotiated a new session
+   */
+  public static long getFullHandshakeCount() {
+    return handshakes.get() - resumptions.get();
+  }
+
+  /**
+   * The identity of a negotiated session.
+   */
+  private static final class Session {
+    final byte[] id;
+    final long created;
+
+
+
+
+    Session( byte[] id, long created ) {
+      this.id = id;
+      this.created = created;
+    }
+  }
+
+}
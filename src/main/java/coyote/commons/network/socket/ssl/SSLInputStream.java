@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.commons.network.socket.ssl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+
+import javax.net.ssl.SSLSocket;
+
+
+/**
+ * Encrypted sockets are a little strange in that they can't support the
+ * {@code available()} on their input streams without decrypting the stream to
+ * determine what is available. This will cause most code which polls
+ * {@code available()} to spin forever.
+ *
+ * <p>This stream reads decrypted data from the SSL socket in bulk into its own
+ * buffer. When the buffer is empty and the SSL socket is layered over a
+ * {@link RecordSocket}, {@code available()} looks at the encrypted data which
+ * has arrived and, only if a whole TLS record is waiting, decrypts it into
+ * the buffer so the caller sees the real number of bytes which can be read
+ * without blocking. A record holding no application data, such as a TLS 1.3
+ * session ticket, is consumed without waiting for the next one. No extra
+ * thread is used and {@code available()} never blocks.</p>
+ *
+ * <p>If the transport socket is not a {@code RecordSocket}, {@code
+ * available()} reports only what the SSL socket has already decrypted.</p>
+ */
+public class SSLInputStream extends InputStream {
+
+  /** Large enough to hold the largest TLS record payload */
+  private static final int BUFFER_SIZE = 16 * 1024 + 1024;
+
+  private final SSLSocket socket;
+  private final InputStream input;
+
+  /** The encrypted input of the SSL socket, may be null */
+  private final RecordInputStream records;
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position = 0;
+  private int count = 0;
+
+  private volatile boolean eof = false;
+
+
+
+
+  /**
+   * @param sslsocket the socket from which decrypted data is read
+   * @param plain the connected socket the SSL socket was layered over, may be
+   *        null if not known; only a {@link RecordSocket} lets {@code
+   *        available()} decrypt data which has arrived
+   *
+   * @throws IOException if the streams could not be obtained
+   */
+  public SSLInputStream( SSLSocket sslsocket, Socket plain ) throws IOException {
+    socket = sslsocket;
+    input = sslsocket.getInputStream();
+    records = ( plain instanceof RecordSocket ) ? ( (RecordSocket)plain ).getRecordStream() : null;
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#read()
+   */
+  @Override
+  public int read() throws IOException {
+    if ( ( position >= count ) && ( fill() < 0 ) ) {
+      return -1;
+    }
+    return buffer[position++] & 0xFF;
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#read(byte[], int, int)
+   */
+  @Override
+  public int read( byte[] data, int offset, int length ) throws IOException {
+    if ( length == 0 ) {
+      return 0;
+    }
+
+    int buffered = count - position;
+    if ( buffered > 0 ) {
+      int retval = Math.min( buffered, length );
+      System.arraycopy( buffer, position, data, offset, retval );
+      position += retval;
+      return retval;
+    }
+
+    if ( eof ) {
+      return -1;
+    }
+
+    // large reads go straight into the caller's array
+    if ( length >= buffer.length ) {
+      int retval = input.read( data, offset, length );
+      if ( retval < 0 ) {
+        eof = true;
+      }
+      return retval;
+    }
+
+    if ( fill() < 0 ) {
+      return -1;
+    }
+    return read( data, offset, length );
+  }
+
+
+
+
+  /**
+   * Return the number of decrypted bytes which can be read without blocking,
+   * decrypting the next record if all of it has arrived.
+   *
+   * @see java.io.InputStream#available()
+   */
+  @Override
+  public int available() throws IOException {
+    int buffered = count - position;
+    if ( ( buffered > 0 ) || eof ) {
+      return buffered;
+    }
+
+    int decrypted = input.available();
+    if ( decrypted > 0 ) {
+      return decrypted;
+    }
+
+    if ( ( records != null ) && records.hasRecord() ) {
+      records.setPolling( true );
+      try {
+        fill();
+      } catch ( InterruptedIOException e ) {
+        // the record held no application data and no other record is waiting
+      }
+      finally {
+        records.setPolling( false );
+      }
+    }
+
+    return count - position;
+  }
+
+
+
+
+  /**
+   * Read the next block of decrypted data into the empty buffer.
+   *
+   * @return the number of bytes read, -1 at the end of the stream
+   */
+  private int fill() throws IOException {
+    if ( eof ) {
+      return -1;
+    }
+
+    position = 0;
+    count = 0;
+
+    int retval = input.read( buffer, 0, buffer.length );
+    if ( retval < 0 ) {
+      eof = true;
+    } else {
+      count = retval;
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * @return true if the end of the stream has not been reached and the socket
+   *         has not been closed
+   */
+  public boolean isOpen() {
+    return !eof && !socket.isClosed();
+  }
+
+
+
+
+  /**
+   * @see java.io.InputStream#close()
+   */
+  @Override
+  public void close() throws IOException {
+    eof = true;
+    input.close();
+  }
+
+}
@@ -11,26 +11,17 @@
  */
 package coyote.commons.network.socket.ssl;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.security.KeyStore;
-import java.security.SecureRandom;
-import java.security.Security;
 import java.security.cert.Certificate;
-import java.util.Random;
 
 import javax.net.ssl.HandshakeCompletedEvent;
 import javax.net.ssl.HandshakeCompletedListener;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSocket;
-import javax.net.ssl.TrustManager;
-
-import com.sun.net.ssl.internal.ssl.Provider;
 
 import coyote.commons.network.socket.ISocketFactory;
 import coyote.loader.log.Log;
@@ -56,10 +47,6 @@ import coyote.loader.log.Log;
  */
 public class SSLSocketFactory implements ISocketFactory {
 
-  static final String DEFAULT_PASSWORD = "changeit";
-
-  static final Random regularRandom = new Random();
-
   javax.net.ssl.SSLSocketFactory socketFactory;
 
   javax.net.ssl.SSLServerSocketFactory serverSocketFactory;
@@ -80,7 +67,7 @@ public class SSLSocketFactory implements ISocketFactory {
 
 
   /**
-   * Initialize the SSL keystore and socket factories.
+   * Initialize the socket factories from the shared SSL context.
    * 
    * <p>If there is a truststore specified in the {@code javax.net.ssl.trustStore} 
    * system property use that truststore and a X509 Trust Manager. If not, use 
@@ -90,52 +77,19 @@ public class SSLSocketFactory implements ISocketFactory {
    * 
    * <p>In order to use the truststore, a truststore passphrase needs to be 
    * specified in the {@code javax.net.ssl.trustStorePassword} system property.
-   * FYI: the default passphrase is usually {@code changeit}.</p>
+   * FYI: the default passphrase is usually {@code changeit}. A keystore holding
+   * our own identity may similarly be given in {@code javax.net.ssl.keyStore}
+   * and {@code javax.net.ssl.keyStorePassword}.</p>
+   * 
+   * <p>The context is shared through the {@link SSLContextCache} so all 
+   * factories using the same stores share one session cache.</p>
    * 
    * @see coyote.commons.network.socket.ISocketFactory#initialize()
    */
   @Override
   public void initialize() throws Exception {
-
-    // What JRE are we using?
-    String home = System.getProperty( "java.home" );
-
-    // Determine a trust manager using the requested keystore
-    String trustStore = System.getProperty( "javax.net.ssl.trustStore" );
-
-    // What is the password used to create the trust store
-    String trustStorePassword = System.getProperty( "javax.net.ssl.trustStorePassword" );
-
     try {
-
-      Security.addProvider( new Provider() );
-      SecureRandom securerandom = new SecureRandom();
-      securerandom.setSeed( regularRandom.nextLong() );
-      SSLContext sslcontext = SSLContext.getInstance( "SSL" );
-
-      // if there is a trust store defined, use it
-      if ( trustStore != null ) {
-        Log.trace( "Using a truststore of " + trustStore );
-
-        // if none specified, use a default
-        if ( trustStorePassword == null ) {
-          trustStorePassword = DEFAULT_PASSWORD;
-        }
-        Log.trace( "Using a passphrase of " + trustStorePassword );
-
-        // Setup an X509 key manager
-        char tspChars[] = trustStorePassword.toCharArray();
-        KeyManagerFactory keymanagerfactory = KeyManagerFactory.getInstance( "SunX509" );
-        KeyStore keystore = KeyStore.getInstance( "JKS" );
-        keystore.load( new FileInputStream( trustStore ), tspChars );
-        keymanagerfactory.init( keystore, tspChars );
-        sslcontext.init( keymanagerfactory.getKeyManagers(), null, securerandom );
-      } else {
-        Log.trace( "No truststore specified in system properties, using a trust-all manager" );
-
-        // Just use a trust-all manager until we design an easy to use strategy
-        sslcontext.init( null, new TrustManager[] { new TrustAllManager() }, null );
-      }
+      SSLContext sslcontext = SSLContextCache.getDefaultContext();
 
       // Get the socket factories for client and server sockets 
       socketFactory = sslcontext.getSocketFactory();
@@ -143,9 +97,9 @@ public class SSLSocketFactory implements ISocketFactory {
 
     } catch ( Exception exception ) {
       System.out.println( "SSL startup exception" );
-      System.out.println( "  java.home = ".concat( String.valueOf( home ) ) );
-      System.out.println( "  javax.net.ssl.trustStore = ".concat( String.valueOf( trustStore ) ) );
-      System.out.println( "  javax.net.ssl.trustStorePassword = ".concat( String.valueOf( trustStorePassword ) ) );
+      System.out.println( "  java.home = ".concat( String.valueOf( System.getProperty( "java.home" ) ) ) );
+      System.out.println( "  javax.net.ssl.trustStore = ".concat( String.valueOf( System.getProperty( "javax.net.ssl.trustStore" ) ) ) );
+      System.out.println( "  javax.net.ssl.keyStore = ".concat( String.valueOf( System.getProperty( "javax.net.ssl.keyStore" ) ) ) );
 
       throw exception;
     }
@@ -177,9 +131,7 @@ public class SSLSocketFactory implements ISocketFactory {
    */
   public Socket createSocket( Socket socket, String host, int port, boolean autoclose ) throws IOException {
     SSLSocket sslsocket = (SSLSocket)socketFactory.createSocket( socket, host, port, autoclose );
-    sslsocket.addHandshakeCompletedListener( new MyHandshakeListener() );
-    sslsocket.setUseClientMode( true );
-    sslsocket.startHandshake();
+    handshake( sslsocket );
     return sslsocket;
   }
 
@@ -202,10 +154,26 @@ public class SSLSocketFactory implements ISocketFactory {
    */
   public Socket createSocket( InetAddress addr, int port ) throws IOException {
     SSLSocket sslsocket = (SSLSocket)socketFactory.createSocket( addr, port );
-    sslsocket.addHandshakeCompletedListener( new MyHandshakeListener() );
+    handshake( sslsocket );
+    return sslsocket;
+  }
+
+
+
+
+  /**
+   * Perform the client handshake, counting it in the context cache.
+   * 
+   * <p>The handshake listener is only added when tracing as the JRE notifies 
+   * listeners from a new thread.</p>
+   */
+  private void handshake( SSLSocket sslsocket ) throws IOException {
+    if ( Log.isLogging( Log.TRACE_EVENTS ) ) {
+      sslsocket.addHandshakeCompletedListener( new MyHandshakeListener() );
+    }
     sslsocket.setUseClientMode( true );
     sslsocket.startHandshake();
-    return sslsocket;
+    SSLContextCache.handshakeCompleted( sslsocket );
   }
 
 
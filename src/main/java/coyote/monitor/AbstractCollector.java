@@ -11,6 +11,7 @@
  */
 package coyote.monitor;
 
+import coyote.commons.list.BoundedQueue;
 import coyote.dataframe.DataFrame;
 import coyote.dataframe.DataFrameException;
 import coyote.loader.Loader;
@@ -63,6 +64,15 @@ public abstract class AbstractCollector extends ScheduledJob implements Collecto
       template.addConfigSlot( new ConfigSlot( MonitorConfig.ERROR_INTERVAL, "Number of milliseconds between sample runs when in an error state.", new Long( DEFAULT_ERROR_INTERVAL ) ) );
       template.addConfigSlot( new ConfigSlot( MonitorConfig.ENABLED, "Flag indicating the collector is enabled to run.", new Boolean( true ) ) );
       template.addConfigSlot( new ConfigSlot( MonitorConfig.DESCRIPTION, "Description of the facility the collector is monitoring.", null ) );
+      template.addConfigSlot( new ConfigSlot( MonitorConfig.HISTORY_SIZE, "Number of recent samples kept in the history.", new Integer( SampleHistory.DEFAULT_CAPACITY ) ) );
+      template.addConfigSlot( new ConfigSlot( MonitorConfig.HISTORY_AGE, "Number of milliseconds samples are kept in the history, 0 for no limit.", new Long( 0 ) ) );
+      template.addConfigSlot( new ConfigSlot( MonitorConfig.QUEUE_LIMIT, "Number of events, and of alerts, held waiting to be read.", new Integer( CollectorCache.DEFAULT_QUEUE_CAPACITY ) ) );
+      template.addConfigSlot( new ConfigSlot( MonitorConfig.QUEUE_OVERFLOW, "What is discarded when too many events arrive: DropOldest or DropNewest.", "DropOldest" ) );
+      template.addConfigSlot( new ConfigSlot( MonitorConfig.FAILURE_THRESHOLD, "Number of consecutive failed samples which put the collector in error.", new Integer( StatusTracker.DEFAULT_FAILURE_THRESHOLD ) ) );
+      template.addConfigSlot( new ConfigSlot( MonitorConfig.RECOVERY_THRESHOLD, "Number of consecutive good samples which clear the collector.", new Integer( StatusTracker.DEFAULT_RECOVERY_THRESHOLD ) ) );
+      template.addConfigSlot( new ConfigSlot( MonitorConfig.FLAP_WINDOW, "Number of recent samples checked for flapping.", new Integer( StatusTracker.DEFAULT_FLAP_WINDOW ) ) );
+      template.addConfigSlot( new ConfigSlot( MonitorConfig.FLAP_START, "Number of changes in the flap window at which flapping starts.", new Integer( StatusTracker.DEFAULT_FLAP_START ) ) );
+      template.addConfigSlot( new ConfigSlot( MonitorConfig.FLAP_STOP, "Number of changes in the flap window at or below which flapping stops.", new Integer( StatusTracker.DEFAULT_FLAP_STOP ) ) );
     } catch ( Exception ex ) {
       // should always work
     }
@@ -249,6 +259,75 @@ public abstract class AbstractCollector extends ScheduledJob implements Collecto
       }
     }
 
+    // Size of the history of recent samples
+    if ( configuration.contains( MonitorConfig.HISTORY_SIZE ) || configuration.contains( MonitorConfig.HISTORY_AGE ) ) {
+      int size = SampleHistory.DEFAULT_CAPACITY;
+      long age = 0;
+      try {
+        if ( configuration.contains( MonitorConfig.HISTORY_SIZE ) ) {
+          size = configuration.getAsInt( MonitorConfig.HISTORY_SIZE );
+        }
+        if ( configuration.contains( MonitorConfig.HISTORY_AGE ) ) {
+          age = configuration.getAsLong( MonitorConfig.HISTORY_AGE );
+        }
+      } catch ( DataFrameException e ) {
+        Log.error( LogMsg.createMsg( "Monitor.probe_config_history", e.getMessage() ) );
+      }
+      mib.setHistory( size, age );
+    }
+
+    // Bounds on the events and alerts waiting to be read
+    if ( configuration.contains( MonitorConfig.QUEUE_LIMIT ) || configuration.contains( MonitorConfig.QUEUE_OVERFLOW ) ) {
+      int limit = CollectorCache.DEFAULT_QUEUE_CAPACITY;
+      try {
+        if ( configuration.contains( MonitorConfig.QUEUE_LIMIT ) ) {
+          limit = configuration.getAsInt( MonitorConfig.QUEUE_LIMIT );
+        }
+      } catch ( DataFrameException e ) {
+        Log.error( LogMsg.createMsg( "Monitor.probe_config_queue_limit", e.getMessage() ) );
+      }
+      BoundedQueue.Overflow overflow = "DropNewest".equalsIgnoreCase( configuration.getAsString( MonitorConfig.QUEUE_OVERFLOW ) ) ? BoundedQueue.Overflow.DROP_NEWEST : BoundedQueue.Overflow.DROP_OLDEST;
+      mib.setQueueLimits( limit, overflow );
+    }
+
+    // Samples needed to change the status
+    if ( configuration.contains( MonitorConfig.FAILURE_THRESHOLD ) || configuration.contains( MonitorConfig.RECOVERY_THRESHOLD ) ) {
+      int failures = StatusTracker.DEFAULT_FAILURE_THRESHOLD;
+      int successes = StatusTracker.DEFAULT_RECOVERY_THRESHOLD;
+      try {
+        if ( configuration.contains( MonitorConfig.FAILURE_THRESHOLD ) ) {
+          failures = configuration.getAsInt( MonitorConfig.FAILURE_THRESHOLD );
+        }
+        if ( configuration.contains( MonitorConfig.RECOVERY_THRESHOLD ) ) {
+          successes = configuration.getAsInt( MonitorConfig.RECOVERY_THRESHOLD );
+        }
+      } catch ( DataFrameException e ) {
+        Log.error( LogMsg.createMsg( "Monitor.probe_config_status", e.getMessage() ) );
+      }
+      mib.setStatusThresholds( failures, successes );
+    }
+
+    // Detection of a flapping status
+    if ( configuration.contains( MonitorConfig.FLAP_WINDOW ) || configuration.contains( MonitorConfig.FLAP_START ) || configuration.contains( MonitorConfig.FLAP_STOP ) ) {
+      int window = StatusTracker.DEFAULT_FLAP_WINDOW;
+      int start = StatusTracker.DEFAULT_FLAP_START;
+      int stop = StatusTracker.DEFAULT_FLAP_STOP;
+      try {
+        if ( configuration.contains( MonitorConfig.FLAP_WINDOW ) ) {
+          window = configuration.getAsInt( MonitorConfig.FLAP_WINDOW );
+        }
+        if ( configuration.contains( MonitorConfig.FLAP_START ) ) {
+          start = configuration.getAsInt( MonitorConfig.FLAP_START );
+        }
+        if ( configuration.contains( MonitorConfig.FLAP_STOP ) ) {
+          stop = configuration.getAsInt( MonitorConfig.FLAP_STOP );
+        }
+      } catch ( DataFrameException e ) {
+        Log.error( LogMsg.createMsg( "Monitor.probe_config_flap", e.getMessage() ) );
+      }
+      mib.setFlapDetection( window, start, stop );
+    }
+
     // Make seure we start out as active
     setActiveFlag( true );
 
@@ -0,0 +1,576 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import coyote.loader.log.Log;
+
+
+/**
+ * Keeps one open alert for each problem and moves it through its life:
+ * raised, repeated, escalated, acknowledged, and cleared or expired.
+ *
+ * <p>An alert is identified by its fingerprint, the name of the collector and
+ * the alert condition. Raising an alert whose fingerprint is already open
+ * counts a repeat on the open alert and pushes back its expiry instead of
+ * adding another, so a flapping probe keeps updating one alert.</p>
+ *
+ * <p>Expiry and escalation deadlines are kept in a heap ordered by time. A
+ * thread sleeps until the earliest deadline, so the cost of the timers
+ * depends on how many come due, not on how many alerts are open. Each open
+ * alert has at most one expiry and one escalation in the heap; a repeat or an
+ * acknowledgement leaves them there, and when one comes up it is checked
+ * against the alert and put back if the alert's expiry or escalation has
+ * moved later.</p>
+ *
+ * <p>If the cache of an alert has a journal, every change to the alert is
+ * recorded in it, so the open alerts are restored with their count, level and
+ * expiry after a restart. Records are queued while the manager is locked,
+ * keeping them in order, and waited for once it is unlocked.</p>
+ *
+ * <p>An unacknowledged alert goes up one level every escalation interval, up
+ * to the maximum level. Acknowledging an alert stops its escalation; it stays
+ * open until it is cleared or expires.</p>
+ */
+public class AlertManager {
+
+  /** The default milliseconds (1 hour) an alert stays open after it is last raised */
+  public static final long DEFAULT_EXPIRY = 60L * 60L * 1000L;
+
+  /** The default milliseconds (15 minutes) an unacknowledged alert waits at a level */
+  public static final long DEFAULT_ESCALATION = 15L * 60L * 1000L;
+
+  /** The default highest level (5) an alert escalates to */
+  public static final int DEFAULT_MAX_LEVEL = 5;
+
+  /**
+   * What happened to an alert.
+   */
+  public enum Change {
+    /** A new alert was opened */
+    RAISED,
+    /** An open alert was raised again */
+    REPEATED,
+    /** An open alert went up a level */
+    ESCALATED,
+    /** An open alert was acknowledged */
+    ACKNOWLEDGED,
+    /** An open alert was closed because its problem went away */
+    CLEARED,
+    /** An open alert was closed because it was not raised again in time */
+    EXPIRED,
+    /** A new alert was closed because the alerts of its cache had no room */
+    DISCARDED
+  }
+
+  /**
+   * Told of each change to an alert. Called while the manager is locked, so
+   * it should not block.
+   */
+  public interface Listener {
+    public void alertChanged( MonitorAlert alert, Change change );
+  }
+
+  /** Open alerts by fingerprint */
+  private final Map<String, Open> open = new HashMap<String, Open>();
+
+  /** Open alerts by identifier */
+  private final Map<Long, Open> identifiers = new HashMap<Long, Open>();
+
+  /** Deadlines ordered by time, at most two for each open alert */
+  private final PriorityQueue<Deadline> deadlines = new PriorityQueue<Deadline>();
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  private long expiry = DEFAULT_EXPIRY;
+
+  private long escalation = DEFAULT_ESCALATION;
+
+  private int maxLevel = DEFAULT_MAX_LEVEL;
+
+  private Thread timer = null;
+
+
+
+
+  /**
+   * Route every alert added to the cache through this manager.
+   *
+   * <p>Alerts the collector already has open, raised through a cache it
+   * replaces, are moved to this cache.</p>
+   *
+   * @param name the name of the collector, unique in the monitor
+   * @param cache the cache of the collector
+   */
+  public void attach( String name, CollectorCache cache ) {
+    String prefix = name + "|";
+    synchronized( this ) {
+      for ( Open entry : open.values() ) {
+        if ( entry.fingerprint.startsWith( prefix ) ) {
+          entry.cache = cache;
+        }
+      }
+    }
+    cache.setAlertManager( this, name );
+  }
+
+
+
+
+  /**
+   * Stop routing the alerts of the cache through this manager. Its open
+   * alerts stay open for the cache attached next under the same name.
+   *
+   * @param name the name of the collector
+   * @param cache the cache it was attached with
+   */
+  public void detach( String name, CollectorCache cache ) {
+    cache.setAlertManager( null, null );
+  }
+
+
+
+
+  /**
+   * Open an alert, or count a repeat if one with the same fingerprint is
+   * already open.
+   *
+   * <p>A new alert is added to the alerts of the cache; a repeat is not. If
+   * the cache discards the new alert it is closed again, so later repeats
+   * open another one instead of counting on an alert no one will read.</p>
+   *
+   * @param collector the name of the collector raising the alert
+   * @param cache the cache of the collector
+   * @param alert the alert
+   *
+   * @return the open alert, the given one if it is new, or null if the new
+   *         alert was discarded
+   */
+  public MonitorAlert raise( String collector, CollectorCache cache, MonitorAlert alert ) {
+    long now = System.currentTimeMillis();
+    String fingerprint = collector + "|" + alert.getCondition();
+    Open entry;
+    MonitorAlert added = null;
+    long ticket;
+
+    synchronized( this ) {
+      entry = open.get( fingerprint );
+      if ( entry != null ) {
+        MonitorAlert existing = entry.alert;
+        existing.put( MonitorAlert.COUNT, existing.getCount() + 1 );
+        existing.put( MonitorAlert.LAST_SEEN, now );
+        if ( alert.getLevel() > existing.getLevel() ) {
+          existing.setLevel( alert.getLevel() );
+        }
+        existing.setExpires( Math.max( existing.getExpires(), Math.max( alert.getExpires(), now + expiry ) ) );
+        schedule( entry );
+        ticket = entry.cache.journalAlertChanged( existing );
+        fire( existing, Change.REPEATED );
+      } else {
+        alert.put( MonitorAlert.COLLECTOR, collector );
+        alert.put( MonitorAlert.COUNT, 1L );
+        alert.put( MonitorAlert.LAST_SEEN, now );
+        if ( alert.getExpires() <= now ) {
+          alert.setExpires( now + expiry );
+        }
+        cache.identifyAlert( alert );
+
+        entry = new Open( fingerprint, alert, cache, now + escalation );
+        open.put( fingerprint, entry );
+        identifiers.put( alert.getIdentifier(), entry );
+        schedule( entry );
+        cache.journalAlertAdded( alert );
+        ticket = cache.journalAlertChanged( alert );
+        fire( alert, Change.RAISED );
+        added = alert;
+      }
+    }
+
+    // written and queued once the manager is unlocked
+    entry.cache.awaitJournal( ticket );
+    if ( ( added != null ) && ( entry.cache.offerAlert( added ) < 0 ) ) {
+      ticket = 0;
+      synchronized( this ) {
+        if ( open.get( fingerprint ) == entry ) {
+          ticket = close( entry, Change.DISCARDED );
+        }
+      }
+      entry.cache.awaitJournal( ticket );
+      return null;
+    }
+    return entry.alert;
+  }
+
+
+
+
+  /**
+   * Hold open an alert recovered from a journal, so repeats of its condition
+   * update it instead of opening another.
+   *
+   * <p>An alert which expired while the monitor was down, or whose condition
+   * is already open, is closed instead. Its escalation starts over from
+   * now.</p>
+   *
+   * @param collector the name of the collector which raised the alert
+   * @param cache the cache of the collector
+   * @param alert the recovered alert
+   */
+  public void restore( String collector, CollectorCache cache, MonitorAlert alert ) {
+    long now = System.currentTimeMillis();
+    String fingerprint = collector + "|" + alert.getCondition();
+
+    synchronized( this ) {
+      if ( ( alert.getExpires() > now ) && !open.containsKey( fingerprint ) ) {
+        Open entry = new Open( fingerprint, alert, cache, now + escalation );
+        open.put( fingerprint, entry );
+        identifiers.put( alert.getIdentifier(), entry );
+        schedule( entry );
+        return;
+      }
+    }
+    cache.awaitJournal( cache.journalAlertClosed( alert ) );
+  }
+
+
+
+
+  /**
+   * Acknowledge an open alert, stopping its escalation.
+   *
+   * @param id the identifier of the alert
+   *
+   * @return false if no open alert has the identifier
+   */
+  public boolean ack( long id ) {
+    Open entry;
+    long ticket = 0;
+    synchronized( this ) {
+      entry = identifiers.get( id );
+      if ( entry == null ) {
+        return false;
+      }
+      if ( !entry.alert.isAcknowledged() ) {
+        entry.alert.setAcknowledged( true );
+        ticket = entry.cache.journalAlertChanged( entry.alert );
+        fire( entry.alert, Change.ACKNOWLEDGED );
+      }
+    }
+    entry.cache.awaitJournal( ticket );
+    return true;
+  }
+
+
+
+
+  /**
+   * Close the open alert of a collector condition because the problem went
+   * away.
+   *
+   * @param collector the name of the collector
+   * @param condition the condition of the alert
+   *
+   * @return the alert closed, or null if none was open
+   */
+  public MonitorAlert clear( String collector, String condition ) {
+    Open entry;
+    long ticket;
+    synchronized( this ) {
+      entry = open.get( collector + "|" + condition );
+      if ( entry == null ) {
+        return null;
+      }
+      ticket = close( entry, Change.CLEARED );
+    }
+    entry.cache.awaitJournal( ticket );
+    return entry.alert;
+  }
+
+
+
+
+  /**
+   * @param id the identifier of an alert
+   *
+   * @return the open alert, or null if it is not open
+   */
+  public synchronized MonitorAlert getAlert( long id ) {
+    Open entry = identifiers.get( id );
+    return ( entry != null ) ? entry.alert : null;
+  }
+
+
+
+
+  /**
+   * @return the alerts open now
+   */
+  public synchronized List<MonitorAlert> getOpenAlerts() {
+    List<MonitorAlert> retval = new ArrayList<MonitorAlert>( open.size() );
+    for ( Open entry : open.values() ) {
+      retval.add( entry.alert );
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Expire and escalate the alerts whose deadlines have passed.
+   *
+   * <p>The changes are queued to the journals without waiting for them to be
+   * written.</p>
+   *
+   * @param now the current time in epoch milliseconds
+   *
+   * @return milliseconds until the next deadline, or -1 if there is none
+   */
+  public synchronized long process( long now ) {
+    Deadline next;
+    while ( ( next = deadlines.peek() ) != null && ( next.time <= now ) ) {
+      deadlines.poll();
+      next.pending = false;
+      Open entry = next.entry;
+      MonitorAlert alert = entry.alert;
+      if ( open.get( entry.fingerprint ) != entry ) {
+        continue;
+      }
+
+      if ( next.escalation ) {
+        if ( alert.isAcknowledged() || ( alert.getLevel() >= maxLevel ) ) {
+          continue;
+        }
+        if ( entry.escalates <= now ) {
+          alert.setLevel( alert.getLevel() + 1 );
+          entry.escalates = now + escalation;
+          entry.cache.journalAlertChanged( alert );
+          fire( alert, Change.ESCALATED );
+        }
+        schedule( entry );
+      } else if ( alert.getExpires() <= now ) {
+        close( entry, Change.EXPIRED );
+      } else {
+        schedule( entry );
+      }
+    }
+    return ( next != null ) ? next.time - now : -1;
+  }
+
+
+
+
+  /**
+   * Put the expiry and next escalation of an alert in the heap unless they
+   * are already there. One already there is checked against the alert when
+   * it comes up.
+   */
+  private void schedule( Open entry ) {
+    MonitorAlert alert = entry.alert;
+    boolean added = push( entry.expiry, alert.getExpires() );
+    if ( !alert.isAcknowledged() && ( alert.getLevel() < maxLevel ) ) {
+      added |= push( entry.escalation, entry.escalates );
+    }
+    if ( added ) {
+      notifyAll();
+    }
+  }
+
+
+
+
+  private boolean push( Deadline deadline, long time ) {
+    if ( deadline.pending ) {
+      return false;
+    }
+    deadline.time = time;
+    deadline.pending = true;
+    deadlines.add( deadline );
+    return true;
+  }
+
+
+
+
+  /**
+   * @return the ticket of the journal record of the closing
+   */
+  private long close( Open entry, Change change ) {
+    open.remove( entry.fingerprint );
+    identifiers.remove( entry.alert.getIdentifier() );
+    long retval = entry.cache.journalAlertClosed( entry.alert );
+    fire( entry.alert, change );
+    return retval;
+  }
+
+
+
+
+  private void fire( MonitorAlert alert, Change change ) {
+    for ( Listener listener : listeners ) {
+      try {
+        listener.alertChanged( alert, change );
+      } catch ( RuntimeException e ) {
+        Log.error( "Alert listener failed on " + change + ": " + e.getMessage() );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Start a thread which processes each deadline as it comes due.
+   */
+  public synchronized void start() {
+    if ( timer != null ) {
+      return;
+    }
+    timer = new Thread( new Runnable() {
+      public void run() {
+        synchronized( AlertManager.this ) {
+          while ( timer == Thread.currentThread() ) {
+            long wait = process( System.currentTimeMillis() );
+            try {
+              AlertManager.this.wait( ( wait < 0 ) ? 0 : Math.max( 1, wait ) );
+            } catch ( InterruptedException e ) {
+              return;
+            }
+          }
+        }
+      }
+    }, "AlertManager" );
+    timer.setDaemon( true );
+    timer.start();
+  }
+
+
+
+
+  /**
+   * Stop the deadline thread.
+   */
+  public synchronized void stop() {
+    timer = null;
+    notifyAll();
+  }
+
+
+
+
+  /**
+   * @param listener told of each change to an alert
+   */
+  public void addListener( Listener listener ) {
+    if ( listener != null ) {
+      listeners.add( listener );
+    }
+  }
+
+
+
+
+  /**
+   * @param millis how long an alert stays open after it is last raised
+   */
+  public synchronized void setExpiry( long millis ) {
+    expiry = Math.max( 1, millis );
+  }
+
+
+
+
+  /**
+   * @param millis how long an unacknowledged alert waits at each level
+   */
+  public synchronized void setEscalation( long millis ) {
+    escalation = Math.max( 1, millis );
+  }
+
+
+
+
+  /**
+   * @param level the highest level an alert escalates to
+   */
+  public synchronized void setMaxLevel( int level ) {
+    maxLevel = level;
+  }
+
+
+
+
+  /**
+   * @return the number of alerts open
+   */
+  public synchronized int getOpenCount() {
+    return open.size();
+  }
+
+  /**
+   * An open alert and its places in the deadline heap.
+   */
+  private static final class Open {
+    final String fingerprint;
+    final MonitorAlert alert;
+    /** The cache the alert was added to, and journaled through */
+    CollectorCache cache;
+    /** When the alert goes up a level if it is not acknowledged */
+    long escalates;
+    final Deadline expiry = new Deadline( this, false );
+    final Deadline escalation = new Deadline( this, true );
+
+
+
+
+    Open( String fingerprint, MonitorAlert alert, CollectorCache cache, long escalates ) {
+      this.fingerprint = fingerprint;
+      this.alert = alert;
+      this.cache = cache;
+      this.escalates = escalates;
+    }
+  }
+
+  /**
+   * A time at which an alert expires or escalates.
+   */
+  private static final class Deadline implements Comparable<Deadline> {
+    final Open entry;
+    final boolean escalation;
+    /** Only changed while the deadline is out of the heap */
+    long time;
+    /** True while the deadline is in the heap */
+    boolean pending = false;
+
+
+
+
+    Deadline( Open entry, boolean escalation ) {
+      this.entry = entry;
+      this.escalation = escalation;
+    }
+
+
+
+
+    public int compareTo( Deadline other ) {
+      return ( time < other.time ) ? -1 : ( ( time == other.time ) ? 0 : 1 );
+    }
+  }
+
+}
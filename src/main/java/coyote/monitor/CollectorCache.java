@@ -11,11 +11,18 @@
  */
 package coyote.monitor;
 
-import coyote.commons.list.LinkedList;
-import coyote.commons.list.ListNode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import coyote.commons.list.BoundedQueue;
+import coyote.monitor.store.CacheJournal;
 import coyote.dataframe.DataFrame;
 import coyote.dataframe.DataFrameException;
 import coyote.dataframe.marshal.JSONMarshaler;
+import coyote.loader.log.Log;
 
 
 /**
@@ -29,10 +36,16 @@ import coyote.dataframe.marshal.JSONMarshaler;
 public class CollectorCache extends DataFrame {
 
   /** 
-   * The current event sequence identifier to be used for identifying events 
-   * from this instrumentation fixture.
+   * The next event sequence identifier, shared by all the caches so event 
+   * identifiers are unique across the monitor.
    */
-  private static volatile long _eventSequence = 0;
+  private static final AtomicLong _eventSequence = new AtomicLong();
+
+  /** The next alert identifier, shared by all the caches */
+  private static final AtomicLong _alertSequence = new AtomicLong();
+
+  /** The default number of events (1024) or alerts held waiting to be read */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
 
   /** The name of the attribute that holds our current status */
   public static final String STATUS = "Status";
@@ -43,6 +56,15 @@ public class CollectorCache extends DataFrame {
   /** The name of the attribute that holds the previous status */
   public static final String PREV_STATUS = "PreviousStatus";
 
+  /** The name of the frame holding the cache validators of the last response */
+  public static final String VALIDATORS = "Validators";
+
+  /** The name of the attribute that is true while the status is flapping */
+  public static final String FLAPPING = "Flapping";
+
+  /** The condition of the alert raised when the status goes to ERROR */
+  public static final String ERROR_CONDITION = "Status ERROR";
+
   /**
    * Standard string representing the error status - something is wrong with
    * this component
@@ -61,24 +83,293 @@ public class CollectorCache extends DataFrame {
   /** The Monitor object to which we are associated */
   Monitor monitor = null;
 
-  /** The self-synchronized list of all the events in order of their occurrence */
-  LinkedList events = new LinkedList();
+  /** The events in order of their occurrence, bounded and lock-free */
+  volatile BoundedQueue<MonitorEvent> events = new BoundedQueue<MonitorEvent>( DEFAULT_QUEUE_CAPACITY );
 
-  /** The self-synchronized list of all the alerts in order of their occurrence */
-  LinkedList alerts = new LinkedList();
+  /** The alerts in order of their occurrence, bounded and lock-free */
+  volatile BoundedQueue<MonitorAlert> alerts = new BoundedQueue<MonitorAlert>( DEFAULT_QUEUE_CAPACITY );
 
   /** Number of times the MIB has toggled from down to up */
   protected int bounceCount = 0;
 
-  /** The current alert identifier for this MIB instance */
-  private volatile long alertid = 0;
+  /** The numeric fields of the recent samples */
+  private volatile SampleHistory history = new SampleHistory();
+
+  /** Decides the status from the results of the samples */
+  private final StatusTracker tracker = new StatusTracker();
+
+  /** Told of each sample as it is placed in the cache */
+  private final List<SampleListener> sampleListeners = new CopyOnWriteArrayList<SampleListener>();
+
+  /** Records the changes to this cache, null if they are not recorded */
+  private volatile CacheJournal journal = null;
+
+  /** The name this cache is recorded under in the journal */
+  private volatile String journalName = null;
+
+  /** Tracks the alerts of this cache, null if they are simply queued */
+  private volatile AlertManager alertManager = null;
+
+  /** The name of the collector in the alert manager */
+  private volatile String alertName = null;
+
+  /** Alerts recovered open before an alert manager was set */
+  private final List<MonitorAlert> reopened = new ArrayList<MonitorAlert>();
 
 
 
 
+  /**
+   * Record every later change to the validators, bounce count, events and
+   * alerts of this cache in the given journal.
+   *
+   * @param journal the journal to use, null to stop recording
+   * @param name the name of the collector, unique in the monitor
+   */
+  public void setJournal( CacheJournal journal, String name ) {
+    this.journalName = name;
+    this.journal = journal;
+  }
+
+
+
+
+  /**
+   * Have the given manager track every later alert of this cache, so repeats
+   * of an open alert update it instead of being added again.
+   *
+   * @param manager the alert manager to use, null to simply queue alerts
+   * @param name the name of the collector, unique in the monitor
+   */
+  public void setAlertManager( AlertManager manager, String name ) {
+    List<MonitorAlert> recovered;
+    synchronized( reopened ) {
+      this.alertName = name;
+      this.alertManager = manager;
+      if ( manager == null ) {
+        return;
+      }
+      recovered = new ArrayList<MonitorAlert>( reopened );
+      reopened.clear();
+    }
+    for ( int x = 0; x < recovered.size(); x++ ) {
+      manager.restore( name, this, recovered.get( x ) );
+    }
+  }
+
+
+
+
+  /**
+   * Make sure events and alerts added from now on have identifiers at least
+   * as large as those given, so identifiers recovered from a journal are not
+   * handed out again.
+   *
+   * @param nextEvent the smallest identifier the next event may have
+   * @param nextAlert the smallest identifier the next alert may have
+   */
+  public static void reserveIdentifiers( long nextEvent, long nextAlert ) {
+    raise( _eventSequence, nextEvent );
+    raise( _alertSequence, nextAlert );
+  }
+
+
+
+
+  private static void raise( AtomicLong sequence, long value ) {
+    long current = sequence.get();
+    while ( ( current < value ) && !sequence.compareAndSet( current, value ) ) {
+      current = sequence.get();
+    }
+  }
+
+
+
+
+  /**
+   * Replace the last sample, record its numeric fields in the history, update
+   * the status and pass it to the sample listeners. A listener which fails is
+   * logged and the others are still called.
+   *
+   * @param frame the sample just taken
+   */
   public void setSample( DataFrame frame ) {
     frame.put( "Type", "Sample" );
     put( "Sample", frame );
+    long now = System.currentTimeMillis();
+    history.add( now, frame );
+    updateStatus( frame );
+    for ( SampleListener listener : sampleListeners ) {
+      try {
+        listener.sampleTaken( this, now, frame );
+      } catch ( RuntimeException e ) {
+        Log.error( "Sample listener " + listener.getClass().getName() + " failed: " + e.getMessage() );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Run the result of the sample through the status tracker, adding an event
+   * only when the status really changes or starts or stops flapping.
+   *
+   * <p>Status changes are not reported while the status is flapping; the end
+   * of flapping is reported with the status it settled on. The first status
+   * of a healthy collector is not reported either.</p>
+   *
+   * <p>Going to ERROR also raises an alert, which the alert manager counts as
+   * a repeat while it is open. It is cleared once the status is CLEAR and no
+   * longer flapping.</p>
+   */
+  private void updateStatus( DataFrame sample ) {
+    boolean failed = sample.contains( Sample.ERROR );
+    MonitorEvent event = null;
+    MonitorAlert alert = null;
+    boolean cleared = false;
+
+    synchronized( tracker ) {
+      if ( failed ) {
+        put( LAST_ERROR, sample.getAsString( Sample.ERROR ) );
+      }
+
+      String before = tracker.getStatus();
+      boolean wasFlapping = tracker.isFlapping();
+      if ( !tracker.update( failed ) ) {
+        return;
+      }
+
+      String after = tracker.getStatus();
+      if ( !after.equals( before ) ) {
+        put( PREV_STATUS, before );
+        put( STATUS, after );
+        if ( ERROR_STATUS.equals( before ) && CLEAR_STATUS.equals( after ) ) {
+          setBounceCount( bounceCount + 1 );
+        }
+      }
+
+      if ( tracker.isFlapping() != wasFlapping ) {
+        put( FLAPPING, tracker.isFlapping() );
+        event = new MonitorEvent( tracker.isFlapping() ? "Status flapping" : "Status stopped flapping" );
+        event.put( STATUS, after );
+        event.put( "Changes", tracker.getChangeCount() );
+      } else if ( !after.equals( before ) && !tracker.isFlapping() && !( UNKNOWN_STATUS.equals( before ) && CLEAR_STATUS.equals( after ) ) ) {
+        event = new MonitorEvent( "Status changed" );
+        event.put( PREV_STATUS, before );
+        event.put( STATUS, after );
+      }
+
+      if ( ( event != null ) && ERROR_STATUS.equals( after ) ) {
+        event.setError( getAsString( LAST_ERROR ) );
+      }
+
+      if ( ERROR_STATUS.equals( after ) && !after.equals( before ) ) {
+        alert = new MonitorAlert();
+        alert.setCondition( ERROR_CONDITION );
+        alert.put( LAST_ERROR, getAsString( LAST_ERROR ) );
+      } else if ( CLEAR_STATUS.equals( after ) && !tracker.isFlapping() ) {
+        cleared = true;
+      }
+    }
+
+    if ( event != null ) {
+      addEvent( event );
+    }
+    if ( alert != null ) {
+      addAlert( alert );
+    } else if ( cleared ) {
+      AlertManager manager = alertManager;
+      if ( manager != null ) {
+        manager.clear( alertName, ERROR_CONDITION );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * @return a new tracker with the thresholds and flap detection of this
+   *         cache, for the parts of a collector with a status of their own
+   */
+  public StatusTracker createTracker() {
+    synchronized( tracker ) {
+      return tracker.copy();
+    }
+  }
+
+
+
+
+  /**
+   * @return CLEAR, ERROR or, until enough samples agree, UNKNOWN
+   */
+  public String getStatus() {
+    synchronized( tracker ) {
+      return tracker.getStatus();
+    }
+  }
+
+
+
+
+  /**
+   * @return true if the results of the samples have been changing too often
+   */
+  public boolean isFlapping() {
+    synchronized( tracker ) {
+      return tracker.isFlapping();
+    }
+  }
+
+
+
+
+  /**
+   * @param failures consecutive failed samples needed to go to ERROR
+   * @param successes consecutive good samples needed to go to CLEAR
+   */
+  public void setStatusThresholds( int failures, int successes ) {
+    synchronized( tracker ) {
+      tracker.setThresholds( failures, successes );
+    }
+  }
+
+
+
+
+  /**
+   * @param window the number of recent samples checked for flapping
+   * @param start the changes in the window at which flapping starts
+   * @param stop the changes in the window at or below which flapping stops
+   */
+  public void setFlapDetection( int window, int start, int stop ) {
+    synchronized( tracker ) {
+      tracker.setFlapDetection( window, start, stop );
+    }
+  }
+
+
+
+
+  /**
+   * @param listener told of each sample as it is placed in the cache
+   */
+  public void addSampleListener( SampleListener listener ) {
+    if ( listener != null ) {
+      sampleListeners.add( listener );
+    }
+  }
+
+
+
+
+  /**
+   * @param listener the listener to stop telling of samples
+   */
+  public void removeSampleListener( SampleListener listener ) {
+    sampleListeners.remove( listener );
   }
 
 
@@ -98,19 +389,126 @@ public class CollectorCache extends DataFrame {
 
 
 
+  /**
+   * @return the history of the recent samples
+   */
+  public SampleHistory getHistory() {
+    return history;
+  }
+
+
+
+
+  /**
+   * Change the size of the sample history, discarding the samples it holds.
+   *
+   * @param capacity the most samples held
+   * @param maxAge milliseconds a sample is held, 0 for as long as there is
+   *        room
+   */
+  public void setHistory( int capacity, long maxAge ) {
+    history = new SampleHistory( capacity, maxAge );
+  }
+
+
+
+
+  /**
+   * Remember a validator (such as an entity tag) the collector can use to ask
+   * if the monitored resource has changed since it was last retrieved.
+   *
+   * @param name the name of the validator
+   * @param value the value of the validator, null removes the validator
+   */
+  public synchronized void setValidator( String name, String value ) {
+    DataFrame validators = null;
+    try {
+      validators = getAsFrame( VALIDATORS );
+    } catch ( DataFrameException e ) {
+      // not a frame
+    }
+
+    if ( validators == null ) {
+      if ( value == null ) {
+        return;
+      }
+      validators = new DataFrame();
+      put( VALIDATORS, validators );
+    }
+
+    if ( value == null ) {
+      validators.remove( name );
+    } else {
+      validators.put( name, value );
+    }
+
+    CacheJournal log = journal;
+    if ( log != null ) {
+      log.logValidator( journalName, name, value );
+    }
+  }
+
+
+
+
+  /**
+   * @param name the name of the validator
+   *
+   * @return the value of the validator or null if none has been remembered
+   */
+  public synchronized String getValidator( String name ) {
+    try {
+      DataFrame validators = getAsFrame( VALIDATORS );
+      if ( validators != null ) {
+        return validators.getAsString( name );
+      }
+    } catch ( DataFrameException e ) {
+      // not a frame
+    }
+    return null;
+  }
+
+
+
+
   /**
    * Return the next event in the list of events in order of their occurence.
    *
    * @return the next event in the list, or null if the event list is empty.
    */
   public MonitorEvent getNextEvent() {
-    ListNode node = events.popNode();
+    MonitorEvent retval = events.poll();
+    CacheJournal log = journal;
+    if ( ( retval != null ) && ( log != null ) ) {
+      log.logEventTaken( journalName, retval.getIdentifier() );
+    }
+    return retval;
+  }
 
-    if ( node != null ) {
-      return (MonitorEvent)node.getObject();
+
+
+
+  /**
+   * Move the oldest events into the given collection.
+   *
+   * @param collection where the events are placed
+   * @param max the most events to move
+   *
+   * @return the number of events moved
+   */
+  public int drainEvents( Collection<? super MonitorEvent> collection, int max ) {
+    CacheJournal log = journal;
+    if ( log == null ) {
+      return events.drainTo( collection, max );
     }
 
-    return null;
+    List<MonitorEvent> taken = new ArrayList<MonitorEvent>();
+    int retval = events.drainTo( taken, max );
+    for ( int x = 0; x < taken.size(); x++ ) {
+      log.logEventTaken( journalName, taken.get( x ).getIdentifier() );
+    }
+    collection.addAll( taken );
+    return retval;
   }
 
 
@@ -119,26 +517,72 @@ public class CollectorCache extends DataFrame {
   /**
    * Add the event to our list of events.
    *
-   * <p>This method is synchronized to prevent multi-threaded applications from 
-   * possibly generating multiple events with the same identifier.</p> 
+   * <p>The identifier comes from a sequence shared by all the caches and is 
+   * taken atomically, so any number of threads may add events at once 
+   * without locking. If the list is full, the configured overflow policy 
+   * discards either this event or the oldest one.</p> 
    * 
    * @param evnt The event to add.
    * 
-   * @return The sequence identifier of the event or -1 if the event was null.
+   * @return The sequence identifier of the event or -1 if the event was null
+   *         or discarded.
    */
-  public synchronized long addEvent( MonitorEvent evnt ) {
+  public long addEvent( MonitorEvent evnt ) {
     if ( evnt == null ) {
       return -1;
     }
 
-    long retval = _eventSequence++;
+    long retval = _eventSequence.getAndIncrement();
     evnt.setIdentifier( retval );
 
-    // add the event to the list
-    events.add( evnt );
+    // recorded before it can be taken, so the removal is never logged first
+    CacheJournal log = journal;
+    if ( log != null ) {
+      log.logEventAdded( journalName, retval, evnt );
+    }
 
+    if ( log == null ) {
+      return events.offer( evnt ) ? retval : -1;
+    }
+
+    List<MonitorEvent> evicted = new ArrayList<MonitorEvent>( 1 );
+    boolean added = events.offer( evnt, evicted );
+    for ( int x = 0; x < evicted.size(); x++ ) {
+      log.logEventTaken( journalName, evicted.get( x ).getIdentifier() );
+    }
+    if ( !added ) {
+      log.logEventTaken( journalName, retval );
+      return -1;
+    }
     return retval;
+  }
+
+
+
+
+  /**
+   * Put back an event recovered from a journal, keeping its identifier.
+   *
+   * @param evnt the recovered event
+   */
+  public void restoreEvent( MonitorEvent evnt ) {
+    if ( evnt == null ) {
+      return;
+    }
 
+    CacheJournal log = journal;
+    if ( log == null ) {
+      events.offer( evnt );
+      return;
+    }
+
+    List<MonitorEvent> evicted = new ArrayList<MonitorEvent>( 1 );
+    if ( !events.offer( evnt, evicted ) ) {
+      log.logEventTaken( journalName, evnt.getIdentifier() );
+    }
+    for ( int x = 0; x < evicted.size(); x++ ) {
+      log.logEventTaken( journalName, evicted.get( x ).getIdentifier() );
+    }
   }
 
 
@@ -154,11 +598,363 @@ public class CollectorCache extends DataFrame {
 
 
 
+  /**
+   * @return the number of events discarded because the list was full
+   */
+  public long getDroppedEventCount() {
+    return events.getDroppedCount();
+  }
+
+
+
+
   /**
    * Clear out all the events in this MIB.
    */
   public void clearEvents() {
-    events.clear();
+    CacheJournal log = journal;
+    if ( log == null ) {
+      events.clear();
+      return;
+    }
+
+    MonitorEvent evnt;
+    while ( ( evnt = events.poll() ) != null ) {
+      log.logEventTaken( journalName, evnt.getIdentifier() );
+    }
+  }
+
+
+
+
+  /**
+   * Add the alert to our list of alerts, giving it the next identifier from 
+   * the sequence shared by all the caches.
+   * 
+   * <p>If an alert manager is set and an alert with the same condition is 
+   * already open, the open alert is updated instead and its identifier 
+   * returned.</p>
+   * 
+   * @param alert The alert to add.
+   * 
+   * @return The identifier of the alert or -1 if the alert was null or 
+   *         discarded.
+   */
+  public long addAlert( MonitorAlert alert ) {
+    if ( alert == null ) {
+      return -1;
+    }
+
+    AlertManager manager = alertManager;
+    if ( manager != null ) {
+      MonitorAlert open = manager.raise( alertName, this, alert );
+      return ( open != null ) ? open.getIdentifier() : -1;
+    }
+    return queueAlert( alert );
+  }
+
+
+
+
+  /**
+   * Give the alert the next identifier and add it to the list of alerts.
+   */
+  long queueAlert( MonitorAlert alert ) {
+    identifyAlert( alert );
+    awaitJournal( journalAlertAdded( alert ) );
+    return offerAlert( alert );
+  }
+
+
+
+
+  /**
+   * Give the alert the next identifier and make this cache its MIB.
+   */
+  void identifyAlert( MonitorAlert alert ) {
+    alert.put( MonitorAlert.ID, _alertSequence.getAndIncrement() );
+    alert.setMib( this );
+  }
+
+
+
+
+  /**
+   * Add an alert to the list of alerts, recording the removal of any alert
+   * the overflow policy discards.
+   *
+   * <p>Its addition must already be recorded, so the removal is never logged
+   * first.</p>
+   *
+   * @return the identifier of the alert or -1 if it was discarded
+   */
+  long offerAlert( MonitorAlert alert ) {
+    long retval = alertIdentifier( alert );
+
+    CacheJournal log = journal;
+    if ( log == null ) {
+      return alerts.offer( alert ) ? retval : -1;
+    }
+
+    List<MonitorAlert> evicted = new ArrayList<MonitorAlert>( 1 );
+    boolean added = alerts.offer( alert, evicted );
+    for ( int x = 0; x < evicted.size(); x++ ) {
+      log.logAlertTaken( journalName, alertIdentifier( evicted.get( x ) ) );
+    }
+    if ( !added ) {
+      log.logAlertTaken( journalName, retval );
+      return -1;
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Queue the record of an alert added, without waiting for it to be written,
+   * so the alert manager can record changes in order while it is locked and
+   * wait for them after.
+   *
+   * @return the ticket to pass to {@link #awaitJournal(long)}
+   */
+  long journalAlertAdded( MonitorAlert alert ) {
+    CacheJournal log = journal;
+    return ( log != null ) ? log.appendAlertAdded( journalName, alertIdentifier( alert ), alert ) : 0;
+  }
+
+
+
+
+  /**
+   * Queue the record of the current state of an open alert.
+   *
+   * @return the ticket to pass to {@link #awaitJournal(long)}
+   */
+  long journalAlertChanged( MonitorAlert alert ) {
+    CacheJournal log = journal;
+    return ( log != null ) ? log.appendAlertChanged( journalName, alertIdentifier( alert ), alert ) : 0;
+  }
+
+
+
+
+  /**
+   * Queue the record of an alert no longer open.
+   *
+   * @return the ticket to pass to {@link #awaitJournal(long)}
+   */
+  long journalAlertClosed( MonitorAlert alert ) {
+    CacheJournal log = journal;
+    return ( log != null ) ? log.appendAlertClosed( journalName, alertIdentifier( alert ) ) : 0;
+  }
+
+
+
+
+  /**
+   * Wait for a queued record if the journal writes synchronously.
+   */
+  void awaitJournal( long ticket ) {
+    CacheJournal log = journal;
+    if ( log != null ) {
+      log.await( ticket );
+    }
+  }
+
+
+
+
+  /**
+   * Put back an alert recovered from a journal, keeping its identifier.
+   *
+   * @param alert the recovered alert
+   */
+  public void restoreAlert( MonitorAlert alert ) {
+    if ( alert == null ) {
+      return;
+    }
+    alert.setMib( this );
+    offerAlert( alert );
+  }
+
+
+
+
+  /**
+   * Hand an alert recovered from a journal, which an alert manager held open,
+   * back to the alert manager so repeats of it update it instead of opening
+   * another. It is held until an alert manager is set.
+   *
+   * @param alert the recovered alert
+   */
+  public void reopenAlert( MonitorAlert alert ) {
+    if ( alert == null ) {
+      return;
+    }
+    alert.setMib( this );
+
+    AlertManager manager;
+    String name;
+    synchronized( reopened ) {
+      manager = alertManager;
+      name = alertName;
+      if ( manager == null ) {
+        reopened.add( alert );
+        return;
+      }
+    }
+    manager.restore( name, this, alert );
+  }
+
+
+
+
+  /**
+   * @return the oldest alert in the list, or null if there are none
+   */
+  public MonitorAlert getNextAlert() {
+    MonitorAlert retval = alerts.poll();
+    CacheJournal log = journal;
+    if ( ( retval != null ) && ( log != null ) ) {
+      log.logAlertTaken( journalName, alertIdentifier( retval ) );
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Move the oldest alerts into the given collection.
+   *
+   * @param collection where the alerts are placed
+   * @param max the most alerts to move
+   *
+   * @return the number of alerts moved
+   */
+  public int drainAlerts( Collection<? super MonitorAlert> collection, int max ) {
+    CacheJournal log = journal;
+    if ( log == null ) {
+      return alerts.drainTo( collection, max );
+    }
+
+    List<MonitorAlert> taken = new ArrayList<MonitorAlert>();
+    int retval = alerts.drainTo( taken, max );
+    for ( int x = 0; x < taken.size(); x++ ) {
+      log.logAlertTaken( journalName, alertIdentifier( taken.get( x ) ) );
+    }
+    collection.addAll( taken );
+    return retval;
+  }
+
+
+
+
+  /**
+   * Acknowledge an open alert of this cache, stopping its escalation.
+   *
+   * @param id the identifier of the alert
+   *
+   * @return false if the alert is not tracked by an alert manager
+   */
+  public boolean ackAlert( long id ) {
+    AlertManager manager = alertManager;
+    return ( manager != null ) && manager.ack( id );
+  }
+
+
+
+
+  private static long alertIdentifier( MonitorAlert alert ) {
+    try {
+      return alert.getAsLong( MonitorAlert.ID );
+    } catch ( DataFrameException e ) {
+      return -1;
+    }
+  }
+
+
+
+
+  /**
+   * @return The number of alerts in this MIB.
+   */
+  public int getAlertCount() {
+    return alerts.size();
+  }
+
+
+
+
+  /**
+   * Set how many events and alerts are held waiting to be read and what 
+   * happens when more arrive.
+   *
+   * <p>The events and alerts already held are moved, oldest first, into the
+   * new queues. Those the new limits leave no room for are discarded by the
+   * overflow policy and recorded as taken in the journal.</p>
+   *
+   * @param capacity the most events, and the most alerts, held
+   * @param overflow whether the newest or the oldest is discarded when full
+   */
+  public void setQueueLimits( int capacity, BoundedQueue.Overflow overflow ) {
+    BoundedQueue<MonitorEvent> oldEvents = events;
+    BoundedQueue<MonitorEvent> newEvents = new BoundedQueue<MonitorEvent>( capacity, overflow );
+    events = newEvents;
+
+    CacheJournal log = journal;
+    List<MonitorEvent> evicted = new ArrayList<MonitorEvent>( 1 );
+    MonitorEvent evnt;
+    while ( ( evnt = oldEvents.poll() ) != null ) {
+      evicted.clear();
+      if ( !newEvents.offer( evnt, evicted ) ) {
+        evicted.add( evnt );
+      }
+      for ( int x = 0; ( log != null ) && ( x < evicted.size() ); x++ ) {
+        log.logEventTaken( journalName, evicted.get( x ).getIdentifier() );
+      }
+    }
+
+    BoundedQueue<MonitorAlert> oldAlerts = alerts;
+    BoundedQueue<MonitorAlert> newAlerts = new BoundedQueue<MonitorAlert>( capacity, overflow );
+    alerts = newAlerts;
+
+    List<MonitorAlert> dropped = new ArrayList<MonitorAlert>( 1 );
+    MonitorAlert alert;
+    while ( ( alert = oldAlerts.poll() ) != null ) {
+      dropped.clear();
+      if ( !newAlerts.offer( alert, dropped ) ) {
+        dropped.add( alert );
+      }
+      for ( int x = 0; ( log != null ) && ( x < dropped.size() ); x++ ) {
+        log.logAlertTaken( journalName, alertIdentifier( dropped.get( x ) ) );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * @return the number of times the collector has gone from down to up
+   */
+  public int getBounceCount() {
+    return bounceCount;
+  }
+
+
+
+
+  /**
+   * @param count the number of times the collector has gone from down to up
+   */
+  public void setBounceCount( int count ) {
+    bounceCount = count;
+    CacheJournal log = journal;
+    if ( log != null ) {
+      log.logBounceCount( journalName, count );
+    }
   }
 
 
@@ -11,16 +11,28 @@
  */
 package coyote.monitor;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import coyote.commons.Version;
+import coyote.commons.network.socket.ssl.SSLContextCache;
 import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
 import coyote.loader.cfg.Config;
 import coyote.loader.component.ManagedComponent;
 import coyote.loader.log.Log;
 import coyote.loader.log.LogMsg;
 import coyote.loader.log.LogMsg.BundleBaseName;
+import coyote.monitor.export.Exporter;
+import coyote.monitor.query.QueryEngine;
 import coyote.monitor.sensor.Sensor;
+import coyote.monitor.store.CacheJournal;
+import coyote.monitor.store.Rollup;
+import coyote.monitor.store.TimeSeriesStore;
 
 
 /**
@@ -45,6 +57,30 @@ public class DefaultMonitor extends AbstractMonitor implements Monitor {
 
 
 
+  /** Records the state of the collector caches, null if not configured */
+  private CacheJournal journal = null;
+
+  /** Holds the rollups of the samples, null if not configured */
+  private TimeSeriesStore store = null;
+
+  /** Summarizes the samples of every collector into the store */
+  private Rollup rollup = null;
+
+  /** Whether the raw samples are written to the store as well */
+  private boolean storeSamples = false;
+
+  /** Ships samples and events elsewhere, null if not configured */
+  private Exporter exporter = null;
+
+  /** Keeps one open alert for each collector condition */
+  private AlertManager alertManager = null;
+
+  /** Answers questions about the samples of all the collectors */
+  private QueryEngine queryEngine = null;
+
+
+
+
   public DefaultMonitor() {}
 
 
@@ -70,9 +106,37 @@ public class DefaultMonitor extends AbstractMonitor implements Monitor {
     // very important to get park(millis) to operate
     current_thread = Thread.currentThread();
 
+    // Size the TLS session cache before any probe connects
+    configureTls();
+
+    // Recover the state the collectors had when we last stopped, reserving
+    // the identifiers already used, before any collector runs
+    openJournal();
+
+    // Track alerts so repeats update the open alert
+    openAlerts();
+
+    // Summarize samples into the time series store
+    openStore();
+
+    // Ship samples and events to the configured sinks
+    openExport();
+
+    // Allow the samples of all the collectors to be queried
+    openQuery();
+
     // Parse through the configuration and initialize all the components
     initComponents();
 
+    // Restore the state of each collector and hand its cache to the above
+    synchronized( components ) {
+      for ( Object cmpnt : components.keySet() ) {
+        if ( cmpnt instanceof Collector ) {
+          attach( (Collector)cmpnt );
+        }
+      }
+    }
+
     Log.info( LogMsg.createMsg( "Loader.components_initialized" ) );
 
     // By this time all loggers (including the catch-all logger) should be open
@@ -99,6 +163,16 @@ public class DefaultMonitor extends AbstractMonitor implements Monitor {
     // The watchdog loop has exited, so we are done processing
     terminateComponents();
 
+    closeQuery();
+
+    closeExport();
+
+    closeAlerts();
+
+    closeStore();
+
+    closeJournal();
+
     Log.info( LogMsg.createMsg( "Loader.terminated" ) );
 
     // Rename the thread back to what it was called before we were being run
@@ -109,6 +183,297 @@ public class DefaultMonitor extends AbstractMonitor implements Monitor {
 
 
 
+  /**
+   * Attach the cache of a collector to the journal, which restores its
+   * recorded state, and then to everything else which uses it.
+   */
+  private void attach( Collector collector ) {
+    String name = collector.getName();
+    CollectorCache cache = collector.getCache();
+    if ( journal != null ) {
+      journal.attach( name, cache );
+    }
+    if ( alertManager != null ) {
+      alertManager.attach( name, cache );
+    }
+    if ( rollup != null ) {
+      rollup.attach( name, cache );
+      if ( storeSamples ) {
+        store.attach( name, cache );
+      }
+    }
+    if ( exporter != null ) {
+      exporter.attach( name, cache );
+    }
+    if ( queryEngine != null ) {
+      queryEngine.attach( name, cache );
+    }
+  }
+
+
+
+
+  /**
+   * Detach the cache of a collector being replaced from everything it was
+   * attached to, so nothing holds on to it.
+   */
+  private void detach( Collector collector ) {
+    String name = collector.getName();
+    CollectorCache cache = collector.getCache();
+    if ( queryEngine != null ) {
+      queryEngine.detach( name );
+    }
+    if ( exporter != null ) {
+      exporter.detach( name, cache );
+    }
+    if ( rollup != null ) {
+      rollup.detach( name, cache );
+      if ( storeSamples ) {
+        store.detach( name, cache );
+      }
+    }
+    if ( alertManager != null ) {
+      alertManager.detach( name, cache );
+    }
+    if ( journal != null ) {
+      journal.detach( name, cache );
+    }
+  }
+
+
+
+
+  /**
+   * Apply any TLS session cache settings to the contexts shared by all the
+   * secure connections.
+   */
+  private void configureTls() {
+    if ( configuration == null ) {
+      return;
+    }
+
+    try {
+      if ( configuration.contains( MonitorConfig.TLS_SESSION_CACHE_SIZE ) ) {
+        SSLContextCache.setSessionCacheSize( configuration.getAsInt( MonitorConfig.TLS_SESSION_CACHE_SIZE ) );
+      }
+      if ( configuration.contains( MonitorConfig.TLS_SESSION_TIMEOUT ) ) {
+        SSLContextCache.setSessionTimeout( configuration.getAsInt( MonitorConfig.TLS_SESSION_TIMEOUT ) );
+      }
+    } catch ( DataFrameException e ) {
+      Log.error( LogMsg.createMsg( "Monitor.tls_config_error", e.getMessage() ) );
+    }
+  }
+
+
+
+
+  /**
+   * Open the cache journal if one is configured, recovering the state
+   * recorded there for the collectors attached later.
+   */
+  private void openJournal() {
+    if ( ( configuration == null ) || !configuration.contains( MonitorConfig.JOURNAL ) ) {
+      return;
+    }
+
+    String directory = configuration.getAsString( MonitorConfig.JOURNAL );
+    journal = new CacheJournal( new File( directory ) );
+    if ( configuration.contains( MonitorConfig.JOURNAL_SYNC ) ) {
+      String policy = configuration.getAsString( MonitorConfig.JOURNAL_SYNC );
+      for ( CacheJournal.Sync sync : CacheJournal.Sync.values() ) {
+        if ( sync.name().equalsIgnoreCase( policy ) ) {
+          journal.setSync( sync );
+        }
+      }
+    }
+
+    try {
+      journal.open();
+    } catch ( IOException e ) {
+      Log.error( LogMsg.createMsg( "Monitor.journal_open_error", directory, e.getMessage() ) );
+      journal = null;
+    }
+  }
+
+
+
+
+  /**
+   * Write out the last of the journal and close it.
+   */
+  private void closeJournal() {
+    if ( journal != null ) {
+      try {
+        journal.close();
+      } catch ( IOException e ) {
+        Log.error( LogMsg.createMsg( "Monitor.journal_close_error", configuration.getAsString( MonitorConfig.JOURNAL ), e.getMessage() ) );
+      }
+      journal = null;
+    }
+  }
+
+
+
+
+  /**
+   * Open the time series store if one is configured to summarize the samples
+   * of the collectors into, also writing the raw samples if configured to.
+   */
+  private void openStore() {
+    if ( ( configuration == null ) || !configuration.contains( MonitorConfig.STORE ) ) {
+      return;
+    }
+
+    String directory = configuration.getAsString( MonitorConfig.STORE );
+    store = new TimeSeriesStore( new File( directory ) );
+    try {
+      store.open();
+    } catch ( IOException e ) {
+      Log.error( LogMsg.createMsg( "Monitor.store_open_error", directory, e.getMessage() ) );
+      store = null;
+      return;
+    }
+
+    storeSamples = "true".equalsIgnoreCase( configuration.getAsString( MonitorConfig.STORE_SAMPLES ) );
+    rollup = new Rollup( store );
+  }
+
+
+
+
+  /**
+   * Write the open rollup buckets and close the store.
+   */
+  private void closeStore() {
+    if ( store != null ) {
+      rollup.close();
+      try {
+        store.close();
+      } catch ( IOException e ) {
+        Log.error( LogMsg.createMsg( "Monitor.store_close_error", configuration.getAsString( MonitorConfig.STORE ), e.getMessage() ) );
+      }
+      rollup = null;
+      store = null;
+    }
+  }
+
+
+
+
+  /**
+   * Start an alert manager to route the alerts of the collectors through so
+   * repeated alerts update the one open alert and unacknowledged alerts
+   * escalate.
+   */
+  private void openAlerts() {
+    alertManager = new AlertManager();
+    if ( configuration != null ) {
+      try {
+        if ( configuration.contains( MonitorConfig.ALERT_EXPIRY ) ) {
+          alertManager.setExpiry( configuration.getAsLong( MonitorConfig.ALERT_EXPIRY ) );
+        }
+        if ( configuration.contains( MonitorConfig.ALERT_ESCALATION ) ) {
+          alertManager.setEscalation( configuration.getAsLong( MonitorConfig.ALERT_ESCALATION ) );
+        }
+      } catch ( DataFrameException e ) {
+        Log.error( LogMsg.createMsg( "Monitor.alert_config_error", e.getMessage() ) );
+      }
+    }
+    alertManager.start();
+  }
+
+
+
+
+  /**
+   * Stop expiring and escalating alerts.
+   */
+  private void closeAlerts() {
+    if ( alertManager != null ) {
+      alertManager.stop();
+      alertManager = null;
+    }
+  }
+
+
+
+
+  /**
+   * Start an exporter for the samples and events of the collectors if an
+   * export section is configured.
+   */
+  private void openExport() {
+    if ( ( configuration == null ) || !configuration.contains( MonitorConfig.EXPORT ) ) {
+      return;
+    }
+
+    DataFrame section = null;
+    try {
+      section = configuration.getAsFrame( MonitorConfig.EXPORT );
+    } catch ( DataFrameException e ) {
+      // not a section
+    }
+    if ( section == null ) {
+      Log.error( LogMsg.createMsg( "Monitor.export_config_error", MonitorConfig.EXPORT ) );
+      return;
+    }
+
+    exporter = new Exporter();
+    exporter.configure( section );
+    exporter.start();
+  }
+
+
+
+
+  /**
+   * Send what has been gathered and stop exporting.
+   */
+  private void closeExport() {
+    if ( exporter != null ) {
+      exporter.stop( 5000 );
+      exporter = null;
+    }
+  }
+
+
+
+
+  /**
+   * Start the engine making the samples of the collectors available to
+   * queries.
+   */
+  private void openQuery() {
+    queryEngine = new QueryEngine();
+  }
+
+
+
+
+  /**
+   * Stop the query worker threads.
+   */
+  private void closeQuery() {
+    if ( queryEngine != null ) {
+      queryEngine.shutdown();
+      queryEngine = null;
+    }
+  }
+
+
+
+
+  /**
+   * @return the engine answering queries over the samples of the collectors,
+   *         null if the monitor is not running
+   */
+  public QueryEngine getQueryEngine() {
+    return queryEngine;
+  }
+
+
+
+
   /**
    * This overrides the main watchdog loop as it needs to handle Probes and 
    * Sensors differently.
@@ -127,6 +492,7 @@ public class DefaultMonitor extends AbstractMonitor implements Monitor {
       // Make sure that all this loaders are active, otherwise remove the
       // reference to them and allow GC to remove them from memory
       synchronized( components ) {
+        List<Config> reloads = new ArrayList<Config>();
         for ( final Iterator<Object> it = components.keySet().iterator(); it.hasNext(); ) {
           final Object cmpnt = it.next();
           if ( cmpnt instanceof ManagedComponent ) {
@@ -143,11 +509,25 @@ public class DefaultMonitor extends AbstractMonitor implements Monitor {
               // try to shut it down properly
               safeShutdown( (ManagedComponent)cmpnt, frame );
 
+              // let go of its cache, the new one takes over its state
+              if ( cmpnt instanceof Collector ) {
+                detach( (Collector)cmpnt );
+              }
+
               // remove the component
               it.remove();
 
-              // re-load the component
-              loadComponent( config );
+              // re-load the component once we are done iterating
+              reloads.add( config );
+            }
+          }
+        }
+
+        for ( Config config : reloads ) {
+          loadComponent( config );
+          for ( Map.Entry<Object, Config> entry : components.entrySet() ) {
+            if ( ( entry.getValue() == config ) && ( entry.getKey() instanceof Collector ) ) {
+              attach( (Collector)entry.getKey() );
             }
           }
         }
@@ -169,6 +549,11 @@ public class DefaultMonitor extends AbstractMonitor implements Monitor {
         this.shutdown();
       }
 
+      // Close the rollup buckets of collectors which have gone quiet
+      if ( rollup != null ) {
+        rollup.flush( System.currentTimeMillis() );
+      }
+
       // Yield to other threads and sleep(wait) for a time
       park( parkTime );
 
@@ -28,6 +28,18 @@ public class MonitorAlert extends DataFrame {
   public static final String TIMESTAMP = "Timestamp";
   public static final String ID = "ID";
 
+  /** What is wrong, which with the collector identifies repeats of an alert */
+  public static final String CONDITION = "Condition";
+
+  /** The name of the collector which raised the alert */
+  public static final String COLLECTOR = "Collector";
+
+  /** The number of times the alert has been raised while open */
+  public static final String COUNT = "Count";
+
+  /** When the alert was last raised */
+  public static final String LAST_SEEN = "LastSeen";
+
   private boolean acknowledged = false;
   private long expires = 0;
   private int level = 0;
@@ -176,23 +188,63 @@ public class MonitorAlert extends DataFrame {
 
 
   /**
-   * Method ack
+   * Acknowledge the alert, stopping its escalation.
    */
   public void ack() {
-    //    if( mib != null )
-    //    {
-    //      mib.ackAlert( getIdentifier() );
-    //    }
+    if ( ( mib == null ) || !mib.ackAlert( getIdentifier() ) ) {
+      setAcknowledged( true );
+    }
   }
 
 
 
 
   /**
-   * @return
+   * @param condition what is wrong, the same text each time the same problem
+   *        is found so repeats are recognized
    */
-  private String getIdentifier() {
-    return getAsString( ID );
+  public void setCondition( String condition ) {
+    put( CONDITION, condition );
+  }
+
+
+
+
+  /**
+   * @return what is wrong, or the type of the alert if no condition was set
+   */
+  public String getCondition() {
+    String retval = getAsString( CONDITION );
+    return ( retval != null ) ? retval : getAsString( TYPE );
+  }
+
+
+
+
+  /**
+   * @return the number of times the alert has been raised while open
+   */
+  public long getCount() {
+    try {
+      return contains( COUNT ) ? getAsLong( COUNT ) : 1;
+    } catch ( DataFrameException e ) {
+      return 1;
+    }
+  }
+
+
+
+
+  /**
+   * @return the identifier given to the alert when it was added to a cache, 
+   *         or -1 if it has none
+   */
+  public long getIdentifier() {
+    try {
+      return contains( ID ) ? getAsLong( ID ) : -1;
+    } catch ( DataFrameException e ) {
+      return -1;
+    }
   }
 
 }
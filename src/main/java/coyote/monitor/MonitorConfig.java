@@ -47,5 +47,59 @@ public class MonitorConfig {
   
   public static final String ERROR_INTERVAL = "ErrorInterval";
 
+  /** The number of recent samples kept in the history of each collector */
+  public static final String HISTORY_SIZE = "HistorySize";
+
+  /** The number of milliseconds samples are kept in the history */
+  public static final String HISTORY_AGE = "HistoryAge";
+
+  /** The number of events (and of alerts) held waiting to be read */
+  public static final String QUEUE_LIMIT = "QueueLimit";
+
+  /** What is discarded when the queue is full, "DropOldest" or "DropNewest" */
+  public static final String QUEUE_OVERFLOW = "QueueOverflow";
+
+  /** The number of consecutive failed samples which put a collector in ERROR */
+  public static final String FAILURE_THRESHOLD = "FailureThreshold";
+
+  /** The number of consecutive good samples which clear a collector */
+  public static final String RECOVERY_THRESHOLD = "RecoveryThreshold";
+
+  /** The number of recent samples checked for flapping */
+  public static final String FLAP_WINDOW = "FlapWindow";
+
+  /** The status changes in the flap window at which flapping starts */
+  public static final String FLAP_START = "FlapStart";
+
+  /** The status changes in the flap window at or below which flapping stops */
+  public static final String FLAP_STOP = "FlapStop";
+
+  /** The directory in which the state of the collector caches is journaled */
+  public static final String JOURNAL = "Journal";
+
+  /** When the journal is forced to disk, "Always", "Interval" or "Never" */
+  public static final String JOURNAL_SYNC = "JournalSync";
+
+  /** The directory of the time series store the sample rollups are kept in */
+  public static final String STORE = "Store";
+
+  /** True to also write every raw sample to the time series store */
+  public static final String STORE_SAMPLES = "StoreSamples";
+
+  /** The section configuring the export of samples and events */
+  public static final String EXPORT = "Export";
+
+  /** The number of TLS sessions cached for resumption, 0 for no limit */
+  public static final String TLS_SESSION_CACHE_SIZE = "TlsSessionCacheSize";
+
+  /** Seconds a cached TLS session may be resumed, 0 for no limit */
+  public static final String TLS_SESSION_TIMEOUT = "TlsSessionTimeout";
+
+  /** Milliseconds an alert stays open after it was last raised */
+  public static final String ALERT_EXPIRY = "AlertExpiry";
+
+  /** Milliseconds an unacknowledged alert waits before going up a level */
+  public static final String ALERT_ESCALATION = "AlertEscalation";
+
 
 }
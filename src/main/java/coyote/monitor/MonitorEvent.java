@@ -216,4 +216,19 @@ public class MonitorEvent extends DataFrame implements Describable, Described {
     put( IDENTIFIER, id );
   }
 
+
+
+
+  /**
+   * @return the sequence identifier given to the event when it was added to
+   *         a cache, or -1 if it has none
+   */
+  public long getIdentifier() {
+    try {
+      return contains( IDENTIFIER ) ? getAsLong( IDENTIFIER ) : -1;
+    } catch ( DataFrameException e ) {
+      return -1;
+    }
+  }
+
 }
\ No newline at end of file
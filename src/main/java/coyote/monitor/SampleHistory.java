@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import coyote.dataframe.DataField;
+import coyote.dataframe.DataFrame;
+
+
+/**
+ * A bounded history of the recent samples of one collector.
+ *
+ * <p>The history is a ring buffer allocated once for its capacity. Only the
+ * numeric (and boolean, as 1 or 0) fields at the top level of each sample are
+ * kept, each in its own column of doubles beside a column of timestamps, so a
+ * history costs about {@code capacity * (9 + 8 * fields)} bytes no matter how
+ * many samples pass through it. Fields missing from a sample are recorded as
+ * {@code NaN}. Text and nested frames are not kept; the whole of the last
+ * sample remains available from the {@link CollectorCache}.</p>
+ *
+ * <p>When the buffer is full the oldest sample is overwritten. If a maximum
+ * age is set, samples older than that are also dropped, so the history holds
+ * whichever is smaller: the capacity or the samples within the age.</p>
+ *
+ * <p>Timestamps never decrease (a sample recorded with an earlier time than
+ * the newest takes the newest time), so range queries are binary searches.</p>
+ */
+public class SampleHistory {
+
+  /** The default number of samples (120) kept for each collector */
+  public static final int DEFAULT_CAPACITY = 120;
+
+  /** The most fields recorded; fields first seen after this are ignored */
+  public static final int MAX_COLUMNS = 64;
+
+  private final int capacity;
+
+  /** Milliseconds a sample is kept, 0 for as long as there is room */
+  private volatile long maxAge;
+
+  private final long[] timestamps;
+
+  private final boolean[] errors;
+
+  /** The column of values for each field in the order first seen */
+  private final Map<String, double[]> columns = new LinkedHashMap<String, double[]>();
+
+  /** The slot of the oldest sample */
+  private int head = 0;
+
+  /** The number of samples held */
+  private int size = 0;
+
+
+
+
+  /**
+   * Create a history holding the default number of samples with no limit on
+   * their age.
+   */
+  public SampleHistory() {
+    this( DEFAULT_CAPACITY, 0 );
+  }
+
+
+
+
+  /**
+   * @param capacity the most samples held
+   * @param maxAge milliseconds a sample is kept, 0 for as long as there is
+   *        room
+   */
+  public SampleHistory( int capacity, long maxAge ) {
+    this.capacity = Math.max( 1, capacity );
+    this.maxAge = Math.max( 0, maxAge );
+    timestamps = new long[this.capacity];
+    errors = new boolean[this.capacity];
+  }
+
+
+
+
+  /**
+   * Record a sample.
+   *
+   * @param time the time of the sample in epoch milliseconds
+   * @param sample the sample
+   */
+  public synchronized void add( long time, DataFrame sample ) {
+    if ( ( size > 0 ) && ( time < timestamps[slot( size - 1 )] ) ) {
+      time = timestamps[slot( size - 1 )];
+    }
+
+    int slot;
+    if ( size < capacity ) {
+      slot = slot( size++ );
+    } else {
+      slot = head;
+      head = ( head + 1 ) % capacity;
+    }
+
+    timestamps[slot] = time;
+    errors[slot] = sample.contains( Sample.ERROR );
+
+    for ( double[] column : columns.values() ) {
+      column[slot] = Double.NaN;
+    }
+
+    for ( int x = 0; x < sample.getFieldCount(); x++ ) {
+      DataField field = sample.getField( x );
+      String name = field.getName();
+      Object value = field.getObjectValue();
+      if ( ( name == null ) || !( ( value instanceof Number ) || ( value instanceof Boolean ) ) ) {
+        continue;
+      }
+
+      double[] column = columns.get( name );
+      if ( column == null ) {
+        if ( columns.size() >= MAX_COLUMNS ) {
+          continue;
+        }
+        column = new double[capacity];
+        Arrays.fill( column, Double.NaN );
+        columns.put( name, column );
+      }
+
+      if ( value instanceof Boolean ) {
+        column[slot] = ( (Boolean)value ).booleanValue() ? 1D : 0D;
+      } else {
+        column[slot] = ( (Number)value ).doubleValue();
+      }
+    }
+
+    expire( time );
+  }
+
+
+
+
+  /**
+   * @return the number of samples held
+   */
+  public synchronized int size() {
+    expire( System.currentTimeMillis() );
+    return size;
+  }
+
+
+
+
+  /**
+   * @return the most samples held
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+
+
+
+  /**
+   * @return milliseconds a sample is kept, 0 for as long as there is room
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+
+
+
+  /**
+   * @param millis milliseconds a sample is kept, 0 for as long as there is
+   *        room
+   */
+  public void setMaxAge( long millis ) {
+    maxAge = Math.max( 0, millis );
+  }
+
+
+
+
+  /**
+   * @return the names of the fields recorded, in the order first seen
+   */
+  public synchronized String[] getFieldNames() {
+    return columns.keySet().toArray( new String[columns.size()] );
+  }
+
+
+
+
+  /**
+   * @return the time of the oldest sample held, -1 if there are none
+   */
+  public synchronized long getOldest() {
+    expire( System.currentTimeMillis() );
+    return ( size == 0 ) ? -1 : timestamps[head];
+  }
+
+
+
+
+  /**
+   * @return the time of the newest sample held, -1 if there are none
+   */
+  public synchronized long getNewest() {
+    expire( System.currentTimeMillis() );
+    return ( size == 0 ) ? -1 : timestamps[slot( size - 1 )];
+  }
+
+
+
+
+  /**
+   * Count the samples taken in a range of time.
+   *
+   * @param from the start of the range, inclusive
+   * @param to the end of the range, exclusive
+   *
+   * @return the number of samples taken in the range
+   */
+  public synchronized int count( long from, long to ) {
+    expire( System.currentTimeMillis() );
+    return Math.max( 0, lowerBound( to ) - lowerBound( from ) );
+  }
+
+
+
+
+  /**
+   * Return the values of one field over a range of time.
+   *
+   * @param field the name of the field
+   * @param from the start of the range, inclusive
+   * @param to the end of the range, exclusive
+   *
+   * @return the samples in the range, oldest first; the values are all
+   *         {@code NaN} if the field was never recorded
+   */
+  public synchronized Series getSeries( String field, long from, long to ) {
+    expire( System.currentTimeMillis() );
+    int first = lowerBound( from );
+    return copy( field, first, Math.max( 0, lowerBound( to ) - first ) );
+  }
+
+
+
+
+  /**
+   * Return the most recent values of one field.
+   *
+   * @param field the name of the field
+   * @param count the most samples to return
+   *
+   * @return up to the given number of the newest samples, oldest first
+   */
+  public synchronized Series getLatest( String field, int count ) {
+    expire( System.currentTimeMillis() );
+    int length = Math.min( size, Math.max( 0, count ) );
+    return copy( field, size - length, length );
+  }
+
+
+
+
+  /**
+   * Return the values of several fields over a range of time, copied under
+   * one lock so the series line up sample for sample.
+   *
+   * @param fields the names of the fields
+   * @param from the start of the range, inclusive
+   * @param to the end of the range, exclusive
+   *
+   * @return one series for each field, in the order given
+   */
+  public synchronized Series[] getSeries( String[] fields, long from, long to ) {
+    expire( System.currentTimeMillis() );
+    int first = lowerBound( from );
+    int length = Math.max( 0, lowerBound( to ) - first );
+    Series[] retval = new Series[fields.length];
+    for ( int x = 0; x < fields.length; x++ ) {
+      retval[x] = copy( fields[x], first, length );
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Return the most recent values of several fields, copied under one lock so
+   * the series line up sample for sample.
+   *
+   * @param fields the names of the fields
+   * @param count the most samples to return
+   *
+   * @return one series for each field, in the order given
+   */
+  public synchronized Series[] getLatest( String[] fields, int count ) {
+    expire( System.currentTimeMillis() );
+    int length = Math.min( size, Math.max( 0, count ) );
+    Series[] retval = new Series[fields.length];
+    for ( int x = 0; x < fields.length; x++ ) {
+      retval[x] = copy( fields[x], size - length, length );
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Copy the values of a field out of the buffer.
+   *
+   * @param first the position of the first sample counting from the oldest
+   * @param length the number of samples
+   */
+  private Series copy( String field, int first, int length ) {
+    double[] column = columns.get( field );
+    long[] times = new long[length];
+    double[] values = new double[length];
+    boolean[] failed = new boolean[length];
+
+    for ( int x = 0; x < length; x++ ) {
+      int slot = slot( first + x );
+      times[x] = timestamps[slot];
+      values[x] = ( column != null ) ? column[slot] : Double.NaN;
+      failed[x] = errors[slot];
+    }
+
+    return new Series( field, times, values, failed );
+  }
+
+
+
+
+  /**
+   * Drop all the samples.
+   */
+  public synchronized void clear() {
+    head = 0;
+    size = 0;
+  }
+
+
+
+
+  /**
+   * Drop the samples older than the maximum age.
+   */
+  private void expire( long now ) {
+    if ( ( maxAge > 0 ) && ( size > 0 ) ) {
+      int drop = lowerBound( now - maxAge );
+      head = slot( drop );
+      size -= drop;
+    }
+  }
+
+
+
+
+  /**
+   * @return the position, counting from the oldest, of the first sample taken
+   *         at or after the given time; the size if there is none
+   */
+  private int lowerBound( long time ) {
+    int low = 0;
+    int high = size;
+    while ( low < high ) {
+      int mid = ( low + high ) >>> 1;
+      if ( timestamps[slot( mid )] < time ) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+
+
+
+  /**
+   * @return the slot of the sample at the given position counting from the
+   *         oldest
+   */
+  private int slot( int position ) {
+    return ( head + position ) % capacity;
+  }
+
+  /**
+   * The values of one field over a range of time, copied out of the history.
+   */
+  public static final class Series {
+    private final String name;
+    private final long[] times;
+    private final double[] values;
+    private final boolean[] errors;
+
+
+
+
+    /**
+     * Create a series of values without error flags.
+     *
+     * @param name the name of the field
+     * @param times the time of each value, oldest first
+     * @param values the values
+     */
+    public Series( String name, long[] times, double[] values ) {
+      this( name, times, values, new boolean[times.length] );
+    }
+
+
+
+
+    Series( String name, long[] times, double[] values, boolean[] errors ) {
+      this.name = name;
+      this.times = times;
+      this.values = values;
+      this.errors = errors;
+    }
+
+
+
+
+    /**
+     * @return the name of the field
+     */
+    public String getName() {
+      return name;
+    }
+
+
+
+
+    /**
+     * @return the number of samples in the series
+     */
+    public int size() {
+      return times.length;
+    }
+
+
+
+
+    /**
+     * @param index the position of the sample, 0 being the oldest
+     *
+     * @return the time the sample was taken in epoch milliseconds
+     */
+    public long getTimestamp( int index ) {
+      return times[index];
+    }
+
+
+
+
+    /**
+     * @param index the position of the sample, 0 being the oldest
+     *
+     * @return the value of the field, {@code NaN} if the sample did not have it
+     */
+    public double getValue( int index ) {
+      return values[index];
+    }
+
+
+
+
+    /**
+     * @param index the position of the sample, 0 being the oldest
+     *
+     * @return true if the sample contained an error
+     */
+    public boolean isError( int index ) {
+      return errors[index];
+    }
+
+
+
+
+    /**
+     * @return the number of samples with a value for the field
+     */
+    public int getValueCount() {
+      int retval = 0;
+      for ( int x = 0; x < values.length; x++ ) {
+        if ( !Double.isNaN( values[x] ) ) {
+          retval++;
+        }
+      }
+      return retval;
+    }
+
+
+
+
+    /**
+     * @return the smallest value, {@code NaN} if there are none
+     */
+    public double getMinimum() {
+      double retval = Double.NaN;
+      for ( int x = 0; x < values.length; x++ ) {
+        if ( !Double.isNaN( values[x] ) && ( Double.isNaN( retval ) || ( values[x] < retval ) ) ) {
+          retval = values[x];
+        }
+      }
+      return retval;
+    }
+
+
+
+
+    /**
+     * @return the largest value, {@code NaN} if there are none
+     */
+    public double getMaximum() {
+      double retval = Double.NaN;
+      for ( int x = 0; x < values.length; x++ ) {
+        if ( !Double.isNaN( values[x] ) && ( Double.isNaN( retval ) || ( values[x] > retval ) ) ) {
+          retval = values[x];
+        }
+      }
+      return retval;
+    }
+
+
+
+
+    /**
+     * @return the mean of the values, {@code NaN} if there are none
+     */
+    public double getAverage() {
+      double sum = 0;
+      int count = 0;
+      for ( int x = 0; x < values.length; x++ ) {
+        if ( !Double.isNaN( values[x] ) ) {
+          sum += values[x];
+          count++;
+        }
+      }
+      return ( count == 0 ) ? Double.NaN : sum / count;
+    }
+  }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ * 
+ * This program and the accompanying materials are made available under the 
+ * terms of the MIT License which accompanies this distribution, and is 
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote 
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor;
+
+import coyote.dataframe.DataFrame;
+
+
+/**
+ * Receives each sample as it is placed in a collector cache.
+ * 
+ * <p>Listeners are called on the thread of the collector, so they should do 
+ * little more than record the sample and return.</p>
+ */
+public interface SampleListener {
+
+  /**
+   * @param cache the cache the sample was placed in
+   * @param time the time the sample was taken in epoch milliseconds
+   * @param sample the sample
+   */
+  public void sampleTaken( CollectorCache cache, long time, DataFrame sample );
+
+}
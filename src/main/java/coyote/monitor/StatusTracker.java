@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor;
+
+/**
+ * Decides the status of a collector from the results of its samples.
+ *
+ * <p>A single failed sample does not make a collector ERROR; it takes a run
+ * of consecutive failures, and a run of consecutive successes to clear it
+ * again. Until the first run completes the status is UNKNOWN.</p>
+ *
+ * <p>The tracker also remembers, for a window of the most recent samples,
+ * which ones differed from the sample before them. When too many in the
+ * window did, the collector is flapping; it stops flapping only when far
+ * fewer do, so it does not flap in and out of flapping.</p>
+ *
+ * <p>This class is not thread safe; the cache updates it from one thread at
+ * a time.</p>
+ */
+public final class StatusTracker {
+
+  /** The default number of consecutive failed samples (3) to go to ERROR */
+  public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+  /** The default number of consecutive good samples (2) to go to CLEAR */
+  public static final int DEFAULT_RECOVERY_THRESHOLD = 2;
+
+  /** The default number of recent samples (20) checked for flapping */
+  public static final int DEFAULT_FLAP_WINDOW = 20;
+
+  /** The default number of changes in the window (10) which start flapping */
+  public static final int DEFAULT_FLAP_START = 10;
+
+  /** The default number of changes in the window (5) which end flapping */
+  public static final int DEFAULT_FLAP_STOP = 5;
+
+  private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+  private int recoveryThreshold = DEFAULT_RECOVERY_THRESHOLD;
+
+  private int flapStart = DEFAULT_FLAP_START;
+
+  private int flapStop = DEFAULT_FLAP_STOP;
+
+  private String status = CollectorCache.UNKNOWN_STATUS;
+
+  /** Consecutive samples with the same result as the last */
+  private int run = 0;
+
+  private boolean lastFailed = false;
+
+  /** Whether each of the recent samples differed from the one before it */
+  private boolean[] changes = new boolean[DEFAULT_FLAP_WINDOW];
+
+  /** Where the next sample goes in the window */
+  private int position = 0;
+
+  /** The number of samples in the window which differed */
+  private int changeCount = 0;
+
+  /** The number of samples seen, to tell the first from a change */
+  private long samples = 0;
+
+  private boolean flapping = false;
+
+
+
+
+  /**
+   * Account for the result of one sample.
+   *
+   * @param failed true if the sample had an error
+   *
+   * @return true if the status or the flapping state changed
+   */
+  public boolean update( boolean failed ) {
+    boolean changed = ( samples++ > 0 ) && ( failed != lastFailed );
+    run = ( changed || ( samples == 1 ) ) ? 1 : run + 1;
+    lastFailed = failed;
+
+    // slide the window, keeping the count of changes in it
+    if ( changes[position] ) {
+      changeCount--;
+    }
+    changes[position] = changed;
+    if ( changed ) {
+      changeCount++;
+    }
+    position = ( position + 1 ) % changes.length;
+
+    String before = status;
+    if ( failed && ( run >= failureThreshold ) ) {
+      status = CollectorCache.ERROR_STATUS;
+    } else if ( !failed && ( run >= recoveryThreshold ) ) {
+      status = CollectorCache.CLEAR_STATUS;
+    }
+
+    boolean wasFlapping = flapping;
+    if ( !flapping && ( changeCount >= flapStart ) ) {
+      flapping = true;
+    } else if ( flapping && ( changeCount <= flapStop ) ) {
+      flapping = false;
+    }
+
+    return !status.equals( before ) || ( flapping != wasFlapping );
+  }
+
+
+
+
+  /**
+   * @return CLEAR, ERROR or, until enough samples agree, UNKNOWN
+   */
+  public String getStatus() {
+    return status;
+  }
+
+
+
+
+  /**
+   * @return true if the results of the samples have been changing too often
+   */
+  public boolean isFlapping() {
+    return flapping;
+  }
+
+
+
+
+  /**
+   * @return the number of the recent samples which differed from the one
+   *         before them
+   */
+  public int getChangeCount() {
+    return changeCount;
+  }
+
+
+
+
+  /**
+   * @return a tracker with the same thresholds and flap detection which has
+   *         seen no samples
+   */
+  public StatusTracker copy() {
+    StatusTracker retval = new StatusTracker();
+    retval.setThresholds( failureThreshold, recoveryThreshold );
+    retval.setFlapDetection( changes.length, flapStart, flapStop );
+    return retval;
+  }
+
+
+
+
+  /**
+   * @param failures consecutive failed samples needed to go to ERROR
+   * @param successes consecutive good samples needed to go to CLEAR
+   */
+  public void setThresholds( int failures, int successes ) {
+    failureThreshold = Math.max( 1, failures );
+    recoveryThreshold = Math.max( 1, successes );
+  }
+
+
+
+
+  /**
+   * Change the flap detection, forgetting the changes seen so far.
+   *
+   * @param window the number of recent samples checked
+   * @param start the changes in the window at which flapping starts
+   * @param stop the changes in the window at or below which flapping stops
+   */
+  public void setFlapDetection( int window, int start, int stop ) {
+    changes = new boolean[Math.max( 1, window )];
+    position = 0;
+    changeCount = 0;
+    flapStart = Math.max( 1, start );
+    flapStop = Math.min( Math.max( 0, stop ), flapStart - 1 );
+    flapping = false;
+  }
+
+}
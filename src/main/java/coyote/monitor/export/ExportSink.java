@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.export;
+
+import java.io.IOException;
+
+
+/**
+ * Somewhere batches of exported samples and events are sent.
+ *
+ * <p>Each sink is called from a thread of its own, so a sink may block for as
+ * long as its destination takes. A batch which could not be delivered is sent
+ * again later, so a sink should throw rather than accept a batch it did not
+ * deliver.</p>
+ */
+public interface ExportSink {
+
+  /**
+   * Deliver one batch.
+   *
+   * @param batch the encoded records
+   * @param contentType the MIME type of the encoding
+   *
+   * @throws IOException if the batch was not delivered and should be retried
+   */
+  public void send( byte[] batch, String contentType ) throws IOException;
+
+
+
+
+  /**
+   * Release any connection or file held.
+   */
+  public void close();
+
+
+
+
+  /**
+   * @return a short description of the destination, for logging
+   */
+  public String getName();
+
+}
@@ -0,0 +1,746 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import coyote.commons.list.BoundedQueue;
+import coyote.dataframe.DataField;
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import coyote.dataframe.marshal.JSONMarshaler;
+import coyote.loader.log.Log;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.MonitorEvent;
+import coyote.monitor.SampleListener;
+import coyote.monitor.store.FrameCodec;
+
+
+/**
+ * Ships the samples and events of every attached collector to one or more
+ * sinks in batches.
+ *
+ * <p>Samples are handed over as they are placed in a cache by putting them
+ * in a bounded lock-free queue, so a collector never waits on an export.
+ * Events are drained from the caches. One thread gathers both into a batch,
+ * each record a frame holding the {@link #COLLECTOR} name and the sample or
+ * event as {@link #DATA}, and seals the batch when it holds the batch size of
+ * records or bytes, or is older than the batch interval.</p>
+ *
+ * <p>Every sink has a thread of its own and a short queue of sealed batches,
+ * so a slow sink holds up only itself. A batch which fails is sent again
+ * after a delay which doubles with each failure up to the maximum. While a
+ * sink is behind, its batches go to a spill directory, if one is given, up to
+ * its size limit, and the oldest batches are discarded past that.</p>
+ *
+ * <p>Batches are encoded as newline delimited JSON or, in binary, as a
+ * {@link FrameCodec} stream started afresh for each batch.</p>
+ */
+public class Exporter {
+
+  /** How batches are encoded */
+  public enum Format {
+    /** One JSON object per line, "application/x-ndjson" */
+    JSON,
+    /** A {@link FrameCodec} stream, "application/octet-stream" */
+    BINARY
+  }
+
+  /** The name of the field holding the name of the collector */
+  public static final String COLLECTOR = "Collector";
+
+  /** The name of the field holding the sample or event */
+  public static final String DATA = "Data";
+
+  /** The default most records (500) in a batch */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  /** The default most bytes (1MB) in a batch */
+  public static final int DEFAULT_BATCH_BYTES = 1024 * 1024;
+
+  /** The default milliseconds (5000) a batch is held before it is sent */
+  public static final long DEFAULT_BATCH_INTERVAL = 5000;
+
+  /** The default number of samples (8192) waiting to be batched */
+  public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+
+  /** The default number of sealed batches (16) each sink holds in memory */
+  public static final int DEFAULT_PENDING_BATCHES = 16;
+
+  /** The default milliseconds (500) before the first retry */
+  public static final long DEFAULT_RETRY_DELAY = 500;
+
+  /** The default most milliseconds (60000) between retries */
+  public static final long DEFAULT_MAX_RETRY_DELAY = 60000;
+
+  /** The default most bytes (64MB) of batches spilled for each sink */
+  public static final long DEFAULT_SPILL_LIMIT = 64L * 1024L * 1024L;
+
+  /** Configuration: "Json" or "Binary" */
+  public static final String FORMAT = "Format";
+
+  /** Configuration: the most records in a batch */
+  public static final String BATCH_SIZE = "BatchSize";
+
+  /** Configuration: the most milliseconds a batch is held */
+  public static final String BATCH_INTERVAL = "BatchInterval";
+
+  /** Configuration: the directory under which each sink spills */
+  public static final String SPILL = "Spill";
+
+  /** Configuration: the most bytes each sink spills */
+  public static final String SPILL_LIMIT = "SpillLimit";
+
+  /** Configuration: a file batches are appended to, may be repeated */
+  public static final String FILE = "File";
+
+  /** Configuration: a host:port batches are written to, may be repeated */
+  public static final String SOCKET = "Socket";
+
+  /** Configuration: a URI batches are posted to, may be repeated */
+  public static final String HTTP = "Http";
+
+  private static final long IDLE_WAIT = 50;
+
+  private final Map<String, CollectorCache> caches = new ConcurrentHashMap<String, CollectorCache>();
+
+  /** The listener added to the cache of each collector */
+  private final Map<String, SampleListener> listeners = new ConcurrentHashMap<String, SampleListener>();
+
+  private final List<Delivery> deliveries = new CopyOnWriteArrayList<Delivery>();
+
+  private volatile BoundedQueue<DataFrame> samples = new BoundedQueue<DataFrame>( DEFAULT_QUEUE_CAPACITY );
+
+  private volatile Format format = Format.JSON;
+
+  private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+  private volatile int batchBytes = DEFAULT_BATCH_BYTES;
+
+  private volatile long batchInterval = DEFAULT_BATCH_INTERVAL;
+
+  private volatile long retryDelay = DEFAULT_RETRY_DELAY;
+
+  private volatile long maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+
+  private final AtomicLong exported = new AtomicLong();
+
+  private volatile Thread batcher = null;
+
+  private volatile boolean running = false;
+
+
+
+
+  /**
+   * Export the samples and events of a collector.
+   *
+   * @param name the name of the collector, unique in the monitor
+   * @param cache the cache of the collector
+   */
+  public void attach( final String name, CollectorCache cache ) {
+    caches.put( name, cache );
+    SampleListener listener = new SampleListener() {
+      public void sampleTaken( CollectorCache source, long time, DataFrame sample ) {
+        // the cache keeps the sample, so the record holds the same frame
+        DataFrame record = new DataFrame();
+        record.put( COLLECTOR, name );
+        record.put( DATA, sample );
+        samples.offer( record );
+      }
+    };
+    listeners.put( name, listener );
+    cache.addSampleListener( listener );
+  }
+
+
+
+
+  /**
+   * Stop exporting the samples and events of a collector. Samples already
+   * gathered are still sent.
+   *
+   * @param name the name of the collector
+   * @param cache the cache it was attached with
+   */
+  public void detach( String name, CollectorCache cache ) {
+    caches.remove( name );
+    SampleListener listener = listeners.remove( name );
+    if ( listener != null ) {
+      cache.removeSampleListener( listener );
+    }
+  }
+
+
+
+
+  /**
+   * Send every batch to the sink as well.
+   *
+   * @param sink where to send the batches
+   * @param spill where batches wait while the sink is behind, null to keep
+   *        only a few in memory
+   * @param spillLimit the most bytes of batches kept in the spill directory
+   *
+   * @throws IOException if the spill directory could not be used
+   */
+  public void addSink( ExportSink sink, File spill, long spillLimit ) throws IOException {
+    Delivery delivery = new Delivery( sink, ( spill != null ) ? new SpillBuffer( spill, spillLimit ) : null );
+    deliveries.add( delivery );
+    if ( running ) {
+      delivery.start();
+    }
+  }
+
+
+
+
+  /**
+   * Set up the batching and the sinks from a configuration section such as
+   * <pre>
+   *   "Export" : { "Format" : "Json", "BatchSize" : 500, "BatchInterval" : 5000,
+   *     "Spill" : "spool/export", "SpillLimit" : 67108864,
+   *     "Http" : "http://collector:8080/ingest", "Socket" : "localhost:9999" }
+   * </pre>
+   * <p>Errors are logged and the setting in error is skipped.</p>
+   *
+   * @param config the configuration section
+   */
+  public void configure( DataFrame config ) {
+    try {
+      if ( config.contains( FORMAT ) ) {
+        setFormat( "Binary".equalsIgnoreCase( config.getAsString( FORMAT ) ) ? Format.BINARY : Format.JSON );
+      }
+      if ( config.contains( BATCH_SIZE ) ) {
+        setBatchSize( config.getAsInt( BATCH_SIZE ) );
+      }
+      if ( config.contains( BATCH_INTERVAL ) ) {
+        setBatchInterval( config.getAsLong( BATCH_INTERVAL ) );
+      }
+    } catch ( DataFrameException e ) {
+      Log.error( "Bad export batch configuration: " + e.getMessage() );
+    }
+
+    long spillLimit = DEFAULT_SPILL_LIMIT;
+    try {
+      if ( config.contains( SPILL_LIMIT ) ) {
+        spillLimit = config.getAsLong( SPILL_LIMIT );
+      }
+    } catch ( DataFrameException e ) {
+      Log.error( "Bad export spill limit: " + e.getMessage() );
+    }
+    String spill = config.getAsString( SPILL );
+
+    for ( int x = 0; x < config.getFieldCount(); x++ ) {
+      DataField field = config.getField( x );
+      String target = ( field.getObjectValue() != null ) ? field.getObjectValue().toString() : null;
+      if ( ( field.getName() == null ) || ( target == null ) ) {
+        continue;
+      }
+
+      try {
+        ExportSink sink = null;
+        if ( FILE.equalsIgnoreCase( field.getName() ) ) {
+          sink = new FileSink( new File( target ) );
+        } else if ( SOCKET.equalsIgnoreCase( field.getName() ) ) {
+          int colon = target.lastIndexOf( ':' );
+          sink = new SocketSink( new InetSocketAddress( target.substring( 0, colon ), Integer.parseInt( target.substring( colon + 1 ) ) ) );
+        } else if ( HTTP.equalsIgnoreCase( field.getName() ) ) {
+          sink = new HttpSink( new URI( target ) );
+        }
+        if ( sink != null ) {
+          addSink( sink, ( spill != null ) ? new File( spill, Integer.toString( deliveries.size() ) ) : null, spillLimit );
+        }
+      } catch ( Exception e ) {
+        Log.error( "Could not export to " + field.getName() + " '" + target + "': " + e.getMessage() );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Start batching and sending.
+   */
+  public synchronized void start() {
+    if ( running ) {
+      return;
+    }
+    running = true;
+
+    for ( Delivery delivery : deliveries ) {
+      delivery.start();
+    }
+
+    Thread thread = new Thread( new Runnable() {
+      public void run() {
+        gather();
+      }
+    }, "Exporter" );
+    thread.setDaemon( true );
+    batcher = thread;
+    thread.start();
+  }
+
+
+
+
+  /**
+   * Seal what has been gathered, give each sink a last chance to send it and
+   * stop. Batches not sent are left in the spill directories.
+   *
+   * @param wait the most milliseconds to wait for the sinks
+   */
+  public void stop( long wait ) {
+    Thread thread;
+    synchronized( this ) {
+      if ( !running ) {
+        return;
+      }
+      running = false;
+      thread = batcher;
+      batcher = null;
+    }
+
+    try {
+      thread.interrupt();
+      thread.join();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+
+    long end = System.currentTimeMillis() + wait;
+    for ( Delivery delivery : deliveries ) {
+      delivery.stop( Math.max( 1, end - System.currentTimeMillis() ) );
+    }
+  }
+
+
+
+
+  /**
+   * The batching thread.
+   */
+  private void gather() {
+    Batch batch = new Batch();
+    List<MonitorEvent> events = new ArrayList<MonitorEvent>();
+
+    while ( true ) {
+      // read before gathering, so the last pass picks up everything
+      boolean stopping = !running;
+      boolean found = false;
+
+      for ( Map.Entry<String, CollectorCache> entry : caches.entrySet() ) {
+        events.clear();
+        entry.getValue().drainEvents( events, batchSize );
+        for ( int x = 0; x < events.size(); x++ ) {
+          DataFrame record = new DataFrame();
+          record.put( COLLECTOR, entry.getKey() );
+          record.put( DATA, events.get( x ) );
+          add( batch, record );
+          found = true;
+        }
+      }
+
+      DataFrame record;
+      while ( ( record = samples.poll() ) != null ) {
+        add( batch, record );
+        found = true;
+      }
+
+      if ( ( batch.count > 0 ) && ( stopping || ( System.currentTimeMillis() - batch.started >= batchInterval ) ) ) {
+        seal( batch );
+      }
+      if ( stopping ) {
+        return;
+      }
+
+      if ( !found ) {
+        try {
+          Thread.sleep( IDLE_WAIT );
+        } catch ( InterruptedException e ) {
+          // stopping, go round once more to pick up the last records
+        }
+      }
+    }
+  }
+
+
+
+
+  private void add( Batch batch, DataFrame record ) {
+    try {
+      batch.add( record );
+    } catch ( IOException e ) {
+      Log.error( "Could not encode export record: " + e.getMessage() );
+      return;
+    }
+    if ( ( batch.count >= batchSize ) || ( batch.buffer.position() >= batchBytes ) ) {
+      seal( batch );
+    }
+  }
+
+
+
+
+  private void seal( Batch batch ) {
+    byte[] data = batch.toByteArray();
+    String type = ( batch.format == Format.BINARY ) ? "application/octet-stream" : "application/x-ndjson";
+    for ( Delivery delivery : deliveries ) {
+      delivery.offer( data, type );
+    }
+    exported.addAndGet( batch.count );
+    batch.clear( format );
+  }
+
+
+
+
+  /**
+   * @param policy how batches are encoded
+   */
+  public void setFormat( Format policy ) {
+    if ( policy != null ) {
+      format = policy;
+    }
+  }
+
+
+
+
+  /**
+   * @param records the most records in a batch
+   */
+  public void setBatchSize( int records ) {
+    batchSize = Math.max( 1, records );
+  }
+
+
+
+
+  /**
+   * @param bytes the most bytes in a batch, exceeded by at most one record
+   */
+  public void setBatchBytes( int bytes ) {
+    batchBytes = Math.max( 1024, bytes );
+  }
+
+
+
+
+  /**
+   * @param millis the most milliseconds a record waits before its batch is
+   *        sealed
+   */
+  public void setBatchInterval( long millis ) {
+    batchInterval = Math.max( 1, millis );
+  }
+
+
+
+
+  /**
+   * @param initial milliseconds before the first retry of a failed batch
+   * @param max the most milliseconds between retries
+   */
+  public void setRetryDelay( long initial, long max ) {
+    retryDelay = Math.max( 1, initial );
+    maxRetryDelay = Math.max( retryDelay, max );
+  }
+
+
+
+
+  /**
+   * Set how many samples wait to be batched, discarding any waiting.
+   *
+   * @param capacity the most samples waiting
+   */
+  public void setQueueCapacity( int capacity ) {
+    samples = new BoundedQueue<DataFrame>( capacity );
+  }
+
+
+
+
+  /**
+   * @return the number of records sealed into batches
+   */
+  public long getExportedCount() {
+    return exported.get();
+  }
+
+
+
+
+  /**
+   * @return the number of samples discarded because the batching thread fell
+   *         behind
+   */
+  public long getDroppedSampleCount() {
+    return samples.getDroppedCount();
+  }
+
+
+
+
+  /**
+   * @return the number of batches discarded by all the sinks for lack of room
+   */
+  public long getDroppedBatchCount() {
+    long retval = 0;
+    for ( Delivery delivery : deliveries ) {
+      retval += delivery.getDroppedCount();
+    }
+    return retval;
+  }
+
+  /**
+   * The records gathered so far, encoded as they are added.
+   */
+  private final class Batch {
+    ByteBuffer buffer = ByteBuffer.allocate( 64 * 1024 );
+    final FrameCodec codec = new FrameCodec();
+    Format format = Exporter.this.format;
+    int count = 0;
+    long started = 0;
+
+
+
+
+    void add( DataFrame record ) throws IOException {
+      if ( count == 0 ) {
+        started = System.currentTimeMillis();
+      }
+
+      if ( format == Format.BINARY ) {
+        while ( !codec.encode( record, buffer ) ) {
+          grow( buffer.capacity() );
+        }
+      } else {
+        byte[] line = JSONMarshaler.marshal( record ).getBytes( "UTF-8" );
+        if ( buffer.remaining() < line.length + 1 ) {
+          grow( line.length + 1 );
+        }
+        buffer.put( line );
+        buffer.put( (byte)'\n' );
+      }
+      count++;
+    }
+
+
+
+
+    private void grow( int needed ) {
+      ByteBuffer larger = ByteBuffer.allocate( Math.max( buffer.capacity() * 2, buffer.position() + needed ) );
+      buffer.flip();
+      larger.put( buffer );
+      buffer = larger;
+    }
+
+
+
+
+    byte[] toByteArray() {
+      byte[] retval = new byte[buffer.position()];
+      System.arraycopy( buffer.array(), 0, retval, 0, retval.length );
+      return retval;
+    }
+
+
+
+
+    void clear( Format next ) {
+      buffer.clear();
+      codec.reset();
+      format = next;
+      count = 0;
+    }
+  }
+
+  /**
+   * Sends batches to one sink from a thread of its own.
+   */
+  private final class Delivery implements Runnable {
+    final ExportSink sink;
+    final SpillBuffer spill;
+    final BoundedQueue<byte[]> pending;
+    final Random random = new Random();
+    volatile String contentType = "application/x-ndjson";
+    volatile Thread thread = null;
+    volatile boolean active = false;
+
+
+
+
+    Delivery( ExportSink sink, SpillBuffer spill ) {
+      this.sink = sink;
+      this.spill = spill;
+      // with a spill directory nothing is discarded from memory
+      pending = new BoundedQueue<byte[]>( DEFAULT_PENDING_BATCHES, ( spill != null ) ? BoundedQueue.Overflow.DROP_NEWEST : BoundedQueue.Overflow.DROP_OLDEST );
+    }
+
+
+
+
+    void start() {
+      active = true;
+      thread = new Thread( this, "Exporter-" + sink.getName() );
+      thread.setDaemon( true );
+      thread.start();
+    }
+
+
+
+
+    /**
+     * Queue a batch; called only by the batching thread.
+     */
+    void offer( byte[] batch, String type ) {
+      contentType = type;
+      if ( spill == null ) {
+        pending.offer( batch );
+        return;
+      }
+
+      // once batches are spilling, later ones follow them to keep the order
+      if ( ( spill.size() == 0 ) && ( pending.size() < pending.getCapacity() ) && pending.offer( batch ) ) {
+        return;
+      }
+      try {
+        spill.add( batch );
+      } catch ( IOException e ) {
+        Log.error( "Could not spill export batch for " + sink.getName() + ": " + e.getMessage() );
+      }
+    }
+
+
+
+
+    public void run() {
+      long delay = retryDelay;
+      byte[] current = null;
+      File spilled = null;
+
+      while ( active ) {
+        if ( current == null ) {
+          current = pending.poll();
+          spilled = null;
+          if ( ( current == null ) && ( spill != null ) ) {
+            spilled = spill.peek();
+            if ( spilled != null ) {
+              // null if it was deleted to make room or unreadable, try the next
+              current = spill.read( spilled );
+              if ( current == null ) {
+                spilled = null;
+                continue;
+              }
+            }
+          }
+          if ( current == null ) {
+            pause( IDLE_WAIT );
+            continue;
+          }
+        }
+
+        try {
+          sink.send( current, contentType );
+          if ( spilled != null ) {
+            // only the batch sent, even if it was deleted to make room since
+            spill.remove( spilled );
+          }
+          current = null;
+          delay = retryDelay;
+        } catch ( IOException e ) {
+          Log.warn( "Export to " + sink.getName() + " failed, retrying in " + delay + "ms: " + e.getMessage() );
+          pause( delay );
+          // back off with some jitter so many monitors do not retry together
+          delay = Math.min( maxRetryDelay, delay * 2 + random.nextInt( (int)Math.min( Integer.MAX_VALUE, Math.max( 1, delay / 4 ) ) ) );
+        }
+      }
+
+      // keep what was not sent for the next run
+      if ( spill != null ) {
+        try {
+          if ( ( current != null ) && ( spilled == null ) ) {
+            spill.add( current );
+          }
+          while ( ( current = pending.poll() ) != null ) {
+            spill.add( current );
+          }
+        } catch ( IOException e ) {
+          Log.error( "Could not spill export batch for " + sink.getName() + ": " + e.getMessage() );
+        }
+      }
+      sink.close();
+    }
+
+
+
+
+    private void pause( long millis ) {
+      try {
+        Thread.sleep( millis );
+      } catch ( InterruptedException e ) {
+        // stopping
+      }
+    }
+
+
+
+
+    /**
+     * Let the sink catch up for a while, then stop its thread.
+     */
+    void stop( long wait ) {
+      long end = System.currentTimeMillis() + wait;
+      while ( ( pending.size() > 0 ) && ( System.currentTimeMillis() < end ) ) {
+        pause( IDLE_WAIT );
+      }
+      active = false;
+      Thread worker = thread;
+      if ( worker != null ) {
+        // the interrupt ends a socket sink blocked in a write, other sinks
+        // give up a blocked send at their own timeout
+        worker.interrupt();
+        try {
+          worker.join( Math.max( 1000, wait ) );
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+        if ( worker.isAlive() ) {
+          Log.warn( "Export to " + sink.getName() + " is still sending, leaving it to finish" );
+        }
+      }
+    }
+
+
+
+
+    long getDroppedCount() {
+      return pending.getDroppedCount() + ( ( spill != null ) ? spill.getDroppedCount() : 0 );
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+
+/**
+ * Appends each batch to a file.
+ */
+public class FileSink implements ExportSink {
+
+  private final File file;
+
+  private FileOutputStream out = null;
+
+
+
+
+  /**
+   * @param file the file to append to, created if it does not exist
+   */
+  public FileSink( File file ) {
+    this.file = file;
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.export.ExportSink#send(byte[], java.lang.String)
+   */
+  public synchronized void send( byte[] batch, String contentType ) throws IOException {
+    if ( out == null ) {
+      File parent = file.getAbsoluteFile().getParentFile();
+      if ( ( parent != null ) && !parent.isDirectory() ) {
+        parent.mkdirs();
+      }
+      out = new FileOutputStream( file, true );
+    }
+
+    try {
+      out.write( batch );
+      out.flush();
+    } catch ( IOException e ) {
+      // open the file again for the retry
+      close();
+      throw e;
+    }
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.export.ExportSink#close()
+   */
+  public synchronized void close() {
+    if ( out != null ) {
+      try {
+        out.close();
+      } catch ( IOException e ) {
+        // nothing more can be done
+      }
+      out = null;
+    }
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.export.ExportSink#getName()
+   */
+  public String getName() {
+    return file.getPath();
+  }
+
+}
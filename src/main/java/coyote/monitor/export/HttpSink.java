@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.export;
+
+import java.io.IOException;
+import java.net.URI;
+
+import coyote.commons.network.http.HttpMessage;
+import coyote.commons.network.http.HttpMessageException;
+import coyote.commons.network.http.HttpRequest;
+import coyote.commons.network.http.HttpResponse;
+
+
+/**
+ * Posts each batch to a URI.
+ *
+ * <p>Any response other than a 2xx status is treated as a failure and the
+ * batch is posted again later.</p>
+ */
+public class HttpSink implements ExportSink {
+
+  /** The default milliseconds (10000) to wait for a response */
+  public static final int DEFAULT_TIMEOUT = 10000;
+
+  private final URI uri;
+
+  private int timeout = DEFAULT_TIMEOUT;
+
+
+
+
+  /**
+   * @param uri where the batches are posted
+   */
+  public HttpSink( URI uri ) {
+    this.uri = uri;
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.export.ExportSink#send(byte[], java.lang.String)
+   */
+  public void send( byte[] batch, String contentType ) throws IOException {
+    HttpRequest request = new HttpRequest();
+    request.setRequestMethod( HttpMessage.POST );
+    request.setHeader( HttpMessage.CONNECTION, HttpMessage.CLOSE );
+    request.setHeader( HttpMessage.CONTENT_TYPE, contentType );
+    request.setTimeout( timeout );
+
+    HttpResponse response;
+    try {
+      request.setBody( batch );
+      response = request.send( uri );
+    } catch ( HttpMessageException e ) {
+      throw new IOException( "Could not post to " + uri + ": " + e.getMessage() );
+    }
+
+    if ( ( response == null ) || ( response.getStatusCode() < 200 ) || ( response.getStatusCode() > 299 ) ) {
+      throw new IOException( "Post to " + uri + " failed: " + ( ( response == null ) ? "no response" : response.getStatusCode() + " - " + response.getReasonPhrase() ) );
+    }
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.export.ExportSink#close()
+   */
+  public void close() {
+    // a connection is made for each batch
+  }
+
+
+
+
+  /**
+   * @param millis milliseconds to wait for a response
+   */
+  public void setTimeout( int millis ) {
+    timeout = millis;
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.export.ExportSink#getName()
+   */
+  public String getName() {
+    return uri.toString();
+  }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.export;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Writes each batch to a stream socket, usually an agent on the local host.
+ *
+ * <p>The connection is kept open between batches and made again when a write
+ * fails. A write which can not complete within the timeout fails, so a peer
+ * which stops reading can not hold the sending thread.</p>
+ *
+ * <p>JSON batches are newline delimited and written as they are. Binary
+ * batches are preceded by their length as a four byte, big-endian integer so
+ * the peer can tell where one ends and the next begins.</p>
+ */
+public class SocketSink implements ExportSink {
+
+  /** The default milliseconds (5000) to wait for a connection or a write */
+  public static final int DEFAULT_TIMEOUT = 5000;
+
+  private static final String BINARY_TYPE = "application/octet-stream";
+
+  private final InetSocketAddress address;
+
+  private int timeout = DEFAULT_TIMEOUT;
+
+  private SocketChannel channel = null;
+
+  private Selector selector = null;
+
+
+
+
+  /**
+   * @param address where the batches are sent
+   */
+  public SocketSink( InetSocketAddress address ) {
+    this.address = address;
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.export.ExportSink#send(byte[], java.lang.String)
+   */
+  public synchronized void send( byte[] batch, String contentType ) throws IOException {
+    if ( channel == null ) {
+      connect();
+    }
+
+    ByteBuffer body = ByteBuffer.wrap( batch );
+    ByteBuffer[] buffers;
+    if ( BINARY_TYPE.equals( contentType ) ) {
+      ByteBuffer length = ByteBuffer.allocate( 4 );
+      length.putInt( batch.length );
+      length.flip();
+      buffers = new ByteBuffer[] { length, body };
+    } else {
+      buffers = new ByteBuffer[] { body };
+    }
+
+    try {
+      write( buffers );
+    } catch ( IOException e ) {
+      close();
+      throw e;
+    }
+  }
+
+
+
+
+  /**
+   * Connect within the timeout and switch the channel to non-blocking so
+   * writes can be given a deadline.
+   */
+  private void connect() throws IOException {
+    SocketChannel connection = SocketChannel.open();
+    Selector writable = null;
+    try {
+      connection.socket().connect( address, timeout );
+      connection.configureBlocking( false );
+      writable = Selector.open();
+      connection.register( writable, SelectionKey.OP_WRITE );
+    } catch ( IOException e ) {
+      if ( writable != null ) {
+        writable.close();
+      }
+      connection.close();
+      throw e;
+    }
+    channel = connection;
+    selector = writable;
+  }
+
+
+
+
+  /**
+   * Write all the buffers, waiting for room in the socket no longer than the
+   * timeout.
+   */
+  private void write( ByteBuffer[] buffers ) throws IOException {
+    ByteBuffer last = buffers[buffers.length - 1];
+    long deadline = System.currentTimeMillis() + timeout;
+    while ( last.hasRemaining() ) {
+      if ( channel.write( buffers ) > 0 ) {
+        continue;
+      }
+      if ( Thread.currentThread().isInterrupted() ) {
+        throw new InterruptedIOException( "Write to " + getName() + " interrupted" );
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if ( remaining <= 0 ) {
+        throw new SocketTimeoutException( "Write to " + getName() + " timed out after " + timeout + "ms" );
+      }
+      selector.select( remaining );
+      selector.selectedKeys().clear();
+    }
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.export.ExportSink#close()
+   */
+  public synchronized void close() {
+    if ( channel != null ) {
+      try {
+        selector.close();
+      } catch ( IOException e ) {
+        // nothing more can be done
+      }
+      try {
+        channel.close();
+      } catch ( IOException e ) {
+        // nothing more can be done
+      }
+      channel = null;
+      selector = null;
+    }
+  }
+
+
+
+
+  /**
+   * @param millis milliseconds to wait for a connection or a write
+   */
+  public void setTimeout( int millis ) {
+    timeout = millis;
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.export.ExportSink#getName()
+   */
+  public String getName() {
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+}
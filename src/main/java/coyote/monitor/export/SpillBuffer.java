@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import coyote.loader.log.Log;
+
+
+/**
+ * Batches waiting for a sink, kept on disk in the order they were added.
+ *
+ * <p>Each batch is one file named by its sequence number. When the files
+ * take more than the limit, the oldest are deleted and counted as dropped.
+ * Batches left by a previous run are delivered first.</p>
+ *
+ * <p>The oldest file is handed out by {@link #peek()} and only that file is
+ * deleted by {@link #remove(File)} once it is sent, so a batch deleted to
+ * make room while it was being sent does not take the next one with it.</p>
+ */
+final class SpillBuffer {
+
+  private static final String SUFFIX = ".batch";
+
+  private final File directory;
+
+  private final long limit;
+
+  private final LinkedList<File> files = new LinkedList<File>();
+
+  private long size = 0;
+
+  private long next = 0;
+
+  private long dropped = 0;
+
+
+
+
+  /**
+   * @param directory where the batches are written
+   * @param limit the most bytes of batches kept
+   */
+  SpillBuffer( File directory, long limit ) throws IOException {
+    this.directory = directory;
+    this.limit = limit;
+
+    if ( !directory.isDirectory() && !directory.mkdirs() ) {
+      throw new IOException( "Could not create spill directory " + directory );
+    }
+
+    List<Long> sequences = new ArrayList<Long>();
+    String[] names = directory.list();
+    for ( int x = 0; ( names != null ) && ( x < names.length ); x++ ) {
+      if ( names[x].endsWith( SUFFIX ) ) {
+        try {
+          sequences.add( Long.valueOf( names[x].substring( 0, names[x].length() - SUFFIX.length() ) ) );
+        } catch ( NumberFormatException e ) {
+          // not one of ours
+        }
+      }
+    }
+    Collections.sort( sequences );
+    for ( Long sequence : sequences ) {
+      File file = new File( directory, sequence + SUFFIX );
+      files.add( file );
+      size += file.length();
+      next = sequence + 1;
+    }
+  }
+
+
+
+
+  /**
+   * Write a batch after all the others, deleting the oldest if there is no
+   * room.
+   */
+  synchronized void add( byte[] batch ) throws IOException {
+    File temp = new File( directory, next + ".tmp" );
+    FileOutputStream out = new FileOutputStream( temp );
+    try {
+      out.write( batch );
+    }
+    finally {
+      out.close();
+    }
+
+    File file = new File( directory, next++ + SUFFIX );
+    if ( !temp.renameTo( file ) ) {
+      temp.delete();
+      throw new IOException( "Could not rename " + temp + " to " + file );
+    }
+    files.add( file );
+    size += batch.length;
+
+    while ( ( size > limit ) && ( files.size() > 1 ) ) {
+      File oldest = files.removeFirst();
+      size -= oldest.length();
+      oldest.delete();
+      dropped++;
+    }
+  }
+
+
+
+
+  /**
+   * @return the file of the oldest batch, or null if there are none
+   */
+  synchronized File peek() {
+    return files.isEmpty() ? null : files.getFirst();
+  }
+
+
+
+
+  /**
+   * Read a batch handed out by {@link #peek()}.
+   *
+   * <p>A batch which can not be read is deleted and counted as dropped.</p>
+   *
+   * @return the batch, or null if it has been deleted or could not be read
+   */
+  synchronized byte[] read( File file ) {
+    if ( !files.contains( file ) ) {
+      return null;
+    }
+    try {
+      RandomAccessFile in = new RandomAccessFile( file, "r" );
+      try {
+        byte[] retval = new byte[(int)in.length()];
+        in.readFully( retval );
+        return retval;
+      }
+      finally {
+        in.close();
+      }
+    } catch ( IOException e ) {
+      Log.error( "Discarding unreadable spilled batch " + file + ": " + e.getMessage() );
+      remove( file );
+      dropped++;
+      return null;
+    }
+  }
+
+
+
+
+  /**
+   * Delete a batch handed out by {@link #peek()} if it is still held.
+   */
+  synchronized void remove( File file ) {
+    if ( files.remove( file ) ) {
+      size -= file.length();
+      file.delete();
+    }
+  }
+
+
+
+
+  /**
+   * @return the number of batches held
+   */
+  synchronized int size() {
+    return files.size();
+  }
+
+
+
+
+  /**
+   * @return the number of batches deleted to make room
+   */
+  synchronized long getDroppedCount() {
+    return dropped;
+  }
+
+}
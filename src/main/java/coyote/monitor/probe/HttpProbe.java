@@ -5,16 +5,21 @@ package coyote.monitor.probe;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.ExecutionException;
 
 import coyote.commons.ByteUtil;
 import coyote.commons.ExceptionUtil;
 import coyote.commons.StringUtil;
 import coyote.commons.UriUtil;
+import coyote.commons.network.HostResolver;
+import coyote.commons.network.http.HttpClientEngine;
 import coyote.commons.network.http.HttpMessage;
 import coyote.commons.network.http.HttpRequest;
 import coyote.commons.network.http.HttpResponse;
+import coyote.commons.network.socket.ssl.SSLContextCache;
 import coyote.commons.security.MD5;
 import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
 import coyote.dataframe.marshal.JSONMarshaler;
 import coyote.loader.cfg.Config;
 import coyote.loader.cfg.ConfigSlot;
@@ -40,15 +45,28 @@ public class HttpProbe extends AbstractProbe {
 
   public static final String CONNECT_TIMEOUT = "ConnectTimeout";
 
+  /** Milliseconds an asynchronous request waits for the response once connected */
+  public static final String READ_TIMEOUT = "ReadTimeout";
+
+  /** Flag indicating the non-blocking client engine is to be used */
+  public static final String ASYNCHRONOUS = "Asynchronous";
+
+  /** Flag indicating conditional requests are to be sent */
+  public static final String CONDITIONAL = "Conditional";
+
   /** The expected MD5 signature attribute tag */
   public static final String SIGNATURE = "SignatureMD5";
 
   public static final String CONTENT_CHANGE = "ContentChange";
 
+  /** Set when the server reported the content unchanged since the last sample */
+  public static final String NOT_MODIFIED = "NotModified";
+
   public static final String CONNNECTION_URI = "ConnectionURI";
 
   public static final String SOURCE_ADDRESS = "SourceAddress";
 
+  /** The address which answered when the host has several */
   public static final String DESTINATION_ADDRESS = "DestinationAddress";
 
   public static final String CONNECTION_TIME = "ConnectionTime";
@@ -59,6 +77,40 @@ public class HttpProbe extends AbstractProbe {
 
   public static final String CONTENT_LENGTH = "ContentLength";
 
+  /** Milliseconds, with nanosecond resolution, spent resolving the host */
+  public static final String DNS_TIME = "DnsTime";
+
+  /**
+   * Milliseconds, with nanosecond resolution, the last actual lookup of the
+   * host took; DnsTime is only the time this sample spent getting the address,
+   * which is next to nothing when it is cached
+   */
+  public static final String RESOLUTION_TIME = "ResolutionTime";
+
+  /** Milliseconds, with nanosecond resolution, spent on the TCP connect */
+  public static final String TCP_CONNECT_TIME = "TcpConnectTime";
+
+  /** Milliseconds, with nanosecond resolution, spent on the TLS handshake */
+  public static final String TLS_HANDSHAKE_TIME = "TlsHandshakeTime";
+
+  /** Set when the TLS handshake resumed a cached session */
+  public static final String TLS_RESUMED = "TlsResumed";
+
+  /** The number of TLS handshakes all the probes in this VM have completed */
+  public static final String TLS_HANDSHAKES = "TlsHandshakes";
+
+  /** How many of those handshakes resumed a cached session */
+  public static final String TLS_RESUMED_HANDSHAKES = "TlsResumedHandshakes";
+
+  /** Milliseconds, with nanosecond resolution, spent writing the request */
+  public static final String REQUEST_WRITE_TIME = "RequestWriteTime";
+
+  /** Milliseconds, with nanosecond resolution, to the first response byte */
+  public static final String TIME_TO_FIRST_BYTE = "TimeToFirstByte";
+
+  /** Milliseconds, with nanosecond resolution, spent receiving the response */
+  public static final String TRANSFER_TIME = "TransferTime";
+
   /** The uri of the peer we are to check */
   private URI uri = null;
 
@@ -68,6 +120,18 @@ public class HttpProbe extends AbstractProbe {
   /** The actual timeout we use for making our connections in milliseconds */
   private int connectTimeOut = DEFAULT_CONNECT_TIMEOUT;
 
+  /** The default number of milliseconds (30000) we wait for a response once connected */
+  private static final int DEFAULT_READ_TIMEOUT = 30000;
+
+  /** The actual time we wait for a response once connected in milliseconds */
+  private int readTimeOut = DEFAULT_READ_TIMEOUT;
+
+  /** Are we using the shared non-blocking client engine for clear-text HTTP */
+  private boolean asynchronous = false;
+
+  /** Are we sending the validators of the previous response with requests */
+  private boolean conditional = false;
+
 
 
 
@@ -97,6 +161,9 @@ public class HttpProbe extends AbstractProbe {
       template.setClassName( getClass().getName() );
       template.addConfigSlot( new ConfigSlot( DESTINATION_URI, "The URI of the resource to test.", "http://localhost/index.html" ) );
       template.addConfigSlot( new ConfigSlot( CONNECT_TIMEOUT, "The number of milliseconds to wait for the connection.", DEFAULT_CONNECT_TIMEOUT ) );
+      template.addConfigSlot( new ConfigSlot( READ_TIMEOUT, "The number of milliseconds an asynchronous request waits for the response once connected.", DEFAULT_READ_TIMEOUT ) );
+      template.addConfigSlot( new ConfigSlot( ASYNCHRONOUS, "Flag indicating HTTP requests are sent through the shared non-blocking client.", new Boolean( false ) ) );
+      template.addConfigSlot( new ConfigSlot( CONDITIONAL, "Flag indicating only changed content is retrieved using the ETag and Last-Modified validators of the previous response.", new Boolean( false ) ) );
     } catch ( Exception ex ) {
       // Should always work
     }
@@ -122,6 +189,38 @@ public class HttpProbe extends AbstractProbe {
       }
     }
 
+    if ( configuration.contains( CONNECT_TIMEOUT ) ) {
+      try {
+        connectTimeOut = configuration.getAsInt( CONNECT_TIMEOUT );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + CONNECT_TIMEOUT + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( READ_TIMEOUT ) ) {
+      try {
+        readTimeOut = configuration.getAsInt( READ_TIMEOUT );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + READ_TIMEOUT + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( ASYNCHRONOUS ) ) {
+      try {
+        asynchronous = configuration.getAsBoolean( ASYNCHRONOUS );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + ASYNCHRONOUS + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( CONDITIONAL ) ) {
+      try {
+        conditional = configuration.getAsBoolean( CONDITIONAL );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + CONDITIONAL + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
   }
 
 
@@ -138,19 +237,32 @@ public class HttpProbe extends AbstractProbe {
     retval.setType( StringUtil.getLocalJavaName( getClass().getName() ) );
 
     HttpRequest request = new HttpRequest();
+    request.setConnectTimeout( connectTimeOut );
     request.setHeader( HttpMessage.CONNECTION, HttpMessage.CLOSE );
 
+    if ( conditional ) {
+      String etag = mib.getValidator( HttpMessage.ETAG );
+      if ( etag != null ) {
+        request.setHeader( HttpMessage.IF_NONE_MATCH, etag );
+      }
+      String modified = mib.getValidator( HttpMessage.LAST_MODIFIED );
+      if ( modified != null ) {
+        request.setHeader( HttpMessage.IF_MODIFIED_SINCE, modified );
+      }
+    }
+
     if ( uri != null ) {
       // Place the target URI in our current metric
       try {
         retval.put( DESTINATION_URI, UriUtil.clone( uri ) );
-        retval.put( SOURCE_ADDRESS, UriUtil.getHostAddress( uri ) );
+        retval.put( SOURCE_ADDRESS, HostResolver.getAddress( uri.getHost() ) );
+        putPhase( retval, RESOLUTION_TIME, HostResolver.getLookupNanos( uri.getHost() ) );
       } catch ( Exception ex ) {
         // Should always work even when null
       }
 
       try {
-        HttpResponse response = request.send( uri );
+        HttpResponse response = send( request );
         // If we got a connection
         if ( response != null ) {
           if ( response.getStatusCode() >= 400 ) {
@@ -160,37 +272,40 @@ public class HttpProbe extends AbstractProbe {
           if ( super.isTracing() )
             retval.recordTraceData( "HTTP response status code: " + response.getStatusCode() + " - " + response.getReasonPhrase() );
 
-          retval.put( CONNECTION_TIME, response.getConnectionTime() );
-          retval.put( SERVER_LATENCY, response.getServerLatency() );
-          retval.put( BPS, response.getBytesPerSecond() );
-          retval.put( CONTENT_LENGTH, response.getBody().length );
-          retval.put( DESTINATION_ADDRESS, response.getRemoteAddress().toString() );
-
-          // Perform an MD5 fingerprint on the body so as to allow detection of
-          // content changes
-          MD5 md = new MD5();
-          md.update( response.getBody() );
-
-          String signature = ByteUtil.bytesToHex( md.digest() );
-          retval.put( SIGNATURE, signature );
-
-          DataFrame prev = mib.getSample();
-
-          // Figure out what the previous samples signature was
-          String previousSignature = null;
-
-          if ( prev != null ) {
-            previousSignature = prev.getAsString( SIGNATURE );
-          }
-
-          // If the current and previous signatures do not match, set the
-          // ContentChange attribute to true
-          if ( ( previousSignature != null ) && !signature.equalsIgnoreCase( previousSignature ) ) {
-            MonitorEvent event = new MonitorEvent( "Content changed" );
-            event.put( "OldSignature", previousSignature );
-            event.put( "NewSignature", signature );
-            mib.addEvent( event );
-            retval.put( CONTENT_CHANGE, new Boolean( true ) );
+          String signature = recordResponse( retval, response );
+
+          if ( signature == null ) {
+            // Not Modified; the content is what we last retrieved
+            retval.put( NOT_MODIFIED, new Boolean( true ) );
+            String previous = mib.getValidator( SIGNATURE );
+            if ( previous != null ) {
+              retval.put( SIGNATURE, previous );
+            }
+          } else {
+            if ( conditional && ( response.getStatusCode() < 300 ) ) {
+              mib.setValidator( HttpMessage.ETAG, response.getHeader( HttpMessage.ETAG ) );
+              mib.setValidator( HttpMessage.LAST_MODIFIED, response.getHeader( HttpMessage.LAST_MODIFIED ) );
+              mib.setValidator( SIGNATURE, signature );
+            }
+
+            DataFrame prev = mib.getSample();
+
+            // Figure out what the previous samples signature was
+            String previousSignature = null;
+
+            if ( prev != null ) {
+              previousSignature = prev.getAsString( SIGNATURE );
+            }
+
+            // If the current and previous signatures do not match, set the
+            // ContentChange attribute to true
+            if ( ( previousSignature != null ) && !signature.equalsIgnoreCase( previousSignature ) ) {
+              MonitorEvent event = new MonitorEvent( "Content changed" );
+              event.put( "OldSignature", previousSignature );
+              event.put( "NewSignature", signature );
+              mib.addEvent( event );
+              retval.put( CONTENT_CHANGE, new Boolean( true ) );
+            }
           }
         } else {
           retval.setError( "Could not establish connection in " + connectTimeOut + " ms" );
@@ -214,6 +329,98 @@ public class HttpProbe extends AbstractProbe {
 
 
 
+  /**
+   * Place the measurements of the given response in the sample.
+   *
+   * @param sample the sample to populate
+   * @param response the response received
+   *
+   * @return the MD5 signature of the response body or null if the response
+   *         was 304 (Not Modified) and therefore has no body
+   */
+  static String recordResponse( Sample sample, HttpResponse response ) {
+    sample.put( CONNECTION_TIME, response.getConnectionTime() );
+    sample.put( SERVER_LATENCY, response.getServerLatency() );
+    sample.put( BPS, response.getBytesPerSecond() );
+    sample.put( CONTENT_LENGTH, response.getBody().length );
+    if ( response.getRemoteAddress() != null ) {
+      sample.put( DESTINATION_ADDRESS, response.getRemoteAddress().toString() );
+    }
+    putPhase( sample, DNS_TIME, response.getDnsNanos() );
+    putPhase( sample, TCP_CONNECT_TIME, response.getConnectNanos() );
+    putPhase( sample, TLS_HANDSHAKE_TIME, response.getHandshakeNanos() );
+    if ( response.getHandshakeNanos() >= 0 ) {
+      sample.put( TLS_RESUMED, new Boolean( response.isResumed() ) );
+      sample.put( TLS_HANDSHAKES, SSLContextCache.getHandshakeCount() );
+      sample.put( TLS_RESUMED_HANDSHAKES, SSLContextCache.getResumedHandshakeCount() );
+    }
+    putPhase( sample, REQUEST_WRITE_TIME, response.getWriteNanos() );
+    putPhase( sample, TIME_TO_FIRST_BYTE, response.getFirstByteNanos() );
+    putPhase( sample, TRANSFER_TIME, response.getTransferNanos() );
+
+    if ( response.getStatusCode() == 304 ) {
+      return null;
+    }
+
+    // Perform an MD5 fingerprint on the body so as to allow detection of
+    // content changes
+    MD5 md = new MD5();
+    md.update( response.getBody() );
+
+    String retval = ByteUtil.bytesToHex( md.digest() );
+    sample.put( SIGNATURE, retval );
+    return retval;
+  }
+
+
+
+
+  /**
+   * Place a measured phase in the sample as fractional milliseconds so sub-
+   * millisecond phases do not read as zero; unmeasured phases are omitted.
+   */
+  static void putPhase( Sample sample, String name, long nanos ) {
+    if ( nanos >= 0 ) {
+      sample.put( name, nanos / 1000000D );
+    }
+  }
+
+
+
+
+  /**
+   * Send the request to our URI.
+   *
+   * <p>If configured to be asynchronous and the URI is clear-text HTTP, the
+   * request is serviced by the shared {@link HttpClientEngine} and this thread
+   * only waits for the result. The whole exchange is bounded by the connect
+   * timeout plus the read timeout, so a slow response is not mistaken for a
+   * failed connection. All other requests use the blocking client.</p>
+   *
+   * @param request the request to send
+   *
+   * @return the response from the server
+   *
+   * @throws Exception if the request could not be completed
+   */
+  private HttpResponse send( HttpRequest request ) throws Exception {
+    if ( asynchronous && HttpClientEngine.SCHEME.equalsIgnoreCase( uri.getScheme() ) ) {
+      try {
+        return HttpClientEngine.getDefault().send( request, uri, (long)connectTimeOut + readTimeOut, null ).get();
+      } catch ( ExecutionException e ) {
+        if ( e.getCause() instanceof Exception ) {
+          throw (Exception)e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    return request.send( uri );
+  }
+
+
+
+
   /**
    * Method main
    *
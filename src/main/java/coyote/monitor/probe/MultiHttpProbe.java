@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.probe;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import coyote.commons.ExceptionUtil;
+import coyote.commons.StringUtil;
+import coyote.commons.UriUtil;
+import coyote.commons.network.HostResolver;
+import coyote.commons.network.http.HttpPipeline;
+import coyote.commons.network.http.HttpRequest;
+import coyote.commons.network.http.HttpResponse;
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import coyote.loader.cfg.Config;
+import coyote.loader.cfg.ConfigSlot;
+import coyote.loader.log.Log;
+import coyote.monitor.MonitorEvent;
+import coyote.monitor.Sample;
+
+
+/**
+ * Retrieves several resources from the same site over a single persistent
+ * connection.
+ *
+ * <p>The requests are pipelined by default; servers which do not support
+ * pipelining are detected by the connection closing early and the remaining
+ * resources are retrieved one at a time over a keep-alive connection.</p>
+ *
+ * <p>The sample generated contains one sample for each path in the
+ * {@value #TARGETS} frame, keyed by the path, along with aggregate figures for
+ * the whole batch.</p>
+ */
+public class MultiHttpProbe extends AbstractProbe {
+
+  /** The comma separated list of paths to retrieve from the destination */
+  public static final String PATHS = "Paths";
+
+  /** Flag indicating all requests are written before reading any response */
+  public static final String PIPELINING = "Pipelining";
+
+  /** The name of the frame holding the sample for each path */
+  public static final String TARGETS = "Targets";
+
+  public static final String TARGET_COUNT = "TargetCount";
+
+  public static final String ERROR_COUNT = "ErrorCount";
+
+  public static final String CONNECTION_COUNT = "ConnectionCount";
+
+  public static final String ELAPSED_TIME = "ElapsedTime";
+
+  /** The base uri of the site we are to check */
+  private URI uri = null;
+
+  /** The paths of the resources on the site to retrieve */
+  private final List<String> paths = new ArrayList<String>();
+
+  /** The default number of milliseconds (5000) we use for our connection timeout */
+  private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+  /** The actual timeout we use for our connections in milliseconds */
+  private int connectTimeOut = DEFAULT_CONNECT_TIMEOUT;
+
+  private boolean pipelining = true;
+
+
+
+
+  /**
+   * Return a DataFrame that can be used as a template for defining instances
+   * of this class.
+   *
+   * @return a configuration that can be used as a template for other collectors
+   */
+  public Config getTemplate() {
+    Config template = super.getTemplate();
+
+    try {
+      template.setClassName( getClass().getName() );
+      template.addConfigSlot( new ConfigSlot( HttpProbe.DESTINATION_URI, "The URI of the site to test.", "http://localhost" ) );
+      template.addConfigSlot( new ConfigSlot( PATHS, "Comma separated paths of the resources to retrieve from the site.", "/" ) );
+      template.addConfigSlot( new ConfigSlot( HttpProbe.CONNECT_TIMEOUT, "The number of milliseconds to wait for the connection.", DEFAULT_CONNECT_TIMEOUT ) );
+      template.addConfigSlot( new ConfigSlot( PIPELINING, "Flag indicating all requests are sent before any response is read.", new Boolean( true ) ) );
+    } catch ( Exception ex ) {
+      // Should always work
+    }
+
+    return template;
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.probe.AbstractProbe#initialize()
+   */
+  @Override
+  public void initialize() {
+    super.initialize();
+
+    if ( configuration.contains( HttpProbe.DESTINATION_URI ) ) {
+      try {
+        uri = new URI( configuration.getAsString( HttpProbe.DESTINATION_URI ) );
+      } catch ( URISyntaxException e ) {
+        Log.error( "Invalid " + HttpProbe.DESTINATION_URI + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    paths.clear();
+    if ( configuration.contains( PATHS ) ) {
+      String[] tokens = configuration.getAsString( PATHS ).split( "," );
+      for ( int x = 0; x < tokens.length; x++ ) {
+        String path = tokens[x].trim();
+        if ( path.length() > 0 ) {
+          paths.add( path );
+        }
+      }
+    }
+
+    if ( configuration.contains( HttpProbe.CONNECT_TIMEOUT ) ) {
+      try {
+        connectTimeOut = configuration.getAsInt( HttpProbe.CONNECT_TIMEOUT );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + HttpProbe.CONNECT_TIMEOUT + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( PIPELINING ) ) {
+      try {
+        pipelining = configuration.getAsBoolean( PIPELINING );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + PIPELINING + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.probe.AbstractProbe#generateSample()
+   */
+  @Override
+  public DataFrame generateSample() {
+    Sample retval = new Sample();
+    retval.setType( StringUtil.getLocalJavaName( getClass().getName() ) );
+
+    if ( uri == null ) {
+      retval.setError( "No URI specified" );
+      return retval;
+    }
+    if ( paths.size() == 0 ) {
+      retval.setError( "No paths specified" );
+      return retval;
+    }
+
+    try {
+      retval.put( HttpProbe.DESTINATION_URI, UriUtil.clone( uri ) );
+      retval.put( HttpProbe.SOURCE_ADDRESS, HostResolver.getAddress( uri.getHost() ) );
+      HttpProbe.putPhase( retval, HttpProbe.RESOLUTION_TIME, HostResolver.getLookupNanos( uri.getHost() ) );
+    } catch ( Exception ex ) {
+      // Should always work even when null
+    }
+
+    DataFrame previous = null;
+    DataFrame prev = mib.getSample();
+    if ( prev != null ) {
+      try {
+        previous = prev.getAsFrame( TARGETS );
+      } catch ( DataFrameException e ) {
+        // no previous targets
+      }
+    }
+
+    try {
+      HttpPipeline pipeline = new HttpPipeline( uri );
+      pipeline.setPipelining( pipelining );
+      pipeline.setTimeout( connectTimeOut );
+      for ( String path : paths ) {
+        pipeline.add( new HttpRequest(), path );
+      }
+
+      long start = System.currentTimeMillis();
+      HttpResponse[] responses = pipeline.send();
+      long elapsed = System.currentTimeMillis() - start;
+      Exception[] errors = pipeline.getErrors();
+
+      DataFrame targets = new DataFrame();
+      int errorCount = 0;
+      long maxLatency = -1;
+      long totalLength = 0;
+
+      for ( int x = 0; x < responses.length; x++ ) {
+        String path = paths.get( x );
+        Sample target = new Sample();
+        target.setType( TARGETS );
+        HttpResponse response = responses[x];
+
+        if ( response != null ) {
+          String signature = HttpProbe.recordResponse( target, response );
+          maxLatency = Math.max( maxLatency, response.getServerLatency() );
+          totalLength += response.getBody().length;
+
+          if ( response.getStatusCode() >= 400 ) {
+            target.setError( "Server error response: " + response.getStatusCode() + " - " + response.getReasonPhrase() );
+            errorCount++;
+          }
+
+          String previousSignature = null;
+          if ( previous != null ) {
+            try {
+              previousSignature = previous.getAsFrame( path ).getAsString( HttpProbe.SIGNATURE );
+            } catch ( Exception e ) {
+              // path was not previously sampled
+            }
+          }
+
+          if ( ( previousSignature != null ) && ( signature != null ) && !signature.equalsIgnoreCase( previousSignature ) ) {
+            MonitorEvent event = new MonitorEvent( "Content changed" );
+            event.put( "Path", path );
+            event.put( "OldSignature", previousSignature );
+            event.put( "NewSignature", signature );
+            mib.addEvent( event );
+            target.put( HttpProbe.CONTENT_CHANGE, new Boolean( true ) );
+          }
+        } else {
+          target.setError( ( errors[x] != null ) ? errors[x].getMessage() : "No response received" );
+          errorCount++;
+        }
+
+        targets.put( path, target );
+      }
+
+      retval.put( TARGETS, targets );
+      retval.put( TARGET_COUNT, responses.length );
+      retval.put( ERROR_COUNT, errorCount );
+      retval.put( CONNECTION_COUNT, pipeline.getConnectionCount() );
+      retval.put( ELAPSED_TIME, elapsed );
+      retval.put( HttpProbe.SERVER_LATENCY, maxLatency );
+      retval.put( HttpProbe.CONTENT_LENGTH, totalLength );
+      if ( elapsed > 0 ) {
+        retval.put( HttpProbe.BPS, (float)( totalLength * 1000 ) / elapsed );
+      }
+
+      if ( errorCount > 0 ) {
+        retval.setError( errorCount + " of " + responses.length + " requests failed" );
+      }
+    } catch ( Exception ae ) {
+      Log.warn( getClass().getName() + ":" + getName() + " threw the following exception:\r\n" + ae.getClass().getName() + "\r\n" + ae.getMessage() + "\r\n" + ExceptionUtil.stackTrace( ae ) );
+      retval.setError( ae.getMessage() );
+      retval.recordTraceData( ExceptionUtil.stackTrace( ae ) );
+    }
+    finally {
+      mib.setSample( (DataFrame)retval.clone() );
+    }
+
+    return retval;
+  }
+
+}
@@ -1,19 +1,698 @@
 /*
  * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
- * 
- * This program and the accompanying materials are made available under the 
- * terms of the MIT License which accompanies this distribution, and is 
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
  * available at http://creativecommons.org/licenses/MIT/
  *
  * Contributors:
- *   Stephan D. Cote 
+ *   Stephan D. Cote
  *      - Initial concept and initial implementation
  */
 package coyote.monitor.probe;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import coyote.commons.ExceptionUtil;
+import coyote.commons.StringUtil;
+import coyote.commons.UriUtil;
+import coyote.commons.network.HostResolver;
+import coyote.commons.network.IResolverListener;
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import coyote.loader.cfg.Config;
+import coyote.loader.cfg.ConfigSlot;
+import coyote.loader.log.Log;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.MonitorEvent;
+import coyote.monitor.Sample;
+import coyote.monitor.StatusTracker;
+
+
 /**
- * 
+ * Checks that TCP services are accepting connections.
+ *
+ * <p>The probe measures how long the connection takes and can optionally
+ * read the banner the service sends when a client connects, or send a string
+ * and check the response contains an expected string.</p>
+ *
+ * <p>A single endpoint is checked when only the {@code Destination} is
+ * configured. When a list of {@value #ENDPOINTS} is configured, all of them
+ * are checked concurrently through one non-blocking selector in the probe's
+ * thread and the sample contains one sample for each endpoint, keyed by
+ * {@code host:port}, in the {@value MultiHttpProbe#TARGETS} frame along with
+ * counts for the whole batch. No more than {@value #MAX_CONCURRENT}
+ * connections are open at once.</p>
+ *
+ * <p>In a batch, each endpoint has a status tracker of its own, with the
+ * thresholds and flap detection of the collector, and its status is placed in
+ * its sample. An event is generated when an endpoint becomes unreachable or
+ * reachable again, or starts or stops flapping, so brief outages are ignored
+ * just as they are for the collector. A single endpoint is reported through
+ * the status of the collector cache.</p>
  */
 public class TcpProbe extends AbstractProbe {
 
+  /** The comma separated list of host:port pairs (or URIs) to check */
+  public static final String ENDPOINTS = "Endpoints";
+
+  /** The string to send once connected; \r, \n and \t escapes are honored */
+  public static final String SEND = "Send";
+
+  /** The string the response must contain */
+  public static final String EXPECT = "Expect";
+
+  /** Flag indicating the banner the service sends on connect is read */
+  public static final String READ_BANNER = "ReadBanner";
+
+  /** Milliseconds to wait for the banner or the expected response */
+  public static final String READ_TIMEOUT = "ReadTimeout";
+
+  /** The maximum number of connections open at one time in batch mode */
+  public static final String MAX_CONCURRENT = "MaxConcurrent";
+
+  /** The text read from the service, up to the first 512 bytes */
+  public static final String BANNER = "Banner";
+
+  /** Whether or not the response contained the expected string */
+  public static final String EXPECT_MATCHED = "ExpectMatched";
+
+  /** Milliseconds, with nanosecond resolution, to the first response byte */
+  public static final String RESPONSE_TIME = "ResponseTime";
+
+  /** The default number of milliseconds (5000) we use for our connection timeout */
+  private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+  /** The default number of milliseconds (5000) we wait for a response */
+  private static final int DEFAULT_READ_TIMEOUT = 5000;
+
+  /** The default number (256) of connections open at one time */
+  private static final int DEFAULT_MAX_CONCURRENT = 256;
+
+  /** The number of response bytes kept */
+  private static final int MAX_RESPONSE = 512;
+
+  /** The uri of the single endpoint we are to check */
+  private URI uri = null;
+
+  /** The endpoints checked in batch mode */
+  private final List<URI> endpoints = new ArrayList<URI>();
+
+  /** The status of each endpoint in a batch, by its key */
+  private final Map<String, StatusTracker> trackers = new HashMap<String, StatusTracker>();
+
+  private int connectTimeOut = DEFAULT_CONNECT_TIMEOUT;
+
+  private int readTimeOut = DEFAULT_READ_TIMEOUT;
+
+  private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+
+  private byte[] send = null;
+
+  private String expect = null;
+
+  private boolean readBanner = false;
+
+
+
+
+  /**
+   * Return a DataFrame that can be used as a template for defining instances
+   * of this class.
+   *
+   * @return a configuration that can be used as a template for other collectors
+   */
+  public Config getTemplate() {
+    Config template = super.getTemplate();
+
+    try {
+      template.setClassName( getClass().getName() );
+      template.addConfigSlot( new ConfigSlot( HttpProbe.DESTINATION_URI, "The URI of the service to test.", "tcp://localhost:22" ) );
+      template.addConfigSlot( new ConfigSlot( ENDPOINTS, "Comma separated host:port pairs to check together; replaces the destination.", null ) );
+      template.addConfigSlot( new ConfigSlot( HttpProbe.CONNECT_TIMEOUT, "The number of milliseconds to wait for the connection.", DEFAULT_CONNECT_TIMEOUT ) );
+      template.addConfigSlot( new ConfigSlot( READ_BANNER, "Flag indicating the banner sent by the service is read.", new Boolean( false ) ) );
+      template.addConfigSlot( new ConfigSlot( SEND, "The string to send once connected.", null ) );
+      template.addConfigSlot( new ConfigSlot( EXPECT, "The string the response must contain.", null ) );
+      template.addConfigSlot( new ConfigSlot( READ_TIMEOUT, "The number of milliseconds to wait for the response.", DEFAULT_READ_TIMEOUT ) );
+      template.addConfigSlot( new ConfigSlot( MAX_CONCURRENT, "The maximum number of connections open at one time.", DEFAULT_MAX_CONCURRENT ) );
+    } catch ( Exception ex ) {
+      // Should always work
+    }
+
+    return template;
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.probe.AbstractProbe#initialize()
+   */
+  @Override
+  public void initialize() {
+    super.initialize();
+
+    if ( configuration.contains( HttpProbe.DESTINATION_URI ) ) {
+      try {
+        uri = new URI( configuration.getAsString( HttpProbe.DESTINATION_URI ) );
+      } catch ( URISyntaxException e ) {
+        Log.error( "Invalid " + HttpProbe.DESTINATION_URI + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    endpoints.clear();
+    synchronized( trackers ) {
+      trackers.clear();
+    }
+    if ( configuration.contains( ENDPOINTS ) ) {
+      String[] tokens = configuration.getAsString( ENDPOINTS ).split( "," );
+      for ( int x = 0; x < tokens.length; x++ ) {
+        String token = tokens[x].trim();
+        if ( token.length() > 0 ) {
+          try {
+            endpoints.add( new URI( ( token.indexOf( "://" ) < 0 ) ? "tcp://" + token : token ) );
+          } catch ( URISyntaxException e ) {
+            Log.error( "Invalid endpoint '" + token + "' for " + getName() + ": " + e.getMessage() );
+          }
+        }
+      }
+    }
+
+    if ( configuration.contains( HttpProbe.CONNECT_TIMEOUT ) ) {
+      try {
+        connectTimeOut = configuration.getAsInt( HttpProbe.CONNECT_TIMEOUT );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + HttpProbe.CONNECT_TIMEOUT + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( READ_TIMEOUT ) ) {
+      try {
+        readTimeOut = configuration.getAsInt( READ_TIMEOUT );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + READ_TIMEOUT + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( MAX_CONCURRENT ) ) {
+      try {
+        maxConcurrent = Math.max( 1, configuration.getAsInt( MAX_CONCURRENT ) );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + MAX_CONCURRENT + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( READ_BANNER ) ) {
+      try {
+        readBanner = configuration.getAsBoolean( READ_BANNER );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + READ_BANNER + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    send = null;
+    if ( configuration.contains( SEND ) ) {
+      String text = configuration.getAsString( SEND ).replace( "\\r", "\r" ).replace( "\\n", "\n" ).replace( "\\t", "\t" );
+      try {
+        send = text.getBytes( "ISO-8859-1" );
+      } catch ( UnsupportedEncodingException e ) {
+        send = text.getBytes();
+      }
+    }
+
+    expect = configuration.contains( EXPECT ) ? configuration.getAsString( EXPECT ) : null;
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.probe.AbstractProbe#generateSample()
+   */
+  @Override
+  public DataFrame generateSample() {
+    Sample retval = new Sample();
+    retval.setType( StringUtil.getLocalJavaName( getClass().getName() ) );
+
+    boolean batch = endpoints.size() > 0;
+    if ( !batch && ( uri == null ) ) {
+      retval.setError( "No URI specified" );
+      return retval;
+    }
+
+    List<URI> targets = new ArrayList<URI>( endpoints );
+    if ( !batch ) {
+      targets.add( uri );
+    }
+
+    try {
+      long start = System.currentTimeMillis();
+      Check[] checks = check( targets );
+      long elapsed = System.currentTimeMillis() - start;
+
+      if ( batch ) {
+        DataFrame frame = new DataFrame();
+        int errorCount = 0;
+        for ( int x = 0; x < checks.length; x++ ) {
+          Sample target = new Sample();
+          target.setType( MultiHttpProbe.TARGETS );
+          record( target, checks[x] );
+          if ( target.hasError() ) {
+            errorCount++;
+          }
+
+          detectTransition( checks[x], target );
+          frame.put( checks[x].key, target );
+        }
+
+        retval.put( MultiHttpProbe.TARGETS, frame );
+        retval.put( MultiHttpProbe.TARGET_COUNT, checks.length );
+        retval.put( MultiHttpProbe.ERROR_COUNT, errorCount );
+        retval.put( MultiHttpProbe.ELAPSED_TIME, elapsed );
+        if ( errorCount > 0 ) {
+          retval.setError( errorCount + " of " + checks.length + " endpoints failed" );
+        }
+      } else {
+        retval.put( HttpProbe.DESTINATION_URI, UriUtil.clone( uri ) );
+        record( retval, checks[0] );
+      }
+    } catch ( Exception ae ) {
+      Log.warn( getClass().getName() + ":" + getName() + " threw the following exception:\r\n" + ae.getClass().getName() + "\r\n" + ae.getMessage() + "\r\n" + ExceptionUtil.stackTrace( ae ) );
+      retval.setError( ae.getMessage() );
+      retval.recordTraceData( ExceptionUtil.stackTrace( ae ) );
+    }
+    finally {
+      mib.setSample( (DataFrame)retval.clone() );
+    }
+
+    return retval;
+  }
+
+
+
+
+  /**
+   * Place the results of the check in the sample.
+   */
+  private void record( Sample sample, Check check ) {
+    if ( check.address != null ) {
+      sample.put( HttpProbe.DESTINATION_ADDRESS, check.address.getAddress().toString() );
+    }
+    if ( check.connectNanos >= 0 ) {
+      sample.put( HttpProbe.CONNECTION_TIME, check.connectNanos / 1000000 );
+    }
+    HttpProbe.putPhase( sample, HttpProbe.TCP_CONNECT_TIME, check.connectNanos );
+    HttpProbe.putPhase( sample, RESPONSE_TIME, check.responseNanos );
+
+    if ( check.input != null ) {
+      String text = check.getResponse();
+      if ( readBanner ) {
+        sample.put( BANNER, text.trim() );
+      }
+      if ( expect != null ) {
+        sample.put( EXPECT_MATCHED, new Boolean( check.matched ) );
+      }
+    }
+
+    if ( check.error != null ) {
+      sample.setError( check.error );
+    }
+  }
+
+
+
+
+  /**
+   * Run the result of the check through the status tracker of the endpoint,
+   * placing its status in the sample and generating an event only when the
+   * tracker changes.
+   *
+   * <p>As with the collector, status changes are not reported while the
+   * endpoint is flapping, and the first status of a healthy endpoint is not
+   * reported.</p>
+   */
+  private void detectTransition( Check check, Sample current ) {
+    MonitorEvent event = null;
+
+    synchronized( trackers ) {
+      StatusTracker tracker = trackers.get( check.key );
+      if ( tracker == null ) {
+        tracker = mib.createTracker();
+        trackers.put( check.key, tracker );
+      }
+
+      String before = tracker.getStatus();
+      boolean wasFlapping = tracker.isFlapping();
+      boolean changed = tracker.update( current.hasError() );
+      String after = tracker.getStatus();
+      current.put( CollectorCache.STATUS, after );
+      if ( tracker.isFlapping() ) {
+        current.put( CollectorCache.FLAPPING, true );
+      }
+      if ( !changed ) {
+        return;
+      }
+
+      if ( tracker.isFlapping() != wasFlapping ) {
+        event = new MonitorEvent( tracker.isFlapping() ? "Endpoint flapping" : "Endpoint stopped flapping" );
+        event.put( CollectorCache.STATUS, after );
+        event.put( "Changes", tracker.getChangeCount() );
+      } else if ( !after.equals( before ) && !tracker.isFlapping() && !( CollectorCache.UNKNOWN_STATUS.equals( before ) && CollectorCache.CLEAR_STATUS.equals( after ) ) ) {
+        event = new MonitorEvent( CollectorCache.ERROR_STATUS.equals( after ) ? "Endpoint unreachable" : "Endpoint reachable" );
+        event.put( CollectorCache.PREV_STATUS, before );
+        event.put( CollectorCache.STATUS, after );
+      }
+    }
+
+    if ( event != null ) {
+      event.put( "Endpoint", check.key );
+      if ( current.hasError() ) {
+        event.put( "Reason", current.getError() );
+      }
+      mib.addEvent( event );
+    }
+  }
+
+
+
+
+  /**
+   * Check all the endpoints through one selector.
+   *
+   * @param targets the endpoints to check
+   *
+   * @return the result of checking each endpoint, in the same order
+   */
+  private Check[] check( List<URI> targets ) throws IOException {
+    Check[] checks = new Check[targets.size()];
+    for ( int x = 0; x < checks.length; x++ ) {
+      checks[x] = new Check( targets.get( x ) );
+    }
+
+    final Selector selector = Selector.open();
+    final ConcurrentLinkedQueue<Check> resolved = new ConcurrentLinkedQueue<Check>();
+    List<Check> running = new ArrayList<Check>();
+    int next = 0;
+    int remaining = checks.length;
+
+    try {
+      while ( remaining > 0 ) {
+        long now = System.currentTimeMillis();
+
+        // keep the window of running checks full
+        while ( ( running.size() < maxConcurrent ) && ( next < checks.length ) ) {
+          final Check check = checks[next++];
+          running.add( check );
+          check.deadline = now + connectTimeOut;
+
+          if ( check.port < 1 ) {
+            check.error = "Could not determine port";
+            resolved.add( check );
+            continue;
+          }
+
+          HostResolver.resolve( check.host, new IResolverListener() {
+            public void onResolved( String host, InetAddress[] addresses ) {
+              check.address = new InetSocketAddress( addresses[0], check.port );
+              resolved.add( check );
+              selector.wakeup();
+            }
+
+
+
+
+            public void onFailure( String host, UnknownHostException error ) {
+              check.error = "Could not resolve host '" + host + "'";
+              resolved.add( check );
+              selector.wakeup();
+            }
+          } );
+        }
+
+        Check check;
+        while ( ( check = resolved.poll() ) != null ) {
+          if ( check.done ) {
+            continue;
+          }
+          if ( check.error != null ) {
+            remaining -= finish( check, running, null );
+          } else {
+            connect( check, selector );
+            if ( check.done ) {
+              remaining -= finish( check, running, check.error );
+            }
+          }
+        }
+
+        // time out the checks past their deadline, note the nearest deadline
+        now = System.currentTimeMillis();
+        long nearest = Long.MAX_VALUE;
+        for ( int x = running.size() - 1; x >= 0; x-- ) {
+          check = running.get( x );
+          if ( check.deadline <= now ) {
+            String reason = ( check.connectNanos < 0 ) ? "Connection timed out after " + connectTimeOut + "ms" : ( ( expect != null ) ? "Expected response not received within " + readTimeOut + "ms" : null );
+            remaining -= finish( check, running, reason );
+          } else {
+            nearest = Math.min( nearest, check.deadline );
+          }
+        }
+
+        if ( remaining == 0 ) {
+          break;
+        }
+
+        // a check which timed out left room in the window for the next one
+        if ( ( running.size() < maxConcurrent ) && ( next < checks.length ) ) {
+          continue;
+        }
+
+        if ( resolved.isEmpty() ) {
+          selector.select( ( nearest == Long.MAX_VALUE ) ? 0 : Math.max( 1, nearest - now ) );
+        }
+
+        for ( Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+          SelectionKey key = it.next();
+          it.remove();
+          check = (Check)key.attachment();
+          try {
+            service( check, key );
+          } catch ( IOException e ) {
+            check.done = true;
+            check.error = ( e.getMessage() != null ) ? e.getMessage() : e.getClass().getName();
+          }
+          if ( check.done ) {
+            remaining -= finish( check, running, check.error );
+          }
+        }
+      }
+    }
+    finally {
+      for ( int x = 0; x < running.size(); x++ ) {
+        running.get( x ).close();
+      }
+      selector.close();
+    }
+
+    return checks;
+  }
+
+
+
+
+  /**
+   * Start the non-blocking connect of a resolved check.
+   */
+  private void connect( Check check, Selector selector ) {
+    try {
+      check.channel = java.nio.channels.SocketChannel.open();
+      check.channel.configureBlocking( false );
+      check.connectMark = System.nanoTime();
+      if ( check.channel.connect( check.address ) ) {
+        connected( check, check.channel.register( selector, 0, check ) );
+      } else {
+        check.channel.register( selector, SelectionKey.OP_CONNECT, check );
+      }
+    } catch ( IOException e ) {
+      check.done = true;
+      check.error = ( e.getMessage() != null ) ? e.getMessage() : e.getClass().getName();
+    }
+  }
+
+
+
+
+  /**
+   * Advance the check according to the readiness of its socket.
+   */
+  private void service( Check check, SelectionKey key ) throws IOException {
+    if ( key.isConnectable() ) {
+      if ( check.channel.finishConnect() ) {
+        connected( check, key );
+      }
+      return;
+    }
+
+    if ( key.isWritable() ) {
+      check.channel.write( check.output );
+      if ( !check.output.hasRemaining() ) {
+        key.interestOps( SelectionKey.OP_READ );
+        check.readyMark = System.nanoTime();
+      }
+      return;
+    }
+
+    if ( key.isReadable() ) {
+      ByteBuffer buffer = ByteBuffer.allocate( 1024 );
+      int count = check.channel.read( buffer );
+      if ( count < 0 ) {
+        check.done = true;
+        if ( ( expect != null ) && !check.matched ) {
+          check.error = "Connection closed before the expected response";
+        }
+        return;
+      }
+
+      if ( check.responseNanos < 0 ) {
+        check.responseNanos = System.nanoTime() - check.readyMark;
+      }
+      if ( check.input.size() < MAX_RESPONSE ) {
+        check.input.write( buffer.array(), 0, Math.min( count, MAX_RESPONSE - check.input.size() ) );
+      }
+
+      if ( expect != null ) {
+        if ( check.getResponse().indexOf( expect ) >= 0 ) {
+          check.matched = true;
+          check.done = true;
+        } else if ( check.input.size() >= MAX_RESPONSE ) {
+          check.done = true;
+          check.error = "Expected response not found in the first " + MAX_RESPONSE + " bytes";
+        }
+      } else {
+        // the first data to arrive is the banner
+        check.done = true;
+      }
+    }
+  }
+
+
+
+
+  /**
+   * The connection has been made; send, read or finish as configured.
+   */
+  private void connected( Check check, SelectionKey key ) {
+    check.connectNanos = System.nanoTime() - check.connectMark;
+    check.readyMark = System.nanoTime();
+
+    if ( ( send == null ) && ( expect == null ) && !readBanner ) {
+      check.done = true;
+      return;
+    }
+
+    check.input = new ByteArrayOutputStream();
+    check.deadline = System.currentTimeMillis() + readTimeOut;
+    if ( send != null ) {
+      check.output = ByteBuffer.wrap( send );
+      key.interestOps( SelectionKey.OP_WRITE );
+    } else {
+      key.interestOps( SelectionKey.OP_READ );
+    }
+  }
+
+
+
+
+  /**
+   * Close the check and take it out of the running window.
+   *
+   * @return 1, the number of checks finished
+   */
+  private int finish( Check check, List<Check> running, String reason ) {
+    check.done = true;
+    if ( ( check.error == null ) && ( reason != null ) ) {
+      check.error = reason;
+    }
+    check.close();
+    running.remove( check );
+    return 1;
+  }
+
+  /**
+   * The state of checking one endpoint.
+   */
+  private static final class Check {
+    final String host;
+    final int port;
+
+    /** The name of the endpoint in the sample */
+    final String key;
+
+    volatile InetSocketAddress address = null;
+    java.nio.channels.SocketChannel channel = null;
+
+    long deadline = 0;
+    long connectMark = 0;
+    long readyMark = 0;
+    long connectNanos = -1;
+    long responseNanos = -1;
+
+    ByteBuffer output = null;
+    ByteArrayOutputStream input = null;
+    boolean matched = false;
+
+    volatile String error = null;
+    boolean done = false;
+
+
+
+
+    Check( URI uri ) {
+      host = uri.getHost();
+      int p = uri.getPort();
+      if ( p < 1 ) {
+        p = UriUtil.getPort( uri.getScheme() );
+      }
+      port = p;
+      key = host + ":" + port;
+    }
+
+
+
+
+    String getResponse() {
+      try {
+        return input.toString( "ISO-8859-1" );
+      } catch ( UnsupportedEncodingException e ) {
+        return input.toString();
+      }
+    }
+
+
+
+
+    void close() {
+      if ( channel != null ) {
+        try {
+          channel.close();
+        } catch ( IOException ignore ) {}
+      }
+    }
+  }
+
 }
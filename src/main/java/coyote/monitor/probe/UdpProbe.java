@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.probe;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import coyote.commons.ExceptionUtil;
+import coyote.commons.StringUtil;
+import coyote.commons.UriUtil;
+import coyote.commons.network.HostResolver;
+import coyote.commons.network.UdpEcho;
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.DataFrameException;
+import coyote.loader.cfg.Config;
+import coyote.loader.cfg.ConfigSlot;
+import coyote.loader.log.Log;
+import coyote.monitor.Sample;
+
+
+/**
+ * Measures round trip time, jitter and packet loss to UDP echo services.
+ *
+ * <p>Each sample sends the configured {@value #COUNT} of sequenced packets to
+ * every target from a single datagram socket (see {@link UdpEcho}) and reports
+ * the loss and the minimum, mean, maximum and percentile round trip times in
+ * milliseconds with nanosecond resolution.</p>
+ *
+ * <p>A single target is pinged when only the {@code Destination} is
+ * configured. When a list of {@value TcpProbe#ENDPOINTS} is configured, all
+ * of them are pinged together and the sample contains one sample for each,
+ * keyed by {@code host:port}, in the {@value MultiHttpProbe#TARGETS} frame. A
+ * target is in error when none of its packets were answered.</p>
+ */
+public class UdpProbe extends AbstractProbe {
+
+  /** The number of packets sent to each target */
+  public static final String COUNT = "Count";
+
+  /** Milliseconds between sending packets to the same target */
+  public static final String INTERVAL = "Interval";
+
+  /** The size of each packet in bytes */
+  public static final String PACKET_SIZE = "PacketSize";
+
+  /** Milliseconds to wait for replies after the last packet is sent */
+  public static final String TIMEOUT = "Timeout";
+
+  /** The number of packets sent */
+  public static final String SENT = "Sent";
+
+  /** The number of packets answered */
+  public static final String RECEIVED = "Received";
+
+  /** The number of extra replies to packets already answered */
+  public static final String DUPLICATES = "Duplicates";
+
+  /** The percentage of packets not answered */
+  public static final String LOSS = "Loss";
+
+  /** The shortest round trip time */
+  public static final String RTT_MIN = "RttMin";
+
+  /** The mean round trip time */
+  public static final String RTT_AVG = "RttAvg";
+
+  /** The longest round trip time */
+  public static final String RTT_MAX = "RttMax";
+
+  /** The median round trip time */
+  public static final String RTT_P50 = "RttP50";
+
+  /** The 90th percentile of the round trip times */
+  public static final String RTT_P90 = "RttP90";
+
+  /** The 99th percentile of the round trip times */
+  public static final String RTT_P99 = "RttP99";
+
+  /** The mean difference between the round trip times of successive packets */
+  public static final String JITTER = "Jitter";
+
+  /** The port of the echo service used when none is given */
+  private static final int ECHO_PORT = 7;
+
+  /** The uri of the single target we are to ping */
+  private URI uri = null;
+
+  /** The targets pinged in batch mode */
+  private final List<URI> endpoints = new ArrayList<URI>();
+
+  private final UdpEcho echo = new UdpEcho();
+
+
+
+
+  /**
+   * Return a DataFrame that can be used as a template for defining instances
+   * of this class.
+   *
+   * @return a configuration that can be used as a template for other collectors
+   */
+  public Config getTemplate() {
+    Config template = super.getTemplate();
+
+    try {
+      template.setClassName( getClass().getName() );
+      template.addConfigSlot( new ConfigSlot( HttpProbe.DESTINATION_URI, "The URI of the echo service to ping.", "udp://localhost:7" ) );
+      template.addConfigSlot( new ConfigSlot( TcpProbe.ENDPOINTS, "Comma separated host:port pairs to ping together; replaces the destination.", null ) );
+      template.addConfigSlot( new ConfigSlot( COUNT, "The number of packets sent to each target.", UdpEcho.DEFAULT_COUNT ) );
+      template.addConfigSlot( new ConfigSlot( INTERVAL, "The number of milliseconds between packets to the same target.", UdpEcho.DEFAULT_INTERVAL ) );
+      template.addConfigSlot( new ConfigSlot( PACKET_SIZE, "The size of each packet in bytes.", UdpEcho.DEFAULT_PACKET_SIZE ) );
+      template.addConfigSlot( new ConfigSlot( TIMEOUT, "The number of milliseconds to wait for replies after the last packet.", UdpEcho.DEFAULT_TIMEOUT ) );
+    } catch ( Exception ex ) {
+      // Should always work
+    }
+
+    return template;
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.probe.AbstractProbe#initialize()
+   */
+  @Override
+  public void initialize() {
+    super.initialize();
+
+    if ( configuration.contains( HttpProbe.DESTINATION_URI ) ) {
+      try {
+        uri = new URI( configuration.getAsString( HttpProbe.DESTINATION_URI ) );
+      } catch ( URISyntaxException e ) {
+        Log.error( "Invalid " + HttpProbe.DESTINATION_URI + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    endpoints.clear();
+    if ( configuration.contains( TcpProbe.ENDPOINTS ) ) {
+      String[] tokens = configuration.getAsString( TcpProbe.ENDPOINTS ).split( "," );
+      for ( int x = 0; x < tokens.length; x++ ) {
+        String token = tokens[x].trim();
+        if ( token.length() > 0 ) {
+          try {
+            endpoints.add( new URI( ( token.indexOf( "://" ) < 0 ) ? "udp://" + token : token ) );
+          } catch ( URISyntaxException e ) {
+            Log.error( "Invalid endpoint '" + token + "' for " + getName() + ": " + e.getMessage() );
+          }
+        }
+      }
+    }
+
+    if ( configuration.contains( COUNT ) ) {
+      try {
+        echo.setCount( configuration.getAsInt( COUNT ) );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + COUNT + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( INTERVAL ) ) {
+      try {
+        echo.setInterval( configuration.getAsInt( INTERVAL ) );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + INTERVAL + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( PACKET_SIZE ) ) {
+      try {
+        echo.setPacketSize( configuration.getAsInt( PACKET_SIZE ) );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + PACKET_SIZE + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+
+    if ( configuration.contains( TIMEOUT ) ) {
+      try {
+        echo.setTimeout( configuration.getAsInt( TIMEOUT ) );
+      } catch ( DataFrameException e ) {
+        Log.error( "Invalid " + TIMEOUT + " for " + getName() + ": " + e.getMessage() );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * @see coyote.monitor.probe.AbstractProbe#generateSample()
+   */
+  @Override
+  public DataFrame generateSample() {
+    Sample retval = new Sample();
+    retval.setType( StringUtil.getLocalJavaName( getClass().getName() ) );
+
+    boolean batch = endpoints.size() > 0;
+    if ( !batch && ( uri == null ) ) {
+      retval.setError( "No URI specified" );
+      return retval;
+    }
+
+    List<URI> targets = new ArrayList<URI>( endpoints );
+    if ( !batch ) {
+      targets.add( uri );
+    }
+
+    try {
+      String[] keys = new String[targets.size()];
+      InetSocketAddress[] addresses = new InetSocketAddress[targets.size()];
+      for ( int x = 0; x < addresses.length; x++ ) {
+        URI target = targets.get( x );
+        int port = ( target.getPort() > 0 ) ? target.getPort() : ECHO_PORT;
+        keys[x] = target.getHost() + ":" + port;
+        try {
+          addresses[x] = new InetSocketAddress( HostResolver.getAddress( target.getHost() ), port );
+        } catch ( UnknownHostException e ) {
+          addresses[x] = InetSocketAddress.createUnresolved( String.valueOf( target.getHost() ), port );
+        }
+      }
+
+      long start = System.currentTimeMillis();
+      UdpEcho.Result[] results = echo.ping( addresses );
+      long elapsed = System.currentTimeMillis() - start;
+
+      if ( batch ) {
+        DataFrame frame = new DataFrame();
+        int errorCount = 0;
+        for ( int x = 0; x < results.length; x++ ) {
+          Sample target = new Sample();
+          target.setType( MultiHttpProbe.TARGETS );
+          record( target, results[x] );
+          if ( target.hasError() ) {
+            errorCount++;
+          }
+          frame.put( keys[x], target );
+        }
+
+        retval.put( MultiHttpProbe.TARGETS, frame );
+        retval.put( MultiHttpProbe.TARGET_COUNT, results.length );
+        retval.put( MultiHttpProbe.ERROR_COUNT, errorCount );
+        retval.put( MultiHttpProbe.ELAPSED_TIME, elapsed );
+        if ( errorCount > 0 ) {
+          retval.setError( errorCount + " of " + results.length + " targets did not answer" );
+        }
+      } else {
+        retval.put( HttpProbe.DESTINATION_URI, UriUtil.clone( uri ) );
+        record( retval, results[0] );
+      }
+    } catch ( Exception ae ) {
+      Log.warn( getClass().getName() + ":" + getName() + " threw the following exception:\r\n" + ae.getClass().getName() + "\r\n" + ae.getMessage() + "\r\n" + ExceptionUtil.stackTrace( ae ) );
+      retval.setError( ae.getMessage() );
+      retval.recordTraceData( ExceptionUtil.stackTrace( ae ) );
+    }
+    finally {
+      mib.setSample( (DataFrame)retval.clone() );
+    }
+
+    return retval;
+  }
+
+
+
+
+  /**
+   * Place the statistics of one target in the sample.
+   */
+  private void record( Sample sample, UdpEcho.Result result ) {
+    InetSocketAddress target = result.getTarget();
+    if ( !target.isUnresolved() ) {
+      sample.put( HttpProbe.DESTINATION_ADDRESS, target.getAddress().toString() );
+    }
+
+    sample.put( SENT, result.getSent() );
+    sample.put( RECEIVED, result.getReceived() );
+    sample.put( DUPLICATES, result.getDuplicates() );
+    sample.put( LOSS, result.getLoss() );
+    HttpProbe.putPhase( sample, RTT_MIN, result.getMinimum() );
+    HttpProbe.putPhase( sample, RTT_AVG, result.getAverage() );
+    HttpProbe.putPhase( sample, RTT_MAX, result.getMaximum() );
+    HttpProbe.putPhase( sample, RTT_P50, result.getPercentile( 50 ) );
+    HttpProbe.putPhase( sample, RTT_P90, result.getPercentile( 90 ) );
+    HttpProbe.putPhase( sample, RTT_P99, result.getPercentile( 99 ) );
+    HttpProbe.putPhase( sample, JITTER, result.getJitter() );
+
+    if ( target.isUnresolved() ) {
+      sample.setError( "Could not resolve host '" + target.getHostName() + "'" );
+    } else if ( result.getError() != null ) {
+      sample.setError( result.getError() );
+    } else if ( result.getReceived() == 0 ) {
+      sample.setError( "No replies to " + result.getSent() + " packets" );
+    }
+  }
+
+}
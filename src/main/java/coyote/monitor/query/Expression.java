@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import coyote.commons.eval.AbstractEvaluator;
+import coyote.commons.eval.Constant;
+import coyote.commons.eval.DoubleEvaluator;
+import coyote.commons.eval.Function;
+import coyote.commons.eval.Operator;
+import coyote.commons.eval.Parameters;
+
+
+/**
+ * An arithmetic expression over the columns of a query, parsed once and then
+ * evaluated a block of rows at a time.
+ *
+ * <p>The expression is parsed by the evaluators in {@code coyote.commons.eval}
+ * with all the operators, functions and constants of the
+ * {@link DoubleEvaluator}, plus comparisons ({@code < <= > >= == !=}) and
+ * logic ({@code && || !}) which give 1 for true and 0 for false. Any other
+ * name is a column; a name in single or double quotes is text, which may be
+ * compared to a text column such as {@code Status == 'ERROR'}.</p>
+ *
+ * <p>Missing values are {@code NaN}; arithmetic on them gives {@code NaN} and
+ * comparisons with them are false (except {@code !=}). A row passes a filter
+ * when the expression is neither zero nor {@code NaN}.</p>
+ */
+public final class Expression {
+
+  /** Comparisons bind looser than arithmetic */
+  private static final int COMPARISON = 0;
+
+  public static final Operator LESS = new Operator( "<", 2, Operator.Associativity.LEFT, COMPARISON );
+
+  public static final Operator LESS_OR_EQUAL = new Operator( "<=", 2, Operator.Associativity.LEFT, COMPARISON );
+
+  public static final Operator GREATER = new Operator( ">", 2, Operator.Associativity.LEFT, COMPARISON );
+
+  public static final Operator GREATER_OR_EQUAL = new Operator( ">=", 2, Operator.Associativity.LEFT, COMPARISON );
+
+  public static final Operator EQUAL = new Operator( "==", 2, Operator.Associativity.LEFT, COMPARISON );
+
+  public static final Operator NOT_EQUAL = new Operator( "!=", 2, Operator.Associativity.LEFT, COMPARISON );
+
+  public static final Operator AND = new Operator( "&&", 2, Operator.Associativity.LEFT, COMPARISON - 1 );
+
+  public static final Operator OR = new Operator( "||", 2, Operator.Associativity.LEFT, COMPARISON - 2 );
+
+  public static final Operator NOT = new Operator( "!", 1, Operator.Associativity.RIGHT, 3 );
+
+  private static final Operator[] LOGIC = { LESS, LESS_OR_EQUAL, GREATER, GREATER_OR_EQUAL, EQUAL, NOT_EQUAL, AND, OR, NOT };
+
+  private final String text;
+
+  private final Node root;
+
+  private final String[] fields;
+
+
+
+
+  private Expression( String text, Node root, Set<String> fields ) {
+    this.text = text;
+    this.root = root;
+    this.fields = fields.toArray( new String[fields.size()] );
+  }
+
+
+
+
+  /**
+   * Parse an expression.
+   *
+   * @param text the expression
+   *
+   * @return the parsed expression
+   *
+   * @throws IllegalArgumentException if the expression is not correct
+   */
+  public static Expression compile( String text ) {
+    if ( ( text == null ) || ( text.trim().length() == 0 ) ) {
+      throw new IllegalArgumentException( "Empty expression" );
+    }
+    Compiler compiler = new Compiler();
+    Node root = compiler.evaluate( text );
+    return new Expression( text, root, compiler.fields );
+  }
+
+
+
+
+  /**
+   * @return the names of the columns the expression reads
+   */
+  public String[] getFields() {
+    return fields.clone();
+  }
+
+
+
+
+  /**
+   * @return the name of the column if the expression is nothing but a column,
+   *         otherwise null
+   */
+  public String getColumn() {
+    return ( root instanceof ColumnNode ) ? ( (ColumnNode)root ).name : null;
+  }
+
+
+
+
+  /**
+   * Evaluate the expression over a block of rows.
+   *
+   * @param table the rows
+   * @param from the first row, inclusive
+   * @param to the last row, exclusive
+   * @param out receives the value of each row, starting at index 0
+   */
+  void evaluate( Table table, int from, int to, double[] out ) {
+    root.evaluate( table, from, to, out );
+  }
+
+
+
+
+  /**
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return text;
+  }
+
+
+
+
+  private static double truth( boolean value ) {
+    return value ? 1D : 0D;
+  }
+
+
+
+
+  private static boolean isTrue( double value ) {
+    return ( value != 0D ) && !Double.isNaN( value );
+  }
+
+  /**
+   * A part of the parsed expression.
+   */
+  private abstract static class Node {
+    abstract void evaluate( Table table, int from, int to, double[] out );
+  }
+
+  /**
+   * A number.
+   */
+  private static final class ValueNode extends Node {
+    final double value;
+
+
+
+
+    ValueNode( double value ) {
+      this.value = value;
+    }
+
+
+
+
+    void evaluate( Table table, int from, int to, double[] out ) {
+      Arrays.fill( out, 0, to - from, value );
+    }
+  }
+
+  /**
+   * A piece of text, which is the code the table gives it.
+   */
+  private static final class TextNode extends Node {
+    final String value;
+
+
+
+
+    TextNode( String value ) {
+      this.value = value;
+    }
+
+
+
+
+    void evaluate( Table table, int from, int to, double[] out ) {
+      Arrays.fill( out, 0, to - from, table.getCode( value ) );
+    }
+  }
+
+  /**
+   * The values of a column.
+   */
+  private static final class ColumnNode extends Node {
+    final String name;
+
+
+
+
+    ColumnNode( String name ) {
+      this.name = name;
+    }
+
+
+
+
+    void evaluate( Table table, int from, int to, double[] out ) {
+      double[] column = table.getColumn( name );
+      if ( column != null ) {
+        System.arraycopy( column, from, out, 0, to - from );
+      } else {
+        Arrays.fill( out, 0, to - from, Double.NaN );
+      }
+    }
+  }
+
+  /**
+   * An operator applied to one or two operands, a whole block at a time.
+   */
+  private static final class OperatorNode extends Node {
+    final Operator operator;
+    final Node left;
+    final Node right;
+
+
+
+
+    OperatorNode( Operator operator, Node left, Node right ) {
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+
+
+
+
+    void evaluate( Table table, int from, int to, double[] out ) {
+      int length = to - from;
+      left.evaluate( table, from, to, out );
+
+      if ( right == null ) {
+        if ( operator == NOT ) {
+          for ( int x = 0; x < length; x++ ) {
+            out[x] = truth( !isTrue( out[x] ) );
+          }
+        } else if ( ( operator == DoubleEvaluator.NEGATE ) || ( operator == DoubleEvaluator.NEGATE_HIGH ) ) {
+          for ( int x = 0; x < length; x++ ) {
+            out[x] = -out[x];
+          }
+        } else {
+          for ( int x = 0; x < length; x++ ) {
+            out[x] = Arithmetic.INSTANCE.apply( operator, out[x] );
+          }
+        }
+        return;
+      }
+
+      double[] other = new double[length];
+      right.evaluate( table, from, to, other );
+
+      if ( operator == DoubleEvaluator.PLUS ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] += other[x];
+        }
+      } else if ( operator == DoubleEvaluator.MINUS ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] -= other[x];
+        }
+      } else if ( operator == DoubleEvaluator.MULTIPLY ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] *= other[x];
+        }
+      } else if ( operator == DoubleEvaluator.DIVIDE ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] /= other[x];
+        }
+      } else if ( operator == DoubleEvaluator.MODULO ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] %= other[x];
+        }
+      } else if ( operator == DoubleEvaluator.EXPONENT ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = Math.pow( out[x], other[x] );
+        }
+      } else if ( operator == LESS ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = truth( out[x] < other[x] );
+        }
+      } else if ( operator == LESS_OR_EQUAL ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = truth( out[x] <= other[x] );
+        }
+      } else if ( operator == GREATER ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = truth( out[x] > other[x] );
+        }
+      } else if ( operator == GREATER_OR_EQUAL ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = truth( out[x] >= other[x] );
+        }
+      } else if ( operator == EQUAL ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = truth( out[x] == other[x] );
+        }
+      } else if ( operator == NOT_EQUAL ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = truth( out[x] != other[x] );
+        }
+      } else if ( operator == AND ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = truth( isTrue( out[x] ) && isTrue( other[x] ) );
+        }
+      } else if ( operator == OR ) {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = truth( isTrue( out[x] ) || isTrue( other[x] ) );
+        }
+      } else {
+        for ( int x = 0; x < length; x++ ) {
+          out[x] = Arithmetic.INSTANCE.apply( operator, out[x], other[x] );
+        }
+      }
+    }
+  }
+
+  /**
+   * A function of the evaluator applied to each row.
+   */
+  private static final class FunctionNode extends Node {
+    final Function function;
+    final Node[] arguments;
+
+
+
+
+    FunctionNode( Function function, Node[] arguments ) {
+      this.function = function;
+      this.arguments = arguments;
+    }
+
+
+
+
+    void evaluate( Table table, int from, int to, double[] out ) {
+      int length = to - from;
+      double[][] values = new double[arguments.length][];
+      for ( int x = 0; x < arguments.length; x++ ) {
+        values[x] = new double[length];
+        arguments[x].evaluate( table, from, to, values[x] );
+      }
+
+      Double[] row = new Double[arguments.length];
+      for ( int x = 0; x < length; x++ ) {
+        boolean missing = false;
+        for ( int y = 0; y < arguments.length; y++ ) {
+          row[y] = values[y][x];
+          missing |= Double.isNaN( values[y][x] );
+        }
+        out[x] = missing ? Double.NaN : Arithmetic.INSTANCE.apply( function, row );
+      }
+    }
+  }
+
+  /**
+   * Gives access to the operators and functions of the double evaluator for
+   * those without a block implementation here.
+   */
+  private static final class Arithmetic extends DoubleEvaluator {
+    static final Arithmetic INSTANCE = new Arithmetic();
+
+
+
+
+    double apply( Operator operator, Double... operands ) {
+      return evaluate( operator, Arrays.asList( operands ).iterator(), null );
+    }
+
+
+
+
+    double apply( Function function, Double[] arguments ) {
+      try {
+        return evaluate( function, Arrays.asList( arguments ).iterator(), null );
+      } catch ( IllegalArgumentException e ) {
+        return Double.NaN;
+      }
+    }
+  }
+
+  /**
+   * Parses an expression into nodes instead of values, noting the columns it
+   * names.
+   */
+  private static final class Compiler extends AbstractEvaluator<Node> {
+    final Set<String> fields = new LinkedHashSet<String>();
+
+
+
+
+    Compiler() {
+      super( parameters() );
+    }
+
+
+
+
+    private static Parameters parameters() {
+      Parameters retval = DoubleEvaluator.getDefaultParameters();
+      retval.addOperators( Arrays.asList( LOGIC ) );
+      return retval;
+    }
+
+
+
+
+    @Override
+    protected Node evaluate( Constant constant, Object evaluationContext ) {
+      if ( DoubleEvaluator.PI.equals( constant ) ) {
+        return new ValueNode( Math.PI );
+      } else if ( DoubleEvaluator.E.equals( constant ) ) {
+        return new ValueNode( Math.E );
+      }
+      return super.evaluate( constant, evaluationContext );
+    }
+
+
+
+
+    @Override
+    protected Node evaluate( Function function, Iterator<Node> arguments, Object evaluationContext ) {
+      List<Node> list = new ArrayList<Node>();
+      while ( arguments.hasNext() ) {
+        list.add( arguments.next() );
+      }
+      return new FunctionNode( function, list.toArray( new Node[list.size()] ) );
+    }
+
+
+
+
+    @Override
+    protected Node evaluate( Operator operator, Iterator<Node> operands, Object evaluationContext ) {
+      Node left = operands.next();
+      Node right = operands.hasNext() ? operands.next() : null;
+      return new OperatorNode( operator, left, right );
+    }
+
+
+
+
+    @Override
+    protected Node toValue( String literal, Object evaluationContext ) {
+      int length = literal.length();
+      if ( ( length >= 2 ) && ( ( literal.charAt( 0 ) == '\'' ) || ( literal.charAt( 0 ) == '"' ) ) && ( literal.charAt( length - 1 ) == literal.charAt( 0 ) ) ) {
+        return new TextNode( literal.substring( 1, length - 1 ) );
+      }
+      try {
+        return new ValueNode( Double.parseDouble( literal ) );
+      } catch ( NumberFormatException e ) {
+        fields.add( literal );
+        return new ColumnNode( literal );
+      }
+    }
+  }
+
+}
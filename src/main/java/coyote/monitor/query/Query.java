@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import coyote.monitor.CollectorCache;
+
+
+/**
+ * A question asked of the collector caches by the {@link QueryEngine}.
+ *
+ * <p>By default there is one row for each collector holding its last sample.
+ * With a window there is one row for each sample taken in it. The columns of
+ * a row are the numeric fields of the samples, the fields which are text in
+ * the last sample, and these:<ul>
+ * <li>{@value #COLLECTOR}: the name of the collector</li>
+ * <li>{@value coyote.monitor.CollectorCache#STATUS}: the status of the
+ * collector now</li>
+ * <li>{@value #TIME}: when the sample was taken</li>
+ * <li>{@value #ERROR}: 1 if the sample had an error, otherwise 0</li>
+ * <li>{@value #BOUNCE_COUNT}: the times the collector went from down to up</li>
+ * </ul></p>
+ *
+ * <p>The rows are filtered by the where expression, then either grouped and
+ * aggregated, or given the columns added with {@link #addColumn(String,
+ * String)}, then sorted and limited. For example, the 20 slowest collectors
+ * over the last 10 minutes:<pre>
+ * Query query = new Query();
+ * query.setWindow( now - 600000, now );
+ * query.setGroupBy( Query.COLLECTOR );
+ * query.addAggregate( "Slowest", Query.Aggregate.MAXIMUM, "Elapsed" );
+ * query.setOrderBy( "Slowest", true );
+ * query.setLimit( 20 );</pre></p>
+ *
+ * @see Expression
+ */
+public class Query {
+
+  /** The column holding the name of the collector */
+  public static final String COLLECTOR = "Collector";
+
+  /** The column holding the time of the sample */
+  public static final String TIME = "Time";
+
+  /** The column holding 1 if the sample had an error */
+  public static final String ERROR = "Error";
+
+  /** The column holding the bounce count of the collector */
+  public static final String BOUNCE_COUNT = "BounceCount";
+
+  /**
+   * How the rows of a group are combined. Missing values are skipped.
+   */
+  public enum Aggregate {
+    /** The number of rows, or of values if there is an expression */
+    COUNT,
+    /** The total of the values */
+    SUM,
+    /** The mean of the values */
+    AVERAGE,
+    /** The smallest value */
+    MINIMUM,
+    /** The largest value */
+    MAXIMUM
+  }
+
+  private Expression where = null;
+
+  private boolean windowed = false;
+
+  private long from = 0;
+
+  private long to = Long.MAX_VALUE;
+
+  private String[] groupBy = new String[0];
+
+  private final List<Column> columns = new ArrayList<Column>();
+
+  private String orderBy = null;
+
+  private boolean descending = false;
+
+  private int limit = 0;
+
+
+
+
+  /**
+   * @param expression the rows kept, null for all of them
+   *
+   * @throws IllegalArgumentException if the expression is not correct
+   */
+  public void setWhere( String expression ) {
+    where = ( expression != null ) ? Expression.compile( expression ) : null;
+  }
+
+
+
+
+  /**
+   * Make a row of each sample taken in the range instead of one row for each
+   * collector.
+   *
+   * @param from the start of the range in epoch milliseconds, inclusive
+   * @param to the end of the range in epoch milliseconds, exclusive
+   */
+  public void setWindow( long from, long to ) {
+    this.windowed = true;
+    this.from = from;
+    this.to = to;
+  }
+
+
+
+
+  /**
+   * @param names the columns whose values make up the groups, none for no
+   *        grouping
+   */
+  public void setGroupBy( String... names ) {
+    groupBy = ( names != null ) ? names.clone() : new String[0];
+  }
+
+
+
+
+  /**
+   * Add a column to an ungrouped query.
+   *
+   * @param name the name of the column in the result
+   * @param expression the value of the column
+   *
+   * @throws IllegalArgumentException if the expression is not correct
+   */
+  public void addColumn( String name, String expression ) {
+    columns.add( new Column( name, null, Expression.compile( expression ) ) );
+  }
+
+
+
+
+  /**
+   * Add an aggregate to a grouped query.
+   *
+   * @param name the name of the column in the result
+   * @param aggregate how the rows of a group are combined
+   * @param expression the value combined, null to count the rows
+   *
+   * @throws IllegalArgumentException if the expression is not correct or is
+   *         missing for anything but a count
+   */
+  public void addAggregate( String name, Aggregate aggregate, String expression ) {
+    if ( ( expression == null ) && ( aggregate != Aggregate.COUNT ) ) {
+      throw new IllegalArgumentException( aggregate + " needs an expression" );
+    }
+    columns.add( new Column( name, aggregate, ( expression != null ) ? Expression.compile( expression ) : null ) );
+  }
+
+
+
+
+  /**
+   * @param name the column of the result the rows are sorted on
+   * @param descending true to put the largest first
+   */
+  public void setOrderBy( String name, boolean descending ) {
+    this.orderBy = name;
+    this.descending = descending;
+  }
+
+
+
+
+  /**
+   * @param limit the most rows returned, 0 for all of them
+   */
+  public void setLimit( int limit ) {
+    this.limit = Math.max( 0, limit );
+  }
+
+
+
+
+  /**
+   * @return the names of all the columns the query reads
+   */
+  String[] getFields() {
+    Set<String> retval = new LinkedHashSet<String>();
+    Collections.addAll( retval, groupBy );
+    if ( where != null ) {
+      Collections.addAll( retval, where.getFields() );
+    }
+    for ( Column column : columns ) {
+      if ( column.expression != null ) {
+        Collections.addAll( retval, column.expression.getFields() );
+      }
+    }
+    if ( retval.isEmpty() ) {
+      retval.add( COLLECTOR );
+    }
+    return retval.toArray( new String[retval.size()] );
+  }
+
+
+
+
+  /**
+   * @return the columns of the result
+   */
+  List<Column> getColumns() {
+    if ( columns.isEmpty() && ( groupBy.length == 0 ) ) {
+      // with nothing asked for, name the collectors
+      List<Column> retval = new ArrayList<Column>();
+      retval.add( new Column( COLLECTOR, null, Expression.compile( COLLECTOR ) ) );
+      return retval;
+    }
+    return columns;
+  }
+
+
+
+
+  Expression getWhere() {
+    return where;
+  }
+
+
+
+
+  boolean isWindowed() {
+    return windowed;
+  }
+
+
+
+
+  long getFrom() {
+    return from;
+  }
+
+
+
+
+  long getTo() {
+    return to;
+  }
+
+
+
+
+  String[] getGroupBy() {
+    return groupBy;
+  }
+
+
+
+
+  String getOrderBy() {
+    return orderBy;
+  }
+
+
+
+
+  boolean isDescending() {
+    return descending;
+  }
+
+
+
+
+  int getLimit() {
+    return limit;
+  }
+
+  /**
+   * A column of the result.
+   */
+  static final class Column {
+    final String name;
+    final Aggregate aggregate;
+    final Expression expression;
+
+
+
+
+    Column( String name, Aggregate aggregate, Expression expression ) {
+      if ( name == null ) {
+        throw new IllegalArgumentException( "A column needs a name" );
+      }
+      this.name = name;
+      this.aggregate = aggregate;
+      this.expression = expression;
+    }
+  }
+
+}
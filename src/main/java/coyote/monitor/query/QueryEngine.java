@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import coyote.monitor.CollectorCache;
+
+
+/**
+ * Answers queries over the samples held in the collector caches.
+ *
+ * <p>Each query copies only the columns it reads out of the caches into
+ * arrays, then filters, groups and aggregates them a block of rows at a time.
+ * The caches are split between one worker thread per processor; each worker
+ * copies and scans its own share, keeping partial groups and, when the rows
+ * are limited, only its own top rows, so the work merged at the end is small.</p>
+ *
+ * <p>The caches are read while the collectors run, so each collector is
+ * copied as it was at a slightly different moment.</p>
+ */
+public class QueryEngine {
+
+  /** The number of rows evaluated at a time */
+  private static final int BLOCK = 1024;
+
+  /** The fewest collectors worth handing to another thread */
+  private static final int MIN_PARTITION = 256;
+
+  private final Map<String, CollectorCache> caches = new ConcurrentHashMap<String, CollectorCache>();
+
+  private final ExecutorService workers;
+
+  private final int threads;
+
+
+
+
+  /**
+   * Create an engine with one worker thread per available processor.
+   */
+  public QueryEngine() {
+    this( Runtime.getRuntime().availableProcessors() );
+  }
+
+
+
+
+  /**
+   * @param threads the number of threads a query is spread over
+   */
+  public QueryEngine( int threads ) {
+    this.threads = Math.max( 1, threads );
+    final AtomicInteger sequence = new AtomicInteger();
+    workers = Executors.newFixedThreadPool( this.threads, new ThreadFactory() {
+      public Thread newThread( Runnable runnable ) {
+        Thread retval = new Thread( runnable, "QueryEngine-" + sequence.getAndIncrement() );
+        retval.setDaemon( true );
+        return retval;
+      }
+    } );
+  }
+
+
+
+
+  /**
+   * Make the samples of a collector available to queries.
+   *
+   * @param name the name of the collector, unique in the monitor
+   * @param cache the cache of the collector
+   */
+  public void attach( String name, CollectorCache cache ) {
+    caches.put( name, cache );
+  }
+
+
+
+
+  /**
+   * @param name the name of the collector to stop querying
+   */
+  public void detach( String name ) {
+    caches.remove( name );
+  }
+
+
+
+
+  /**
+   * @return the number of collectors queried
+   */
+  public int getCollectorCount() {
+    return caches.size();
+  }
+
+
+
+
+  /**
+   * Answer a query.
+   *
+   * @param query the query
+   *
+   * @return the rows of the answer
+   *
+   * @throws IllegalArgumentException if the query mixes aggregates with plain
+   *         columns or orders by a column it does not have
+   */
+  public Result execute( final Query query ) {
+    long start = System.currentTimeMillis();
+
+    final List<Query.Column> columns = query.getColumns();
+    final boolean grouped = isGrouped( query, columns );
+    String[] names = getColumnNames( query, columns, grouped );
+    final int order = ( query.getOrderBy() != null ) ? indexOf( names, query.getOrderBy() ) : -1;
+    if ( ( query.getOrderBy() != null ) && ( order < 0 ) ) {
+      throw new IllegalArgumentException( "No column named " + query.getOrderBy() + " to order by" );
+    }
+
+    final String[] fields = query.getFields();
+    final Table.Dictionary dictionary = new Table.Dictionary();
+    final List<Map.Entry<String, CollectorCache>> entries = new ArrayList<Map.Entry<String, CollectorCache>>( caches.entrySet() );
+    int partitions = Math.max( 1, Math.min( threads, entries.size() / MIN_PARTITION ) );
+
+    // hand all but the last share to the workers and scan that one here
+    List<Future<Partial>> futures = new ArrayList<Future<Partial>>();
+    List<Partial> partials = new ArrayList<Partial>();
+    for ( int x = 0; x < partitions; x++ ) {
+      final int first = (int)( (long)entries.size() * x / partitions );
+      final int last = (int)( (long)entries.size() * ( x + 1 ) / partitions );
+      Callable<Partial> task = new Callable<Partial>() {
+        public Partial call() {
+          Table table = new Table( dictionary, fields, last - first );
+          for ( int y = first; y < last; y++ ) {
+            Map.Entry<String, CollectorCache> entry = entries.get( y );
+            table.add( entry.getKey(), entry.getValue(), !query.isWindowed(), query.getFrom(), query.getTo() );
+          }
+          return scan( query, columns, grouped, order, table );
+        }
+      };
+      if ( x < partitions - 1 ) {
+        futures.add( workers.submit( task ) );
+      } else {
+        try {
+          partials.add( task.call() );
+        } catch ( Exception e ) {
+          cancel( futures );
+          throw (RuntimeException)e;
+        }
+      }
+    }
+
+    for ( Future<Partial> future : futures ) {
+      try {
+        partials.add( future.get() );
+      } catch ( InterruptedException e ) {
+        cancel( futures );
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException( "Interrupted while answering the query" );
+      } catch ( ExecutionException e ) {
+        cancel( futures );
+        if ( e.getCause() instanceof RuntimeException ) {
+          throw (RuntimeException)e.getCause();
+        }
+        throw new IllegalStateException( e.getCause() );
+      }
+    }
+
+    List<Object[]> rows = merge( query, columns, grouped, partials, dictionary );
+    if ( order >= 0 ) {
+      Collections.sort( rows, new RowOrder( order, query.isDescending() ) );
+    }
+    if ( ( query.getLimit() > 0 ) && ( rows.size() > query.getLimit() ) ) {
+      rows = new ArrayList<Object[]>( rows.subList( 0, query.getLimit() ) );
+    }
+    return new Result( names, rows, System.currentTimeMillis() - start );
+  }
+
+
+
+
+  /**
+   * Filter the rows of one share of the collectors and either accumulate
+   * their groups or compute their columns.
+   */
+  private static Partial scan( Query query, List<Query.Column> columns, boolean grouped, int order, Table table ) {
+    Partial retval = new Partial( table.getTextColumns() );
+    Expression where = query.getWhere();
+    String[] groupBy = query.getGroupBy();
+    int size = table.size();
+
+    double[][] keys = new double[groupBy.length][];
+    for ( int x = 0; x < groupBy.length; x++ ) {
+      keys[x] = table.getColumn( groupBy[x] );
+    }
+
+    // keep only the top rows here when sorting on a number
+    PriorityQueue<double[]> top = null;
+    if ( !grouped && ( order >= 0 ) && ( query.getLimit() > 0 ) ) {
+      String column = columns.get( order ).expression.getColumn();
+      if ( ( column == null ) || !table.isText( column ) ) {
+        top = new PriorityQueue<double[]>( query.getLimit() + 1, new WorstFirst( order, query.isDescending() ) );
+      }
+    }
+
+    double[] mask = new double[BLOCK];
+    int[] selected = new int[BLOCK];
+    double[][] values = new double[columns.size()][BLOCK];
+    Key probe = new Key( new double[groupBy.length] );
+
+    for ( int from = 0; from < size; from += BLOCK ) {
+      int to = Math.min( size, from + BLOCK );
+      int count = 0;
+      if ( where != null ) {
+        where.evaluate( table, from, to, mask );
+        for ( int x = 0; x < to - from; x++ ) {
+          if ( ( mask[x] != 0D ) && !Double.isNaN( mask[x] ) ) {
+            selected[count++] = x;
+          }
+        }
+      } else {
+        for ( int x = 0; x < to - from; x++ ) {
+          selected[count++] = x;
+        }
+      }
+      if ( count == 0 ) {
+        continue;
+      }
+
+      for ( int c = 0; c < values.length; c++ ) {
+        Expression expression = columns.get( c ).expression;
+        if ( expression != null ) {
+          expression.evaluate( table, from, to, values[c] );
+        } else {
+          Arrays.fill( values[c], 0, to - from, 1D );
+        }
+      }
+
+      for ( int x = 0; x < count; x++ ) {
+        int index = selected[x];
+        if ( grouped ) {
+          for ( int k = 0; k < keys.length; k++ ) {
+            probe.values[k] = ( keys[k] != null ) ? keys[k][from + index] : Double.NaN;
+          }
+          probe.hash = Arrays.hashCode( probe.values );
+          Accumulator[] accumulators = retval.groups.get( probe );
+          if ( accumulators == null ) {
+            accumulators = new Accumulator[values.length];
+            for ( int c = 0; c < accumulators.length; c++ ) {
+              accumulators[c] = new Accumulator();
+            }
+            retval.groups.put( new Key( probe.values.clone() ), accumulators );
+          }
+          for ( int c = 0; c < values.length; c++ ) {
+            accumulators[c].add( values[c][index] );
+          }
+        } else {
+          double[] row = new double[values.length];
+          for ( int c = 0; c < values.length; c++ ) {
+            row[c] = values[c][index];
+          }
+          if ( top != null ) {
+            top.add( row );
+            if ( top.size() > query.getLimit() ) {
+              top.poll();
+            }
+          } else {
+            retval.rows.add( row );
+          }
+        }
+      }
+    }
+
+    if ( top != null ) {
+      retval.rows.addAll( top );
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Combine the partial answers into rows of Strings and Doubles.
+   */
+  private static List<Object[]> merge( Query query, List<Query.Column> columns, boolean grouped, List<Partial> partials, Table.Dictionary dictionary ) {
+    Set<String> text = new HashSet<String>();
+    for ( Partial partial : partials ) {
+      text.addAll( partial.text );
+    }
+    List<Object[]> retval = new ArrayList<Object[]>();
+
+    if ( !grouped ) {
+      boolean[] decode = new boolean[columns.size()];
+      for ( int c = 0; c < decode.length; c++ ) {
+        decode[c] = text.contains( columns.get( c ).expression.getColumn() );
+      }
+      for ( Partial partial : partials ) {
+        for ( double[] values : partial.rows ) {
+          Object[] row = new Object[values.length];
+          for ( int c = 0; c < values.length; c++ ) {
+            row[c] = decode[c] ? dictionary.getValue( values[c] ) : Double.valueOf( values[c] );
+          }
+          retval.add( row );
+        }
+      }
+      return retval;
+    }
+
+    Map<Key, Accumulator[]> groups = new HashMap<Key, Accumulator[]>();
+    for ( Partial partial : partials ) {
+      for ( Map.Entry<Key, Accumulator[]> entry : partial.groups.entrySet() ) {
+        Accumulator[] accumulators = groups.get( entry.getKey() );
+        if ( accumulators == null ) {
+          groups.put( entry.getKey(), entry.getValue() );
+        } else {
+          for ( int c = 0; c < accumulators.length; c++ ) {
+            accumulators[c].merge( entry.getValue()[c] );
+          }
+        }
+      }
+    }
+
+    String[] groupBy = query.getGroupBy();
+    for ( Map.Entry<Key, Accumulator[]> entry : groups.entrySet() ) {
+      Object[] row = new Object[groupBy.length + columns.size()];
+      double[] key = entry.getKey().values;
+      for ( int k = 0; k < groupBy.length; k++ ) {
+        row[k] = text.contains( groupBy[k] ) ? dictionary.getValue( key[k] ) : Double.valueOf( key[k] );
+      }
+      for ( int c = 0; c < columns.size(); c++ ) {
+        row[groupBy.length + c] = entry.getValue()[c].get( columns.get( c ).aggregate );
+      }
+      retval.add( row );
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * @return true if the rows are grouped, false if each is returned
+   */
+  private static boolean isGrouped( Query query, List<Query.Column> columns ) {
+    int aggregates = 0;
+    for ( Query.Column column : columns ) {
+      if ( column.aggregate != null ) {
+        aggregates++;
+      }
+    }
+    if ( ( aggregates > 0 ) && ( aggregates < columns.size() ) ) {
+      throw new IllegalArgumentException( "A query cannot mix aggregates with plain columns" );
+    }
+    if ( ( query.getGroupBy().length > 0 ) && ( aggregates < columns.size() ) ) {
+      throw new IllegalArgumentException( "A grouped query can only have aggregate columns" );
+    }
+    return ( aggregates > 0 ) || ( query.getGroupBy().length > 0 );
+  }
+
+
+
+
+  private static String[] getColumnNames( Query query, List<Query.Column> columns, boolean grouped ) {
+    List<String> retval = new ArrayList<String>();
+    if ( grouped ) {
+      Collections.addAll( retval, query.getGroupBy() );
+    }
+    for ( Query.Column column : columns ) {
+      retval.add( column.name );
+    }
+    return retval.toArray( new String[retval.size()] );
+  }
+
+
+
+
+  private static int indexOf( String[] names, String name ) {
+    for ( int x = 0; x < names.length; x++ ) {
+      if ( names[x].equals( name ) ) {
+        return x;
+      }
+    }
+    return -1;
+  }
+
+
+
+
+  private static void cancel( List<Future<Partial>> futures ) {
+    for ( Future<Partial> future : futures ) {
+      future.cancel( true );
+    }
+  }
+
+
+
+
+  /**
+   * Stop the worker threads; queries can no longer be answered.
+   */
+  public void shutdown() {
+    workers.shutdownNow();
+  }
+
+  /**
+   * What one worker found in its share of the collectors.
+   */
+  private static final class Partial {
+    final Set<String> text;
+    final Map<Key, Accumulator[]> groups = new HashMap<Key, Accumulator[]>();
+    final List<double[]> rows = new ArrayList<double[]>();
+
+
+
+
+    Partial( Set<String> text ) {
+      this.text = text;
+    }
+  }
+
+  /**
+   * The values of the group columns identifying a group.
+   */
+  private static final class Key {
+    final double[] values;
+    int hash;
+
+
+
+
+    Key( double[] values ) {
+      this.values = values;
+      this.hash = Arrays.hashCode( values );
+    }
+
+
+
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+
+
+
+    @Override
+    public boolean equals( Object other ) {
+      return ( other instanceof Key ) && Arrays.equals( values, ( (Key)other ).values );
+    }
+  }
+
+  /**
+   * The running count, total, minimum and maximum of the values of a group.
+   */
+  private static final class Accumulator {
+    long count = 0;
+    double sum = 0;
+    double minimum = Double.POSITIVE_INFINITY;
+    double maximum = Double.NEGATIVE_INFINITY;
+
+
+
+
+    void add( double value ) {
+      if ( !Double.isNaN( value ) ) {
+        count++;
+        sum += value;
+        minimum = Math.min( minimum, value );
+        maximum = Math.max( maximum, value );
+      }
+    }
+
+
+
+
+    void merge( Accumulator other ) {
+      count += other.count;
+      sum += other.sum;
+      minimum = Math.min( minimum, other.minimum );
+      maximum = Math.max( maximum, other.maximum );
+    }
+
+
+
+
+    Double get( Query.Aggregate aggregate ) {
+      if ( aggregate == Query.Aggregate.COUNT ) {
+        return (double)count;
+      } else if ( count == 0 ) {
+        return Double.NaN;
+      }
+      switch ( aggregate ) {
+        case SUM:
+          return sum;
+        case AVERAGE:
+          return sum / count;
+        case MINIMUM:
+          return minimum;
+        default:
+          return maximum;
+      }
+    }
+  }
+
+  /**
+   * Orders rows of doubles the opposite of the result, so the head of a heap
+   * is the row to drop first.
+   */
+  private static final class WorstFirst implements Comparator<double[]> {
+    private final int column;
+    private final boolean descending;
+
+
+
+
+    WorstFirst( int column, boolean descending ) {
+      this.column = column;
+      this.descending = descending;
+    }
+
+
+
+
+    public int compare( double[] a, double[] b ) {
+      return compareValues( b[column], a[column], descending );
+    }
+  }
+
+  /**
+   * Orders the rows of the result on one column, missing values last.
+   */
+  private static final class RowOrder implements Comparator<Object[]> {
+    private final int column;
+    private final boolean descending;
+
+
+
+
+    RowOrder( int column, boolean descending ) {
+      this.column = column;
+      this.descending = descending;
+    }
+
+
+
+
+    public int compare( Object[] a, Object[] b ) {
+      Object left = a[column];
+      Object right = b[column];
+      if ( ( left instanceof Double ) && ( right instanceof Double ) ) {
+        return compareValues( (Double)left, (Double)right, descending );
+      } else if ( ( left == null ) || ( right == null ) ) {
+        return ( left == right ) ? 0 : ( ( left == null ) ? 1 : -1 );
+      }
+      int retval = left.toString().compareTo( right.toString() );
+      return descending ? -retval : retval;
+    }
+  }
+
+
+
+
+  private static int compareValues( double left, double right, boolean descending ) {
+    if ( Double.isNaN( left ) || Double.isNaN( right ) ) {
+      return Double.isNaN( left ) ? ( Double.isNaN( right ) ? 0 : 1 ) : -1;
+    }
+    int retval = Double.compare( left, right );
+    return descending ? -retval : retval;
+  }
+
+}
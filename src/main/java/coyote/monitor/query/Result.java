@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import coyote.dataframe.DataFrame;
+
+
+/**
+ * The rows answering a {@link Query}.
+ *
+ * <p>Text columns hold Strings and all the others hold Doubles, which are
+ * {@code NaN} where a value is missing.</p>
+ */
+public class Result {
+
+  private final String[] names;
+
+  private final List<Object[]> rows;
+
+  private final long elapsed;
+
+
+
+
+  Result( String[] names, List<Object[]> rows, long elapsed ) {
+    this.names = names;
+    this.rows = rows;
+    this.elapsed = elapsed;
+  }
+
+
+
+
+  /**
+   * @return the names of the columns
+   */
+  public String[] getColumnNames() {
+    return names.clone();
+  }
+
+
+
+
+  /**
+   * @return the number of rows
+   */
+  public int getRowCount() {
+    return rows.size();
+  }
+
+
+
+
+  /**
+   * @param row the index of the row
+   * @param column the index of the column
+   *
+   * @return the value, a String or a Double
+   */
+  public Object getValue( int row, int column ) {
+    return rows.get( row )[column];
+  }
+
+
+
+
+  /**
+   * @param row the index of the row
+   * @param name the name of the column
+   *
+   * @return the value, a String or a Double, or null if there is no such
+   *         column
+   */
+  public Object getValue( int row, String name ) {
+    for ( int x = 0; x < names.length; x++ ) {
+      if ( names[x].equals( name ) ) {
+        return rows.get( row )[x];
+      }
+    }
+    return null;
+  }
+
+
+
+
+  /**
+   * @param row the index of the row
+   * @param name the name of the column
+   *
+   * @return the value as a number, NaN if it is not one
+   */
+  public double getAsDouble( int row, String name ) {
+    Object value = getValue( row, name );
+    return ( value instanceof Double ) ? ( (Double)value ).doubleValue() : Double.NaN;
+  }
+
+
+
+
+  /**
+   * @return the milliseconds taken to answer the query
+   */
+  public long getElapsed() {
+    return elapsed;
+  }
+
+
+
+
+  /**
+   * @return each row as a frame with a field for each column
+   */
+  public List<DataFrame> toFrames() {
+    List<DataFrame> retval = new ArrayList<DataFrame>( rows.size() );
+    for ( Object[] row : rows ) {
+      DataFrame frame = new DataFrame();
+      for ( int x = 0; x < names.length; x++ ) {
+        frame.put( names[x], row[x] );
+      }
+      retval.add( frame );
+    }
+    return retval;
+  }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import coyote.dataframe.DataFrame;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.Sample;
+import coyote.monitor.SampleHistory;
+
+
+/**
+ * The columns a query reads, copied out of a number of collector caches.
+ *
+ * <p>Every column is an array of doubles, one entry for each row. Text, such
+ * as the name of the collector or its status, is stored as a code from a
+ * dictionary shared by all the tables of a query, so text columns can be
+ * compared and grouped as quickly as numbers.</p>
+ *
+ * <p>A table is filled and read by one thread; the dictionary may be shared
+ * between threads.</p>
+ */
+final class Table {
+
+  private final Dictionary dictionary;
+
+  private final String[] names;
+
+  /** The names which are not sample history fields */
+  private final boolean[] special;
+
+  private final double[][] columns;
+
+  /** The columns holding text codes */
+  private final Set<String> text = new HashSet<String>();
+
+  /** The history fields, in the order of the columns */
+  private final String[] history;
+
+  private int size = 0;
+
+
+
+
+  /**
+   * @param dictionary gives the codes of text values
+   * @param fields the names of the columns to copy
+   * @param capacity the number of rows expected
+   */
+  Table( Dictionary dictionary, String[] fields, int capacity ) {
+    this.dictionary = dictionary;
+    names = fields.clone();
+    special = new boolean[names.length];
+    columns = new double[names.length][Math.max( 16, capacity )];
+
+    List<String> fromHistory = new ArrayList<String>();
+    for ( int x = 0; x < names.length; x++ ) {
+      special[x] = Query.COLLECTOR.equals( names[x] ) || CollectorCache.STATUS.equals( names[x] ) || Query.TIME.equals( names[x] ) || Query.ERROR.equals( names[x] ) || Query.BOUNCE_COUNT.equals( names[x] );
+      if ( !special[x] ) {
+        fromHistory.add( names[x] );
+      }
+    }
+    if ( fromHistory.isEmpty() ) {
+      // the history still gives the time and result of each sample
+      fromHistory.add( Query.TIME );
+    }
+    history = fromHistory.toArray( new String[fromHistory.size()] );
+  }
+
+
+
+
+  /**
+   * Add the rows of one collector.
+   *
+   * @param name the name of the collector
+   * @param cache the cache of the collector
+   * @param latest true for one row holding the last sample, false for one
+   *        row for each sample in the range
+   * @param from the start of the range, inclusive
+   * @param to the end of the range, exclusive
+   */
+  void add( String name, CollectorCache cache, boolean latest, long from, long to ) {
+    SampleHistory.Series[] series = latest ? cache.getHistory().getLatest( history, 1 ) : cache.getHistory().getSeries( history, from, to );
+    int count = series[0].size();
+    DataFrame sample = null;
+    if ( latest ) {
+      // a collector with no history still has a name and a status
+      count = 1;
+      sample = cache.getSample();
+    } else if ( count > 0 ) {
+      sample = cache.getSample();
+    }
+    if ( count == 0 ) {
+      return;
+    }
+    ensure( size + count );
+
+    int field = 0;
+    for ( int x = 0; x < names.length; x++ ) {
+      double[] column = columns[x];
+      if ( special[x] ) {
+        for ( int row = 0; row < count; row++ ) {
+          column[size + row] = special( names[x], name, cache, series[0], row, sample );
+        }
+        continue;
+      }
+
+      SampleHistory.Series values = series[field++];
+      boolean empty = true;
+      for ( int row = 0; row < count; row++ ) {
+        double value = ( row < values.size() ) ? values.getValue( row ) : Double.NaN;
+        column[size + row] = value;
+        empty &= Double.isNaN( value );
+      }
+
+      // fields which are not numbers come from the last sample
+      if ( empty && ( sample != null ) ) {
+        Object value = sample.getObject( names[x] );
+        if ( ( value != null ) && !( value instanceof Number ) && !( value instanceof Boolean ) && !( value instanceof DataFrame ) ) {
+          Arrays.fill( column, size, size + count, dictionary.getCode( value.toString() ) );
+          text.add( names[x] );
+        }
+      }
+    }
+    size += count;
+  }
+
+
+
+
+  /**
+   * @return the value of a column which does not come from the history
+   */
+  private double special( String column, String name, CollectorCache cache, SampleHistory.Series series, int row, DataFrame sample ) {
+    if ( Query.COLLECTOR.equals( column ) ) {
+      text.add( column );
+      return dictionary.getCode( name );
+    } else if ( CollectorCache.STATUS.equals( column ) ) {
+      text.add( column );
+      return dictionary.getCode( cache.getStatus() );
+    } else if ( Query.BOUNCE_COUNT.equals( column ) ) {
+      return cache.getBounceCount();
+    } else if ( row < series.size() ) {
+      return Query.TIME.equals( column ) ? series.getTimestamp( row ) : ( series.isError( row ) ? 1D : 0D );
+    } else if ( Query.ERROR.equals( column ) && ( sample != null ) ) {
+      return sample.contains( Sample.ERROR ) ? 1D : 0D;
+    }
+    return Double.NaN;
+  }
+
+
+
+
+  private void ensure( int capacity ) {
+    if ( capacity > columns[0].length ) {
+      int length = Math.max( capacity, columns[0].length * 2 );
+      for ( int x = 0; x < columns.length; x++ ) {
+        columns[x] = Arrays.copyOf( columns[x], length );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * @return the number of rows
+   */
+  int size() {
+    return size;
+  }
+
+
+
+
+  /**
+   * @return the values of the column, or null if it was not copied
+   */
+  double[] getColumn( String name ) {
+    for ( int x = 0; x < names.length; x++ ) {
+      if ( names[x].equals( name ) ) {
+        return columns[x];
+      }
+    }
+    return null;
+  }
+
+
+
+
+  /**
+   * @return the code of the text, or NaN if no column holds it
+   */
+  double getCode( String value ) {
+    return dictionary.find( value );
+  }
+
+
+
+
+  /**
+   * @return true if the column holds text codes
+   */
+  boolean isText( String name ) {
+    return text.contains( name );
+  }
+
+
+
+
+  /**
+   * @return the names of the columns holding text codes
+   */
+  Set<String> getTextColumns() {
+    return text;
+  }
+
+  /**
+   * Numbers each distinct text value; shared by the tables of a query.
+   */
+  static final class Dictionary {
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+    private final List<String> values = new ArrayList<String>();
+
+
+
+
+    double getCode( String value ) {
+      Integer retval = codes.get( value );
+      if ( retval == null ) {
+        synchronized( values ) {
+          retval = codes.get( value );
+          if ( retval == null ) {
+            retval = values.size();
+            values.add( value );
+            codes.put( value, retval );
+          }
+        }
+      }
+      return retval;
+    }
+
+
+
+
+    double find( String value ) {
+      Integer retval = codes.get( value );
+      return ( retval != null ) ? retval : Double.NaN;
+    }
+
+
+
+
+    String getValue( double code ) {
+      if ( Double.isNaN( code ) ) {
+        return null;
+      }
+      synchronized( values ) {
+        int index = (int)code;
+        return ( ( index >= 0 ) && ( index < values.size() ) ) ? values.get( index ) : null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+/**
+ * How the points falling in one interval are combined into a single value
+ * when a series is downsampled.
+ */
+public enum Aggregate {
+  AVERAGE, MINIMUM, MAXIMUM, SUM, COUNT, FIRST, LAST;
+
+  /**
+   * Combine the accumulated statistics of an interval.
+   */
+  double apply( double sum, double min, double max, int count, double first, double last ) {
+    switch ( this ) {
+      case AVERAGE:
+        return sum / count;
+      case MINIMUM:
+        return min;
+      case MAXIMUM:
+        return max;
+      case SUM:
+        return sum;
+      case COUNT:
+        return count;
+      case FIRST:
+        return first;
+      default:
+        return last;
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Reads bits, most significant first, from a region of a buffer.
+ */
+final class BitInput {
+
+  private final ByteBuffer buffer;
+
+  private final int offset;
+
+  /** The number of bits read */
+  private long position = 0;
+
+
+
+
+  /**
+   * @param buffer the buffer holding the bits, which is not modified
+   * @param offset the absolute index of the first byte
+   */
+  BitInput( ByteBuffer buffer, int offset ) {
+    this.buffer = buffer;
+    this.offset = offset;
+  }
+
+
+
+
+  boolean readBit() {
+    int value = buffer.get( offset + (int)( position >>> 3 ) );
+    boolean retval = ( value & ( 0x80 >>> (int)( position & 7 ) ) ) != 0;
+    position++;
+    return retval;
+  }
+
+
+
+
+  /**
+   * @param count the number of bits to read, 0 to 64
+   *
+   * @return the bits read in the low order bits of the result
+   */
+  long readBits( int count ) {
+    long retval = 0;
+    while ( count > 0 ) {
+      int value = buffer.get( offset + (int)( position >>> 3 ) ) & 0xFF;
+      int available = 8 - (int)( position & 7 );
+      int take = Math.min( available, count );
+      int bits = ( value >>> ( available - take ) ) & ( ( 1 << take ) - 1 );
+      retval = ( retval << take ) | bits;
+      position += take;
+      count -= take;
+    }
+    return retval;
+  }
+
+}
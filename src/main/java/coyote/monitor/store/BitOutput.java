@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+/**
+ * A growing array of bits written most significant bit first.
+ */
+final class BitOutput {
+
+  private byte[] buffer;
+
+  /** The number of bits written */
+  private long length = 0;
+
+
+
+
+  BitOutput( int bytes ) {
+    buffer = new byte[Math.max( 8, bytes )];
+  }
+
+
+
+
+  /**
+   * Write a single bit.
+   */
+  void writeBit( boolean bit ) {
+    int index = (int)( length >>> 3 );
+    if ( index >= buffer.length ) {
+      grow();
+    }
+    if ( bit ) {
+      buffer[index] |= (byte)( 0x80 >>> (int)( length & 7 ) );
+    }
+    length++;
+  }
+
+
+
+
+  /**
+   * Write the low order bits of the value, most significant first.
+   *
+   * @param value the bits to write
+   * @param count the number of bits, 0 to 64
+   */
+  void writeBits( long value, int count ) {
+    while ( count > 0 ) {
+      int index = (int)( length >>> 3 );
+      if ( index >= buffer.length ) {
+        grow();
+      }
+      int free = 8 - (int)( length & 7 );
+      int take = Math.min( free, count );
+      int bits = (int)( ( value >>> ( count - take ) ) & ( ( 1 << take ) - 1 ) );
+      buffer[index] |= (byte)( bits << ( free - take ) );
+      length += take;
+      count -= take;
+    }
+  }
+
+
+
+
+  /**
+   * @return the number of bits written
+   */
+  long getLength() {
+    return length;
+  }
+
+
+
+
+  /**
+   * @return the written bytes, the last padded with zero bits
+   */
+  byte[] toByteArray() {
+    byte[] retval = new byte[(int)( ( length + 7 ) >>> 3 )];
+    System.arraycopy( buffer, 0, retval, 0, retval.length );
+    return retval;
+  }
+
+
+
+
+  private void grow() {
+    byte[] larger = new byte[buffer.length * 2];
+    System.arraycopy( buffer, 0, larger, 0, buffer.length );
+    buffer = larger;
+  }
+
+}
@@ -0,0 +1,1087 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import coyote.dataframe.DataFrame;
+import coyote.loader.log.Log;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.MonitorAlert;
+import coyote.monitor.MonitorEvent;
+
+
+/**
+ * A write-ahead journal of the changes made to collector caches so their
+ * state survives a restart.
+ *
+ * <p>Every journaled change to an attached {@link CollectorCache} (cache
+ * validators, the bounce count, events and alerts added or taken, and the
+ * changes to the alerts an {@code AlertManager} holds open) is appended as a
+ * checksummed record by a single writer thread. Records queued
+ * by many threads while the writer is busy are written together and made
+ * durable with one {@code force}, so the cost of the {@link Sync#ALWAYS}
+ * policy is shared by everyone waiting on it (group commit). With
+ * {@link Sync#INTERVAL} the log is forced periodically and writers do not
+ * wait; with {@link Sync#NEVER} the operating system decides.</p>
+ *
+ * <p>The writer also keeps the resulting state of every cache. When the log
+ * grows past the compaction size that state is written as a snapshot and a
+ * new log is started, so recovery reads one snapshot, through a memory map,
+ * and replays only the records logged since. Records torn by a crash are cut
+ * off at the first bad checksum.</p>
+ *
+ * <p>If the log cannot be written or forced, the records are kept and the
+ * writer tries again every {@value #RETRY_DELAY} milliseconds. Callers
+ * waiting with {@link Sync#ALWAYS} keep waiting until their records are on
+ * disk or the journal is closed; records still unwritten when the journal is
+ * closed are reported as lost.</p>
+ *
+ * <p>Files in the directory are named {@code snapshot.N} and
+ * {@code journal.N}; the journal of generation N holds the records made
+ * after snapshot N was taken.</p>
+ */
+public class CacheJournal {
+
+  /**
+   * When the log is forced to disk.
+   */
+  public enum Sync {
+    /** Every change is on disk before the call making it returns */
+    ALWAYS,
+    /** The log is forced every sync interval; writers do not wait */
+    INTERVAL,
+    /** The operating system writes the log when it chooses */
+    NEVER
+  }
+
+  /** The default number of milliseconds (1000) between forced writes */
+  public static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+  /** The default size in bytes (16MB) of the log which triggers compaction */
+  public static final long DEFAULT_COMPACT_SIZE = 16L * 1024L * 1024L;
+
+  /** Milliseconds the writer waits before trying a failed write again */
+  private static final long RETRY_DELAY = 1000;
+
+  private static final String SNAPSHOT = "snapshot.";
+  private static final String JOURNAL = "journal.";
+
+  /** Marks a snapshot, "CJSN" */
+  private static final int SNAPSHOT_MAGIC = 0x434A534E;
+  private static final int VERSION = 2;
+
+  private static final byte VALIDATOR = 1;
+  private static final byte BOUNCE = 2;
+  private static final byte EVENT_ADDED = 3;
+  private static final byte EVENT_TAKEN = 4;
+  private static final byte ALERT_ADDED = 5;
+  private static final byte ALERT_TAKEN = 6;
+  private static final byte ALERT_CHANGED = 7;
+  private static final byte ALERT_CLOSED = 8;
+
+  private final File directory;
+
+  private volatile Sync sync = Sync.INTERVAL;
+
+  private volatile long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+  private volatile long compactSize = DEFAULT_COMPACT_SIZE;
+
+  /** The state of every cache as of the last record written */
+  private final Map<String, State> states = new ConcurrentHashMap<String, State>();
+
+  /** Records waiting for the writer; guarded by itself */
+  private final List<byte[]> pending = new ArrayList<byte[]>();
+
+  /** The number of records ever queued; guarded by pending */
+  private long queued = 0;
+
+  /** The number of records written and, if synchronous, forced */
+  private long committed = 0;
+
+  private volatile long maxEventId = -1;
+  private volatile long maxAlertId = -1;
+
+  private int generation = 0;
+  private RandomAccessFile log = null;
+  private FileChannel channel = null;
+  private long logSize = 0;
+  private long lastSync = 0;
+
+  private volatile Thread writer = null;
+
+  private volatile boolean closing = false;
+
+
+
+
+  /**
+   * @param directory the directory holding the snapshots and logs
+   */
+  public CacheJournal( File directory ) {
+    this.directory = directory;
+  }
+
+
+
+
+  /**
+   * Recover the state recorded in the directory and start journaling.
+   *
+   * @throws IOException if the directory could not be read or written
+   */
+  public synchronized void open() throws IOException {
+    if ( writer != null ) {
+      return;
+    }
+    if ( !directory.isDirectory() && !directory.mkdirs() ) {
+      throw new IOException( "Could not create journal directory " + directory );
+    }
+
+    long start = System.currentTimeMillis();
+    recover();
+    compact();
+
+    // identifiers used before the restart are never handed out again, even
+    // by caches not attached yet
+    CollectorCache.reserveIdentifiers( maxEventId + 1, maxAlertId + 1 );
+    Log.info( "Recovered the state of " + states.size() + " collectors from " + directory + " in " + ( System.currentTimeMillis() - start ) + "ms" );
+
+    closing = false;
+    Thread thread = new Thread( new Runnable() {
+      public void run() {
+        write();
+      }
+    }, "CacheJournal" );
+    thread.setDaemon( true );
+    writer = thread;
+    thread.start();
+  }
+
+
+
+
+  /**
+   * Write everything queued, force it to disk and stop journaling.
+   */
+  public void close() throws IOException {
+    Thread thread = writer;
+    if ( thread == null ) {
+      return;
+    }
+    synchronized( pending ) {
+      closing = true;
+      pending.notifyAll();
+    }
+    try {
+      thread.join();
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized( this ) {
+      writer = null;
+      if ( log != null ) {
+        channel.force( false );
+        log.close();
+        log = null;
+        channel = null;
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Restore the recovered state of a collector into its cache and journal
+   * every later change to it.
+   *
+   * @param name the name of the collector, unique in the monitor
+   * @param cache the cache of the collector
+   */
+  public void attach( String name, CollectorCache cache ) {
+    CollectorCache.reserveIdentifiers( maxEventId + 1, maxAlertId + 1 );
+
+    List<MonitorEvent> events = new ArrayList<MonitorEvent>();
+    List<MonitorAlert> alerts = new ArrayList<MonitorAlert>();
+    Map<Long, MonitorAlert> open = new LinkedHashMap<Long, MonitorAlert>();
+    State state = states.get( name );
+    if ( state != null ) {
+      synchronized( state ) {
+        for ( Map.Entry<String, String> entry : state.validators.entrySet() ) {
+          cache.setValidator( entry.getKey(), entry.getValue() );
+        }
+        cache.setBounceCount( state.bounceCount );
+        for ( byte[] data : state.events.values() ) {
+          try {
+            events.add( (MonitorEvent)FrameCodec.fromBytes( data, new MonitorEvent() ) );
+          } catch ( IllegalArgumentException e ) {
+            Log.error( "Could not decode journaled event of " + name + ": " + e.getMessage() );
+          }
+        }
+        for ( Map.Entry<Long, byte[]> entry : state.open.entrySet() ) {
+          try {
+            open.put( entry.getKey(), (MonitorAlert)FrameCodec.fromBytes( entry.getValue(), new MonitorAlert() ) );
+          } catch ( IllegalArgumentException e ) {
+            Log.error( "Could not decode journaled alert of " + name + ": " + e.getMessage() );
+          }
+        }
+        for ( Map.Entry<Long, byte[]> entry : state.alerts.entrySet() ) {
+          // an alert both queued and open is one alert
+          MonitorAlert alert = open.get( entry.getKey() );
+          try {
+            alerts.add( ( alert != null ) ? alert : (MonitorAlert)FrameCodec.fromBytes( entry.getValue(), new MonitorAlert() ) );
+          } catch ( IllegalArgumentException e ) {
+            Log.error( "Could not decode journaled alert of " + name + ": " + e.getMessage() );
+          }
+        }
+      }
+    }
+
+    // restored after attaching so anything which no longer fits the queue
+    // of the cache is journaled as taken
+    cache.setJournal( this, name );
+    for ( int x = 0; x < events.size(); x++ ) {
+      cache.restoreEvent( events.get( x ) );
+    }
+    for ( int x = 0; x < alerts.size(); x++ ) {
+      cache.restoreAlert( alerts.get( x ) );
+    }
+    for ( MonitorAlert alert : open.values() ) {
+      cache.reopenAlert( alert );
+    }
+  }
+
+
+
+
+  /**
+   * Stop journaling the changes to a cache, as when its collector is
+   * replaced. The recorded state of the collector is kept for the cache
+   * attached next under the same name.
+   *
+   * @param name the name of the collector
+   * @param cache the cache it was attached with
+   */
+  public void detach( String name, CollectorCache cache ) {
+    cache.setJournal( null, null );
+  }
+
+
+
+
+  /**
+   * Record the change of a cache validator.
+   *
+   * @param collector the name of the collector
+   * @param key the name of the validator
+   * @param value the value, null if it was removed
+   */
+  public void logValidator( String collector, String key, String value ) {
+    try {
+      Record out = start( VALIDATOR, collector );
+      out.writeUTF( key );
+      out.writeBoolean( value != null );
+      if ( value != null ) {
+        out.writeUTF( value );
+      }
+      finish( out );
+    } catch ( IOException e ) {
+      Log.error( "Could not journal validator of " + collector + ": " + e.getMessage() );
+    }
+  }
+
+
+
+
+  /**
+   * Record the bounce count of a collector.
+   */
+  public void logBounceCount( String collector, int count ) {
+    try {
+      Record out = start( BOUNCE, collector );
+      out.writeInt( count );
+      finish( out );
+    } catch ( IOException e ) {
+      Log.error( "Could not journal bounce count of " + collector + ": " + e.getMessage() );
+    }
+  }
+
+
+
+
+  /**
+   * Record an event added to a cache.
+   */
+  public void logEventAdded( String collector, long id, MonitorEvent event ) {
+    logFrame( EVENT_ADDED, collector, id, event );
+  }
+
+
+
+
+  /**
+   * Record an event taken from a cache.
+   */
+  public void logEventTaken( String collector, long id ) {
+    logTaken( EVENT_TAKEN, collector, id );
+  }
+
+
+
+
+  /**
+   * Record an alert added to a cache.
+   */
+  public void logAlertAdded( String collector, long id, MonitorAlert alert ) {
+    logFrame( ALERT_ADDED, collector, id, alert );
+  }
+
+
+
+
+  /**
+   * Record an alert taken from a cache.
+   */
+  public void logAlertTaken( String collector, long id ) {
+    logTaken( ALERT_TAKEN, collector, id );
+  }
+
+
+
+
+  /**
+   * Queue the record of an alert added to a cache without waiting for it to
+   * be written.
+   *
+   * @return the ticket to pass to {@link #await(long)}
+   */
+  public long appendAlertAdded( String collector, long id, MonitorAlert alert ) {
+    return appendFrame( ALERT_ADDED, collector, id, alert );
+  }
+
+
+
+
+  /**
+   * Queue the record of the current state of an alert held open by an alert
+   * manager without waiting for it to be written. The alert is restored as
+   * open until its closing is recorded.
+   *
+   * @return the ticket to pass to {@link #await(long)}
+   */
+  public long appendAlertChanged( String collector, long id, MonitorAlert alert ) {
+    return appendFrame( ALERT_CHANGED, collector, id, alert );
+  }
+
+
+
+
+  /**
+   * Queue the record of an alert no longer held open by an alert manager
+   * without waiting for it to be written.
+   *
+   * @return the ticket to pass to {@link #await(long)}
+   */
+  public long appendAlertClosed( String collector, long id ) {
+    return appendTaken( ALERT_CLOSED, collector, id );
+  }
+
+
+
+
+  /**
+   * Wait, if the sync policy is {@link Sync#ALWAYS}, until the record with
+   * the given ticket is on disk.
+   *
+   * <p>Records are written in the order they were queued, so a caller can
+   * queue records while holding its own locks and wait after releasing
+   * them.</p>
+   *
+   * @param ticket the ticket of a queued record, 0 for none
+   */
+  public void await( long ticket ) {
+    if ( ( ticket <= 0 ) || ( sync != Sync.ALWAYS ) ) {
+      return;
+    }
+    synchronized( pending ) {
+      try {
+        while ( ( committed < ticket ) && ( writer != null ) ) {
+          pending.wait( 100 );
+        }
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+
+
+
+  private void logFrame( byte type, String collector, long id, DataFrame frame ) {
+    await( appendFrame( type, collector, id, frame ) );
+  }
+
+
+
+
+  private long appendFrame( byte type, String collector, long id, DataFrame frame ) {
+    try {
+      Record out = start( type, collector );
+      out.writeLong( id );
+      byte[] data = FrameCodec.toBytes( frame );
+      out.writeInt( data.length );
+      out.write( data );
+      return enqueue( out );
+    } catch ( IOException e ) {
+      Log.error( "Could not journal " + ( ( type == EVENT_ADDED ) ? "event" : "alert" ) + " of " + collector + ": " + e.getMessage() );
+      return 0;
+    }
+  }
+
+
+
+
+  private void logTaken( byte type, String collector, long id ) {
+    await( appendTaken( type, collector, id ) );
+  }
+
+
+
+
+  private long appendTaken( byte type, String collector, long id ) {
+    try {
+      Record out = start( type, collector );
+      out.writeLong( id );
+      return enqueue( out );
+    } catch ( IOException e ) {
+      Log.error( "Could not journal removal from " + collector + ": " + e.getMessage() );
+      return 0;
+    }
+  }
+
+
+
+
+  private static Record start( byte type, String collector ) throws IOException {
+    Record retval = new Record();
+    retval.writeByte( type );
+    retval.writeUTF( collector );
+    return retval;
+  }
+
+
+
+
+  /**
+   * Queue the record and, if synchronous, wait until it is on disk.
+   */
+  private void finish( Record out ) {
+    await( enqueue( out ) );
+  }
+
+
+
+
+  /**
+   * Queue the record for the writer.
+   *
+   * @return the ticket of the record, 0 if the journal is not open
+   */
+  private long enqueue( Record out ) {
+    byte[] record = out.toByteArray();
+    synchronized( pending ) {
+      if ( ( writer == null ) || closing ) {
+        return 0;
+      }
+      pending.add( record );
+      pending.notifyAll();
+      return ++queued;
+    }
+  }
+
+
+
+
+  /**
+   * The writer thread: take everything queued, write it in one go, force it
+   * as the policy requires and compact when the log is large.
+   *
+   * <p>Records are only counted as committed once written and, as the policy
+   * requires, forced. A batch which fails is kept, with anything queued
+   * meanwhile added after it, and written again after a delay.</p>
+   */
+  private void write() {
+    List<byte[]> batch = new ArrayList<byte[]>();
+    boolean failing = false;
+    while ( true ) {
+      long upTo;
+      synchronized( pending ) {
+        if ( pending.isEmpty() && !closing ) {
+          try {
+            pending.wait( ( sync == Sync.INTERVAL ) ? Math.max( 1, syncInterval ) : 1000 );
+          } catch ( InterruptedException e ) {
+            closing = true;
+          }
+        }
+        if ( pending.isEmpty() && batch.isEmpty() && !failing && closing ) {
+          return;
+        }
+        batch.addAll( pending );
+        pending.clear();
+        upTo = queued;
+      }
+
+      try {
+        synchronized( this ) {
+          if ( batch.size() > 0 ) {
+            append( batch );
+            batch.clear();
+          }
+
+          long now = System.currentTimeMillis();
+          if ( ( sync == Sync.ALWAYS ) || ( ( sync == Sync.INTERVAL ) && ( now - lastSync >= syncInterval ) ) || ( failing && ( sync != Sync.NEVER ) ) ) {
+            channel.force( false );
+            lastSync = now;
+          }
+        }
+      } catch ( IOException e ) {
+        if ( closing ) {
+          Log.error( "Could not write journal " + directory + ", " + ( upTo - committed ) + " records may be lost: " + e.getMessage() );
+          return;
+        }
+        if ( !failing ) {
+          Log.error( "Could not write journal " + directory + ", retrying: " + e.getMessage() );
+          failing = true;
+        }
+        try {
+          Thread.sleep( RETRY_DELAY );
+        } catch ( InterruptedException ie ) {
+          synchronized( pending ) {
+            closing = true;
+          }
+        }
+        continue;
+      }
+
+      if ( failing ) {
+        Log.info( "Journal " + directory + " is being written again" );
+        failing = false;
+      }
+
+      synchronized( pending ) {
+        committed = upTo;
+        pending.notifyAll();
+      }
+
+      try {
+        synchronized( this ) {
+          if ( logSize >= compactSize ) {
+            compact();
+          }
+        }
+      } catch ( IOException e ) {
+        Log.error( "Could not compact journal " + directory + ": " + e.getMessage() );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Write the records to the log and apply them to the state.
+   */
+  private void append( List<byte[]> records ) throws IOException {
+    int total = 0;
+    for ( int x = 0; x < records.size(); x++ ) {
+      total += 8 + records.get( x ).length;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate( total );
+    CRC32 crc = new CRC32();
+    for ( int x = 0; x < records.size(); x++ ) {
+      byte[] record = records.get( x );
+      crc.reset();
+      crc.update( record );
+      buffer.putInt( record.length );
+      buffer.putInt( (int)crc.getValue() );
+      buffer.put( record );
+    }
+    buffer.flip();
+
+    // a failed write is written again over whatever part of it got through
+    long position = logSize;
+    while ( buffer.hasRemaining() ) {
+      position += channel.write( buffer, position );
+    }
+    logSize = position;
+
+    for ( int x = 0; x < records.size(); x++ ) {
+      apply( records.get( x ) );
+    }
+  }
+
+
+
+
+  /**
+   * Update the state with one record.
+   */
+  private void apply( byte[] record ) throws IOException {
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( record ) );
+    byte type = in.readByte();
+    String collector = in.readUTF();
+
+    State state = states.get( collector );
+    if ( state == null ) {
+      state = new State();
+      states.put( collector, state );
+    }
+
+    synchronized( state ) {
+      switch ( type ) {
+        case VALIDATOR:
+          String key = in.readUTF();
+          if ( in.readBoolean() ) {
+            state.validators.put( key, in.readUTF() );
+          } else {
+            state.validators.remove( key );
+          }
+          break;
+        case BOUNCE:
+          state.bounceCount = in.readInt();
+          break;
+        case EVENT_ADDED:
+        case ALERT_ADDED:
+          long id = in.readLong();
+          byte[] data = new byte[in.readInt()];
+          in.readFully( data );
+          if ( type == EVENT_ADDED ) {
+            state.events.put( id, data );
+            maxEventId = Math.max( maxEventId, id );
+          } else {
+            state.alerts.put( id, data );
+            maxAlertId = Math.max( maxAlertId, id );
+          }
+          break;
+        case EVENT_TAKEN:
+          state.events.remove( in.readLong() );
+          break;
+        case ALERT_TAKEN:
+          state.alerts.remove( in.readLong() );
+          break;
+        case ALERT_CHANGED:
+          long changed = in.readLong();
+          byte[] frame = new byte[in.readInt()];
+          in.readFully( frame );
+          state.open.put( changed, frame );
+          if ( state.alerts.containsKey( changed ) ) {
+            state.alerts.put( changed, frame );
+          }
+          maxAlertId = Math.max( maxAlertId, changed );
+          break;
+        case ALERT_CLOSED:
+          state.open.remove( in.readLong() );
+          break;
+        default:
+          throw new IOException( "Unknown journal record type " + type );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Load the newest snapshot and replay the logs written after it.
+   */
+  private void recover() throws IOException {
+    states.clear();
+    maxEventId = -1;
+    maxAlertId = -1;
+
+    int snapshot = -1;
+    List<Integer> journals = new ArrayList<Integer>();
+    List<Integer> snapshots = new ArrayList<Integer>();
+    String[] names = directory.list();
+    for ( int x = 0; ( names != null ) && ( x < names.length ); x++ ) {
+      try {
+        if ( names[x].startsWith( SNAPSHOT ) ) {
+          snapshots.add( Integer.valueOf( names[x].substring( SNAPSHOT.length() ) ) );
+        } else if ( names[x].startsWith( JOURNAL ) ) {
+          journals.add( Integer.valueOf( names[x].substring( JOURNAL.length() ) ) );
+        }
+      } catch ( NumberFormatException e ) {
+        // a temporary or foreign file
+      }
+    }
+
+    Collections.sort( snapshots );
+    for ( int x = snapshots.size() - 1; ( x >= 0 ) && ( snapshot < 0 ); x-- ) {
+      try {
+        loadSnapshot( new File( directory, SNAPSHOT + snapshots.get( x ) ) );
+        snapshot = snapshots.get( x );
+      } catch ( IOException e ) {
+        Log.error( "Ignoring unreadable snapshot " + snapshots.get( x ) + " in " + directory + ": " + e.getMessage() );
+        states.clear();
+      }
+    }
+
+    Collections.sort( journals );
+    generation = Math.max( 0, snapshot );
+    for ( int x = 0; x < journals.size(); x++ ) {
+      if ( journals.get( x ) >= snapshot ) {
+        replay( new File( directory, JOURNAL + journals.get( x ) ) );
+      }
+      generation = Math.max( generation, journals.get( x ) );
+    }
+  }
+
+
+
+
+  private void loadSnapshot( File file ) throws IOException {
+    RandomAccessFile in = new RandomAccessFile( file, "r" );
+    try {
+      ByteBuffer map = in.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, in.length() );
+      if ( map.limit() < 4 ) {
+        throw new IOException( "Truncated snapshot" );
+      }
+
+      CRC32 crc = new CRC32();
+      for ( int x = 0; x < map.limit() - 4; x++ ) {
+        crc.update( map.get( x ) );
+      }
+      if ( map.getInt( map.limit() - 4 ) != (int)crc.getValue() ) {
+        throw new IOException( "Snapshot checksum mismatch" );
+      }
+
+      map.limit( map.limit() - 4 );
+      DataInputStream data = new DataInputStream( new BufferInputStream( map ) );
+      if ( data.readInt() != SNAPSHOT_MAGIC ) {
+        throw new IOException( "Not a cache snapshot" );
+      }
+      int version = data.readInt();
+      if ( ( version < 1 ) || ( version > VERSION ) ) {
+        throw new IOException( "Unknown snapshot version " + version );
+      }
+      maxEventId = data.readLong();
+      maxAlertId = data.readLong();
+
+      int count = data.readInt();
+      for ( int x = 0; x < count; x++ ) {
+        String name = data.readUTF();
+        State state = new State();
+        state.bounceCount = data.readInt();
+        int validators = data.readInt();
+        for ( int y = 0; y < validators; y++ ) {
+          state.validators.put( data.readUTF(), data.readUTF() );
+        }
+        readFrames( data, state.events );
+        readFrames( data, state.alerts );
+        if ( version > 1 ) {
+          readFrames( data, state.open );
+        }
+        states.put( name, state );
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+
+
+
+  private static void readFrames( DataInputStream data, Map<Long, byte[]> frames ) throws IOException {
+    int count = data.readInt();
+    for ( int x = 0; x < count; x++ ) {
+      long id = data.readLong();
+      byte[] frame = new byte[data.readInt()];
+      data.readFully( frame );
+      frames.put( id, frame );
+    }
+  }
+
+
+
+
+  /**
+   * Apply the records of a log, cutting it off at the first torn record.
+   */
+  private void replay( File file ) throws IOException {
+    RandomAccessFile in = new RandomAccessFile( file, "rw" );
+    try {
+      long length = in.length();
+      ByteBuffer map = in.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, length );
+      CRC32 crc = new CRC32();
+      int position = 0;
+      while ( position + 8 <= length ) {
+        int size = map.getInt( position );
+        if ( ( size <= 0 ) || ( position + 8 + size > length ) ) {
+          break;
+        }
+        byte[] record = new byte[size];
+        for ( int x = 0; x < size; x++ ) {
+          record[x] = map.get( position + 8 + x );
+        }
+        crc.reset();
+        crc.update( record );
+        if ( (int)crc.getValue() != map.getInt( position + 4 ) ) {
+          break;
+        }
+        apply( record );
+        position += 8 + size;
+      }
+
+      if ( position < length ) {
+        Log.warn( "Truncating " + ( length - position ) + " bytes of torn records from " + file );
+        in.getChannel().truncate( position );
+      }
+    }
+    finally {
+      in.close();
+    }
+  }
+
+
+
+
+  /**
+   * Start a new log and write the state as the snapshot it follows, then
+   * remove the files it replaces.
+   */
+  private void compact() throws IOException {
+    int next = generation + 1;
+
+    if ( log != null ) {
+      channel.force( false );
+      log.close();
+    }
+    log = new RandomAccessFile( new File( directory, JOURNAL + next ), "rw" );
+    channel = log.getChannel();
+    logSize = channel.size();
+
+    File temp = new File( directory, SNAPSHOT + next + ".tmp" );
+    FileOutputStream file = new FileOutputStream( temp );
+    try {
+      CRC32 crc = new CRC32();
+      DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new CheckedOutputStream( file, crc ), 65536 ) );
+      out.writeInt( SNAPSHOT_MAGIC );
+      out.writeInt( VERSION );
+      out.writeLong( maxEventId );
+      out.writeLong( maxAlertId );
+      out.writeInt( states.size() );
+      for ( Map.Entry<String, State> entry : states.entrySet() ) {
+        State state = entry.getValue();
+        synchronized( state ) {
+          out.writeUTF( entry.getKey() );
+          out.writeInt( state.bounceCount );
+          out.writeInt( state.validators.size() );
+          for ( Map.Entry<String, String> validator : state.validators.entrySet() ) {
+            out.writeUTF( validator.getKey() );
+            out.writeUTF( validator.getValue() );
+          }
+          writeFrames( out, state.events );
+          writeFrames( out, state.alerts );
+          writeFrames( out, state.open );
+        }
+      }
+      out.flush();
+      new DataOutputStream( file ).writeInt( (int)crc.getValue() );
+      file.getFD().sync();
+    }
+    finally {
+      file.close();
+    }
+
+    File snapshot = new File( directory, SNAPSHOT + next );
+    if ( !temp.renameTo( snapshot ) ) {
+      throw new IOException( "Could not rename " + temp + " to " + snapshot );
+    }
+
+    // everything before this generation is in the new snapshot
+    String[] names = directory.list();
+    for ( int x = 0; ( names != null ) && ( x < names.length ); x++ ) {
+      String name = names[x];
+      try {
+        int number = -1;
+        if ( name.startsWith( SNAPSHOT ) ) {
+          number = Integer.parseInt( name.substring( SNAPSHOT.length() ) );
+        } else if ( name.startsWith( JOURNAL ) ) {
+          number = Integer.parseInt( name.substring( JOURNAL.length() ) );
+        }
+        if ( ( number >= 0 ) && ( number < next ) ) {
+          new File( directory, name ).delete();
+        }
+      } catch ( NumberFormatException e ) {
+        // not one of ours
+      }
+    }
+
+    generation = next;
+  }
+
+
+
+
+  private static void writeFrames( DataOutputStream out, Map<Long, byte[]> frames ) throws IOException {
+    out.writeInt( frames.size() );
+    for ( Map.Entry<Long, byte[]> frame : frames.entrySet() ) {
+      out.writeLong( frame.getKey() );
+      out.writeInt( frame.getValue().length );
+      out.write( frame.getValue() );
+    }
+  }
+
+
+
+
+  /**
+   * @param policy when the log is forced to disk
+   */
+  public void setSync( Sync policy ) {
+    if ( policy != null ) {
+      sync = policy;
+    }
+  }
+
+
+
+
+  /**
+   * @return when the log is forced to disk
+   */
+  public Sync getSync() {
+    return sync;
+  }
+
+
+
+
+  /**
+   * @param millis milliseconds between forced writes with the
+   *        {@link Sync#INTERVAL} policy
+   */
+  public void setSyncInterval( long millis ) {
+    syncInterval = Math.max( 1, millis );
+  }
+
+
+
+
+  /**
+   * @param bytes the size of log which causes a snapshot to be taken
+   */
+  public void setCompactSize( long bytes ) {
+    compactSize = Math.max( 1024, bytes );
+  }
+
+
+
+
+  /**
+   * @return the number of collectors with recorded state
+   */
+  public int getCollectorCount() {
+    return states.size();
+  }
+
+  /**
+   * The journaled state of one cache.
+   */
+  private static final class State {
+    int bounceCount = 0;
+    final Map<String, String> validators = new LinkedHashMap<String, String>();
+    final Map<Long, byte[]> events = new LinkedHashMap<Long, byte[]>();
+    final Map<Long, byte[]> alerts = new LinkedHashMap<Long, byte[]>();
+    /** The alerts held open by an alert manager, queued or not */
+    final Map<Long, byte[]> open = new LinkedHashMap<Long, byte[]>();
+  }
+
+  /**
+   * Builds one record in memory.
+   */
+  private static final class Record extends DataOutputStream {
+
+
+
+
+    Record() {
+      super( new ByteArrayOutputStream( 64 ) );
+    }
+
+
+
+
+    byte[] toByteArray() {
+      return ( (ByteArrayOutputStream)out ).toByteArray();
+    }
+  }
+
+  /**
+   * Reads a buffer as a stream.
+   */
+  private static final class BufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+
+
+
+    BufferInputStream( ByteBuffer buffer ) {
+      this.buffer = buffer;
+    }
+
+
+
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+
+
+
+    @Override
+    public int read( byte[] data, int offset, int length ) {
+      if ( !buffer.hasRemaining() ) {
+        return -1;
+      }
+      int count = Math.min( length, buffer.remaining() );
+      buffer.get( data, offset, count );
+      return count;
+    }
+  }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A compressed run of points of one field, encoded as in Facebook's Gorilla.
+ *
+ * <p>The first point is written in full. Each later timestamp is written as
+ * the difference between its delta and the previous delta, which is zero for
+ * samples taken at a regular interval and so costs one bit:</p>
+ * <pre>
+ *   0                        delta of delta is 0
+ *   10   + 7 bits            -63 to 64
+ *   110  + 9 bits            -255 to 256
+ *   1110 + 12 bits           -2047 to 2048
+ *   1111 + 64 bits           anything else
+ * </pre>
+ * <p>Each later value is XORed with the previous one. An unchanged value
+ * costs one bit; otherwise only the bits between the leading and trailing
+ * zeros of the XOR are written, reusing the previous window when they fit in
+ * it:</p>
+ * <pre>
+ *   0                                     same value
+ *   10 + meaningful bits                  fits the previous window
+ *   11 + 5 bits leading + 6 bits length   new window
+ *      + meaningful bits
+ * </pre>
+ */
+final class Chunk {
+
+  private final BitOutput output;
+
+  private int count = 0;
+  private long minTime = Long.MAX_VALUE;
+  private long maxTime = Long.MIN_VALUE;
+
+  private long previousTime;
+  private long previousDelta;
+  private long previousBits;
+  private int previousLeading = Integer.MAX_VALUE;
+  private int previousTrailing = 0;
+
+  /** Wall clock time the chunk was started, so idle chunks can be flushed */
+  final long created = System.currentTimeMillis();
+
+
+
+
+  Chunk( int points ) {
+    output = new BitOutput( points * 2 + 16 );
+  }
+
+
+
+
+  /**
+   * Append a point.
+   */
+  void add( long time, double value ) {
+    long bits = Double.doubleToRawLongBits( value );
+
+    if ( count == 0 ) {
+      output.writeBits( time, 64 );
+      output.writeBits( bits, 64 );
+      previousDelta = 0;
+    } else {
+      long delta = time - previousTime;
+      writeTime( delta - previousDelta );
+      writeValue( bits ^ previousBits );
+      previousDelta = delta;
+    }
+
+    previousTime = time;
+    previousBits = bits;
+    count++;
+    minTime = Math.min( minTime, time );
+    maxTime = Math.max( maxTime, time );
+  }
+
+
+
+
+  private void writeTime( long dod ) {
+    if ( dod == 0 ) {
+      output.writeBit( false );
+    } else if ( ( dod >= -63 ) && ( dod <= 64 ) ) {
+      output.writeBits( 0x2, 2 );
+      output.writeBits( dod + 63, 7 );
+    } else if ( ( dod >= -255 ) && ( dod <= 256 ) ) {
+      output.writeBits( 0x6, 3 );
+      output.writeBits( dod + 255, 9 );
+    } else if ( ( dod >= -2047 ) && ( dod <= 2048 ) ) {
+      output.writeBits( 0xE, 4 );
+      output.writeBits( dod + 2047, 12 );
+    } else {
+      output.writeBits( 0xF, 4 );
+      output.writeBits( dod, 64 );
+    }
+  }
+
+
+
+
+  private void writeValue( long xor ) {
+    if ( xor == 0 ) {
+      output.writeBit( false );
+      return;
+    }
+
+    output.writeBit( true );
+    int leading = Math.min( 31, Long.numberOfLeadingZeros( xor ) );
+    int trailing = Long.numberOfTrailingZeros( xor );
+
+    if ( ( leading >= previousLeading ) && ( trailing >= previousTrailing ) ) {
+      output.writeBit( false );
+      output.writeBits( xor >>> previousTrailing, 64 - previousLeading - previousTrailing );
+    } else {
+      int length = 64 - leading - trailing;
+      output.writeBit( true );
+      output.writeBits( leading, 5 );
+      output.writeBits( length - 1, 6 );
+      output.writeBits( xor >>> trailing, length );
+      previousLeading = leading;
+      previousTrailing = trailing;
+    }
+  }
+
+
+
+
+  int getCount() {
+    return count;
+  }
+
+
+
+
+  long getMinTime() {
+    return minTime;
+  }
+
+
+
+
+  long getMaxTime() {
+    return maxTime;
+  }
+
+
+
+
+  byte[] toByteArray() {
+    return output.toByteArray();
+  }
+
+
+
+
+  /**
+   * Decode the points of an encoded chunk, passing those within the range to
+   * the visitor.
+   *
+   * @param buffer the buffer holding the encoded points
+   * @param offset the index of the first byte of the encoded points
+   * @param count the number of points encoded
+   * @param from the start of the range, inclusive
+   * @param to the end of the range, exclusive
+   * @param visitor receives the points in the range
+   */
+  static void decode( ByteBuffer buffer, int offset, int count, long from, long to, PointVisitor visitor ) {
+    if ( count == 0 ) {
+      return;
+    }
+
+    BitInput input = new BitInput( buffer, offset );
+    long time = input.readBits( 64 );
+    long bits = input.readBits( 64 );
+    long delta = 0;
+    int leading = 0;
+    int trailing = 0;
+
+    for ( int x = 0; x < count; x++ ) {
+      if ( x > 0 ) {
+        delta += readTime( input );
+        time += delta;
+
+        if ( input.readBit() ) {
+          if ( input.readBit() ) {
+            leading = (int)input.readBits( 5 );
+            int length = (int)input.readBits( 6 ) + 1;
+            trailing = 64 - leading - length;
+          }
+          bits ^= input.readBits( 64 - leading - trailing ) << trailing;
+        }
+      }
+
+      if ( ( time >= from ) && ( time < to ) ) {
+        visitor.visit( time, Double.longBitsToDouble( bits ) );
+      }
+    }
+  }
+
+
+
+
+  private static long readTime( BitInput input ) {
+    if ( !input.readBit() ) {
+      return 0;
+    }
+    if ( !input.readBit() ) {
+      return input.readBits( 7 ) - 63;
+    }
+    if ( !input.readBit() ) {
+      return input.readBits( 9 ) - 255;
+    }
+    if ( !input.readBit() ) {
+      return input.readBits( 12 ) - 2047;
+    }
+    return input.readBits( 64 );
+  }
+
+  /**
+   * Receives decoded points.
+   */
+  interface PointVisitor {
+    void visit( long time, double value );
+  }
+
+}
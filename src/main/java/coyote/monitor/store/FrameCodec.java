@@ -0,0 +1,591 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import coyote.dataframe.DataField;
+import coyote.dataframe.DataFrame;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.MonitorAlert;
+import coyote.monitor.MonitorEvent;
+import coyote.monitor.Sample;
+
+
+/**
+ * A compact binary encoding of samples, events and alerts.
+ *
+ * <p>Each frame is written as a record:</p>
+ * <pre>
+ *   byte    kind: frame, sample, event or alert
+ *   (alert) varint level, zigzag varint expiry, byte acknowledged
+ *   varint  number of fields
+ *   fields  name reference, type byte, value
+ * </pre>
+ * <p>A field name is written in full the first time it is seen and by its
+ * position in the dictionary after that; the names the monitor always uses
+ * are in the dictionary from the start. Integers are written as zigzag
+ * varints, timestamps as the varint of their epoch milliseconds, and nested
+ * frames as records of their own.</p>
+ *
+ * <p>A codec is a stream: the dictionary grows with each record encoded, so
+ * the records must be decoded, in order, by one codec. Records are written to
+ * and read from buffers the caller owns and reuses. A record which does not
+ * fit the space remaining, or is not all there yet, leaves the buffer and
+ * dictionary as they were so the caller can make room and try again.</p>
+ *
+ * <p>A codec is not thread-safe; use one per stream.</p>
+ */
+public class FrameCodec {
+
+  /** The most names a dictionary holds; later names are always written out */
+  public static final int MAX_DICTIONARY = 4096;
+
+  private static final byte FRAME = 0;
+  private static final byte SAMPLE = 1;
+  private static final byte EVENT = 2;
+  private static final byte ALERT = 3;
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte LONG = 2;
+  private static final byte INT = 3;
+  private static final byte SHORT = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte FLOAT = 6;
+  private static final byte TRUE = 7;
+  private static final byte FALSE = 8;
+  private static final byte DATE = 9;
+  private static final byte BYTES = 10;
+  private static final byte NESTED = 11;
+
+  /** Name references: no name, a new name follows, else dictionary index + 2 */
+  private static final int NO_NAME = 0;
+  private static final int NEW_NAME = 1;
+
+  /** Names in every dictionary from the start */
+  private static final String[] COMMON_NAMES = { Sample.TYPE, MonitorEvent.TIMESTAMP, MonitorEvent.IDENTIFIER, MonitorEvent.MESSAGE, MonitorEvent.ERROR, MonitorEvent.DESCRIPTION, MonitorAlert.ID, Sample.ERROR, CollectorCache.STATUS, CollectorCache.PREV_STATUS, CollectorCache.LAST_ERROR, "Sample", "Name", "Value", "Elapsed" };
+
+  private final List<String> names = new ArrayList<String>();
+
+  private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+  /** Holds the fields of a record until it is known to be whole */
+  private final DataFrame scratch = new DataFrame();
+
+
+
+
+  public FrameCodec() {
+    reset();
+  }
+
+
+
+
+  /**
+   * Forget the names learned so the codec can start a new stream.
+   */
+  public void reset() {
+    names.clear();
+    indexes.clear();
+    for ( int x = 0; x < COMMON_NAMES.length; x++ ) {
+      learn( COMMON_NAMES[x] );
+    }
+  }
+
+
+
+
+  private void learn( String name ) {
+    if ( ( names.size() < MAX_DICTIONARY ) && !indexes.containsKey( name ) ) {
+      indexes.put( name, names.size() );
+      names.add( name );
+    }
+  }
+
+
+
+
+  private void forget( int size ) {
+    while ( names.size() > size ) {
+      indexes.remove( names.remove( names.size() - 1 ) );
+    }
+  }
+
+
+
+
+  /**
+   * Encode one frame into the buffer.
+   *
+   * @param frame the frame to encode
+   * @param buffer where the record is written, from its position
+   *
+   * @return false if the record did not fit in the space remaining, in which
+   *         case nothing was written
+   */
+  public boolean encode( DataFrame frame, ByteBuffer buffer ) {
+    int position = buffer.position();
+    int known = names.size();
+    try {
+      writeRecord( frame, buffer );
+      return true;
+    } catch ( BufferOverflowException e ) {
+      buffer.position( position );
+      forget( known );
+      return false;
+    }
+  }
+
+
+
+
+  /**
+   * Decode the next frame in the buffer.
+   *
+   * <p>Samples, events and alerts are decoded as instances of their own
+   * classes.</p>
+   *
+   * @param buffer the encoded records, read from its position
+   *
+   * @return the frame, or null if the buffer does not yet hold the whole
+   *         record, in which case nothing was read
+   *
+   * @throws IllegalArgumentException if the data is not a valid record
+   */
+  public DataFrame decode( ByteBuffer buffer ) {
+    int position = buffer.position();
+    int known = names.size();
+    try {
+      return readRecord( buffer, null );
+    } catch ( BufferUnderflowException e ) {
+      buffer.position( position );
+      forget( known );
+      return null;
+    }
+  }
+
+
+
+
+  /**
+   * Decode the next frame in the buffer into the given frame, which is
+   * cleared first, so one frame can be reused for every record.
+   *
+   * @param buffer the encoded records, read from its position
+   * @param target the frame to fill
+   *
+   * @return false if the buffer does not yet hold the whole record, in which
+   *         case nothing was read and the target is unchanged
+   *
+   * @throws IllegalArgumentException if the data is not a valid record
+   */
+  public boolean decode( ByteBuffer buffer, DataFrame target ) {
+    int position = buffer.position();
+    int known = names.size();
+    try {
+      readRecord( buffer, target );
+      return true;
+    } catch ( BufferUnderflowException e ) {
+      buffer.position( position );
+      forget( known );
+      return false;
+    }
+  }
+
+
+
+
+  /**
+   * Encode a frame on its own, with a dictionary of only the common names.
+   *
+   * @param frame the frame to encode
+   *
+   * @return the encoded record
+   */
+  public static byte[] toBytes( DataFrame frame ) {
+    FrameCodec codec = new FrameCodec();
+    ByteBuffer buffer = ByteBuffer.allocate( 256 );
+    while ( !codec.encode( frame, buffer ) ) {
+      buffer = ByteBuffer.allocate( buffer.capacity() * 2 );
+    }
+    byte[] retval = new byte[buffer.position()];
+    System.arraycopy( buffer.array(), 0, retval, 0, retval.length );
+    return retval;
+  }
+
+
+
+
+  /**
+   * Decode a frame encoded with {@link #toBytes(DataFrame)}.
+   *
+   * @param data the encoded record
+   * @param target the frame to fill, null to create one of the encoded class
+   *
+   * @return the decoded frame
+   *
+   * @throws IllegalArgumentException if the data is not a valid record
+   */
+  public static DataFrame fromBytes( byte[] data, DataFrame target ) {
+    FrameCodec codec = new FrameCodec();
+    try {
+      return codec.readRecord( ByteBuffer.wrap( data ), target );
+    } catch ( BufferUnderflowException e ) {
+      throw new IllegalArgumentException( "Truncated record" );
+    }
+  }
+
+
+
+
+  private void writeRecord( DataFrame frame, ByteBuffer buffer ) {
+    if ( frame instanceof MonitorAlert ) {
+      MonitorAlert alert = (MonitorAlert)frame;
+      buffer.put( ALERT );
+      putVarint( buffer, zigzag( alert.getLevel() ) );
+      putVarint( buffer, zigzag( alert.getExpires() ) );
+      buffer.put( (byte)( alert.isAcknowledged() ? 1 : 0 ) );
+    } else if ( frame instanceof MonitorEvent ) {
+      buffer.put( EVENT );
+    } else if ( frame instanceof Sample ) {
+      buffer.put( SAMPLE );
+    } else {
+      buffer.put( FRAME );
+    }
+    writeFields( frame, buffer );
+  }
+
+
+
+
+  private void writeFields( DataFrame frame, ByteBuffer buffer ) {
+    int count = frame.getFieldCount();
+    putVarint( buffer, count );
+    for ( int x = 0; x < count; x++ ) {
+      DataField field = frame.getField( x );
+      writeName( field.getName(), buffer );
+      writeValue( field.getObjectValue(), buffer );
+    }
+  }
+
+
+
+
+  private void writeName( String name, ByteBuffer buffer ) {
+    if ( name == null ) {
+      putVarint( buffer, NO_NAME );
+      return;
+    }
+
+    Integer index = indexes.get( name );
+    if ( index != null ) {
+      putVarint( buffer, index + 2 );
+    } else {
+      putVarint( buffer, NEW_NAME );
+      putString( buffer, name );
+      learn( name );
+    }
+  }
+
+
+
+
+  private void writeValue( Object value, ByteBuffer buffer ) {
+    if ( value == null ) {
+      buffer.put( NULL );
+    } else if ( value instanceof String ) {
+      buffer.put( STRING );
+      putString( buffer, (String)value );
+    } else if ( value instanceof Long ) {
+      buffer.put( LONG );
+      putVarint( buffer, zigzag( (Long)value ) );
+    } else if ( value instanceof Integer ) {
+      buffer.put( INT );
+      putVarint( buffer, zigzag( (Integer)value ) );
+    } else if ( value instanceof Short ) {
+      buffer.put( SHORT );
+      putVarint( buffer, zigzag( (Short)value ) );
+    } else if ( value instanceof Double ) {
+      buffer.put( DOUBLE );
+      buffer.putDouble( (Double)value );
+    } else if ( value instanceof Float ) {
+      buffer.put( FLOAT );
+      buffer.putFloat( (Float)value );
+    } else if ( value instanceof Boolean ) {
+      buffer.put( ( (Boolean)value ) ? TRUE : FALSE );
+    } else if ( value instanceof Date ) {
+      buffer.put( DATE );
+      putVarint( buffer, zigzag( ( (Date)value ).getTime() ) );
+    } else if ( value instanceof byte[] ) {
+      byte[] data = (byte[])value;
+      buffer.put( BYTES );
+      putVarint( buffer, data.length );
+      buffer.put( data );
+    } else if ( value instanceof DataFrame ) {
+      buffer.put( NESTED );
+      writeRecord( (DataFrame)value, buffer );
+    } else {
+      // anything else is kept as its text
+      buffer.put( STRING );
+      putString( buffer, value.toString() );
+    }
+  }
+
+
+
+
+  private DataFrame readRecord( ByteBuffer buffer, DataFrame target ) {
+    byte kind = buffer.get();
+    int level = 0;
+    long expires = 0;
+    boolean acknowledged = false;
+
+    if ( kind == ALERT ) {
+      level = (int)unzigzag( getVarint( buffer ) );
+      expires = unzigzag( getVarint( buffer ) );
+      acknowledged = buffer.get() != 0;
+    } else if ( ( kind != EVENT ) && ( kind != SAMPLE ) && ( kind != FRAME ) ) {
+      throw new IllegalArgumentException( "Unknown record kind " + kind );
+    }
+
+    // a given target is only filled once the whole record has been read
+    DataFrame retval = ( target != null ) ? scratch : create( kind );
+
+    // constructors add fields of their own which the record replaces
+    retval.clear();
+    readFields( buffer, retval );
+
+    if ( target != null ) {
+      target.clear();
+      for ( int x = 0; x < scratch.getFieldCount(); x++ ) {
+        DataField field = scratch.getField( x );
+        if ( field.getName() == null ) {
+          target.add( field.getObjectValue() );
+        } else {
+          target.add( field.getName(), field.getObjectValue() );
+        }
+      }
+      scratch.clear();
+      retval = target;
+    }
+
+    if ( ( kind == ALERT ) && ( retval instanceof MonitorAlert ) ) {
+      MonitorAlert alert = (MonitorAlert)retval;
+      alert.setLevel( level );
+      alert.setExpires( expires );
+      alert.setAcknowledged( acknowledged );
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * @return a new frame of the class the record kind was encoded from
+   */
+  private static DataFrame create( byte kind ) {
+    switch ( kind ) {
+      case ALERT:
+        return new MonitorAlert();
+      case EVENT:
+        return new MonitorEvent();
+      case SAMPLE:
+        return new Sample();
+      default:
+        return new DataFrame();
+    }
+  }
+
+
+
+
+  private void readFields( ByteBuffer buffer, DataFrame frame ) {
+    // every field takes at least two bytes, so the rest is still to come
+    long count = getVarint( buffer );
+    if ( count > buffer.remaining() ) {
+      if ( count > Integer.MAX_VALUE ) {
+        throw new IllegalArgumentException( "Bad field count " + count );
+      }
+      throw new BufferUnderflowException();
+    }
+
+    for ( long x = 0; x < count; x++ ) {
+      String name = readName( buffer );
+      Object value = readValue( buffer );
+      if ( name == null ) {
+        frame.add( value );
+      } else {
+        frame.add( name, value );
+      }
+    }
+  }
+
+
+
+
+  private String readName( ByteBuffer buffer ) {
+    long reference = getVarint( buffer );
+    if ( reference == NO_NAME ) {
+      return null;
+    }
+    if ( reference == NEW_NAME ) {
+      String retval = getString( buffer );
+      learn( retval );
+      return retval;
+    }
+    if ( reference - 2 >= names.size() ) {
+      throw new IllegalArgumentException( "Unknown field name reference " + reference );
+    }
+    return names.get( (int)( reference - 2 ) );
+  }
+
+
+
+
+  private Object readValue( ByteBuffer buffer ) {
+    byte type = buffer.get();
+    switch ( type ) {
+      case NULL:
+        return null;
+      case STRING:
+        return getString( buffer );
+      case LONG:
+        return unzigzag( getVarint( buffer ) );
+      case INT:
+        return (int)unzigzag( getVarint( buffer ) );
+      case SHORT:
+        return (short)unzigzag( getVarint( buffer ) );
+      case DOUBLE:
+        return buffer.getDouble();
+      case FLOAT:
+        return buffer.getFloat();
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case DATE:
+        return new Date( unzigzag( getVarint( buffer ) ) );
+      case BYTES:
+        byte[] data = new byte[length( buffer )];
+        buffer.get( data );
+        return data;
+      case NESTED:
+        return readRecord( buffer, null );
+      default:
+        throw new IllegalArgumentException( "Unknown field type " + type );
+    }
+  }
+
+
+
+
+  private static int length( ByteBuffer buffer ) {
+    long retval = getVarint( buffer );
+    if ( retval > buffer.remaining() ) {
+      if ( retval > Integer.MAX_VALUE ) {
+        throw new IllegalArgumentException( "Bad length " + retval );
+      }
+      throw new BufferUnderflowException();
+    }
+    return (int)retval;
+  }
+
+
+
+
+  private static void putString( ByteBuffer buffer, String text ) {
+    try {
+      byte[] data = text.getBytes( "UTF-8" );
+      putVarint( buffer, data.length );
+      buffer.put( data );
+    } catch ( UnsupportedEncodingException e ) {
+      throw new IllegalStateException( e );
+    }
+  }
+
+
+
+
+  private static String getString( ByteBuffer buffer ) {
+    int size = length( buffer );
+    try {
+      if ( buffer.hasArray() ) {
+        String retval = new String( buffer.array(), buffer.arrayOffset() + buffer.position(), size, "UTF-8" );
+        buffer.position( buffer.position() + size );
+        return retval;
+      }
+      byte[] data = new byte[size];
+      buffer.get( data );
+      return new String( data, "UTF-8" );
+    } catch ( UnsupportedEncodingException e ) {
+      throw new IllegalStateException( e );
+    }
+  }
+
+
+
+
+  /**
+   * Write an unsigned value seven bits at a time, low bits first.
+   */
+  static void putVarint( ByteBuffer buffer, long value ) {
+    while ( ( value & ~0x7FL ) != 0 ) {
+      buffer.put( (byte)( ( value & 0x7F ) | 0x80 ) );
+      value >>>= 7;
+    }
+    buffer.put( (byte)value );
+  }
+
+
+
+
+  static long getVarint( ByteBuffer buffer ) {
+    long retval = 0;
+    for ( int shift = 0; shift < 64; shift += 7 ) {
+      byte b = buffer.get();
+      retval |= (long)( b & 0x7F ) << shift;
+      if ( ( b & 0x80 ) == 0 ) {
+        return retval;
+      }
+    }
+    throw new IllegalArgumentException( "Malformed varint" );
+  }
+
+
+
+
+  /**
+   * Map signed values to unsigned so small negative numbers stay short.
+   */
+  static long zigzag( long value ) {
+    return ( value << 1 ) ^ ( value >> 63 );
+  }
+
+
+
+
+  static long unzigzag( long value ) {
+    return ( value >>> 1 ) ^ -( value & 1 );
+  }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+/**
+ * Estimates quantiles of a stream of values in a small, fixed amount of
+ * memory.
+ *
+ * <p>Values are counted in buckets whose bounds grow geometrically, so any
+ * quantile is estimated to within the relative accuracy of the true value
+ * (as in DDSketch). Only the buckets between the smallest and largest values
+ * seen are allocated. When more than the maximum number of buckets would be
+ * needed, the lowest buckets are merged, trading accuracy at the bottom of the
+ * range for the upper quantiles which matter most for latency.</p>
+ */
+public class QuantileSketch {
+
+  /** The default relative accuracy (2%) of the estimates */
+  public static final double DEFAULT_ACCURACY = 0.02;
+
+  /** The default most buckets (256) kept for each sign */
+  public static final int DEFAULT_MAX_BUCKETS = 256;
+
+  private final double gamma;
+  private final double logGamma;
+  private final int maxBuckets;
+
+  private final Store positive = new Store();
+  private final Store negative = new Store();
+  private long zeros = 0;
+  private long count = 0;
+
+
+
+
+  public QuantileSketch() {
+    this( DEFAULT_ACCURACY, DEFAULT_MAX_BUCKETS );
+  }
+
+
+
+
+  /**
+   * @param accuracy the relative accuracy of the estimates, between 0 and 1
+   * @param maxBuckets the most buckets kept for each sign
+   */
+  public QuantileSketch( double accuracy, int maxBuckets ) {
+    if ( ( accuracy <= 0 ) || ( accuracy >= 1 ) ) {
+      throw new IllegalArgumentException( "Accuracy must be between 0 and 1" );
+    }
+    gamma = ( 1 + accuracy ) / ( 1 - accuracy );
+    logGamma = Math.log( gamma );
+    this.maxBuckets = Math.max( 16, maxBuckets );
+  }
+
+
+
+
+  private QuantileSketch( QuantileSketch other ) {
+    gamma = other.gamma;
+    logGamma = other.logGamma;
+    maxBuckets = other.maxBuckets;
+    positive.set( other.positive );
+    negative.set( other.negative );
+    zeros = other.zeros;
+    count = other.count;
+  }
+
+
+
+
+  /**
+   * Count a value; NaN is ignored.
+   */
+  public void add( double value ) {
+    if ( Double.isNaN( value ) ) {
+      return;
+    }
+    if ( value > Double.MIN_NORMAL ) {
+      positive.add( index( value ) );
+    } else if ( value < -Double.MIN_NORMAL ) {
+      negative.add( index( -value ) );
+    } else {
+      zeros++;
+    }
+    count++;
+  }
+
+
+
+
+  private int index( double value ) {
+    return (int)Math.ceil( Math.log( value ) / logGamma );
+  }
+
+
+
+
+  private double value( int index ) {
+    // the middle of the bucket in relative terms
+    return 2 * Math.pow( gamma, index ) / ( 1 + gamma );
+  }
+
+
+
+
+  /**
+   * @param quantile the quantile wanted, 0 to 1
+   *
+   * @return the estimated value at the quantile, NaN if nothing was counted
+   */
+  public double getQuantile( double quantile ) {
+    if ( count == 0 ) {
+      return Double.NaN;
+    }
+
+    long rank = (long)( Math.max( 0, Math.min( 1, quantile ) ) * ( count - 1 ) );
+    if ( rank < negative.total ) {
+      // negative values, largest magnitude first
+      long seen = 0;
+      for ( int x = negative.counts.length - 1; x >= 0; x-- ) {
+        seen += negative.counts[x];
+        if ( seen > rank ) {
+          return -value( negative.offset + x );
+        }
+      }
+    }
+
+    rank -= negative.total;
+    if ( rank < zeros ) {
+      return 0;
+    }
+
+    rank -= zeros;
+    long seen = 0;
+    for ( int x = 0; x < positive.counts.length; x++ ) {
+      seen += positive.counts[x];
+      if ( seen > rank ) {
+        return value( positive.offset + x );
+      }
+    }
+    return value( positive.offset + positive.counts.length - 1 );
+  }
+
+
+
+
+  /**
+   * @return the number of values counted
+   */
+  public long getCount() {
+    return count;
+  }
+
+
+
+
+  /**
+   * @return an independent sketch of the same values
+   */
+  QuantileSketch copy() {
+    return new QuantileSketch( this );
+  }
+
+
+
+
+  /**
+   * Forget every value counted.
+   */
+  public void clear() {
+    positive.clear();
+    negative.clear();
+    zeros = 0;
+    count = 0;
+  }
+
+  /**
+   * The counts of a contiguous range of bucket indexes.
+   */
+  private final class Store {
+    long[] counts = new long[0];
+    int offset = 0;
+    long total = 0;
+
+
+
+
+    void add( int index ) {
+      if ( counts.length == 0 ) {
+        counts = new long[1];
+        offset = index;
+      } else if ( ( index < offset ) || ( index >= offset + counts.length ) ) {
+        int low = Math.min( offset, index );
+        int high = Math.max( offset + counts.length - 1, index );
+        if ( high - low + 1 > maxBuckets ) {
+          // the lowest buckets are collapsed into the bottom of the range
+          low = high - maxBuckets + 1;
+        }
+
+        long[] fresh = new long[high - low + 1];
+        for ( int x = 0; x < counts.length; x++ ) {
+          fresh[Math.max( 0, offset + x - low )] += counts[x];
+        }
+        counts = fresh;
+        offset = low;
+      }
+
+      counts[Math.max( 0, index - offset )]++;
+      total++;
+    }
+
+
+
+
+    void set( Store other ) {
+      counts = other.counts.clone();
+      offset = other.offset;
+      total = other.total;
+    }
+
+
+
+
+    void clear() {
+      counts = new long[0];
+      offset = 0;
+      total = 0;
+    }
+  }
+
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import coyote.dataframe.DataField;
+import coyote.dataframe.DataFrame;
+import coyote.loader.log.Log;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.Sample;
+import coyote.monitor.SampleListener;
+
+
+/**
+ * Summarizes samples into buckets of fixed duration as they are taken.
+ *
+ * <p>Each numeric (and boolean, as 1 or 0) field of a sample updates the open
+ * bucket of that field at every resolution, 1 minute, 1 hour and 1 day unless
+ * configured otherwise. A bucket keeps the minimum, maximum, sum and count of
+ * its values and a {@link QuantileSketch} of them, so nothing has to read the
+ * raw samples again. Each sample also counts toward the {@link #ERRORS}
+ * field, 1 if it holds an error and 0 if not, whose average is the error
+ * ratio.</p>
+ *
+ * <p>Buckets are aligned to the epoch (days start at midnight UTC). When a
+ * sample falls past the end of the open bucket, or {@link #flush(long)} finds
+ * its time has passed, the bucket is closed and written to the store as one
+ * point per statistic, at the start time of the bucket, in fields named by
+ * {@link #getFieldName(String, long, String)}. A sample older than the open
+ * bucket is counted in it.</p>
+ */
+public class Rollup {
+
+  /** The resolutions kept unless configured otherwise: 1m, 1h and 1d */
+  public static final long[] DEFAULT_RESOLUTIONS = { 60000L, 3600000L, 86400000L };
+
+  /** The field counting samples with errors */
+  public static final String ERRORS = "Errors";
+
+  public static final String MINIMUM = "min";
+  public static final String MAXIMUM = "max";
+  public static final String SUM = "sum";
+  public static final String COUNT = "count";
+  public static final String P50 = "p50";
+  public static final String P90 = "p90";
+  public static final String P99 = "p99";
+
+  /** The most fields summarized for each collector */
+  public static final int MAX_FIELDS = 64;
+
+  private final TimeSeriesStore store;
+
+  private volatile long[] resolutions = DEFAULT_RESOLUTIONS.clone();
+
+  private final ConcurrentHashMap<String, Buckets> collectors = new ConcurrentHashMap<String, Buckets>();
+
+  /** The listener added to the cache of each collector */
+  private final ConcurrentHashMap<String, SampleListener> listeners = new ConcurrentHashMap<String, SampleListener>();
+
+
+
+
+  /**
+   * @param store where closed buckets are written, null to keep only the open
+   *        buckets
+   */
+  public Rollup( TimeSeriesStore store ) {
+    this.store = store;
+  }
+
+
+
+
+  /**
+   * Summarize every sample placed in the cache from now on.
+   *
+   * @param name the name of the collector, unique in the monitor
+   * @param cache the cache of the collector
+   */
+  public void attach( final String name, CollectorCache cache ) {
+    SampleListener listener = new SampleListener() {
+      public void sampleTaken( CollectorCache source, long time, DataFrame sample ) {
+        add( name, time, sample );
+      }
+    };
+    listeners.put( name, listener );
+    cache.addSampleListener( listener );
+  }
+
+
+
+
+  /**
+   * Stop summarizing the samples of the cache; the open buckets of the
+   * collector are kept for the cache which replaces it.
+   *
+   * @param name the name of the collector
+   * @param cache the cache it was attached with
+   */
+  public void detach( String name, CollectorCache cache ) {
+    SampleListener listener = listeners.remove( name );
+    if ( listener != null ) {
+      cache.removeSampleListener( listener );
+    }
+  }
+
+
+
+
+  /**
+   * Count a sample in the open buckets of its collector.
+   *
+   * @param collector the name of the collector which took the sample
+   * @param time the time of the sample in epoch milliseconds
+   * @param sample the sample
+   */
+  public void add( String collector, long time, DataFrame sample ) {
+    Buckets state = collectors.get( collector );
+    if ( state == null ) {
+      state = new Buckets();
+      Buckets existing = collectors.putIfAbsent( collector, state );
+      if ( existing != null ) {
+        state = existing;
+      }
+    }
+
+    List<Bucket> closed = new ArrayList<Bucket>();
+    synchronized( state ) {
+      for ( int x = 0; x < sample.getFieldCount(); x++ ) {
+        DataField field = sample.getField( x );
+        Object value = field.getObjectValue();
+        if ( field.getName() == null || field.getName().equals( ERRORS ) ) {
+          continue;
+        }
+        if ( value instanceof Number ) {
+          state.add( field.getName(), time, ( (Number)value ).doubleValue(), closed );
+        } else if ( value instanceof Boolean ) {
+          state.add( field.getName(), time, ( (Boolean)value ).booleanValue() ? 1D : 0D, closed );
+        }
+      }
+      state.add( ERRORS, time, sample.contains( Sample.ERROR ) ? 1D : 0D, closed );
+    }
+
+    write( collector, closed );
+  }
+
+
+
+
+  /**
+   * Close and write every bucket whose time has passed, so buckets of idle
+   * collectors are not held open.
+   *
+   * @param now the current time in epoch milliseconds
+   */
+  public void flush( long now ) {
+    for ( Map.Entry<String, Buckets> entry : collectors.entrySet() ) {
+      List<Bucket> closed = new ArrayList<Bucket>();
+      synchronized( entry.getValue() ) {
+        entry.getValue().close( now, closed );
+      }
+      write( entry.getKey(), closed );
+    }
+  }
+
+
+
+
+  /**
+   * Write every open bucket, complete or not, as when shutting down.
+   */
+  public void close() {
+    flush( Long.MAX_VALUE );
+  }
+
+
+
+
+  private void write( String collector, List<Bucket> closed ) {
+    if ( ( store == null ) || closed.isEmpty() ) {
+      return;
+    }
+
+    try {
+      for ( int x = 0; x < closed.size(); x++ ) {
+        Bucket bucket = closed.get( x );
+        long time = bucket.getStart();
+        store.write( collector, getFieldName( bucket.field, bucket.resolution, MINIMUM ), time, bucket.getMinimum() );
+        store.write( collector, getFieldName( bucket.field, bucket.resolution, MAXIMUM ), time, bucket.getMaximum() );
+        store.write( collector, getFieldName( bucket.field, bucket.resolution, SUM ), time, bucket.getSum() );
+        store.write( collector, getFieldName( bucket.field, bucket.resolution, COUNT ), time, bucket.getCount() );
+        store.write( collector, getFieldName( bucket.field, bucket.resolution, P50 ), time, bucket.getQuantile( 0.5 ) );
+        store.write( collector, getFieldName( bucket.field, bucket.resolution, P90 ), time, bucket.getQuantile( 0.9 ) );
+        store.write( collector, getFieldName( bucket.field, bucket.resolution, P99 ), time, bucket.getQuantile( 0.99 ) );
+      }
+    } catch ( IOException e ) {
+      Log.error( "Could not write rollups of " + collector + ": " + e.getMessage() );
+    }
+  }
+
+
+
+
+  /**
+   * @param collector the name of the collector
+   * @param field the name of the field
+   * @param resolution the duration of the bucket in milliseconds
+   *
+   * @return a copy of the open bucket, or null if there is none
+   */
+  public Bucket getOpenBucket( String collector, String field, long resolution ) {
+    Buckets state = collectors.get( collector );
+    if ( state != null ) {
+      synchronized( state ) {
+        Bucket[] buckets = state.fields.get( field );
+        long[] current = resolutions;
+        for ( int x = 0; ( buckets != null ) && ( x < current.length ); x++ ) {
+          if ( ( current[x] == resolution ) && ( buckets[x] != null ) ) {
+            return buckets[x].copy();
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+
+
+
+  /**
+   * The name under which a statistic of a field is written to the store, for
+   * example {@code Elapsed/1m/max}.
+   *
+   * @param field the name of the sample field
+   * @param resolution the duration of the bucket in milliseconds
+   * @param statistic one of {@link #MINIMUM}, {@link #MAXIMUM}, {@link #SUM},
+   *        {@link #COUNT}, {@link #P50}, {@link #P90} or {@link #P99}
+   *
+   * @return the name of the stored field
+   */
+  public static String getFieldName( String field, long resolution, String statistic ) {
+    return field + "/" + getLabel( resolution ) + "/" + statistic;
+  }
+
+
+
+
+  /**
+   * @return a short label for a duration, such as 1m, 1h or 1d
+   */
+  static String getLabel( long millis ) {
+    if ( millis % 86400000L == 0 ) {
+      return ( millis / 86400000L ) + "d";
+    } else if ( millis % 3600000L == 0 ) {
+      return ( millis / 3600000L ) + "h";
+    } else if ( millis % 60000L == 0 ) {
+      return ( millis / 60000L ) + "m";
+    } else if ( millis % 1000L == 0 ) {
+      return ( millis / 1000L ) + "s";
+    }
+    return millis + "ms";
+  }
+
+
+
+
+  /**
+   * Set the bucket durations, discarding the open buckets.
+   *
+   * @param millis the duration of the buckets of each resolution
+   */
+  public void setResolutions( long[] millis ) {
+    List<Long> valid = new ArrayList<Long>();
+    for ( int x = 0; ( millis != null ) && ( x < millis.length ); x++ ) {
+      if ( ( millis[x] > 0 ) && !valid.contains( millis[x] ) ) {
+        valid.add( millis[x] );
+      }
+    }
+    long[] retval = new long[valid.size()];
+    for ( int x = 0; x < retval.length; x++ ) {
+      retval[x] = valid.get( x );
+    }
+    resolutions = retval;
+    collectors.clear();
+  }
+
+
+
+
+  /**
+   * @return the bucket durations in milliseconds
+   */
+  public long[] getResolutions() {
+    return resolutions.clone();
+  }
+
+  /**
+   * The open buckets of one collector.
+   */
+  private final class Buckets {
+    final Map<String, Bucket[]> fields = new HashMap<String, Bucket[]>();
+
+
+
+
+    void add( String field, long time, double value, List<Bucket> closed ) {
+      if ( Double.isNaN( value ) ) {
+        return;
+      }
+
+      long[] current = resolutions;
+      Bucket[] buckets = fields.get( field );
+      if ( ( buckets == null ) || ( buckets.length != current.length ) ) {
+        if ( fields.size() >= MAX_FIELDS && buckets == null ) {
+          return;
+        }
+        buckets = new Bucket[current.length];
+        fields.put( field, buckets );
+      }
+
+      for ( int x = 0; x < current.length; x++ ) {
+        Bucket bucket = buckets[x];
+        if ( ( bucket != null ) && ( time >= bucket.getEnd() ) ) {
+          closed.add( bucket );
+          bucket = null;
+        }
+        if ( bucket == null ) {
+          bucket = new Bucket( field, current[x], time - ( ( time % current[x] ) + current[x] ) % current[x] );
+          buckets[x] = bucket;
+        }
+        bucket.add( value );
+      }
+    }
+
+
+
+
+    void close( long now, List<Bucket> closed ) {
+      for ( Iterator<Bucket[]> it = fields.values().iterator(); it.hasNext(); ) {
+        Bucket[] buckets = it.next();
+        boolean open = false;
+        for ( int x = 0; x < buckets.length; x++ ) {
+          if ( buckets[x] != null ) {
+            if ( now >= buckets[x].getEnd() ) {
+              closed.add( buckets[x] );
+              buckets[x] = null;
+            } else {
+              open = true;
+            }
+          }
+        }
+        if ( !open ) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * The summary of the values of one field over one period.
+   */
+  public static final class Bucket {
+    final String field;
+    final long resolution;
+    private final long start;
+    private double minimum = Double.NaN;
+    private double maximum = Double.NaN;
+    private double sum = 0;
+    private long count = 0;
+    private final QuantileSketch sketch;
+
+
+
+
+    Bucket( String field, long resolution, long start ) {
+      this( field, resolution, start, new QuantileSketch() );
+    }
+
+
+
+
+    private Bucket( String field, long resolution, long start, QuantileSketch sketch ) {
+      this.field = field;
+      this.resolution = resolution;
+      this.start = start;
+      this.sketch = sketch;
+    }
+
+
+
+
+    void add( double value ) {
+      if ( count == 0 ) {
+        minimum = value;
+        maximum = value;
+      } else {
+        minimum = Math.min( minimum, value );
+        maximum = Math.max( maximum, value );
+      }
+      sum += value;
+      count++;
+      sketch.add( value );
+    }
+
+
+
+
+    Bucket copy() {
+      Bucket retval = new Bucket( field, resolution, start, sketch.copy() );
+      retval.minimum = minimum;
+      retval.maximum = maximum;
+      retval.sum = sum;
+      retval.count = count;
+      return retval;
+    }
+
+
+
+
+    /**
+     * @return the name of the field summarized
+     */
+    public String getField() {
+      return field;
+    }
+
+
+
+
+    /**
+     * @return the time the bucket starts in epoch milliseconds
+     */
+    public long getStart() {
+      return start;
+    }
+
+
+
+
+    /**
+     * @return the time the bucket ends, exclusive, in epoch milliseconds
+     */
+    public long getEnd() {
+      return start + resolution;
+    }
+
+
+
+
+    public double getMinimum() {
+      return minimum;
+    }
+
+
+
+
+    public double getMaximum() {
+      return maximum;
+    }
+
+
+
+
+    public double getSum() {
+      return sum;
+    }
+
+
+
+
+    public long getCount() {
+      return count;
+    }
+
+
+
+
+    /**
+     * @return the average of the values, NaN if there are none
+     */
+    public double getAverage() {
+      return ( count > 0 ) ? sum / count : Double.NaN;
+    }
+
+
+
+
+    /**
+     * @param quantile the quantile wanted, 0 to 1
+     *
+     * @return the estimated value at the quantile, NaN if there are none
+     */
+    public double getQuantile( double quantile ) {
+      return sketch.getQuantile( quantile );
+    }
+  }
+
+}
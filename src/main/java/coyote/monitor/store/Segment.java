@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import coyote.loader.log.Log;
+
+
+/**
+ * One file of compressed blocks for one collector.
+ *
+ * <p>A segment is appended to until it is rolled over, then it is only read.
+ * The file is opened for appending when a block is written and closed again
+ * by {@link #release()}, so idle segments hold no file handle. Reads go
+ * through a read-only memory map of the file, remapped when an active
+ * segment has grown; the map of a sealed segment is dropped after each read
+ * so only the segments being queried stay mapped. The location of every
+ * block is indexed in memory when the segment is opened so reads skip
+ * straight to the blocks of the field and time range wanted.</p>
+ *
+ * <p>Each block is laid out as:</p>
+ * <pre>
+ *   int    magic
+ *   short  length of the field name, then the UTF-8 name
+ *   int    number of points
+ *   long   earliest time
+ *   long   latest time
+ *   int    length of the encoded points
+ *   int    CRC32 of the encoded points
+ *   byte[] the encoded points (see {@link Chunk})
+ * </pre>
+ */
+final class Segment {
+
+  /** The suffix of segment file names */
+  static final String SUFFIX = ".seg";
+
+  /** Marks the start of each block, "CTSB" */
+  private static final int MAGIC = 0x43545342;
+
+  private static final int FIXED_HEADER = 4 + 2 + 4 + 8 + 8 + 4 + 4;
+
+  final File file;
+
+  /** The time of the first point written to the segment */
+  final long start;
+
+  /** Wall clock time the segment was created or opened */
+  final long opened = System.currentTimeMillis();
+
+  private final List<Block> blocks = new ArrayList<Block>();
+
+  /** The number of valid bytes in the file */
+  private long size = 0;
+
+  private long maxTime = Long.MIN_VALUE;
+
+  /** Set once the segment is closed and will not be appended to */
+  private boolean sealed = false;
+
+  /** Open while appending, null when released or closed */
+  private FileChannel channel = null;
+
+  private RandomAccessFile raf = null;
+
+  private MappedByteBuffer map = null;
+
+
+
+
+  private Segment( File file, long start ) {
+    this.file = file;
+    this.start = start;
+  }
+
+
+
+
+  /**
+   * Create a new segment for appending.
+   */
+  static Segment create( File directory, long start ) throws IOException {
+    File file = new File( directory, start + SUFFIX );
+    while ( file.exists() ) {
+      file = new File( directory, ++start + SUFFIX );
+    }
+    Segment retval = new Segment( file, start );
+    retval.raf = new RandomAccessFile( file, "rw" );
+    retval.channel = retval.raf.getChannel();
+    return retval;
+  }
+
+
+
+
+  /**
+   * Open an existing segment for reading, indexing its blocks and cutting
+   * off any block left incomplete by a crash.
+   */
+  static Segment open( File file ) throws IOException {
+    String name = file.getName();
+    long start = Long.parseLong( name.substring( 0, name.length() - SUFFIX.length() ) );
+    Segment retval = new Segment( file, start );
+
+    RandomAccessFile in = new RandomAccessFile( file, "rw" );
+    try {
+      long length = in.length();
+      ByteBuffer buffer = in.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, length );
+      int position = 0;
+      while ( position + FIXED_HEADER <= length ) {
+        Block block = readHeader( buffer, position );
+        if ( ( block == null ) || ( block.offset + block.length > length ) ) {
+          break;
+        }
+        retval.index( block );
+        position = block.offset + block.length;
+      }
+
+      retval.size = position;
+      if ( position < length ) {
+        Log.warn( "Truncating " + ( length - position ) + " bytes of incomplete data from " + file );
+        in.getChannel().truncate( position );
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    return retval;
+  }
+
+
+
+
+  private static Block readHeader( ByteBuffer buffer, int position ) {
+    if ( buffer.getInt( position ) != MAGIC ) {
+      return null;
+    }
+    int nameLength = buffer.getShort( position + 4 );
+    int fixed = position + 6 + nameLength;
+    if ( ( nameLength < 0 ) || ( fixed + FIXED_HEADER - 6 > buffer.limit() ) ) {
+      return null;
+    }
+
+    byte[] name = new byte[nameLength];
+    for ( int x = 0; x < nameLength; x++ ) {
+      name[x] = buffer.get( position + 6 + x );
+    }
+
+    Block retval = new Block();
+    try {
+      retval.field = new String( name, "UTF-8" );
+    } catch ( IOException e ) {
+      return null;
+    }
+    retval.count = buffer.getInt( fixed );
+    retval.minTime = buffer.getLong( fixed + 4 );
+    retval.maxTime = buffer.getLong( fixed + 12 );
+    retval.length = buffer.getInt( fixed + 20 );
+    retval.crc = buffer.getInt( fixed + 24 );
+    retval.offset = fixed + 28;
+    return ( ( retval.count < 0 ) || ( retval.length < 0 ) ) ? null : retval;
+  }
+
+
+
+
+  private void index( Block block ) {
+    blocks.add( block );
+    maxTime = Math.max( maxTime, block.maxTime );
+  }
+
+
+
+
+  /**
+   * Append the points of a chunk as a new block.
+   */
+  synchronized void append( String field, Chunk chunk ) throws IOException {
+    if ( sealed ) {
+      throw new IOException( "Segment " + file + " is closed" );
+    }
+    if ( channel == null ) {
+      raf = new RandomAccessFile( file, "rw" );
+      channel = raf.getChannel();
+    }
+
+    byte[] name = field.getBytes( "UTF-8" );
+    byte[] payload = chunk.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update( payload );
+
+    ByteBuffer buffer = ByteBuffer.allocate( FIXED_HEADER + name.length + payload.length );
+    buffer.putInt( MAGIC );
+    buffer.putShort( (short)name.length );
+    buffer.put( name );
+    buffer.putInt( chunk.getCount() );
+    buffer.putLong( chunk.getMinTime() );
+    buffer.putLong( chunk.getMaxTime() );
+    buffer.putInt( payload.length );
+    buffer.putInt( (int)crc.getValue() );
+    buffer.put( payload );
+    buffer.flip();
+
+    long position = size;
+    while ( buffer.hasRemaining() ) {
+      position += channel.write( buffer, position );
+    }
+
+    Block block = new Block();
+    block.field = field;
+    block.count = chunk.getCount();
+    block.minTime = chunk.getMinTime();
+    block.maxTime = chunk.getMaxTime();
+    block.length = payload.length;
+    block.crc = (int)crc.getValue();
+    block.offset = (int)( size + FIXED_HEADER + name.length );
+    block.verified = true;
+    index( block );
+    size = position;
+  }
+
+
+
+
+  /**
+   * Pass the points of the field within the range to the visitor.
+   */
+  synchronized void read( String field, long from, long to, Chunk.PointVisitor visitor ) throws IOException {
+    if ( ( maxTime < from ) || ( size == 0 ) ) {
+      return;
+    }
+
+    try {
+      scan( field, from, to, visitor );
+    }
+    finally {
+      if ( sealed ) {
+        // the mapping is unmapped once collected
+        map = null;
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Decode the blocks of the field within the range through the map of the
+   * file, mapping it first if it is not mapped or has grown.
+   */
+  private void scan( String field, long from, long to, Chunk.PointVisitor visitor ) throws IOException {
+    if ( ( map == null ) || ( map.capacity() < size ) ) {
+      RandomAccessFile in = new RandomAccessFile( file, "r" );
+      try {
+        map = in.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, size );
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    for ( int x = 0; x < blocks.size(); x++ ) {
+      Block block = blocks.get( x );
+      if ( !block.field.equals( field ) || ( block.maxTime < from ) || ( block.minTime >= to ) ) {
+        continue;
+      }
+
+      if ( !block.verified ) {
+        CRC32 crc = new CRC32();
+        for ( int y = 0; y < block.length; y++ ) {
+          crc.update( map.get( block.offset + y ) );
+        }
+        if ( (int)crc.getValue() != block.crc ) {
+          Log.error( "Skipping corrupt block of '" + field + "' at " + block.offset + " in " + file );
+          continue;
+        }
+        block.verified = true;
+      }
+
+      Chunk.decode( map, block.offset, block.count, from, to, visitor );
+    }
+  }
+
+
+
+
+  /**
+   * @return the names of the fields with blocks in this segment
+   */
+  synchronized List<String> getFields() {
+    List<String> retval = new ArrayList<String>();
+    for ( int x = 0; x < blocks.size(); x++ ) {
+      if ( !retval.contains( blocks.get( x ).field ) ) {
+        retval.add( blocks.get( x ).field );
+      }
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * @return the latest time of any point in the segment
+   */
+  synchronized long getMaxTime() {
+    return maxTime;
+  }
+
+
+
+
+  /**
+   * @return the number of bytes in the segment
+   */
+  synchronized long getSize() {
+    return size;
+  }
+
+
+
+
+  /**
+   * @return true if the segment is still being appended to
+   */
+  synchronized boolean isActive() {
+    return !sealed;
+  }
+
+
+
+
+  /**
+   * @return true if the file is open for appending
+   */
+  synchronized boolean isOpen() {
+    return channel != null;
+  }
+
+
+
+
+  /**
+   * @return true if the segment holds a memory map of its file
+   */
+  synchronized boolean isMapped() {
+    return map != null;
+  }
+
+
+
+
+  /**
+   * Force the appended blocks to disk and close the file and its map; the
+   * next append opens the file again.
+   */
+  synchronized void release() throws IOException {
+    map = null;
+    if ( channel != null ) {
+      try {
+        channel.force( true );
+      }
+      finally {
+        raf.close();
+        channel = null;
+        raf = null;
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Force the appended blocks to disk and stop appending.
+   */
+  synchronized void close() throws IOException {
+    sealed = true;
+    release();
+  }
+
+
+
+
+  /**
+   * Close and remove the segment file.
+   *
+   * @return true if the file was deleted
+   */
+  synchronized boolean delete() {
+    try {
+      close();
+    } catch ( IOException e ) {
+      // deleting it anyway
+    }
+    map = null;
+    blocks.clear();
+    return file.delete();
+  }
+
+  /**
+   * The location and extent of one block.
+   */
+  private static final class Block {
+    String field;
+    int count;
+    long minTime;
+    long maxTime;
+    int offset;
+    int length;
+    int crc;
+    boolean verified = false;
+  }
+
+}
@@ -0,0 +1,752 @@
+/*
+ * Copyright (c) 2015 Stephan D. Cote' - All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the MIT License which accompanies this distribution, and is
+ * available at http://creativecommons.org/licenses/MIT/
+ *
+ * Contributors:
+ *   Stephan D. Cote
+ *      - Initial concept and initial implementation
+ */
+package coyote.monitor.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import coyote.dataframe.DataField;
+import coyote.dataframe.DataFrame;
+import coyote.loader.log.Log;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.SampleHistory;
+import coyote.monitor.SampleListener;
+
+
+/**
+ * An append-only store of the numeric fields of samples on local disk.
+ *
+ * <p>Each collector has its own directory of segment files. Points are
+ * gathered in memory for each field until a block is full (or has been idle
+ * for the flush interval) and then appended to the collector's active
+ * segment compressed with delta-of-delta timestamps and XORed values (see
+ * {@link Chunk}); regular samples of slowly changing values take a few bits a
+ * point. Segments are rolled over once they span the segment duration, and a
+ * background thread deletes segments whose newest point is older than the
+ * retention period.</p>
+ *
+ * <p>Segment files are only held open while blocks are written to them,
+ * until the next background pass. Reads memory-map the segment files and
+ * decode only the blocks of the requested field which overlap the requested
+ * range, followed by the points still in memory; closed segments drop their
+ * map once read. {@link #query(String, String, long, long, long, Aggregate)}
+ * downsamples the result into fixed intervals.</p>
+ *
+ * <p>Points held in memory are lost if the process dies; at most one block
+ * per field or the flush interval of data, whichever is less.</p>
+ */
+public class TimeSeriesStore {
+
+  /** The default number of milliseconds (1 hour) each segment spans */
+  public static final long DEFAULT_SEGMENT_DURATION = 60L * 60L * 1000L;
+
+  /** The default number of milliseconds (7 days) points are kept, 0 forever */
+  public static final long DEFAULT_RETENTION = 7L * 24L * 60L * 60L * 1000L;
+
+  /** The default number of points (120) in each block */
+  public static final int DEFAULT_BLOCK_SIZE = 120;
+
+  /** The default number of milliseconds (60 seconds) points wait in memory */
+  public static final long DEFAULT_FLUSH_INTERVAL = 60000;
+
+  /** Milliseconds between runs of the background maintenance */
+  private static final long MAINTENANCE_INTERVAL = 1000;
+
+  private final File directory;
+
+  private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
+
+  /** The listener added to the cache of each attached collector */
+  private final ConcurrentHashMap<String, SampleListener> listeners = new ConcurrentHashMap<String, SampleListener>();
+
+  private volatile long segmentDuration = DEFAULT_SEGMENT_DURATION;
+
+  private volatile long retention = DEFAULT_RETENTION;
+
+  private volatile int blockSize = DEFAULT_BLOCK_SIZE;
+
+  private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+  private volatile Thread maintainer = null;
+
+
+
+
+  /**
+   * @param directory the directory holding the store
+   */
+  public TimeSeriesStore( File directory ) {
+    this.directory = directory;
+  }
+
+
+
+
+  /**
+   * Open the segments already in the directory and start the background
+   * rollover and retention.
+   *
+   * @throws IOException if the directory cannot be created or read
+   */
+  public synchronized void open() throws IOException {
+    if ( maintainer != null ) {
+      return;
+    }
+
+    if ( !directory.isDirectory() && !directory.mkdirs() ) {
+      throw new IOException( "Could not create store directory " + directory );
+    }
+
+    File[] dirs = directory.listFiles();
+    for ( int x = 0; ( dirs != null ) && ( x < dirs.length ); x++ ) {
+      if ( dirs[x].isDirectory() ) {
+        Partition partition = new Partition( dirs[x] );
+        partition.load();
+        partitions.put( dirs[x].getName(), partition );
+      }
+    }
+
+    Thread thread = new Thread( new Runnable() {
+      public void run() {
+        maintain();
+      }
+    }, "TimeSeriesStore" );
+    thread.setDaemon( true );
+    maintainer = thread;
+    thread.start();
+  }
+
+
+
+
+  /**
+   * Write everything held in memory, close the segments and stop the
+   * background thread.
+   */
+  public void close() throws IOException {
+    Thread thread;
+    synchronized( this ) {
+      thread = maintainer;
+      maintainer = null;
+    }
+    if ( thread != null ) {
+      thread.interrupt();
+      try {
+        thread.join( 5000 );
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    IOException failure = null;
+    for ( Partition partition : partitions.values() ) {
+      try {
+        partition.roll();
+      } catch ( IOException e ) {
+        failure = e;
+      }
+    }
+    if ( failure != null ) {
+      throw failure;
+    }
+  }
+
+
+
+
+  /**
+   * Write every sample placed in the cache from now on.
+   *
+   * <p>A sample which cannot be written is logged and dropped so the
+   * collector is not held up by the store.</p>
+   *
+   * @param name the name of the collector, unique in the monitor
+   * @param cache the cache of the collector
+   */
+  public void attach( final String name, CollectorCache cache ) {
+    SampleListener listener = new SampleListener() {
+      public void sampleTaken( CollectorCache source, long time, DataFrame sample ) {
+        try {
+          write( name, time, sample );
+        } catch ( IOException e ) {
+          Log.error( "Could not write the sample of " + name + ": " + e.getMessage() );
+        }
+      }
+    };
+    listeners.put( name, listener );
+    cache.addSampleListener( listener );
+  }
+
+
+
+
+  /**
+   * Stop writing the samples placed in the cache.
+   *
+   * @param name the name of the collector
+   * @param cache the cache it was attached with
+   */
+  public void detach( String name, CollectorCache cache ) {
+    SampleListener listener = listeners.remove( name );
+    if ( listener != null ) {
+      cache.removeSampleListener( listener );
+    }
+  }
+
+
+
+
+  /**
+   * Record the numeric (and boolean, as 1 or 0) top-level fields of a
+   * sample.
+   *
+   * @param collector the name of the collector which took the sample
+   * @param time the time of the sample in epoch milliseconds
+   * @param sample the sample
+   */
+  public void write( String collector, long time, DataFrame sample ) throws IOException {
+    Partition partition = getPartition( collector, true );
+    synchronized( partition ) {
+      for ( int x = 0; x < sample.getFieldCount(); x++ ) {
+        DataField field = sample.getField( x );
+        Object value = field.getObjectValue();
+        if ( field.getName() == null ) {
+          continue;
+        }
+        if ( value instanceof Number ) {
+          partition.add( field.getName(), time, ( (Number)value ).doubleValue() );
+        } else if ( value instanceof Boolean ) {
+          partition.add( field.getName(), time, ( (Boolean)value ).booleanValue() ? 1D : 0D );
+        }
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Record one value.
+   *
+   * @param collector the name of the collector
+   * @param field the name of the field
+   * @param time the time of the value in epoch milliseconds
+   * @param value the value
+   */
+  public void write( String collector, String field, long time, double value ) throws IOException {
+    Partition partition = getPartition( collector, true );
+    synchronized( partition ) {
+      partition.add( field, time, value );
+    }
+  }
+
+
+
+
+  /**
+   * Return the points of a field in a range of time.
+   *
+   * @param collector the name of the collector
+   * @param field the name of the field
+   * @param from the start of the range, inclusive
+   * @param to the end of the range, exclusive
+   *
+   * @return the points in the range ordered by time, possibly empty
+   */
+  public SampleHistory.Series query( String collector, String field, long from, long to ) throws IOException {
+    final PointList points = new PointList();
+    Partition partition = getPartition( collector, false );
+    if ( partition != null ) {
+      synchronized( partition ) {
+        partition.read( field, from, to, points );
+      }
+    }
+    return points.toSeries( field );
+  }
+
+
+
+
+  /**
+   * Return a field in a range of time downsampled into fixed intervals.
+   *
+   * <p>Intervals are aligned to multiples of the step since the epoch and
+   * each is reported at its start time. Intervals without points are
+   * omitted.</p>
+   *
+   * @param collector the name of the collector
+   * @param field the name of the field
+   * @param from the start of the range, inclusive
+   * @param to the end of the range, exclusive
+   * @param step the length of each interval in milliseconds
+   * @param aggregate how the points in each interval are combined
+   *
+   * @return one value for each interval with points, ordered by time
+   */
+  public SampleHistory.Series query( String collector, String field, long from, long to, long step, Aggregate aggregate ) throws IOException {
+    SampleHistory.Series raw = query( collector, field, from, to );
+    if ( step <= 0 ) {
+      return raw;
+    }
+
+    PointList buckets = new PointList();
+    int x = 0;
+    while ( x < raw.size() ) {
+      long bucket = raw.getTimestamp( x ) - ( ( ( raw.getTimestamp( x ) % step ) + step ) % step );
+      double sum = 0;
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      double first = raw.getValue( x );
+      double last = first;
+      int count = 0;
+      while ( ( x < raw.size() ) && ( raw.getTimestamp( x ) < bucket + step ) ) {
+        double value = raw.getValue( x++ );
+        sum += value;
+        min = Math.min( min, value );
+        max = Math.max( max, value );
+        last = value;
+        count++;
+      }
+      buckets.visit( bucket, aggregate.apply( sum, min, max, count, first, last ) );
+    }
+    return buckets.toSeries( field );
+  }
+
+
+
+
+  /**
+   * @return the names of the collectors in the store
+   */
+  public String[] getCollectors() {
+    List<String> retval = new ArrayList<String>( partitions.keySet() );
+    Collections.sort( retval );
+    return retval.toArray( new String[retval.size()] );
+  }
+
+
+
+
+  /**
+   * @param collector the name of the collector
+   *
+   * @return the names of the fields stored for the collector
+   */
+  public String[] getFields( String collector ) {
+    Partition partition = getPartition( collector, false );
+    if ( partition == null ) {
+      return new String[0];
+    }
+    synchronized( partition ) {
+      List<String> retval = partition.getFields();
+      return retval.toArray( new String[retval.size()] );
+    }
+  }
+
+
+
+
+  /**
+   * Write the points held in memory for every collector to their segments.
+   */
+  public void flush() throws IOException {
+    for ( Partition partition : partitions.values() ) {
+      synchronized( partition ) {
+        partition.flush( Long.MAX_VALUE );
+      }
+    }
+  }
+
+
+
+
+  /**
+   * Roll over the segments which span the segment duration, write idle
+   * blocks, close the files written to and delete segments past the
+   * retention period.
+   */
+  void maintain() {
+    while ( maintainer == Thread.currentThread() ) {
+      long now = System.currentTimeMillis();
+      for ( Partition partition : partitions.values() ) {
+        try {
+          synchronized( partition ) {
+            partition.flush( now - flushInterval );
+            if ( ( partition.active != null ) && ( now - partition.active.opened >= segmentDuration ) ) {
+              partition.roll();
+            }
+            if ( partition.active != null ) {
+              // the file is opened again by the next block written
+              partition.active.release();
+            }
+            if ( retention > 0 ) {
+              partition.expire( now - retention );
+            }
+          }
+        } catch ( IOException e ) {
+          Log.error( "Time series maintenance of " + partition.directory + " failed: " + e.getMessage() );
+        }
+      }
+
+      try {
+        Thread.sleep( MAINTENANCE_INTERVAL );
+      } catch ( InterruptedException e ) {
+        break;
+      }
+    }
+  }
+
+
+
+
+  private Partition getPartition( String collector, boolean create ) {
+    String name = toDirectoryName( collector );
+    Partition retval = partitions.get( name );
+    if ( ( retval == null ) && create ) {
+      Partition partition = new Partition( new File( directory, name ) );
+      retval = partitions.putIfAbsent( name, partition );
+      if ( retval == null ) {
+        retval = partition;
+      }
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * @return the name with every character unsafe in a file name replaced
+   */
+  static String toDirectoryName( String collector ) {
+    StringBuffer retval = new StringBuffer();
+    String name = ( collector == null ) ? "" : collector;
+    for ( int x = 0; x < name.length(); x++ ) {
+      char c = name.charAt( x );
+      boolean safe = ( ( c >= 'a' ) && ( c <= 'z' ) ) || ( ( c >= 'A' ) && ( c <= 'Z' ) ) || ( ( c >= '0' ) && ( c <= '9' ) ) || ( c == '-' ) || ( c == '_' ) || ( ( c == '.' ) && ( x > 0 ) );
+      retval.append( safe ? c : '_' );
+    }
+    return ( retval.length() == 0 ) ? "_" : retval.toString();
+  }
+
+
+
+
+  /**
+   * @param millis milliseconds of data in each segment before it is rolled
+   *        over
+   */
+  public void setSegmentDuration( long millis ) {
+    segmentDuration = Math.max( 1, millis );
+  }
+
+
+
+
+  /**
+   * @return milliseconds of data in each segment
+   */
+  public long getSegmentDuration() {
+    return segmentDuration;
+  }
+
+
+
+
+  /**
+   * @param millis milliseconds points are kept, 0 to keep them forever
+   */
+  public void setRetention( long millis ) {
+    retention = Math.max( 0, millis );
+  }
+
+
+
+
+  /**
+   * @return milliseconds points are kept, 0 if kept forever
+   */
+  public long getRetention() {
+    return retention;
+  }
+
+
+
+
+  /**
+   * @param points the number of points of a field compressed into each block
+   */
+  public void setBlockSize( int points ) {
+    blockSize = Math.max( 2, points );
+  }
+
+
+
+
+  /**
+   * @return the number of points in each block
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+
+
+
+  /**
+   * @param millis the longest points wait in memory before being written
+   */
+  public void setFlushInterval( long millis ) {
+    flushInterval = Math.max( 0, millis );
+  }
+
+
+
+
+  /**
+   * @return the longest points wait in memory before being written
+   */
+  public long getFlushInterval() {
+    return flushInterval;
+  }
+
+  /**
+   * The segments and the unwritten points of one collector. All access is
+   * synchronized on the partition.
+   */
+  private final class Partition {
+    final File directory;
+
+    /** The closed segments, oldest first */
+    final List<Segment> segments = new ArrayList<Segment>();
+
+    /** The segment being appended to, null until the next write */
+    Segment active = null;
+
+    /** The points of each field not yet written */
+    final Map<String, Chunk> chunks = new HashMap<String, Chunk>();
+
+
+
+
+    Partition( File directory ) {
+      this.directory = directory;
+    }
+
+
+
+
+    void load() throws IOException {
+      File[] files = directory.listFiles();
+      for ( int x = 0; ( files != null ) && ( x < files.length ); x++ ) {
+        if ( files[x].getName().endsWith( Segment.SUFFIX ) ) {
+          try {
+            segments.add( Segment.open( files[x] ) );
+          } catch ( NumberFormatException e ) {
+            Log.warn( "Ignoring unexpected file " + files[x] );
+          }
+        }
+      }
+      Collections.sort( segments, new Comparator<Segment>() {
+        public int compare( Segment a, Segment b ) {
+          return ( a.start < b.start ) ? -1 : ( ( a.start == b.start ) ? 0 : 1 );
+        }
+      } );
+    }
+
+
+
+
+    void add( String field, long time, double value ) throws IOException {
+      if ( ( active != null ) && ( time - active.start >= segmentDuration ) ) {
+        roll();
+      }
+      if ( active == null ) {
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+          throw new IOException( "Could not create " + directory );
+        }
+        active = Segment.create( directory, time );
+      }
+
+      Chunk chunk = chunks.get( field );
+      if ( chunk == null ) {
+        chunk = new Chunk( blockSize );
+        chunks.put( field, chunk );
+      }
+      chunk.add( time, value );
+
+      if ( chunk.getCount() >= blockSize ) {
+        active.append( field, chunk );
+        chunks.remove( field );
+      }
+    }
+
+
+
+
+    /**
+     * Write the chunks started before the given time.
+     */
+    void flush( long before ) throws IOException {
+      if ( active == null ) {
+        return;
+      }
+      for ( Iterator<Map.Entry<String, Chunk>> it = chunks.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<String, Chunk> entry = it.next();
+        if ( entry.getValue().created < before ) {
+          active.append( entry.getKey(), entry.getValue() );
+          it.remove();
+        }
+      }
+    }
+
+
+
+
+    /**
+     * Write all the chunks and close the active segment.
+     */
+    void roll() throws IOException {
+      if ( active != null ) {
+        flush( Long.MAX_VALUE );
+        active.close();
+        segments.add( active );
+        active = null;
+      }
+    }
+
+
+
+
+    /**
+     * Delete the closed segments with no points at or after the given time.
+     */
+    void expire( long before ) {
+      for ( Iterator<Segment> it = segments.iterator(); it.hasNext(); ) {
+        Segment segment = it.next();
+        if ( segment.getMaxTime() < before ) {
+          if ( !segment.delete() ) {
+            Log.warn( "Could not delete expired segment " + segment.file );
+          }
+          it.remove();
+        }
+      }
+    }
+
+
+
+
+    void read( String field, long from, long to, PointList points ) throws IOException {
+      for ( int x = 0; x < segments.size(); x++ ) {
+        segments.get( x ).read( field, from, to, points );
+      }
+      if ( active != null ) {
+        active.read( field, from, to, points );
+      }
+      Chunk chunk = chunks.get( field );
+      if ( chunk != null ) {
+        Chunk.decode( ByteBuffer.wrap( chunk.toByteArray() ), 0, chunk.getCount(), from, to, points );
+      }
+    }
+
+
+
+
+    List<String> getFields() {
+      List<String> retval = new ArrayList<String>();
+      List<Segment> all = new ArrayList<Segment>( segments );
+      if ( active != null ) {
+        all.add( active );
+      }
+      for ( int x = 0; x < all.size(); x++ ) {
+        List<String> fields = all.get( x ).getFields();
+        for ( int y = 0; y < fields.size(); y++ ) {
+          if ( !retval.contains( fields.get( y ) ) ) {
+            retval.add( fields.get( y ) );
+          }
+        }
+      }
+      for ( String field : chunks.keySet() ) {
+        if ( !retval.contains( field ) ) {
+          retval.add( field );
+        }
+      }
+      Collections.sort( retval );
+      return retval;
+    }
+  }
+
+  /**
+   * Collects decoded points, sorting them by time if they arrived out of
+   * order.
+   */
+  private static final class PointList implements Chunk.PointVisitor {
+    long[] times = new long[64];
+    double[] values = new double[64];
+    int size = 0;
+    boolean ordered = true;
+
+
+
+
+    public void visit( long time, double value ) {
+      if ( size == times.length ) {
+        times = Arrays.copyOf( times, size * 2 );
+        values = Arrays.copyOf( values, size * 2 );
+      }
+      if ( ( size > 0 ) && ( time < times[size - 1] ) ) {
+        ordered = false;
+      }
+      times[size] = time;
+      values[size] = value;
+      size++;
+    }
+
+
+
+
+    SampleHistory.Series toSeries( String field ) {
+      long[] t = Arrays.copyOf( times, size );
+      double[] v = Arrays.copyOf( values, size );
+      if ( !ordered ) {
+        Integer[] order = new Integer[size];
+        for ( int x = 0; x < size; x++ ) {
+          order[x] = x;
+        }
+        final long[] keys = t;
+        Arrays.sort( order, new Comparator<Integer>() {
+          public int compare( Integer a, Integer b ) {
+            return ( keys[a] < keys[b] ) ? -1 : ( ( keys[a] == keys[b] ) ? 0 : 1 );
+          }
+        } );
+        t = new long[size];
+        v = new double[size];
+        for ( int x = 0; x < size; x++ ) {
+          t[x] = times[order[x]];
+          v[x] = values[order[x]];
+        }
+      }
+      return new SampleHistory.Series( field, t, v );
+    }
+  }
+
+}
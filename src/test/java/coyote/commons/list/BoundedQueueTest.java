@@ -0,0 +1,114 @@
+package coyote.commons.list;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class BoundedQueueTest {
+
+  @Test
+  public void testOverflow() {
+    BoundedQueue<Integer> queue = new BoundedQueue<Integer>( 4, BoundedQueue.Overflow.DROP_NEWEST );
+    for ( int x = 0; x < 6; x++ ) {
+      queue.offer( x );
+    }
+    assertFalse( queue.offer( 6 ) );
+    assertEquals( 4, queue.size() );
+    assertEquals( 3, queue.getDroppedCount() );
+    assertEquals( Integer.valueOf( 0 ), queue.poll() );
+
+    queue.clear();
+    queue.setOverflow( BoundedQueue.Overflow.DROP_OLDEST );
+    for ( int x = 0; x < 6; x++ ) {
+      assertTrue( queue.offer( x ) );
+    }
+    List<Integer> drained = new ArrayList<Integer>();
+    assertEquals( 3, queue.drainTo( drained, 3 ) );
+    assertEquals( Integer.valueOf( 2 ), drained.get( 0 ) );
+    assertEquals( Integer.valueOf( 4 ), drained.get( 2 ) );
+    assertEquals( Integer.valueOf( 5 ), queue.poll() );
+    assertNull( queue.poll() );
+  }
+
+
+
+
+  @Test
+  public void testEvicted() {
+    BoundedQueue<Integer> queue = new BoundedQueue<Integer>( 2 );
+    List<Integer> evicted = new ArrayList<Integer>();
+    assertTrue( queue.offer( 0, evicted ) );
+    assertTrue( queue.offer( 1, evicted ) );
+    assertTrue( evicted.isEmpty() );
+
+    // the oldest element is handed back as it makes room
+    assertTrue( queue.offer( 2, evicted ) );
+    assertEquals( 1, evicted.size() );
+    assertEquals( Integer.valueOf( 0 ), evicted.get( 0 ) );
+
+    // a discarded new element is not handed back
+    queue.setOverflow( BoundedQueue.Overflow.DROP_NEWEST );
+    assertFalse( queue.offer( 3, evicted ) );
+    assertEquals( 1, evicted.size() );
+    assertEquals( Integer.valueOf( 1 ), queue.poll() );
+    assertEquals( Integer.valueOf( 2 ), queue.poll() );
+  }
+
+
+
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    final int producers = 4;
+    final int each = 50000;
+    final BoundedQueue<Integer> queue = new BoundedQueue<Integer>( 1024, BoundedQueue.Overflow.DROP_NEWEST );
+    Thread[] threads = new Thread[producers];
+    for ( int x = 0; x < producers; x++ ) {
+      final int id = x;
+      threads[x] = new Thread( new Runnable() {
+        public void run() {
+          for ( int y = 0; y < each; y++ ) {
+            while ( !queue.offer( ( id * each ) + y ) ) {
+              Thread.yield();
+            }
+          }
+        }
+      } );
+      threads[x].start();
+    }
+
+    // every element arrives exactly once and in order for each producer
+    int[] last = new int[producers];
+    java.util.Arrays.fill( last, -1 );
+    List<Integer> batch = new ArrayList<Integer>();
+    int received = 0;
+    while ( received < producers * each ) {
+      batch.clear();
+      int count = queue.drainTo( batch, 256 );
+      for ( int x = 0; x < count; x++ ) {
+        int value = batch.get( x );
+        int producer = value / each;
+        assertTrue( value % each > last[producer] );
+        last[producer] = value % each;
+      }
+      received += count;
+      if ( count == 0 ) {
+        Thread.yield();
+      }
+    }
+
+    for ( int x = 0; x < producers; x++ ) {
+      threads[x].join();
+      assertEquals( each - 1, last[x] );
+    }
+    assertTrue( queue.isEmpty() );
+  }
+
+}
@@ -0,0 +1,156 @@
+package coyote.commons.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class HostResolverTest {
+
+  private long ttl;
+
+  private long negativeTtl;
+
+  private int maxSize;
+
+
+
+
+  @Before
+  public void setUp() {
+    ttl = HostResolver.getTimeToLive();
+    negativeTtl = HostResolver.getNegativeTimeToLive();
+    maxSize = HostResolver.getMaxSize();
+    HostResolver.clear();
+  }
+
+
+
+
+  @After
+  public void tearDown() {
+    HostResolver.setTimeToLive( ttl );
+    HostResolver.setNegativeTimeToLive( negativeTtl );
+    HostResolver.setMaxSize( maxSize );
+    HostResolver.clear();
+  }
+
+
+
+
+  @Test
+  public void testTimeToLive() throws Exception {
+    HostResolver.setTimeToLive( 300 );
+
+    long lookups = HostResolver.getLookupCount();
+    long hits = HostResolver.getHitCount();
+    InetAddress[] addresses = HostResolver.resolve( "localhost" );
+    assertTrue( addresses.length > 0 );
+    assertEquals( lookups + 1, HostResolver.getLookupCount() );
+    assertTrue( HostResolver.getLookupNanos( "localhost" ) >= 0 );
+
+    // answered from the cache, whatever the case of the name
+    HostResolver.resolve( "LocalHost" );
+    assertEquals( lookups + 1, HostResolver.getLookupCount() );
+    assertEquals( hits + 1, HostResolver.getHitCount() );
+
+    // looked up again once the answer expires
+    Thread.sleep( 350 );
+    HostResolver.resolve( "localhost" );
+    assertEquals( lookups + 2, HostResolver.getLookupCount() );
+  }
+
+
+
+
+  @Test
+  public void testMaxSize() throws Exception {
+    HostResolver.setMaxSize( 8 );
+
+    HostResolver.resolve( "127.0.0.1" );
+    for ( int x = 2; x < 40; x++ ) {
+      HostResolver.resolve( "127.0.0." + x );
+      // keep the first host in use
+      HostResolver.resolve( "127.0.0.1" );
+      assertTrue( "cache grew to " + HostResolver.size(), HostResolver.size() <= 8 );
+    }
+
+    // the host in use survived every trim, the others were dropped
+    long lookups = HostResolver.getLookupCount();
+    HostResolver.resolve( "127.0.0.1" );
+    assertEquals( lookups, HostResolver.getLookupCount() );
+    HostResolver.resolve( "127.0.0.2" );
+    assertEquals( lookups + 1, HostResolver.getLookupCount() );
+  }
+
+
+
+
+  @Test
+  public void testNegativeCache() throws Exception {
+    HostResolver.setNegativeTimeToLive( 300 );
+
+    long lookups = HostResolver.getLookupCount();
+    for ( int x = 0; x < 3; x++ ) {
+      try {
+        HostResolver.resolve( "nosuchhost.invalid" );
+        assertTrue( "resolved an invalid name", false );
+      } catch ( UnknownHostException e ) {
+        // expected
+      }
+    }
+
+    // the failure is remembered rather than asked again
+    assertEquals( lookups + 1, HostResolver.getLookupCount() );
+
+    Thread.sleep( 350 );
+    try {
+      HostResolver.resolve( "nosuchhost.invalid" );
+      assertTrue( "resolved an invalid name", false );
+    } catch ( UnknownHostException e ) {
+      // expected
+    }
+    assertEquals( lookups + 2, HostResolver.getLookupCount() );
+  }
+
+
+
+
+  @Test
+  public void testListener() throws Exception {
+    final CountDownLatch done = new CountDownLatch( 2 );
+    final InetAddress[][] resolved = new InetAddress[1][];
+    final UnknownHostException[] failed = new UnknownHostException[1];
+
+    IResolverListener listener = new IResolverListener() {
+      public void onResolved( String host, InetAddress[] addresses ) {
+        resolved[0] = addresses;
+        done.countDown();
+      }
+
+
+
+
+      public void onFailure( String host, UnknownHostException error ) {
+        failed[0] = error;
+        done.countDown();
+      }
+    };
+
+    HostResolver.resolve( "localhost", listener );
+    HostResolver.resolve( "nosuchhost.invalid", listener );
+    assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+    assertNotNull( resolved[0] );
+    assertNotNull( failed[0] );
+  }
+
+}
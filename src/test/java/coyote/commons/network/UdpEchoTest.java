@@ -0,0 +1,102 @@
+package coyote.commons.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+
+public class UdpEchoTest {
+
+  /**
+   * Start a thread echoing datagrams, dropping every one whose count is a
+   * multiple of the given number (0 drops none).
+   */
+  private static DatagramSocket responder( final int dropEvery ) throws Exception {
+    final DatagramSocket socket = new DatagramSocket( 0, InetAddress.getByName( "127.0.0.1" ) );
+    Thread thread = new Thread( new Runnable() {
+      public void run() {
+        byte[] buffer = new byte[2048];
+        int count = 0;
+        try {
+          while ( true ) {
+            DatagramPacket packet = new DatagramPacket( buffer, buffer.length );
+            socket.receive( packet );
+            if ( ( dropEvery == 0 ) || ( ( ++count % dropEvery ) != 0 ) ) {
+              socket.send( packet );
+            }
+          }
+        } catch ( Exception e ) {
+          // socket closed
+        }
+      }
+    } );
+    thread.setDaemon( true );
+    thread.start();
+    return socket;
+  }
+
+
+
+
+  @Test
+  public void testPing() throws Exception {
+    DatagramSocket clean = responder( 0 );
+    DatagramSocket lossy = responder( 2 );
+    try {
+      UdpEcho echo = new UdpEcho();
+      echo.setCount( 10 );
+      echo.setInterval( 5 );
+      echo.setTimeout( 500 );
+
+      UdpEcho.Result[] results = echo.ping( new InetSocketAddress[]{ (InetSocketAddress)clean.getLocalSocketAddress(), (InetSocketAddress)lossy.getLocalSocketAddress() } );
+
+      assertEquals( 10, results[0].getSent() );
+      assertEquals( 10, results[0].getReceived() );
+      assertEquals( 0F, results[0].getLoss(), 0.001F );
+      assertTrue( results[0].getMinimum() > 0 );
+      assertTrue( results[0].getMinimum() <= results[0].getPercentile( 50 ) );
+      assertTrue( results[0].getPercentile( 50 ) <= results[0].getPercentile( 99 ) );
+      assertEquals( results[0].getMaximum(), results[0].getPercentile( 99 ) );
+      assertTrue( results[0].getJitter() >= 0 );
+
+      assertEquals( 10, results[1].getSent() );
+      assertEquals( 5, results[1].getReceived() );
+      assertEquals( 50F, results[1].getLoss(), 0.001F );
+    }
+    finally {
+      clean.close();
+      lossy.close();
+    }
+  }
+
+
+
+
+  @Test
+  public void testNoReplies() throws Exception {
+    DatagramSocket silent = new DatagramSocket( 0, InetAddress.getByName( "127.0.0.1" ) );
+    try {
+      UdpEcho echo = new UdpEcho();
+      echo.setCount( 3 );
+      echo.setInterval( 1 );
+      echo.setTimeout( 100 );
+
+      UdpEcho.Result[] results = echo.ping( new InetSocketAddress[]{ (InetSocketAddress)silent.getLocalSocketAddress() } );
+      assertEquals( 3, results[0].getSent() );
+      assertEquals( 0, results[0].getReceived() );
+      assertEquals( 100F, results[0].getLoss(), 0.001F );
+      assertEquals( -1, results[0].getAverage() );
+      assertEquals( -1, results[0].getJitter() );
+    }
+    finally {
+      silent.close();
+    }
+  }
+
+}
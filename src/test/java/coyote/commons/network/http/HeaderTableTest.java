@@ -0,0 +1,71 @@
+package coyote.commons.network.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Enumeration;
+
+import org.junit.Test;
+
+
+public class HeaderTableTest {
+
+  private static final String RAW = "Content-Type: text/html\r\n" + "content-length:   42  \r\n" + "X-Custom:value\r\n" + "Via: a\r\n" + "VIA: b\r\n" + "\r\n";
+
+
+
+
+  @Test
+  public void testReadHeaders() throws Exception {
+    HttpMessage msg = new HttpMessage();
+    int count = msg.readHeaders( new ByteArrayInputStream( RAW.getBytes( "ISO-8859-1" ) ) );
+
+    assertEquals( RAW.length(), count );
+    assertEquals( "text/html", msg.getHeader( "CONTENT-TYPE" ) );
+    assertEquals( 42, msg.getContentLength() );
+    assertEquals( "value", msg.getHeader( "x-custom" ) );
+    assertNull( msg.getHeader( "Missing" ) );
+
+    Enumeration via = msg.getHeaders( "via" );
+    assertEquals( "a", via.nextElement() );
+    assertEquals( "b", via.nextElement() );
+    assertTrue( !via.hasMoreElements() );
+  }
+
+
+
+
+  @Test
+  public void testSetAndWrite() throws Exception {
+    HttpMessage msg = new HttpMessage();
+    msg.addHeader( "Host", "localhost" );
+    msg.setHeader( "Connection", "Keep-Alive" );
+    msg.setHeader( "connection", "Close" );
+    msg.setHeader( "Host", "a-much-longer-host-name.example.com" );
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    msg.writeHeaders( out );
+    assertEquals( "Host: a-much-longer-host-name.example.com\r\nconnection: Close\r\n", out.toString( "ISO-8859-1" ) );
+
+    msg.clearHeaders();
+    assertNull( msg.getHeader( "Host" ) );
+    assertEquals( -1, msg.getContentLength() );
+  }
+
+
+
+
+  @Test
+  public void testBufferReuse() throws Exception {
+    HeaderTable table = new HeaderTable();
+    for ( int i = 0; i < 1000; i++ ) {
+      table.set( "Counter", Integer.toString( i ) );
+    }
+    assertEquals( 1, table.size() );
+    assertEquals( 999, table.getInt( "counter" ) );
+  }
+
+}
@@ -0,0 +1,132 @@
+package coyote.commons.network.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class HttpClientEngineTest {
+
+  private HttpClientEngine engine;
+
+  private ServerSocket server;
+
+
+
+
+  @Before
+  public void setUp() throws Exception {
+    engine = new HttpClientEngine( 1 );
+    server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+  }
+
+
+
+
+  @After
+  public void tearDown() throws Exception {
+    engine.shutdown();
+    server.close();
+  }
+
+
+
+
+  /**
+   * Answer one request with the given raw response, or hold the connection
+   * open without answering if it is null.
+   */
+  private void respond( final String response ) {
+    Thread thread = new Thread( new Runnable() {
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          InputStream in = socket.getInputStream();
+          int matched = 0;
+          while ( matched < 4 ) {
+            int ch = in.read();
+            if ( ch < 0 ) {
+              return;
+            }
+            matched = ( ch == ( ( ( matched % 2 ) == 0 ) ? '\r' : '\n' ) ) ? matched + 1 : ( ( ch == '\r' ) ? 1 : 0 );
+          }
+          if ( response != null ) {
+            OutputStream out = socket.getOutputStream();
+            out.write( response.getBytes( "ISO-8859-1" ) );
+            out.flush();
+          }
+          // the server closes when the test ends
+          while ( in.read() >= 0 ) {}
+        } catch ( Exception e ) {
+          // server closed
+        }
+      }
+    } );
+    thread.setDaemon( true );
+    thread.start();
+  }
+
+
+
+
+  private URI uri() {
+    return URI.create( "http://127.0.0.1:" + server.getLocalPort() + "/status" );
+  }
+
+
+
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    respond( "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello" );
+
+    HttpRequest request = new HttpRequest();
+    HttpResponse response = engine.send( request, uri(), 5000, null ).get( 5, TimeUnit.SECONDS );
+    assertEquals( 200, response.getStatusCode() );
+    assertEquals( "hello", new String( response.getBody(), "ISO-8859-1" ) );
+    assertTrue( response.getConnectionTime() >= 0 );
+    assertEquals( 0, engine.getInFlightCount() );
+  }
+
+
+
+
+  @Test
+  public void testChunked() throws Exception {
+    respond( "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n7;ext=1\r\n, world\r\n0\r\nX-Trailer: done\r\n\r\n" );
+
+    HttpResponse response = engine.send( new HttpRequest(), uri(), 5000, null ).get( 5, TimeUnit.SECONDS );
+    assertEquals( 200, response.getStatusCode() );
+    assertEquals( "hello, world", new String( response.getBody(), "ISO-8859-1" ) );
+  }
+
+
+
+
+  @Test
+  public void testTimeout() throws Exception {
+    respond( null );
+
+    long started = System.currentTimeMillis();
+    HttpResponse response = engine.send( new HttpRequest(), uri(), 300, null ).get( 5, TimeUnit.SECONDS );
+    long elapsed = System.currentTimeMillis() - started;
+
+    // connected but never answered is a client time-out
+    assertEquals( 408, response.getStatusCode() );
+    assertTrue( elapsed >= 250 );
+    assertTrue( elapsed < 3000 );
+    assertEquals( 0, engine.getInFlightCount() );
+  }
+
+}
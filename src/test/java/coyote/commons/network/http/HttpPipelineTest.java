@@ -0,0 +1,99 @@
+package coyote.commons.network.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class HttpPipelineTest {
+
+  private ServerSocket server;
+
+
+
+
+  @Before
+  public void setUp() throws Exception {
+    server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+  }
+
+
+
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+
+
+
+  /**
+   * Read the head of one request, false if the connection closed first.
+   */
+  private static boolean readHead( InputStream in ) throws IOException {
+    int matched = 0;
+    while ( matched < 4 ) {
+      int ch = in.read();
+      if ( ch < 0 ) {
+        return false;
+      }
+      matched = ( ch == ( ( ( matched % 2 ) == 0 ) ? '\r' : '\n' ) ) ? matched + 1 : ( ( ch == '\r' ) ? 1 : 0 );
+    }
+    return true;
+  }
+
+
+
+
+  @Test
+  public void testRetryClearsError() throws Exception {
+    // answers only the first request of each connection, then closes it
+    Thread thread = new Thread( new Runnable() {
+      public void run() {
+        try {
+          while ( true ) {
+            Socket socket = server.accept();
+            if ( readHead( socket.getInputStream() ) ) {
+              OutputStream out = socket.getOutputStream();
+              out.write( "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes( "ISO-8859-1" ) );
+              out.flush();
+            }
+            socket.close();
+          }
+        } catch ( Exception e ) {
+          // server closed
+        }
+      }
+    } );
+    thread.setDaemon( true );
+    thread.start();
+
+    HttpPipeline pipeline = new HttpPipeline( URI.create( "http://127.0.0.1:" + server.getLocalPort() + "/" ) );
+    pipeline.setTimeout( 5000 );
+    pipeline.add( new HttpRequest(), "/one" );
+    pipeline.add( new HttpRequest(), "/two" );
+    HttpResponse[] responses = pipeline.send();
+
+    // the second request failed on the reused connection and was answered
+    // on a fresh one, so it has a response and no error
+    assertEquals( 2, pipeline.getConnectionCount() );
+    assertNotNull( responses[0] );
+    assertNotNull( responses[1] );
+    assertNull( pipeline.getErrors()[0] );
+    assertNull( pipeline.getErrors()[1] );
+  }
+
+}
@@ -0,0 +1,65 @@
+package coyote.commons.network.socket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A listening socket whose accept queue is full, so further connection
+ * attempts get no answer at all, just like an address which is blackholed.
+ */
+public final class Blackhole {
+
+  private final ServerSocket server;
+
+  private final List<Socket> fillers = new ArrayList<Socket>();
+
+
+
+
+  /**
+   * @param address the local address to listen on
+   * @param port the port to listen on, 0 for any free port
+   */
+  public Blackhole( InetAddress address, int port ) throws IOException {
+    server = new ServerSocket( port, 1, address );
+
+    // connect without accepting until the queue stops answering
+    for ( int x = 0; x < 16; x++ ) {
+      Socket socket = new Socket();
+      try {
+        socket.connect( new InetSocketAddress( address, server.getLocalPort() ), 200 );
+        fillers.add( socket );
+      } catch ( SocketTimeoutException e ) {
+        socket.close();
+        return;
+      }
+    }
+    close();
+    throw new IOException( "Could not fill the accept queue of " + server );
+  }
+
+
+
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+
+
+
+  public void close() throws IOException {
+    for ( Socket socket : fillers ) {
+      socket.close();
+    }
+    server.close();
+  }
+
+}
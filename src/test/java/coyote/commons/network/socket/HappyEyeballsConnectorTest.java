@@ -0,0 +1,125 @@
+package coyote.commons.network.socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class HappyEyeballsConnectorTest {
+
+  private InetAddress bad;
+
+  private InetAddress good;
+
+  private Blackhole blackhole;
+
+  private ServerSocket server;
+
+
+
+
+  @Before
+  public void setUp() throws Exception {
+    bad = InetAddress.getByName( "127.0.0.1" );
+    good = InetAddress.getByName( "127.0.0.2" );
+    blackhole = new Blackhole( bad, 0 );
+    server = new ServerSocket( blackhole.getPort(), 50, good );
+  }
+
+
+
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    blackhole.close();
+  }
+
+
+
+
+  @Test
+  public void testBlackholedFirst() throws Exception {
+    HappyEyeballsConnector connector = new HappyEyeballsConnector( 100, 5000 );
+
+    long started = System.currentTimeMillis();
+    Socket socket = connector.connect( new InetAddress[] { bad, good }, server.getLocalPort() );
+    long elapsed = System.currentTimeMillis() - started;
+    try {
+      // the blackholed address costs the stagger, not the time-out
+      assertEquals( good, socket.getInetAddress() );
+      assertTrue( socket.isConnected() );
+      assertTrue( elapsed >= 90 );
+      assertTrue( elapsed < 2000 );
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+
+
+
+  @Test
+  public void testAllBlackholed() throws Exception {
+    HappyEyeballsConnector connector = new HappyEyeballsConnector( 50, 300 );
+
+    long started = System.currentTimeMillis();
+    try {
+      connector.connect( new InetAddress[] { bad, bad }, blackhole.getPort() );
+      assertTrue( "connected to a blackholed address", false );
+    } catch ( SocketTimeoutException e ) {
+      // expected
+    }
+    long elapsed = System.currentTimeMillis() - started;
+    assertTrue( elapsed >= 250 );
+    assertTrue( elapsed < 3000 );
+  }
+
+
+
+
+  @Test
+  public void testSingleAddressTimeout() throws Exception {
+    HappyEyeballsConnector connector = new HappyEyeballsConnector( 50, 300 );
+
+    try {
+      connector.connect( new InetAddress[] { bad }, blackhole.getPort() );
+      assertTrue( "connected to a blackholed address", false );
+    } catch ( SocketTimeoutException e ) {
+      // expected
+    }
+  }
+
+
+
+
+  @Test
+  public void testInterleave() throws Exception {
+    InetAddress v4a = InetAddress.getByName( "10.0.0.1" );
+    InetAddress v4b = InetAddress.getByName( "10.0.0.2" );
+    InetAddress v6a = InetAddress.getByName( "fd00::1" );
+    InetAddress v6b = InetAddress.getByName( "fd00::2" );
+
+    InetAddress[] order = HappyEyeballsConnector.interleave( new InetAddress[] { v6a, v6b, v4a, v4b } );
+    assertEquals( v6a, order[0] );
+    assertEquals( v4a, order[1] );
+    assertEquals( v6b, order[2] );
+    assertEquals( v4b, order[3] );
+
+    // the family of the first address goes first
+    order = HappyEyeballsConnector.interleave( new InetAddress[] { v4a, v4b, v6a } );
+    assertEquals( v4a, order[0] );
+    assertEquals( v6a, order[1] );
+    assertEquals( v4b, order[2] );
+  }
+
+}
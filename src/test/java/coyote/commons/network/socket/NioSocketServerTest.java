@@ -0,0 +1,143 @@
+package coyote.commons.network.socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coyote.commons.network.IChannel;
+import coyote.commons.network.IChannelSink;
+import coyote.loader.thread.ThreadPool;
+
+
+public class NioSocketServerTest {
+
+  private ThreadPool pool;
+
+  private NioSocketServer server;
+
+  /** Whether the sink keeps connections open after answering */
+  private volatile boolean keepAlive = false;
+
+
+
+
+  @Before
+  public void setUp() throws Exception {
+    pool = new ThreadPool( "NioSocketServerTest" );
+    pool.start();
+
+    // answers each line with the same line in upper case
+    IChannelSink sink = new IChannelSink() {
+      public boolean assignHandler( IChannel channel ) throws IOException {
+        InputStream in = channel.getInputStream();
+        StringBuilder line = new StringBuilder();
+        int ch;
+        while ( ( ( ch = in.read() ) >= 0 ) && ( ch != '\n' ) ) {
+          line.append( (char)ch );
+        }
+        OutputStream out = channel.getOutputStream();
+        out.write( ( line.toString().toUpperCase() + "\n" ).getBytes( "US-ASCII" ) );
+        ( (NioChannel)channel ).setKeepAlive( keepAlive );
+        return true;
+      }
+    };
+
+    server = new NioSocketServer( new URI( "tcp://127.0.0.1:0" ), NioSocketServer.DEFAULT_BACKLOG, pool, sink, 2 );
+    server.startup();
+  }
+
+
+
+
+  @After
+  public void tearDown() {
+    server.shutdown();
+    pool.stop();
+  }
+
+
+
+
+  private static String exchange( Socket socket, String line ) throws IOException {
+    socket.getOutputStream().write( ( line + "\n" ).getBytes( "US-ASCII" ) );
+    socket.getOutputStream().flush();
+    InputStream in = socket.getInputStream();
+    StringBuilder retval = new StringBuilder();
+    int ch;
+    while ( ( ( ch = in.read() ) >= 0 ) && ( ch != '\n' ) ) {
+      retval.append( (char)ch );
+    }
+    return retval.toString();
+  }
+
+
+
+
+  private void waitForConnections( int count ) throws InterruptedException {
+    for ( int x = 0; ( x < 200 ) && ( server.getConnectionCount() != count ); x++ ) {
+      Thread.sleep( 10 );
+    }
+    assertEquals( count, server.getConnectionCount() );
+  }
+
+
+
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Socket socket = new Socket( "127.0.0.1", server.getBindPort() );
+    socket.setSoTimeout( 5000 );
+    try {
+      assertEquals( "HELLO", exchange( socket, "hello" ) );
+
+      // without keep-alive the server closes the connection after answering
+      assertEquals( -1, socket.getInputStream().read() );
+      waitForConnections( 0 );
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+
+
+
+  @Test
+  public void testKeepAlive() throws Exception {
+    keepAlive = true;
+
+    Socket[] sockets = new Socket[10];
+    for ( int x = 0; x < sockets.length; x++ ) {
+      sockets[x] = new Socket( "127.0.0.1", server.getBindPort() );
+      sockets[x].setSoTimeout( 5000 );
+    }
+    try {
+      // each connection is serviced again every time more data arrives
+      for ( int round = 0; round < 3; round++ ) {
+        for ( int x = 0; x < sockets.length; x++ ) {
+          assertEquals( "PING " + x + "." + round, exchange( sockets[x], "ping " + x + "." + round ) );
+        }
+      }
+      waitForConnections( sockets.length );
+    }
+    finally {
+      for ( int x = 0; x < sockets.length; x++ ) {
+        sockets[x].close();
+      }
+    }
+
+    // the server notices the peers closing idle connections
+    waitForConnections( 0 );
+    assertTrue( server.getBindPort() > 0 );
+  }
+
+}
@@ -0,0 +1,150 @@
+package coyote.commons.network.socket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Test;
+
+
+public class PeekInputStreamTest {
+
+  private static byte[] data( int size ) {
+    byte[] retval = new byte[size];
+    for ( int x = 0; x < size; x++ ) {
+      retval[x] = (byte)x;
+    }
+    return retval;
+  }
+
+
+
+
+  @Test
+  public void testPeekDoesNotConsume() throws Exception {
+    PeekInputStream in = new PeekInputStream( new ByteArrayInputStream( data( 10 ) ), null );
+
+    assertArrayEquals( new byte[] { 0, 1, 2 }, in.peek( 3 ) );
+    assertArrayEquals( new byte[] { 0, 1, 2 }, in.peek( 3 ) );
+    assertTrue( in.isBuffered() );
+
+    assertEquals( 0, in.read() );
+    assertArrayEquals( new byte[] { 1, 2, 3, 4 }, in.peek( 4 ) );
+
+    byte[] rest = new byte[20];
+    assertEquals( 9, in.read( rest, 0, rest.length ) );
+    assertEquals( 9, rest[8] );
+    assertEquals( -1, in.read() );
+  }
+
+
+
+
+  @Test
+  public void testPeekPastEnd() throws Exception {
+    PeekInputStream in = new PeekInputStream( new ByteArrayInputStream( data( 2 ) ), null );
+
+    // bytes past the end of the stream are zero
+    assertArrayEquals( new byte[] { 0, 1, 0, 0 }, in.peek( 4 ) );
+    assertTrue( in.isOpen() );
+    assertEquals( 0, in.read() );
+    assertEquals( 1, in.read() );
+    assertEquals( -1, in.read() );
+    assertFalse( in.isOpen() );
+  }
+
+
+
+
+  @Test
+  public void testPeekLargerThanBuffer() throws Exception {
+    byte[] source = data( 20000 );
+    PeekInputStream in = new PeekInputStream( new ByteArrayInputStream( source ), null );
+
+    assertEquals( source[0], in.read() );
+    byte[] peeked = in.peek( 12000 );
+    assertEquals( source[1], peeked[0] );
+    assertEquals( source[12000], peeked[11999] );
+
+    // everything peeked is still read in order
+    byte[] read = new byte[source.length];
+    int total = 1;
+    int count;
+    while ( ( count = in.read( read, total, read.length - total ) ) > 0 ) {
+      total += count;
+    }
+    assertEquals( source.length, total );
+    for ( int x = 1; x < source.length; x++ ) {
+      assertEquals( source[x], read[x] );
+    }
+  }
+
+
+
+
+  @Test
+  public void testLargeRead() throws Exception {
+    byte[] source = data( 10000 );
+    PeekInputStream in = new PeekInputStream( new ByteArrayInputStream( source ), null );
+
+    // a read as large as the buffer is not buffered
+    byte[] read = new byte[9000];
+    assertEquals( 9000, in.read( read, 0, read.length ) );
+    assertFalse( in.isBuffered() );
+    assertEquals( source[8999], read[8999] );
+    assertEquals( 1000, in.available() );
+  }
+
+
+
+
+  @Test
+  public void testChannelLiveness() throws Exception {
+    ServerSocket server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+    java.nio.channels.SocketChannel channel = java.nio.channels.SocketChannel.open( new InetSocketAddress( server.getInetAddress(), server.getLocalPort() ) );
+    Socket peer = server.accept();
+    try {
+      Socket socket = channel.socket();
+      PeekInputStream in = new PeekInputStream( socket.getInputStream(), channel );
+
+      // nothing has arrived, yet the check does not block
+      assertTrue( in.isOpen() );
+      assertFalse( in.isBuffered() );
+
+      OutputStream out = peer.getOutputStream();
+      out.write( new byte[] { 'o', 'k' } );
+      out.flush();
+      for ( int x = 0; ( x < 200 ) && !in.isBuffered(); x++ ) {
+        in.isOpen();
+        Thread.sleep( 10 );
+      }
+
+      // what the check read is kept for the next read
+      assertTrue( in.isBuffered() );
+      assertEquals( 'o', in.read() );
+      assertEquals( 'k', in.read() );
+
+      peer.close();
+      boolean open = true;
+      for ( int x = 0; ( x < 200 ) && open; x++ ) {
+        open = in.isOpen();
+        Thread.sleep( 10 );
+      }
+      assertFalse( open );
+    }
+    finally {
+      peer.close();
+      channel.close();
+      server.close();
+    }
+  }
+
+}
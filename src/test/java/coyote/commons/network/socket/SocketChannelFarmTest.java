@@ -0,0 +1,100 @@
+package coyote.commons.network.socket;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class SocketChannelFarmTest {
+
+  private SocketChannelFarm farm;
+
+
+
+
+  @Before
+  public void setUp() {
+    farm = new SocketChannelFarm();
+  }
+
+
+
+
+  @After
+  public void tearDown() {
+    farm.shutdown();
+  }
+
+
+
+
+  @Test
+  public void testConnect() throws Exception {
+    ServerSocket server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+    try {
+      SocketChannelFarmer farmer = farm.getFarmer( new URI( "tcp://127.0.0.1:" + server.getLocalPort() ), 2000 );
+      SocketChannel channel = farmer.getSocketChannel( 5000 );
+      assertNotNull( channel );
+      assertTrue( channel.isOpen() );
+      assertTrue( farmer.isConnected() );
+      channel.close();
+    }
+    finally {
+      server.close();
+    }
+  }
+
+
+
+
+  @Test
+  public void testTimeout() throws Exception {
+    Blackhole blackhole = new Blackhole( InetAddress.getByName( "127.0.0.1" ), 0 );
+    try {
+      long started = System.currentTimeMillis();
+      SocketChannelFarmer farmer = farm.getFarmer( new URI( "tcp://127.0.0.1:" + blackhole.getPort() ), 300 );
+      try {
+        farmer.getSocketChannel( 5000 );
+        assertTrue( "connected to a blackhole", false );
+      } catch ( SocketTimeoutException e ) {
+        // the farm gave up at the deadline, not the caller
+      }
+      long elapsed = System.currentTimeMillis() - started;
+      assertTrue( elapsed >= 250 );
+      assertTrue( elapsed < 3000 );
+      assertTrue( farmer.isError() );
+      assertTrue( farmer.isDone() );
+    }
+    finally {
+      blackhole.close();
+    }
+  }
+
+
+
+
+  @Test
+  public void testRefused() throws Exception {
+    ServerSocket server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+    int port = server.getLocalPort();
+    server.close();
+
+    SocketChannelFarmer farmer = farm.getFarmer( new URI( "tcp://127.0.0.1:" + port ), 2000 );
+    try {
+      farmer.getSocketChannel( 5000 );
+      assertTrue( "connected to a closed port", false );
+    } catch ( IOException e ) {
+      assertTrue( farmer.isError() );
+    }
+  }
+
+}
@@ -0,0 +1,116 @@
+package coyote.commons.network.socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import coyote.commons.network.socket.ssl.SSLSocketFactory;
+import coyote.commons.network.socket.tcp.TCPSocketFactory;
+
+
+public class SocketFactoryRegistryTest {
+
+  private static final String PROTOCOL = "registrytest";
+
+
+
+
+  @After
+  public void tearDown() {
+    SocketChannel.removeFactory( PROTOCOL );
+  }
+
+
+
+
+  @Test
+  public void testDefaults() {
+    assertTrue( SocketChannel.getFactory( "tcp" ) instanceof TCPSocketFactory );
+    assertTrue( SocketChannel.getFactory( "ssl" ) instanceof SSLSocketFactory );
+    assertTrue( SocketChannel.getFactory( "https" ) instanceof SSLSocketFactory );
+
+    // unknown protocols fall back to the tcp factory
+    assertSame( SocketChannel.getFactory( "tcp" ), SocketChannel.getFactory( PROTOCOL ) );
+    assertSame( SocketChannel.getFactory( "tcp" ), SocketChannel.getFactory( null ) );
+  }
+
+
+
+
+  @Test
+  public void testAddAndRemove() {
+    ISocketFactory factory = new TCPSocketFactory();
+    SocketChannel.addFactory( PROTOCOL, factory );
+    assertSame( factory, SocketChannel.getFactory( PROTOCOL ) );
+
+    // a class which cannot be loaded leaves the registered factory in place
+    SocketChannel.addFactory( PROTOCOL, "coyote.no.such.SocketFactory" );
+    assertSame( factory, SocketChannel.getFactory( PROTOCOL ) );
+
+    // a class name is created and registered once
+    SocketChannel.addFactory( PROTOCOL, TCPSocketFactory.class.getName() );
+    ISocketFactory created = SocketChannel.getFactory( PROTOCOL );
+    assertTrue( created instanceof TCPSocketFactory );
+    assertTrue( created != factory );
+    assertSame( created, SocketChannel.getFactory( PROTOCOL ) );
+
+    SocketChannel.removeFactory( PROTOCOL );
+    assertSame( SocketChannel.getFactory( "tcp" ), SocketChannel.getFactory( PROTOCOL ) );
+  }
+
+
+
+
+  @Test
+  public void testConcurrentLookups() throws Exception {
+    final int readers = 8;
+    final CountDownLatch start = new CountDownLatch( 1 );
+    final CountDownLatch done = new CountDownLatch( readers );
+    final AtomicInteger failures = new AtomicInteger();
+    final ISocketFactory[] factories = { new TCPSocketFactory(), new TCPSocketFactory() };
+
+    for ( int x = 0; x < readers; x++ ) {
+      Thread thread = new Thread( new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for ( int y = 0; y < 100000; y++ ) {
+              if ( SocketChannel.getFactory( PROTOCOL ) == null ) {
+                failures.incrementAndGet();
+              }
+            }
+          } catch ( Throwable t ) {
+            failures.incrementAndGet();
+          }
+          finally {
+            done.countDown();
+          }
+        }
+      } );
+      thread.setDaemon( true );
+      thread.start();
+    }
+
+    start.countDown();
+
+    // lookups always see some factory while the registration keeps changing
+    for ( int y = 0; done.getCount() > 0; y++ ) {
+      if ( ( y % 3 ) == 2 ) {
+        SocketChannel.removeFactory( PROTOCOL );
+      } else {
+        SocketChannel.addFactory( PROTOCOL, factories[y % 2] );
+      }
+    }
+
+    assertEquals( 0, failures.get() );
+    assertNotNull( SocketChannel.getFactory( PROTOCOL ) );
+  }
+
+}
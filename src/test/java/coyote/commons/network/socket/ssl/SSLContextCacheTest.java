@@ -0,0 +1,136 @@
+package coyote.commons.network.socket.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class SSLContextCacheTest {
+
+  private static final String PASSWORD = "changeit";
+
+  private File keystore = null;
+
+  private SSLServerSocket server = null;
+
+
+
+
+  @Before
+  public void setUp() throws Exception {
+    keystore = File.createTempFile( "loopback", ".jks" );
+    keystore.delete();
+
+    String keytool = System.getProperty( "java.home" ) + File.separator + "bin" + File.separator + "keytool";
+    Process process = new ProcessBuilder( keytool, "-genkeypair", "-alias", "loopback", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1", "-storetype", "JKS", "-keystore", keystore.getAbsolutePath(), "-storepass", PASSWORD, "-keypass", PASSWORD ).redirectErrorStream( true ).start();
+    InputStream out = process.getInputStream();
+    while ( out.read() != -1 );
+    assertEquals( 0, process.waitFor() );
+
+    KeyStore store = KeyStore.getInstance( "JKS" );
+    InputStream in = new FileInputStream( keystore );
+    try {
+      store.load( in, PASSWORD.toCharArray() );
+    }
+    finally {
+      in.close();
+    }
+    KeyManagerFactory factory = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+    factory.init( store, PASSWORD.toCharArray() );
+    SSLContext context = SSLContext.getInstance( "TLS" );
+    context.init( factory.getKeyManagers(), null, null );
+
+    server = (SSLServerSocket)context.getServerSocketFactory().createServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+    Thread acceptor = new Thread( new Runnable() {
+      public void run() {
+        try {
+          while ( true ) {
+            Socket socket = server.accept();
+            try {
+              // the handshake completes on the first write, which also lets
+              // the client read any session ticket sent after it
+              OutputStream os = socket.getOutputStream();
+              os.write( 'x' );
+              os.flush();
+              socket.getInputStream().read();
+            } catch ( Exception ignore ) {}
+            finally {
+              socket.close();
+            }
+          }
+        } catch ( Exception ignore ) {}
+      }
+    } );
+    acceptor.setDaemon( true );
+    acceptor.start();
+  }
+
+
+
+
+  @After
+  public void tearDown() throws Exception {
+    if ( server != null ) {
+      server.close();
+    }
+    if ( keystore != null ) {
+      keystore.delete();
+    }
+  }
+
+
+
+
+  private boolean connect( SSLSocketFactory factory ) throws Exception {
+    SSLSocket socket = (SSLSocket)factory.createSocket( server.getInetAddress(), server.getLocalPort() );
+    try {
+      assertEquals( 'x', socket.getInputStream().read() );
+      return SSLContextCache.isResumed( socket );
+    }
+    finally {
+      socket.close();
+    }
+  }
+
+
+
+
+  @Test
+  public void testResumption() throws Exception {
+    SSLSocketFactory factory = new SSLSocketFactory();
+    factory.initialize();
+
+    long handshakes = SSLContextCache.getHandshakeCount();
+    long resumed = SSLContextCache.getResumedHandshakeCount();
+
+    assertFalse( connect( factory ) );
+    assertEquals( handshakes + 1, SSLContextCache.getHandshakeCount() );
+    assertEquals( resumed, SSLContextCache.getResumedHandshakeCount() );
+
+    // a second factory shares the context and therefore its session cache
+    SSLSocketFactory other = new SSLSocketFactory();
+    other.initialize();
+    assertTrue( "second connection did not resume", connect( other ) );
+    assertEquals( handshakes + 2, SSLContextCache.getHandshakeCount() );
+    assertEquals( resumed + 1, SSLContextCache.getResumedHandshakeCount() );
+    assertEquals( SSLContextCache.getHandshakeCount() - SSLContextCache.getResumedHandshakeCount(), SSLContextCache.getFullHandshakeCount() );
+  }
+
+}
@@ -0,0 +1,322 @@
+package coyote.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import coyote.commons.list.BoundedQueue;
+import coyote.monitor.store.CacheJournal;
+
+
+public class AlertManagerTest {
+
+  private static MonitorAlert alert( String condition ) {
+    MonitorAlert retval = new MonitorAlert();
+    retval.setCondition( condition );
+    return retval;
+  }
+
+
+
+
+  @Test
+  public void testDeduplicate() {
+    AlertManager manager = new AlertManager();
+    CollectorCache cache = new CollectorCache();
+    manager.attach( "web", cache );
+
+    // a flapping probe raises the same alert over and over
+    long id = cache.addAlert( alert( "Down" ) );
+    for ( int x = 1; x < 1000; x++ ) {
+      assertEquals( id, cache.addAlert( alert( "Down" ) ) );
+    }
+    assertEquals( 1, cache.getAlertCount() );
+    assertEquals( 1, manager.getOpenCount() );
+    assertEquals( 1000, manager.getAlert( id ).getCount() );
+
+    // another condition or collector is another alert
+    assertTrue( cache.addAlert( alert( "Slow" ) ) != id );
+    CollectorCache other = new CollectorCache();
+    manager.attach( "mail", other );
+    assertTrue( other.addAlert( alert( "Down" ) ) != id );
+    assertEquals( 3, manager.getOpenCount() );
+
+    // once cleared, the condition opens a new alert
+    assertNotNull( manager.clear( "web", "Down" ) );
+    assertNull( manager.clear( "web", "Down" ) );
+    assertTrue( cache.addAlert( alert( "Down" ) ) != id );
+  }
+
+
+
+
+  @Test
+  public void testExpireAndEscalate() {
+    final List<AlertManager.Change> changes = new ArrayList<AlertManager.Change>();
+    AlertManager manager = new AlertManager();
+    manager.addListener( new AlertManager.Listener() {
+      public void alertChanged( MonitorAlert alert, AlertManager.Change change ) {
+        changes.add( change );
+      }
+    } );
+    manager.setExpiry( 10000 );
+    manager.setEscalation( 1000 );
+    manager.setMaxLevel( 2 );
+    CollectorCache cache = new CollectorCache();
+    manager.attach( "web", cache );
+
+    long now = System.currentTimeMillis();
+    MonitorAlert alert = alert( "Down" );
+    cache.addAlert( alert );
+    assertEquals( 0, alert.getLevel() );
+
+    // escalates each interval until the maximum level
+    manager.process( now + 1500 );
+    assertEquals( 1, alert.getLevel() );
+    manager.process( now + 2600 );
+    assertEquals( 2, alert.getLevel() );
+    manager.process( now + 9000 );
+    assertEquals( 2, alert.getLevel() );
+
+    // expires when not raised again in time
+    assertSame( alert, manager.getAlert( alert.getIdentifier() ) );
+    manager.process( now + 11000 );
+    assertNull( manager.getAlert( alert.getIdentifier() ) );
+    assertEquals( 0, manager.getOpenCount() );
+
+    assertEquals( AlertManager.Change.RAISED, changes.get( 0 ) );
+    assertEquals( AlertManager.Change.ESCALATED, changes.get( 1 ) );
+    assertEquals( AlertManager.Change.ESCALATED, changes.get( 2 ) );
+    assertEquals( AlertManager.Change.EXPIRED, changes.get( 3 ) );
+  }
+
+
+
+
+  @Test
+  public void testAcknowledge() throws Exception {
+    AlertManager manager = new AlertManager();
+    manager.setExpiry( 200 );
+    manager.setEscalation( 20 );
+    CollectorCache cache = new CollectorCache();
+    manager.attach( "web", cache );
+    manager.start();
+    try {
+      MonitorAlert alert = alert( "Down" );
+      cache.addAlert( alert );
+      alert.ack();
+      assertTrue( alert.isAcknowledged() );
+
+      // acknowledged alerts stay open but do not escalate
+      Thread.sleep( 100 );
+      assertEquals( 0, alert.getLevel() );
+      assertEquals( 1, manager.getOpenCount() );
+
+      // the timer thread expires it without being asked
+      long end = System.currentTimeMillis() + 5000;
+      while ( ( manager.getOpenCount() > 0 ) && ( System.currentTimeMillis() < end ) ) {
+        Thread.sleep( 10 );
+      }
+      assertEquals( 0, manager.getOpenCount() );
+      assertFalse( manager.ack( alert.getIdentifier() ) );
+    }
+    finally {
+      manager.stop();
+    }
+  }
+
+
+
+
+  @Test
+  public void testExpiryMovesLater() {
+    AlertManager manager = new AlertManager();
+    manager.setExpiry( 1000 );
+    CollectorCache cache = new CollectorCache();
+    manager.attach( "web", cache );
+
+    long now = System.currentTimeMillis();
+    MonitorAlert alert = alert( "Down" );
+    cache.addAlert( alert );
+    MonitorAlert repeat = alert( "Down" );
+    repeat.setExpires( now + 5000 );
+    cache.addAlert( repeat );
+
+    // the first expiry comes up, finds the alert was extended and waits again
+    assertTrue( manager.process( now + 1500 ) > 3000 );
+    assertEquals( 1, manager.getOpenCount() );
+
+    // a repeat never moves the expiry sooner
+    cache.addAlert( alert( "Down" ) );
+    assertEquals( now + 5000, alert.getExpires() );
+    manager.process( now + 5001 );
+    assertEquals( 0, manager.getOpenCount() );
+  }
+
+
+
+
+  @Test
+  public void testRestore() throws Exception {
+    File directory = TempDirectory.create( "alerts" );
+    try {
+      CacheJournal journal = new CacheJournal( directory );
+      journal.setSync( CacheJournal.Sync.ALWAYS );
+      journal.setCompactSize( 1024 );
+      journal.open();
+      AlertManager manager = new AlertManager();
+      manager.setEscalation( 1000 );
+      CollectorCache cache = new CollectorCache();
+      journal.attach( "web", cache );
+      manager.attach( "web", cache );
+
+      long now = System.currentTimeMillis();
+      long id = cache.addAlert( alert( "Down" ) );
+      cache.addAlert( alert( "Down" ) );
+      manager.process( now + 1500 );
+      assertTrue( manager.ack( id ) );
+      cache.addAlert( alert( "Slow" ) );
+      assertNotNull( manager.clear( "web", "Slow" ) );
+      long expires = manager.getAlert( id ).getExpires();
+
+      // taken by a consumer, but still open
+      cache.drainAlerts( new ArrayList<MonitorAlert>(), 10 );
+      journal.close();
+
+      CacheJournal recovered = new CacheJournal( directory );
+      recovered.open();
+      AlertManager restarted = new AlertManager();
+      CollectorCache restored = new CollectorCache();
+      restarted.attach( "web", restored );
+      recovered.attach( "web", restored );
+
+      // the open alert comes back with its changes, the cleared one does not
+      assertEquals( 1, restarted.getOpenCount() );
+      MonitorAlert open = restarted.getAlert( id );
+      assertEquals( 2, open.getCount() );
+      assertEquals( 1, open.getLevel() );
+      assertTrue( open.isAcknowledged() );
+      assertEquals( expires, open.getExpires() );
+      assertEquals( 0, restored.getAlertCount() );
+
+      // a repeat after the restart updates it instead of opening another
+      assertEquals( id, restored.addAlert( alert( "Down" ) ) );
+      assertEquals( 3, open.getCount() );
+      assertEquals( 0, restored.getAlertCount() );
+      recovered.close();
+
+      // restored the same when the journal is attached first
+      CacheJournal again = new CacheJournal( directory );
+      again.open();
+      AlertManager last = new AlertManager();
+      CollectorCache cached = new CollectorCache();
+      again.attach( "web", cached );
+      last.attach( "web", cached );
+      assertEquals( 3, last.getAlert( id ).getCount() );
+      again.close();
+    }
+    finally {
+      TempDirectory.delete( directory );
+    }
+  }
+
+
+
+
+  private static Sample sample( boolean failed ) {
+    Sample retval = new Sample();
+    if ( failed ) {
+      retval.setError( "Connection refused" );
+    }
+    return retval;
+  }
+
+
+
+
+  @Test
+  public void testStatusRaisesAndClears() {
+    AlertManager manager = new AlertManager();
+    CollectorCache cache = new CollectorCache();
+    cache.setStatusThresholds( 3, 2 );
+    manager.attach( "web", cache );
+
+    // a single failure is not enough to go to ERROR
+    cache.setSample( sample( false ) );
+    cache.setSample( sample( false ) );
+    cache.setSample( sample( true ) );
+    assertEquals( 0, manager.getOpenCount() );
+
+    cache.setSample( sample( true ) );
+    cache.setSample( sample( true ) );
+    assertEquals( CollectorCache.ERROR_STATUS, cache.getStatus() );
+    assertEquals( 1, manager.getOpenCount() );
+    MonitorAlert alert = manager.getOpenAlerts().get( 0 );
+    assertEquals( CollectorCache.ERROR_CONDITION, alert.getCondition() );
+    assertEquals( "web", alert.getAsString( MonitorAlert.COLLECTOR ) );
+    assertEquals( "Connection refused", alert.getAsString( CollectorCache.LAST_ERROR ) );
+    assertEquals( 1, cache.getAlertCount() );
+
+    // staying in error does not raise it again
+    cache.setSample( sample( true ) );
+    assertEquals( 1, alert.getCount() );
+    assertEquals( 1, cache.getAlertCount() );
+
+    // recovering clears it
+    cache.setSample( sample( false ) );
+    assertEquals( 1, manager.getOpenCount() );
+    cache.setSample( sample( false ) );
+    assertEquals( CollectorCache.CLEAR_STATUS, cache.getStatus() );
+    assertEquals( 0, manager.getOpenCount() );
+
+    // and the next failure opens a new one
+    for ( int x = 0; x < 3; x++ ) {
+      cache.setSample( sample( true ) );
+    }
+    assertEquals( 1, manager.getOpenCount() );
+    assertTrue( manager.getOpenAlerts().get( 0 ) != alert );
+  }
+
+
+
+
+  @Test
+  public void testDiscardedAlertIsClosed() {
+    final List<AlertManager.Change> changes = new ArrayList<AlertManager.Change>();
+    AlertManager manager = new AlertManager();
+    manager.addListener( new AlertManager.Listener() {
+      public void alertChanged( MonitorAlert alert, AlertManager.Change change ) {
+        changes.add( change );
+      }
+    } );
+    CollectorCache cache = new CollectorCache();
+    cache.setQueueLimits( 2, BoundedQueue.Overflow.DROP_NEWEST );
+    manager.attach( "web", cache );
+
+    long id = cache.addAlert( alert( "Down" ) );
+    assertTrue( id >= 0 );
+    assertTrue( cache.addAlert( alert( "Unreachable" ) ) >= 0 );
+
+    // the queue keeps the alerts it has, so the new one does not stay open
+    assertEquals( -1, cache.addAlert( alert( "Slow" ) ) );
+    assertEquals( 2, manager.getOpenCount() );
+    assertEquals( AlertManager.Change.DISCARDED, changes.get( changes.size() - 1 ) );
+    assertEquals( -1, cache.addAlert( alert( "Slow" ) ) );
+    assertEquals( 2, manager.getOpenCount() );
+
+    // once there is room it opens again
+    assertEquals( id, cache.getNextAlert().getIdentifier() );
+    assertTrue( cache.addAlert( alert( "Slow" ) ) >= 0 );
+    assertEquals( 3, manager.getOpenCount() );
+  }
+
+}
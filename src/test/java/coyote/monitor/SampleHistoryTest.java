@@ -0,0 +1,73 @@
+package coyote.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+public class SampleHistoryTest {
+
+  private static Sample sample( long value ) {
+    Sample retval = new Sample();
+    retval.put( "Value", value );
+    retval.put( "Text", "ignored" );
+    return retval;
+  }
+
+
+
+
+  @Test
+  public void testWrapAndRange() {
+    SampleHistory history = new SampleHistory( 5, 0 );
+    for ( int x = 0; x < 8; x++ ) {
+      history.add( 1000 + ( x * 10 ), sample( x ) );
+    }
+
+    // only the last five remain: times 1030 to 1070, values 3 to 7
+    assertEquals( 5, history.size() );
+    assertEquals( 1030, history.getOldest() );
+    assertEquals( 1070, history.getNewest() );
+    assertEquals( 1, history.getFieldNames().length );
+
+    SampleHistory.Series series = history.getSeries( "Value", 1040, 1060 );
+    assertEquals( 2, series.size() );
+    assertEquals( 1040, series.getTimestamp( 0 ) );
+    assertEquals( 4D, series.getValue( 0 ), 0 );
+    assertEquals( 5D, series.getValue( 1 ), 0 );
+
+    series = history.getSeries( "Value", 0, Long.MAX_VALUE );
+    assertEquals( 3D, series.getMinimum(), 0 );
+    assertEquals( 7D, series.getMaximum(), 0 );
+    assertEquals( 5D, series.getAverage(), 0 );
+
+    series = history.getLatest( "Value", 2 );
+    assertEquals( 2, series.size() );
+    assertEquals( 7D, series.getValue( 1 ), 0 );
+
+    assertEquals( 0, history.count( 2000, 3000 ) );
+    assertTrue( Double.isNaN( history.getSeries( "Missing", 0, Long.MAX_VALUE ).getValue( 0 ) ) );
+  }
+
+
+
+
+  @Test
+  public void testMaxAge() {
+    long now = System.currentTimeMillis();
+    SampleHistory history = new SampleHistory( 100, 1000 );
+    history.add( now - 5000, sample( 1 ) );
+    history.add( now - 2000, sample( 2 ) );
+    history.add( now - 500, sample( 3 ) );
+    Sample failed = sample( 4 );
+    failed.setError( "down" );
+    history.add( now, failed );
+
+    assertEquals( 2, history.size() );
+    SampleHistory.Series series = history.getSeries( "Value", 0, Long.MAX_VALUE );
+    assertEquals( 3D, series.getValue( 0 ), 0 );
+    assertTrue( series.isError( 1 ) );
+  }
+
+}
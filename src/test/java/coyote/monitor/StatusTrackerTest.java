@@ -0,0 +1,90 @@
+package coyote.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class StatusTrackerTest {
+
+  private static Sample sample( boolean failed ) {
+    Sample retval = new Sample();
+    if ( failed ) {
+      retval.setError( "Connection refused" );
+    }
+    return retval;
+  }
+
+
+
+
+  @Test
+  public void testHysteresis() {
+    CollectorCache cache = new CollectorCache();
+    assertEquals( CollectorCache.UNKNOWN_STATUS, cache.getStatus() );
+
+    // a healthy start is not reported
+    cache.setSample( sample( false ) );
+    cache.setSample( sample( false ) );
+    assertEquals( CollectorCache.CLEAR_STATUS, cache.getStatus() );
+    assertEquals( 0, cache.getEventCount() );
+
+    // two failures are not enough, the third is
+    cache.setSample( sample( true ) );
+    cache.setSample( sample( true ) );
+    assertEquals( CollectorCache.CLEAR_STATUS, cache.getStatus() );
+    cache.setSample( sample( true ) );
+    assertEquals( CollectorCache.ERROR_STATUS, cache.getStatus() );
+    assertEquals( CollectorCache.CLEAR_STATUS, cache.getAsString( CollectorCache.PREV_STATUS ) );
+    assertEquals( "Connection refused", cache.getAsString( CollectorCache.LAST_ERROR ) );
+
+    MonitorEvent event = cache.getNextEvent();
+    assertEquals( CollectorCache.ERROR_STATUS, event.getAsString( CollectorCache.STATUS ) );
+    assertTrue( event.hasError() );
+
+    // one good sample does not clear it
+    cache.setSample( sample( false ) );
+    cache.setSample( sample( true ) );
+    assertEquals( CollectorCache.ERROR_STATUS, cache.getStatus() );
+    cache.setSample( sample( false ) );
+    cache.setSample( sample( false ) );
+    assertEquals( CollectorCache.CLEAR_STATUS, cache.getStatus() );
+    assertEquals( 1, cache.getBounceCount() );
+    assertEquals( 1, cache.getEventCount() );
+  }
+
+
+
+
+  @Test
+  public void testFlapping() {
+    CollectorCache cache = new CollectorCache();
+    cache.setStatusThresholds( 1, 1 );
+
+    // a probe alternating between up and down reports flapping once
+    for ( int x = 0; x < 1000; x++ ) {
+      cache.setSample( sample( x % 2 == 1 ) );
+    }
+    assertTrue( cache.isFlapping() );
+
+    List<MonitorEvent> events = new ArrayList<MonitorEvent>();
+    cache.drainEvents( events, Integer.MAX_VALUE );
+    assertTrue( events.size() < 12 );
+    assertEquals( "Status flapping", events.get( events.size() - 1 ).getAsString( MonitorEvent.MESSAGE ) );
+
+    // once it settles, the end of flapping is reported with the status
+    for ( int x = 0; x < StatusTracker.DEFAULT_FLAP_WINDOW; x++ ) {
+      cache.setSample( sample( false ) );
+    }
+    assertFalse( cache.isFlapping() );
+    MonitorEvent event = cache.getNextEvent();
+    assertEquals( CollectorCache.CLEAR_STATUS, event.getAsString( CollectorCache.STATUS ) );
+    assertEquals( null, cache.getNextEvent() );
+  }
+
+}
@@ -0,0 +1,52 @@
+package coyote.monitor;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Creates and removes the scratch directories of the tests which write to
+ * disk.
+ */
+public final class TempDirectory {
+
+  private TempDirectory() {}
+
+
+
+
+  /**
+   * Create a new, empty directory in the temporary directory of the system.
+   *
+   * @param prefix the start of the name of the directory
+   *
+   * @return the directory
+   */
+  public static File create( String prefix ) throws IOException {
+    File retval = File.createTempFile( prefix, "" );
+    if ( !retval.delete() || !retval.mkdirs() ) {
+      throw new IOException( "Could not create directory " + retval );
+    }
+    return retval;
+  }
+
+
+
+
+  /**
+   * Delete a file or a directory and everything in it.
+   *
+   * @param file the file or directory to delete, may be null
+   */
+  public static void delete( File file ) {
+    if ( file == null ) {
+      return;
+    }
+    File[] children = file.listFiles();
+    for ( int x = 0; ( children != null ) && ( x < children.length ); x++ ) {
+      delete( children[x] );
+    }
+    file.delete();
+  }
+
+}
@@ -0,0 +1,302 @@
+package coyote.monitor.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coyote.dataframe.DataFrame;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.MonitorEvent;
+import coyote.monitor.Sample;
+import coyote.monitor.TempDirectory;
+import coyote.monitor.store.FrameCodec;
+
+
+public class ExporterTest {
+
+  private File directory;
+
+
+
+
+  @Before
+  public void setUp() throws IOException {
+    directory = TempDirectory.create( "export" );
+  }
+
+
+
+
+  @After
+  public void tearDown() {
+    TempDirectory.delete( directory );
+  }
+
+
+
+
+  private static Sample sample( long x ) {
+    Sample retval = new Sample();
+    retval.put( "Sequence", x );
+    return retval;
+  }
+
+
+
+
+  @Test
+  public void testFileSink() throws Exception {
+    File file = new File( directory, "export.json" );
+    Exporter exporter = new Exporter();
+    exporter.addSink( new FileSink( file ), null, 0 );
+    exporter.setBatchSize( 10 );
+
+    CollectorCache cache = new CollectorCache();
+    exporter.attach( "web", cache );
+    exporter.start();
+    for ( int x = 0; x < 25; x++ ) {
+      cache.setSample( sample( x ) );
+    }
+    cache.addEvent( new MonitorEvent( "Status changed" ) );
+    exporter.stop( 5000 );
+
+    int lines = 0;
+    BufferedReader reader = new BufferedReader( new FileReader( file ) );
+    try {
+      String line;
+      while ( ( line = reader.readLine() ) != null ) {
+        assertTrue( line.contains( "web" ) );
+        lines++;
+      }
+    }
+    finally {
+      reader.close();
+    }
+    assertEquals( 26, lines );
+    assertEquals( 26, exporter.getExportedCount() );
+    assertEquals( 0, cache.getEventCount() );
+  }
+
+
+
+
+  @Test
+  public void testRetryAndSpill() throws Exception {
+    // fails the first few sends, then holds up every send for a while
+    final List<byte[]> received = new ArrayList<byte[]>();
+    ExportSink sink = new ExportSink() {
+      int calls = 0;
+
+
+
+
+      public void send( byte[] batch, String contentType ) throws IOException {
+        if ( calls++ < 3 ) {
+          throw new IOException( "unavailable" );
+        }
+        try {
+          Thread.sleep( 20 );
+        } catch ( InterruptedException e ) {
+          throw new IOException( "interrupted" );
+        }
+        synchronized( received ) {
+          received.add( batch );
+        }
+      }
+
+
+
+
+      public void close() {}
+
+
+
+
+      public String getName() {
+        return "slow";
+      }
+    };
+
+    Exporter exporter = new Exporter();
+    exporter.setFormat( Exporter.Format.BINARY );
+    exporter.setBatchSize( 10 );
+    exporter.setRetryDelay( 10, 50 );
+    exporter.addSink( sink, new File( directory, "spill" ), 1024 * 1024 );
+
+    CollectorCache cache = new CollectorCache();
+    exporter.attach( "web", cache );
+    exporter.start();
+
+    // the collector is never held up by the sink
+    long start = System.currentTimeMillis();
+    for ( int x = 0; x < 1000; x++ ) {
+      cache.setSample( sample( x ) );
+    }
+    assertTrue( System.currentTimeMillis() - start < 1000 );
+
+    long end = System.currentTimeMillis() + 10000;
+    while ( ( exporter.getExportedCount() < 1000 ) && ( System.currentTimeMillis() < end ) ) {
+      Thread.sleep( 10 );
+    }
+    end = System.currentTimeMillis() + 10000;
+    while ( ( received.size() < 100 ) && ( System.currentTimeMillis() < end ) ) {
+      Thread.sleep( 10 );
+    }
+    exporter.stop( 1000 );
+
+    // every sample arrived once and in order, despite the failures
+    long expected = 0;
+    synchronized( received ) {
+      for ( byte[] batch : received ) {
+        FrameCodec codec = new FrameCodec();
+        ByteBuffer buffer = ByteBuffer.wrap( batch );
+        DataFrame record;
+        while ( ( record = codec.decode( buffer ) ) != null ) {
+          assertEquals( "web", record.getAsString( Exporter.COLLECTOR ) );
+          DataFrame data = record.getAsFrame( Exporter.DATA );
+          assertEquals( Long.valueOf( expected++ ), data.getObject( "Sequence" ) );
+        }
+      }
+    }
+    assertEquals( 1000, expected );
+    assertEquals( 0, exporter.getDroppedBatchCount() );
+  }
+
+
+
+
+  @Test
+  public void testSpillRemovesOnlyWhatWasSent() throws Exception {
+    SpillBuffer spill = new SpillBuffer( new File( directory, "spill" ), 25 );
+    spill.add( new byte[] { 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 } );
+    spill.add( new byte[] { 2, 2, 2, 2, 2, 2, 2, 2, 2, 2 } );
+
+    File sending = spill.peek();
+    assertEquals( 1, spill.read( sending )[0] );
+
+    // deletes the batch being sent to make room
+    spill.add( new byte[] { 3, 3, 3, 3, 3, 3, 3, 3, 3, 3 } );
+    assertEquals( 1, spill.getDroppedCount() );
+    assertEquals( null, spill.read( sending ) );
+
+    // the batch after it is still waiting
+    spill.remove( sending );
+    assertEquals( 2, spill.size() );
+    assertEquals( 2, spill.read( spill.peek() )[0] );
+  }
+
+
+
+
+  @Test
+  public void testSocketSinkLengthPrefix() throws Exception {
+    final ServerSocket server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+    final List<byte[]> received = new ArrayList<byte[]>();
+    Thread reader = new Thread( new Runnable() {
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          try {
+            DataInputStream in = new DataInputStream( socket.getInputStream() );
+            for ( int x = 0; x < 2; x++ ) {
+              byte[] batch = new byte[in.readInt()];
+              in.readFully( batch );
+              synchronized( received ) {
+                received.add( batch );
+              }
+            }
+          }
+          finally {
+            socket.close();
+          }
+        } catch ( IOException ignore ) {}
+      }
+    } );
+    reader.setDaemon( true );
+    reader.start();
+
+    SocketSink sink = new SocketSink( new InetSocketAddress( "127.0.0.1", server.getLocalPort() ) );
+    try {
+      sink.send( new byte[] { 1, 2, 3 }, "application/octet-stream" );
+      sink.send( new byte[] { 4, 5 }, "application/octet-stream" );
+      reader.join( 5000 );
+    }
+    finally {
+      sink.close();
+      server.close();
+    }
+
+    synchronized( received ) {
+      assertEquals( 2, received.size() );
+      assertTrue( Arrays.equals( new byte[] { 1, 2, 3 }, received.get( 0 ) ) );
+      assertTrue( Arrays.equals( new byte[] { 4, 5 }, received.get( 1 ) ) );
+    }
+  }
+
+
+
+
+  @Test
+  public void testSocketSinkWriteTimeout() throws Exception {
+    // accepts the connection but never reads from it
+    final ServerSocket server = new ServerSocket();
+    server.setReceiveBufferSize( 4096 );
+    server.bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+    final List<Socket> accepted = new ArrayList<Socket>();
+    Thread acceptor = new Thread( new Runnable() {
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          synchronized( accepted ) {
+            accepted.add( socket );
+          }
+        } catch ( IOException ignore ) {}
+      }
+    } );
+    acceptor.setDaemon( true );
+    acceptor.start();
+
+    SocketSink sink = new SocketSink( new InetSocketAddress( "127.0.0.1", server.getLocalPort() ) );
+    sink.setTimeout( 200 );
+    long start = System.currentTimeMillis();
+    try {
+      for ( int x = 0; x < 100; x++ ) {
+        sink.send( new byte[1024 * 1024], "application/octet-stream" );
+      }
+      fail( "writes to a peer which does not read did not time out" );
+    } catch ( SocketTimeoutException e ) {
+      // expected
+    }
+    finally {
+      sink.close();
+      server.close();
+      synchronized( accepted ) {
+        for ( Socket socket : accepted ) {
+          socket.close();
+        }
+      }
+    }
+    assertFalse( System.currentTimeMillis() - start > 10000 );
+  }
+
+}
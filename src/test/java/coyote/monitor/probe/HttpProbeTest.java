@@ -0,0 +1,156 @@
+package coyote.monitor.probe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coyote.dataframe.DataFrame;
+import coyote.loader.cfg.Config;
+import coyote.monitor.Sample;
+
+
+public class HttpProbeTest {
+
+  private ServerSocket server;
+
+  /** The heads of the requests the server has read */
+  private final List<String> heads = Collections.synchronizedList( new ArrayList<String>() );
+
+
+
+
+  @Before
+  public void setUp() throws Exception {
+    server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+  }
+
+
+
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+  }
+
+
+
+
+  /**
+   * Answer one request with the given raw response after the given delay.
+   */
+  private void respond( final String response, final long delay ) {
+    Thread thread = new Thread( new Runnable() {
+      public void run() {
+        try {
+          Socket socket = server.accept();
+          InputStream in = socket.getInputStream();
+          StringBuilder head = new StringBuilder();
+          int matched = 0;
+          while ( matched < 4 ) {
+            int ch = in.read();
+            if ( ch < 0 ) {
+              return;
+            }
+            head.append( (char)ch );
+            matched = ( ch == ( ( ( matched % 2 ) == 0 ) ? '\r' : '\n' ) ) ? matched + 1 : ( ( ch == '\r' ) ? 1 : 0 );
+          }
+          heads.add( head.toString() );
+          Thread.sleep( delay );
+          OutputStream out = socket.getOutputStream();
+          out.write( response.getBytes( "ISO-8859-1" ) );
+          out.flush();
+          socket.close();
+        } catch ( Exception e ) {
+          // server closed
+        }
+      }
+    } );
+    thread.setDaemon( true );
+    thread.start();
+  }
+
+
+
+
+  private HttpProbe probe( boolean asynchronous ) {
+    return probe( asynchronous, false );
+  }
+
+
+
+
+  private HttpProbe probe( boolean asynchronous, boolean conditional ) {
+    HttpProbe retval = new HttpProbe();
+    Config cfg = retval.getTemplate();
+    cfg.setDefaults();
+    cfg.put( HttpProbe.DESTINATION_URI, "http://127.0.0.1:" + server.getLocalPort() + "/status" );
+    cfg.put( HttpProbe.CONNECT_TIMEOUT, 200 );
+    cfg.put( HttpProbe.ASYNCHRONOUS, asynchronous );
+    cfg.put( HttpProbe.CONDITIONAL, conditional );
+    retval.setConfiguration( cfg );
+    retval.initialize();
+    return retval;
+  }
+
+
+
+
+  @Test
+  public void testSlowResponse() throws Exception {
+    // answered well after the connect timeout, but within the read timeout
+    respond( "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello", 600 );
+
+    HttpProbe probe = probe( true );
+    DataFrame sample = probe.generateSample();
+    probe.terminate();
+
+    assertNull( sample.getAsString( Sample.ERROR ) );
+    assertFalse( sample.contains( HttpProbe.NOT_MODIFIED ) );
+  }
+
+
+
+
+  @Test
+  public void testConditional() throws Exception {
+    HttpProbe probe = probe( false, true );
+
+    respond( "HTTP/1.1 200 OK\r\nETag: \"v1\"\r\nLast-Modified: Mon, 19 Oct 2026 00:00:00 GMT\r\nContent-Length: 5\r\n\r\nhello", 0 );
+    DataFrame first = probe.generateSample();
+    String signature = first.getAsString( HttpProbe.SIGNATURE );
+    assertNotNull( signature );
+    assertFalse( heads.get( 0 ).contains( "If-None-Match" ) );
+
+    // the validators of the first response are sent with the next request
+    respond( "HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\n\r\n", 0 );
+    DataFrame second = probe.generateSample();
+    probe.terminate();
+
+    String head = heads.get( 1 );
+    assertTrue( head, head.contains( "If-None-Match: \"v1\"" ) );
+    assertTrue( head, head.contains( "If-Modified-Since: Mon, 19 Oct 2026 00:00:00 GMT" ) );
+
+    // not modified leaves the stored signature as it was
+    assertNull( second.getAsString( Sample.ERROR ) );
+    assertTrue( second.contains( HttpProbe.NOT_MODIFIED ) );
+    assertEquals( signature, second.getAsString( HttpProbe.SIGNATURE ) );
+    assertEquals( signature, probe.getCache().getValidator( HttpProbe.SIGNATURE ) );
+    assertFalse( second.contains( HttpProbe.CONTENT_CHANGE ) );
+  }
+
+}
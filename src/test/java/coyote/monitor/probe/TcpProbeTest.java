@@ -0,0 +1,217 @@
+package coyote.monitor.probe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coyote.commons.network.socket.Blackhole;
+import coyote.dataframe.DataFrame;
+import coyote.loader.cfg.Config;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.MonitorEvent;
+import coyote.monitor.Sample;
+
+
+public class TcpProbeTest {
+
+  private static final int CONNECT_TIMEOUT = 300;
+
+  private ServerSocket server;
+
+  private Blackhole first;
+
+  private Blackhole second;
+
+
+
+
+  @Before
+  public void setUp() throws Exception {
+    InetAddress loopback = InetAddress.getByName( "127.0.0.1" );
+    server = new ServerSocket( 0, 50, loopback );
+    first = new Blackhole( loopback, 0 );
+    second = new Blackhole( loopback, 0 );
+
+    // send a banner to every connection
+    Thread thread = new Thread( new Runnable() {
+      public void run() {
+        try {
+          while ( true ) {
+            Socket socket = server.accept();
+            OutputStream out = socket.getOutputStream();
+            out.write( "SSH-2.0-test\r\n".getBytes( "ISO-8859-1" ) );
+            out.flush();
+            socket.close();
+          }
+        } catch ( Exception e ) {
+          // server closed
+        }
+      }
+    } );
+    thread.setDaemon( true );
+    thread.start();
+  }
+
+
+
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    first.close();
+    second.close();
+  }
+
+
+
+
+  private TcpProbe probe( int maxConcurrent, int... ports ) {
+    StringBuilder endpoints = new StringBuilder();
+    for ( int x = 0; x < ports.length; x++ ) {
+      if ( x > 0 ) {
+        endpoints.append( ',' );
+      }
+      endpoints.append( "127.0.0.1:" ).append( ports[x] );
+    }
+
+    TcpProbe retval = new TcpProbe();
+    Config cfg = retval.getTemplate();
+    cfg.setDefaults();
+    cfg.put( TcpProbe.ENDPOINTS, endpoints.toString() );
+    cfg.put( HttpProbe.CONNECT_TIMEOUT, CONNECT_TIMEOUT );
+    cfg.put( TcpProbe.READ_BANNER, true );
+    cfg.put( TcpProbe.MAX_CONCURRENT, maxConcurrent );
+    retval.setConfiguration( cfg );
+    retval.initialize();
+    return retval;
+  }
+
+
+
+
+  private static DataFrame target( DataFrame sample, int port ) throws Exception {
+    return sample.getAsFrame( MultiHttpProbe.TARGETS ).getAsFrame( "127.0.0.1:" + port );
+  }
+
+
+
+
+  @Test
+  public void testOpenAndBlackholed() throws Exception {
+    TcpProbe probe = probe( 256, server.getLocalPort(), first.getPort() );
+    DataFrame sample = probe.generateSample();
+    probe.terminate();
+
+    assertEquals( 2, sample.getAsInt( MultiHttpProbe.TARGET_COUNT ) );
+    assertEquals( 1, sample.getAsInt( MultiHttpProbe.ERROR_COUNT ) );
+
+    DataFrame open = target( sample, server.getLocalPort() );
+    assertFalse( open.contains( Sample.ERROR ) );
+    assertEquals( "SSH-2.0-test", open.getAsString( TcpProbe.BANNER ) );
+    assertTrue( open.contains( HttpProbe.TCP_CONNECT_TIME ) );
+
+    DataFrame blackholed = target( sample, first.getPort() );
+    assertEquals( "Connection timed out after " + CONNECT_TIMEOUT + "ms", blackholed.getAsString( Sample.ERROR ) );
+
+    long elapsed = sample.getAsLong( MultiHttpProbe.ELAPSED_TIME );
+    assertTrue( "batch took " + elapsed + "ms", ( elapsed >= CONNECT_TIMEOUT ) && ( elapsed < 2 * CONNECT_TIMEOUT ) );
+  }
+
+
+
+
+  @Test
+  public void testWindow() throws Exception {
+    // one connection at a time, so the blackholed endpoints time out in turn
+    TcpProbe probe = probe( 1, first.getPort(), second.getPort(), server.getLocalPort() );
+    DataFrame sample = probe.generateSample();
+    probe.terminate();
+
+    long elapsed = sample.getAsLong( MultiHttpProbe.ELAPSED_TIME );
+    assertTrue( "batch took " + elapsed + "ms", elapsed >= 2 * CONNECT_TIMEOUT );
+    assertEquals( 2, sample.getAsInt( MultiHttpProbe.ERROR_COUNT ) );
+
+    // each endpoint has its own deadline, counted from when it was started
+    assertTrue( target( sample, first.getPort() ).contains( Sample.ERROR ) );
+    assertTrue( target( sample, second.getPort() ).contains( Sample.ERROR ) );
+    assertFalse( target( sample, server.getLocalPort() ).contains( Sample.ERROR ) );
+  }
+
+
+
+
+  @Test
+  public void testConcurrent() throws Exception {
+    // both blackholed endpoints wait out the same timeout together
+    TcpProbe probe = probe( 2, first.getPort(), second.getPort() );
+    DataFrame sample = probe.generateSample();
+    probe.terminate();
+
+    long elapsed = sample.getAsLong( MultiHttpProbe.ELAPSED_TIME );
+    assertTrue( "batch took " + elapsed + "ms", ( elapsed >= CONNECT_TIMEOUT ) && ( elapsed < 2 * CONNECT_TIMEOUT ) );
+    assertEquals( 2, sample.getAsInt( MultiHttpProbe.ERROR_COUNT ) );
+  }
+
+
+
+
+  private static List<MonitorEvent> endpointEvents( CollectorCache cache ) {
+    List<MonitorEvent> retval = new ArrayList<MonitorEvent>();
+    MonitorEvent event;
+    while ( ( event = cache.getNextEvent() ) != null ) {
+      if ( event.contains( "Endpoint" ) ) {
+        retval.add( event );
+      }
+    }
+    return retval;
+  }
+
+
+
+
+  @Test
+  public void testEndpointStatus() throws Exception {
+    ServerSocket closed = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+    int refused = closed.getLocalPort();
+    closed.close();
+
+    TcpProbe probe = probe( 256, server.getLocalPort(), refused );
+    CollectorCache cache = probe.getCache();
+    try {
+      // a failure or two is not enough to report the endpoint unreachable
+      for ( int x = 0; x < 2; x++ ) {
+        probe.generateSample();
+      }
+      assertEquals( 0, endpointEvents( cache ).size() );
+
+      DataFrame sample = probe.generateSample();
+      assertEquals( CollectorCache.ERROR_STATUS, target( sample, refused ).getAsString( CollectorCache.STATUS ) );
+      assertEquals( CollectorCache.CLEAR_STATUS, target( sample, server.getLocalPort() ).getAsString( CollectorCache.STATUS ) );
+
+      // only the transition of the refused endpoint is reported
+      List<MonitorEvent> events = endpointEvents( cache );
+      assertEquals( 1, events.size() );
+      assertEquals( "Endpoint unreachable", events.get( 0 ).getAsString( MonitorEvent.MESSAGE ) );
+      assertEquals( "127.0.0.1:" + refused, events.get( 0 ).getAsString( "Endpoint" ) );
+
+      // staying down reports nothing more
+      probe.generateSample();
+      assertEquals( 0, endpointEvents( cache ).size() );
+    }
+    finally {
+      probe.terminate();
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+package coyote.monitor.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coyote.monitor.CollectorCache;
+import coyote.monitor.Sample;
+
+
+public class QueryEngineTest {
+
+  private static final int COLLECTORS = 2000;
+
+  private QueryEngine engine;
+
+  private long[] slowest;
+
+
+
+
+  @Before
+  public void setUp() {
+    engine = new QueryEngine( 4 );
+    slowest = new long[COLLECTORS];
+
+    // every 10th collector keeps failing, the rest answer in varying times
+    for ( int x = 0; x < COLLECTORS; x++ ) {
+      CollectorCache cache = new CollectorCache();
+      for ( int y = 0; y < 5; y++ ) {
+        Sample sample = new Sample();
+        long elapsed = ( ( x * 7919L ) + ( y * 104729L ) ) % 1000;
+        sample.put( "Elapsed", elapsed );
+        sample.put( "Host", "host" + ( x % 4 ) );
+        if ( x % 10 == 0 ) {
+          sample.setError( "Connection refused" );
+        }
+        cache.setSample( sample );
+        slowest[x] = Math.max( slowest[x], elapsed );
+      }
+      engine.attach( "web" + x, cache );
+    }
+  }
+
+
+
+
+  @After
+  public void tearDown() {
+    engine.shutdown();
+  }
+
+
+
+
+  @Test
+  public void testGroupByText() {
+    Query query = new Query();
+    query.setWhere( "Status == 'ERROR'" );
+    query.setGroupBy( "Host" );
+    query.addAggregate( "Collectors", Query.Aggregate.COUNT, null );
+    query.setOrderBy( "Host", false );
+    Result result = engine.execute( query );
+
+    // collectors 0, 10, 20... are on host0 and host2
+    assertEquals( 2, result.getRowCount() );
+    assertEquals( "host0", result.getValue( 0, "Host" ) );
+    assertEquals( COLLECTORS / 20, result.getAsDouble( 0, "Collectors" ), 0 );
+    assertEquals( "host2", result.getValue( 1, "Host" ) );
+
+    // no groups at all is one group of everything
+    query = new Query();
+    query.setWhere( "Status == 'NOSUCH'" );
+    query.addAggregate( "Collectors", Query.Aggregate.COUNT, null );
+    assertEquals( 0, engine.execute( query ).getRowCount() );
+  }
+
+
+
+
+  @Test
+  public void testTopSlowest() {
+    long now = System.currentTimeMillis();
+    Query query = new Query();
+    query.setWindow( now - 600000, now + 1000 );
+    query.setWhere( "!Error" );
+    query.setGroupBy( Query.COLLECTOR );
+    query.addAggregate( "Slowest", Query.Aggregate.MAXIMUM, "Elapsed" );
+    query.addAggregate( "Samples", Query.Aggregate.COUNT, null );
+    query.setOrderBy( "Slowest", true );
+    query.setLimit( 20 );
+    Result result = engine.execute( query );
+    assertEquals( 20, result.getRowCount() );
+
+    long[] expected = new long[COLLECTORS - ( COLLECTORS / 10 )];
+    for ( int x = 0, y = 0; x < COLLECTORS; x++ ) {
+      if ( x % 10 != 0 ) {
+        expected[y++] = slowest[x];
+      }
+    }
+    Arrays.sort( expected );
+    for ( int x = 0; x < 20; x++ ) {
+      assertEquals( expected[expected.length - 1 - x], result.getAsDouble( x, "Slowest" ), 0 );
+      assertEquals( 5, result.getAsDouble( x, "Samples" ), 0 );
+      assertTrue( ( (String)result.getValue( x, Query.COLLECTOR ) ).startsWith( "web" ) );
+    }
+  }
+
+
+
+
+  @Test
+  public void testColumns() {
+    Query query = new Query();
+    query.setWhere( "Elapsed >= 990 || Collector == 'web7'" );
+    query.addColumn( "Name", Query.COLLECTOR );
+    query.addColumn( "Rounded", "round(Elapsed / 100) * 100" );
+    query.addColumn( "Missing", "abs(NoSuchField)" );
+    query.setOrderBy( "Rounded", true );
+    query.setLimit( 3 );
+    Result result = engine.execute( query );
+
+    assertEquals( 3, result.getRowCount() );
+    assertEquals( 1000, result.getAsDouble( 0, "Rounded" ), 0 );
+    assertTrue( Double.isNaN( result.getAsDouble( 0, "Missing" ) ) );
+    assertNull( result.getValue( 0, "NoSuchColumn" ) );
+
+    try {
+      query = new Query();
+      query.addColumn( "Bad", "Elapsed +" );
+      engine.execute( query );
+      assertTrue( false );
+    } catch ( IllegalArgumentException e ) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,256 @@
+package coyote.monitor.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coyote.commons.list.BoundedQueue;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.MonitorAlert;
+import coyote.monitor.MonitorEvent;
+import coyote.monitor.TempDirectory;
+
+
+public class CacheJournalTest {
+
+  private File directory;
+
+
+
+
+  @Before
+  public void setUp() throws IOException {
+    directory = TempDirectory.create( "journal" );
+  }
+
+
+
+
+  @After
+  public void tearDown() {
+    TempDirectory.delete( directory );
+  }
+
+
+
+
+  @Test
+  public void testRecovery() throws Exception {
+    CacheJournal journal = new CacheJournal( directory );
+    journal.setSync( CacheJournal.Sync.ALWAYS );
+    journal.open();
+
+    CollectorCache cache = new CollectorCache();
+    journal.attach( "web", cache );
+    cache.setValidator( "ETag", "\"abc\"" );
+    cache.setValidator( "Last-Modified", "yesterday" );
+    cache.setValidator( "Last-Modified", null );
+    cache.setBounceCount( 3 );
+
+    long first = cache.addEvent( new MonitorEvent( "first" ) );
+    long second = cache.addEvent( new MonitorEvent( "second" ) );
+    MonitorAlert alert = new MonitorAlert();
+    long alertId = cache.addAlert( alert );
+    assertEquals( first, cache.getNextEvent().getIdentifier() );
+    journal.close();
+
+    CacheJournal recovered = new CacheJournal( directory );
+    recovered.open();
+    assertEquals( 1, recovered.getCollectorCount() );
+
+    CollectorCache restored = new CollectorCache();
+    recovered.attach( "web", restored );
+    assertEquals( "\"abc\"", restored.getValidator( "ETag" ) );
+    assertNull( restored.getValidator( "Last-Modified" ) );
+    assertEquals( 3, restored.getBounceCount() );
+    assertEquals( 1, restored.getEventCount() );
+    assertEquals( 1, restored.getAlertCount() );
+
+    List<MonitorEvent> events = new ArrayList<MonitorEvent>();
+    restored.drainEvents( events, 10 );
+    assertEquals( second, events.get( 0 ).getIdentifier() );
+    assertEquals( alertId, restored.getNextAlert().getAsLong( MonitorAlert.ID ) );
+
+    // identifiers are not handed out again
+    assertTrue( restored.addEvent( new MonitorEvent() ) > second );
+    recovered.close();
+
+    CacheJournal again = new CacheJournal( directory );
+    again.open();
+    CollectorCache last = new CollectorCache();
+    again.attach( "web", last );
+    assertEquals( 1, last.getEventCount() );
+    assertEquals( 0, last.getAlertCount() );
+    again.close();
+  }
+
+
+
+
+  @Test
+  public void testQueueLimits() throws Exception {
+    CacheJournal journal = new CacheJournal( directory );
+    journal.open();
+
+    // evicted events are journaled as taken
+    CollectorCache small = new CollectorCache();
+    small.setQueueLimits( 4, BoundedQueue.Overflow.DROP_OLDEST );
+    journal.attach( "small", small );
+    for ( int x = 0; x < 6; x++ ) {
+      small.addEvent( new MonitorEvent( "event " + x ) );
+    }
+
+    // more than the default capacity is kept when the limit allows it
+    int count = CollectorCache.DEFAULT_QUEUE_CAPACITY + 100;
+    CollectorCache large = new CollectorCache();
+    large.setQueueLimits( count, BoundedQueue.Overflow.DROP_OLDEST );
+    journal.attach( "large", large );
+    for ( int x = 0; x < count; x++ ) {
+      large.addEvent( new MonitorEvent( "event " + x ) );
+    }
+
+    CollectorCache cleared = new CollectorCache();
+    journal.attach( "cleared", cleared );
+    cleared.addEvent( new MonitorEvent( "gone" ) );
+    cleared.clearEvents();
+    journal.close();
+
+    CacheJournal recovered = new CacheJournal( directory );
+    recovered.open();
+    CollectorCache restored = new CollectorCache();
+    restored.setQueueLimits( 8, BoundedQueue.Overflow.DROP_OLDEST );
+    recovered.attach( "small", restored );
+    assertEquals( 4, restored.getEventCount() );
+    assertEquals( "event 2", restored.getNextEvent().getAsString( MonitorEvent.MESSAGE ) );
+
+    restored = new CollectorCache();
+    restored.setQueueLimits( count, BoundedQueue.Overflow.DROP_OLDEST );
+    recovered.attach( "large", restored );
+    assertEquals( count, restored.getEventCount() );
+
+    restored = new CollectorCache();
+    recovered.attach( "cleared", restored );
+    assertEquals( 0, restored.getEventCount() );
+
+    // restoring into a smaller queue journals what no longer fits
+    restored = new CollectorCache();
+    restored.setQueueLimits( 2, BoundedQueue.Overflow.DROP_OLDEST );
+    recovered.attach( "small", restored );
+    assertEquals( 2, restored.getEventCount() );
+    recovered.close();
+
+    CacheJournal again = new CacheJournal( directory );
+    again.open();
+    restored = new CollectorCache();
+    again.attach( "small", restored );
+    assertEquals( 2, restored.getEventCount() );
+    again.close();
+  }
+
+
+
+
+  @Test
+  public void testQueueLimitsKeepHeld() throws Exception {
+    CacheJournal journal = new CacheJournal( directory );
+    journal.open();
+
+    CollectorCache cache = new CollectorCache();
+    journal.attach( "resized", cache );
+    for ( int x = 0; x < 6; x++ ) {
+      cache.addEvent( new MonitorEvent( "event " + x ) );
+    }
+
+    // the held events move to the new queue, the oldest not fitting are taken
+    cache.setQueueLimits( 4, BoundedQueue.Overflow.DROP_OLDEST );
+    assertEquals( 4, cache.getEventCount() );
+    assertEquals( "event 2", cache.getNextEvent().getAsString( MonitorEvent.MESSAGE ) );
+    journal.close();
+
+    CacheJournal recovered = new CacheJournal( directory );
+    recovered.open();
+    CollectorCache restored = new CollectorCache();
+    recovered.attach( "resized", restored );
+    assertEquals( 3, restored.getEventCount() );
+    assertEquals( "event 3", restored.getNextEvent().getAsString( MonitorEvent.MESSAGE ) );
+    recovered.close();
+  }
+
+
+
+
+  @Test
+  public void testCompaction() throws Exception {
+    CacheJournal journal = new CacheJournal( directory );
+    journal.setSync( CacheJournal.Sync.NEVER );
+    journal.setCompactSize( 1024 );
+    journal.open();
+
+    List<CollectorCache> caches = new ArrayList<CollectorCache>();
+    for ( int x = 0; x < 200; x++ ) {
+      CollectorCache cache = new CollectorCache();
+      journal.attach( "collector" + x, cache );
+      cache.setValidator( "ETag", "v" + x );
+      cache.setBounceCount( x );
+      caches.add( cache );
+    }
+    journal.close();
+
+    // only the newest snapshot and the log written after it remain
+    assertEquals( 2, directory.list().length );
+
+    CacheJournal recovered = new CacheJournal( directory );
+    recovered.open();
+    assertEquals( 200, recovered.getCollectorCount() );
+    for ( int x = 0; x < 200; x++ ) {
+      CollectorCache cache = new CollectorCache();
+      recovered.attach( "collector" + x, cache );
+      assertEquals( "v" + x, cache.getValidator( "ETag" ) );
+      assertEquals( x, cache.getBounceCount() );
+    }
+    recovered.close();
+  }
+
+
+
+
+  @Test
+  public void testTornRecord() throws Exception {
+    CacheJournal journal = new CacheJournal( directory );
+    journal.open();
+    CollectorCache cache = new CollectorCache();
+    journal.attach( "web", cache );
+    cache.setBounceCount( 1 );
+    cache.setBounceCount( 2 );
+    journal.close();
+
+    // cut the last record short as a crash part way through a write would
+    File log = null;
+    for ( String name : directory.list() ) {
+      if ( name.startsWith( "journal." ) ) {
+        log = new File( directory, name );
+      }
+    }
+    RandomAccessFile file = new RandomAccessFile( log, "rw" );
+    file.setLength( file.length() - 2 );
+    file.close();
+
+    CacheJournal recovered = new CacheJournal( directory );
+    recovered.open();
+    CollectorCache restored = new CollectorCache();
+    recovered.attach( "web", restored );
+    assertEquals( 1, restored.getBounceCount() );
+    recovered.close();
+  }
+
+}
@@ -0,0 +1,133 @@
+package coyote.monitor.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.junit.Test;
+
+import coyote.dataframe.DataFrame;
+import coyote.dataframe.marshal.JSONMarshaler;
+import coyote.monitor.MonitorAlert;
+import coyote.monitor.MonitorEvent;
+import coyote.monitor.Sample;
+
+
+public class FrameCodecTest {
+
+  private static Sample sample( int x ) {
+    Sample retval = new Sample();
+    retval.put( "Elapsed", 120L + x );
+    retval.put( "Status", 200 );
+    retval.put( "Ratio", 0.25 * x );
+    retval.put( "Up", Boolean.TRUE );
+    retval.put( "Negative", -5L );
+    retval.put( "Taken", new Date( 1445000000000L + x ) );
+    retval.put( "Host", "www.example.com" );
+    DataFrame nested = new DataFrame();
+    nested.put( "Connect", 12L );
+    retval.put( "Phases", nested );
+    return retval;
+  }
+
+
+
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    MonitorEvent event = new MonitorEvent( "Status changed" );
+    event.setIdentifier( 42 );
+    event.setError( "Connection refused" );
+
+    MonitorAlert alert = new MonitorAlert();
+    alert.put( MonitorAlert.ID, 7L );
+    alert.setLevel( 3 );
+    alert.setExpires( 1445000060000L );
+
+    DataFrame[] frames = { sample( 1 ), event, alert, sample( 2 ) };
+
+    FrameCodec encoder = new FrameCodec();
+    ByteBuffer buffer = ByteBuffer.allocate( 4096 );
+    for ( int x = 0; x < frames.length; x++ ) {
+      assertTrue( encoder.encode( frames[x], buffer ) );
+    }
+    buffer.flip();
+
+    FrameCodec decoder = new FrameCodec();
+    for ( int x = 0; x < frames.length; x++ ) {
+      DataFrame decoded = decoder.decode( buffer );
+      assertEquals( frames[x].getClass(), decoded.getClass() );
+      assertEquals( JSONMarshaler.marshal( frames[x] ), JSONMarshaler.marshal( decoded ) );
+    }
+    assertFalse( buffer.hasRemaining() );
+
+    MonitorAlert decoded = (MonitorAlert)FrameCodec.fromBytes( FrameCodec.toBytes( alert ), null );
+    assertEquals( 3, decoded.getLevel() );
+    assertEquals( 1445000060000L, decoded.getExpires() );
+  }
+
+
+
+
+  @Test
+  public void testSmallerThanJson() throws Exception {
+    FrameCodec codec = new FrameCodec();
+    ByteBuffer buffer = ByteBuffer.allocate( 65536 );
+    int json = 0;
+    for ( int x = 0; x < 100; x++ ) {
+      Sample sample = sample( x );
+      json += JSONMarshaler.marshal( sample ).getBytes( "UTF-8" ).length;
+      assertTrue( codec.encode( sample, buffer ) );
+    }
+    // names are written once, so later records are much smaller
+    assertTrue( buffer.position() * 2 < json );
+  }
+
+
+
+
+  @Test
+  public void testPartialBuffers() throws Exception {
+    FrameCodec encoder = new FrameCodec();
+    ByteBuffer small = ByteBuffer.allocate( 40 );
+    assertFalse( encoder.encode( sample( 1 ), small ) );
+    assertEquals( 0, small.position() );
+
+    ByteBuffer buffer = ByteBuffer.allocate( 1024 );
+    assertTrue( encoder.encode( sample( 1 ), buffer ) );
+    assertTrue( encoder.encode( sample( 2 ), buffer ) );
+    int length = buffer.position();
+    buffer.flip();
+
+    // deliver the stream a few bytes at a time into one reused buffer
+    FrameCodec decoder = new FrameCodec();
+    ByteBuffer input = ByteBuffer.allocate( 1024 );
+    Sample target = new Sample();
+    int decoded = 0;
+    for ( int x = 0; x < length; x += 7 ) {
+      ByteBuffer slice = buffer.duplicate();
+      slice.position( x );
+      slice.limit( Math.min( length, x + 7 ) );
+      input.put( slice );
+      input.flip();
+      while ( decoder.decode( input, target ) ) {
+        decoded++;
+        assertEquals( JSONMarshaler.marshal( sample( decoded ) ), JSONMarshaler.marshal( target ) );
+      }
+      // a record which is not all there leaves the target as it was
+      if ( decoded > 0 ) {
+        assertEquals( JSONMarshaler.marshal( sample( decoded ) ), JSONMarshaler.marshal( target ) );
+      }
+      input.compact();
+    }
+    assertEquals( 2, decoded );
+
+    input.flip();
+    assertNull( decoder.decode( input ) );
+  }
+
+}
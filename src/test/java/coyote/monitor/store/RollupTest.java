@@ -0,0 +1,157 @@
+package coyote.monitor.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coyote.dataframe.DataFrame;
+import coyote.monitor.CollectorCache;
+import coyote.monitor.Sample;
+import coyote.monitor.SampleHistory;
+import coyote.monitor.SampleListener;
+import coyote.monitor.TempDirectory;
+
+
+public class RollupTest {
+
+  private File directory;
+
+
+
+
+  @Before
+  public void setUp() throws IOException {
+    directory = TempDirectory.create( "rollup" );
+  }
+
+
+
+
+  @After
+  public void tearDown() {
+    TempDirectory.delete( directory );
+  }
+
+
+
+
+  @Test
+  public void testBuckets() throws Exception {
+    TimeSeriesStore store = new TimeSeriesStore( directory );
+    store.setRetention( 0 );
+    store.open();
+    Rollup rollup = new Rollup( store );
+    rollup.setResolutions( new long[] { 60000, 3600000 } );
+
+    // one sample every 10 seconds for two hours, every 20th an error
+    long start = 1445040000000L;
+    for ( int x = 0; x < 720; x++ ) {
+      Sample sample = new Sample();
+      sample.put( "Elapsed", (long)( x % 6 ) * 10 );
+      if ( x % 20 == 0 ) {
+        sample.setError( "Timed out" );
+      }
+      rollup.add( "web", start + ( x * 10000L ), sample );
+    }
+
+    // the last minute and hour are still open
+    Rollup.Bucket open = rollup.getOpenBucket( "web", "Elapsed", 3600000 );
+    assertEquals( start + 3600000, open.getStart() );
+    assertEquals( 360, open.getCount() );
+    assertNull( rollup.getOpenBucket( "web", "Elapsed", 1000 ) );
+
+    SampleHistory.Series max = store.query( "web", Rollup.getFieldName( "Elapsed", 60000, Rollup.MAXIMUM ), 0, Long.MAX_VALUE );
+    assertEquals( 119, max.size() );
+    assertEquals( start, max.getTimestamp( 0 ) );
+    assertEquals( 50, max.getValue( 0 ), 0 );
+
+    SampleHistory.Series sum = store.query( "web", Rollup.getFieldName( "Elapsed", 3600000, Rollup.SUM ), 0, Long.MAX_VALUE );
+    assertEquals( 1, sum.size() );
+    assertEquals( 360 * 25, sum.getValue( 0 ), 0 );
+
+    SampleHistory.Series errors = store.query( "web", Rollup.getFieldName( Rollup.ERRORS, 3600000, Rollup.SUM ), 0, Long.MAX_VALUE );
+    assertEquals( 18, errors.getValue( 0 ), 0 );
+
+    // flushing after the hour closes the idle buckets
+    rollup.flush( start + 7200000 );
+    assertNull( rollup.getOpenBucket( "web", "Elapsed", 3600000 ) );
+    sum = store.query( "web", Rollup.getFieldName( "Elapsed", 3600000, Rollup.SUM ), 0, Long.MAX_VALUE );
+    assertEquals( 2, sum.size() );
+    store.close();
+  }
+
+
+
+
+  @Test
+  public void testCacheListener() {
+    Rollup rollup = new Rollup( null );
+    CollectorCache cache = new CollectorCache();
+    rollup.attach( "web", cache );
+    Sample sample = new Sample();
+    sample.put( "Elapsed", 100L );
+    cache.setSample( sample );
+    assertEquals( 1, rollup.getOpenBucket( "web", "Elapsed", 60000 ).getCount() );
+    assertEquals( 0, rollup.getOpenBucket( "web", Rollup.ERRORS, 86400000 ).getSum(), 0 );
+  }
+
+
+
+
+  @Test
+  public void testFailingListener() {
+    CollectorCache cache = new CollectorCache();
+    cache.addSampleListener( new SampleListener() {
+      public void sampleTaken( CollectorCache source, long time, DataFrame sample ) {
+        throw new IllegalStateException( "broken" );
+      }
+    } );
+    Rollup rollup = new Rollup( null );
+    rollup.attach( "web", cache );
+
+    // a listener which fails does not keep the sample from the others
+    Sample sample = new Sample();
+    sample.put( "Elapsed", 100L );
+    cache.setSample( sample );
+    assertEquals( 1, rollup.getOpenBucket( "web", "Elapsed", 60000 ).getCount() );
+  }
+
+
+
+
+  @Test
+  public void testSketch() {
+    QuantileSketch sketch = new QuantileSketch();
+    Random random = new Random( 1 );
+    double[] values = new double[10000];
+    for ( int x = 0; x < values.length; x++ ) {
+      // a long tailed latency distribution
+      values[x] = Math.exp( random.nextGaussian() ) * 100;
+      sketch.add( values[x] );
+    }
+    java.util.Arrays.sort( values );
+
+    double[] quantiles = { 0.5, 0.9, 0.99 };
+    for ( int x = 0; x < quantiles.length; x++ ) {
+      double expected = values[(int)( quantiles[x] * ( values.length - 1 ) )];
+      assertEquals( expected, sketch.getQuantile( quantiles[x] ), expected * QuantileSketch.DEFAULT_ACCURACY );
+    }
+
+    // a small bucket limit gives up accuracy only at the bottom
+    QuantileSketch small = new QuantileSketch( 0.01, 16 );
+    for ( int x = 0; x < values.length; x++ ) {
+      small.add( values[x] );
+    }
+    assertEquals( values[values.length - 1], small.getQuantile( 1 ), values[values.length - 1] * 0.01 );
+    assertTrue( small.getQuantile( 0 ) > values[0] );
+  }
+
+}
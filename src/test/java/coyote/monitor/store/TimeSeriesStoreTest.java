@@ -0,0 +1,196 @@
+package coyote.monitor.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coyote.monitor.CollectorCache;
+import coyote.monitor.Sample;
+import coyote.monitor.SampleHistory;
+import coyote.monitor.TempDirectory;
+
+
+public class TimeSeriesStoreTest {
+
+  private File directory;
+
+
+
+
+  @Before
+  public void setUp() throws IOException {
+    directory = TempDirectory.create( "tsdb" );
+  }
+
+
+
+
+  @After
+  public void tearDown() {
+    TempDirectory.delete( directory );
+  }
+
+
+
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    TimeSeriesStore store = new TimeSeriesStore( directory );
+    store.setBlockSize( 50 );
+    store.setSegmentDuration( 100000 );
+    store.setRetention( 0 );
+    store.open();
+
+    long start = 1000000;
+    double[] expected = new double[1000];
+    for ( int x = 0; x < expected.length; x++ ) {
+      // mostly regular timestamps with some jitter, values that repeat and vary
+      long time = start + ( x * 1000 ) + ( ( x % 7 == 0 ) ? 3 : 0 );
+      expected[x] = ( x % 10 == 0 ) ? Math.sin( x ) * 1000 : Math.floor( x / 10 );
+      Sample sample = new Sample();
+      sample.put( "Value", expected[x] );
+      sample.put( "Up", Boolean.TRUE );
+      store.write( "Probe one", time, sample );
+    }
+
+    SampleHistory.Series series = store.query( "Probe one", "Value", 0, Long.MAX_VALUE );
+    assertEquals( expected.length, series.size() );
+    for ( int x = 0; x < expected.length; x++ ) {
+      assertEquals( expected[x], series.getValue( x ), 0 );
+      assertEquals( start + ( x * 1000 ) + ( ( x % 7 == 0 ) ? 3 : 0 ), series.getTimestamp( x ) );
+    }
+
+    // ten segments were written as the points span 1,000 seconds
+    File[] segments = new File( directory, "Probe_one" ).listFiles();
+    assertEquals( 10, segments.length );
+
+    series = store.query( "Probe one", "Value", start + 10000, start + 20000 );
+    assertEquals( 10, series.size() );
+
+    series = store.query( "Probe one", "Up", start, start + 100000, 10000, Aggregate.SUM );
+    assertEquals( 10, series.size() );
+    assertEquals( start, series.getTimestamp( 0 ) );
+    assertEquals( 10D, series.getValue( 0 ), 0 );
+
+    store.close();
+
+    // the data survives reopening
+    store = new TimeSeriesStore( directory );
+    store.setRetention( 0 );
+    store.open();
+    assertEquals( 1, store.getCollectors().length );
+    assertEquals( 2, store.getFields( "Probe one" ).length );
+    series = store.query( "Probe one", "Value", 0, Long.MAX_VALUE, 100000, Aggregate.MAXIMUM );
+    assertEquals( 10, series.size() );
+    store.close();
+  }
+
+
+
+
+  @Test
+  public void testSegmentReleasesFile() throws Exception {
+    Segment segment = Segment.create( directory, 1000 );
+    Chunk chunk = new Chunk( 10 );
+    for ( int x = 0; x < 10; x++ ) {
+      chunk.add( 1000 + x, x );
+    }
+    segment.append( "Value", chunk );
+    assertTrue( segment.isOpen() );
+
+    // released between writes, opened again by the next one
+    segment.release();
+    assertFalse( segment.isOpen() );
+    chunk = new Chunk( 10 );
+    for ( int x = 10; x < 20; x++ ) {
+      chunk.add( 1000 + x, x );
+    }
+    segment.append( "Value", chunk );
+    assertTrue( segment.isOpen() );
+
+    // an active segment keeps its map, a sealed one drops it after each read
+    Counter counter = new Counter();
+    segment.read( "Value", 0, Long.MAX_VALUE, counter );
+    assertEquals( 20, counter.count );
+    assertTrue( segment.isMapped() );
+    segment.close();
+    assertFalse( segment.isOpen() );
+    assertFalse( segment.isMapped() );
+
+    counter = new Counter();
+    segment.read( "Value", 0, Long.MAX_VALUE, counter );
+    assertEquals( 20, counter.count );
+    assertFalse( segment.isMapped() );
+    assertTrue( segment.delete() );
+  }
+
+
+
+
+  @Test
+  public void testAttach() throws Exception {
+    TimeSeriesStore store = new TimeSeriesStore( directory );
+    store.open();
+
+    CollectorCache cache = new CollectorCache();
+    store.attach( "web", cache );
+    for ( int x = 0; x < 5; x++ ) {
+      Sample sample = new Sample();
+      sample.put( "Elapsed", (long)x );
+      cache.setSample( sample );
+    }
+
+    // every raw sample taken by the collector is written
+    SampleHistory.Series series = store.query( "web", "Elapsed", 0, Long.MAX_VALUE );
+    assertEquals( 5, series.size() );
+    assertEquals( 4, series.getValue( 4 ), 0 );
+    store.close();
+  }
+
+
+
+
+  @Test
+  public void testRetention() throws Exception {
+    TimeSeriesStore store = new TimeSeriesStore( directory );
+    store.setSegmentDuration( 1000 );
+    store.setRetention( 60000 );
+    store.open();
+
+    long now = System.currentTimeMillis();
+    for ( int x = 0; x < 10; x++ ) {
+      store.write( "old", "Value", now - 600000 + ( x * 500 ), x );
+      store.write( "new", "Value", now - 5000 + ( x * 500 ), x );
+    }
+    store.flush();
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( ( store.query( "old", "Value", 0, Long.MAX_VALUE ).size() > 0 ) && ( System.currentTimeMillis() < deadline ) ) {
+      Thread.sleep( 100 );
+    }
+
+    assertEquals( 0, store.query( "old", "Value", 0, Long.MAX_VALUE ).size() );
+    assertEquals( 10, store.query( "new", "Value", 0, Long.MAX_VALUE ).size() );
+    assertTrue( new File( directory, "new" ).listFiles().length > 0 );
+    store.close();
+  }
+
+  private static final class Counter implements Chunk.PointVisitor {
+    int count = 0;
+
+
+
+
+    public void visit( long time, double value ) {
+      count++;
+    }
+  }
+
+}